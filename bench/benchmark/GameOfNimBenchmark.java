@@ -0,0 +1,69 @@
+/**
+ * Benchmarks complete computer v computer games
+ */
+package benchmark;
+
+import game.GameOfNim;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.rmi.RemoteException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import player.ComputerPlayer;
+import server.PlayerProfile;
+
+/**
+ * Games per second played through GameOfNim by two ComputerPlayers, with no lobby.
+ * The server console output is discarded while the benchmark runs.
+ * @author Chris
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class GameOfNimBenchmark {
+    @Param({"1", "2"}) // EASY, HARD
+    public int difficulty;
+
+    private PlayerProfile player1;
+    private PlayerProfile player2;
+    private PrintStream console; // Real System.out, restored afterwards
+
+    @Setup
+    public void setup() throws RemoteException {
+        player1 = PlayerProfile.of(new ComputerPlayer("Computer 1", difficulty));
+        player2 = PlayerProfile.of(new ComputerPlayer("Computer 2", difficulty));
+
+        console = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                // Discard console output
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                // Discard console output
+            }
+        }));
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(console);
+    }
+
+    @Benchmark
+    public GameOfNim playGame() {
+        GameOfNim game = new GameOfNim(player1, player2, difficulty, null);
+        game.run();
+        return game;
+    }
+}
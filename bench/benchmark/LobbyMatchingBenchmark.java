@@ -0,0 +1,138 @@
+/**
+ * Benchmarks lobby matchmaking
+ */
+package benchmark;
+
+import constants.Constants;
+import game.GameScheduler;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import server.NimServerLobby;
+
+/**
+ * Matchmaking throughput: queues N registered stub players with a mix of difficulties and
+ * opponent types and measures how fast the lobby pairs them and sets up their games.
+ * Games are handed to an executor that never runs them, so only matching and game setup are timed.
+ * @author Chris
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+// Each fork starts from an empty lobby - no checkpoint, journal, leaderboard, replays or metrics files
+@Fork(jvmArgsAppend = {"-Dnim.checkpoint.file=none", "-Dnim.journal.file=none", "-Dnim.leaderboard.file=none",
+        "-Dnim.replay.dir=none", "-Dnim.metrics.interval=0"})
+public class LobbyMatchingBenchmark {
+    // Number of players queued per benchmark invocation
+    public static final int PLAYERS = 1000;
+
+    @Param({"0", "25", "50"}) // Percentage of players asking for a computer opponent
+    public int computerPercent;
+
+    private NimServerLobby lobby;
+    private int[] playerCodes;
+    private long[] sessionKeys;
+    private PrintStream console; // Real System.out, restored afterwards
+
+    /**
+     * Executor that accepts games without running them
+     */
+    static class DiscardingExecutor extends AbstractExecutorService {
+        private volatile boolean shutdown;
+
+        @Override
+        public void execute(Runnable command) {
+            // Game is not played
+        }
+
+        @Override
+        public void shutdown() {
+            shutdown = true;
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            shutdown = true;
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return shutdown;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return shutdown;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return shutdown;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws RemoteException {
+        StubClient client;
+
+        console = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                // Discard console output
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                // Discard console output
+            }
+        }));
+
+        // Discarded games never hand their slot back, so allow as many as a trial can use.
+        // Stub players stand in for RMI, the lobby is not bound in a registry
+        lobby = new NimServerLobby(new GameScheduler(new DiscardingExecutor(), Integer.MAX_VALUE), false);
+        playerCodes = new int[PLAYERS];
+        sessionKeys = new long[PLAYERS];
+
+        for(int p = 0; p < PLAYERS; p++) {
+            client = new StubClient("Player " + p, p % 2 == 0 ? Constants.EASY : Constants.HARD,
+                    p % 100 < computerPercent ? Constants.COMPUTER_PLAYER : Constants.HUMAN_PLAYER);
+            lobby.addPlayer(client); // Registers the player, their first match happens here
+            playerCodes[p] = client.getPlayerCode();
+            sessionKeys[p] = client.getSessionKey();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws NoSuchObjectException {
+        UnicastRemoteObject.unexportObject(lobby, true);
+        System.setOut(console);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PLAYERS)
+    public void queueAndMatch() throws RemoteException {
+        for(int p = 0; p < PLAYERS; p++) {
+            lobby.queuePlayer(playerCodes[p], sessionKeys[p]);
+        }
+    }
+}
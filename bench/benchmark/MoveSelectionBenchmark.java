@@ -0,0 +1,44 @@
+/**
+ * Benchmarks computer player move selection
+ */
+package benchmark;
+
+import constants.Constants;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import player.ComputerPlayer;
+
+/**
+ * Time taken by ComputerPlayer.getMarbles at each difficulty across a range of bag sizes.
+ * Bag sizes above the move table size exercise the fallback calculation.
+ * @author Chris
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MoveSelectionBenchmark {
+    @Param({"1", "2"}) // EASY, HARD
+    public int difficulty;
+
+    @Param({"5", "23", "103", "65535", "1000000"})
+    public int bagSize;
+
+    private ComputerPlayer player;
+
+    @Setup
+    public void setup() {
+        player = new ComputerPlayer("Benchmark Player", difficulty == Constants.EASY ? Constants.EASY : Constants.HARD);
+    }
+
+    @Benchmark
+    public int getMarbles() {
+        return player.getMarbles(bagSize);
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * In-process stand in for a remote NimClient
+ */
+package benchmark;
+
+import client.NimClientInterface;
+import game.NimVariant;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Client with fixed details that answers immediately, so benchmarks need no RMI or console.
+ * It takes a random legal number of marbles and never plays again. Move and play again
+ * requests are ignored, the lobby benchmark never runs the games it starts.
+ * @author Chris
+ */
+public class StubClient implements NimClientInterface {
+    private final String name;
+    private final int difficulty;
+    private final int opponentType;
+    private volatile int playerCode = -1;
+    private volatile long sessionKey;
+    private volatile boolean inGame;
+
+    /**
+     * Constructor
+     * @param name Name of the player
+     * @param difficulty EASY or HARD
+     * @param opponentType HUMAN_PLAYER or COMPUTER_PLAYER
+     */
+    public StubClient(String name, int difficulty, int opponentType) {
+        this.name = name;
+        this.difficulty = difficulty;
+        this.opponentType = opponentType;
+    }
+
+    @Override
+    public void serverMessage(String message) {
+        // Nothing to display
+    }
+
+    @Override
+    public void serverMessages(String[] messages) {
+        // Nothing to display
+    }
+
+    @Override
+    public void joinedServer() {
+        // Nothing to display
+    }
+
+    @Override
+    public void heartbeat() {
+        // The lobby hears from stub players each time the benchmark queues them
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public boolean getIsHuman() {
+        return true;
+    }
+
+    @Override
+    public int getDifficulty() {
+        return difficulty;
+    }
+
+    @Override
+    public int getOpponentType() {
+        return opponentType;
+    }
+
+    @Override
+    public void setInGameStatus(boolean inGameFlag) {
+        inGame = inGameFlag;
+    }
+
+    @Override
+    public boolean getInGameStatus() {
+        return inGame;
+    }
+
+    @Override
+    public void setPlayerCode(int playerCode) {
+        this.playerCode = playerCode;
+    }
+
+    @Override
+    public void setSessionKey(long sessionKey) {
+        this.sessionKey = sessionKey;
+    }
+
+    /**
+     * Returns the key the lobby gave this player
+     * @return session key
+     */
+    public long getSessionKey() {
+        return sessionKey;
+    }
+
+    @Override
+    public int getPlayerCode() {
+        return playerCode;
+    }
+
+    @Override
+    public int getMarbles(int bagSize) {
+        return ThreadLocalRandom.current().nextInt(bagSize / 2) + 1;
+    }
+
+    @Override
+    public void gameState(String opponent, NimVariant variant, int[] heaps, int timeoutSeconds) {
+        // Games are not run by the benchmarks
+    }
+
+    @Override
+    public void opponentMoved(int heap, int taken, int timeoutSeconds) {
+        // Games are not run by the benchmarks
+    }
+
+    @Override
+    public void requestPlayAgain() {
+        // Never plays again
+    }
+
+    @Override
+    public void won() {
+        // Nothing to display
+    }
+
+    @Override
+    public void lost() {
+        // Nothing to display
+    }
+
+    @Override
+    public boolean playAgain() {
+        return false;
+    }
+}
@@ -0,0 +1,233 @@
+/**
+ * Benchmarks a move round trip over each transport
+ */
+package benchmark;
+
+import client.NimClientInterface;
+import constants.Constants;
+import game.NimVariant;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.rmi.Naming;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import server.NimServerInterface;
+import server.NimServerLobby;
+import transport.NioLobbyServer;
+import transport.NioServerConnection;
+
+/**
+ * Per move latency over loopback: a client playing the computer submits a move and waits for
+ * the server's next move request, the computer's reply. When a game ends the
+ * client queues straight away, so the next request is the first move of a new game.
+ * @author Chris
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+// Each fork starts from an empty lobby - no checkpoint, journal, leaderboard, replays or metrics files
+@Fork(jvmArgsAppend = {"-Dnim.checkpoint.file=none", "-Dnim.journal.file=none", "-Dnim.leaderboard.file=none",
+        "-Dnim.replay.dir=none", "-Dnim.metrics.interval=0"})
+public class TransportBenchmark {
+    @Param({"rmi", "nio"})
+    public String transport;
+
+    private NimServerLobby lobby;
+    private NioLobbyServer nioServer;
+    private NimServerInterface server; // Lobby as seen by the client
+    private LoopbackClient client;
+    private PrintStream console;       // Real System.out, restored afterwards
+
+    /**
+     * Client that hands each move request to the benchmark thread and always plays again
+     */
+    public static class LoopbackClient extends UnicastRemoteObject implements NimClientInterface {
+        private static final long serialVersionUID = 1L;
+
+        final BlockingQueue<Integer> moveRequests = new ArrayBlockingQueue<>(1);
+        volatile NimServerInterface server;
+        volatile int playerCode = -1;
+        volatile long sessionKey;
+        volatile int bagSize; // Marbles left, as seen by the client
+
+        LoopbackClient() throws RemoteException {
+            super();
+        }
+
+        @Override
+        public void gameState(String opponent, NimVariant variant, int[] heaps, int timeoutSeconds) {
+            bagSize = heaps[0]; // The benchmark lobby plays the classic single bag game
+
+            if(timeoutSeconds > 0) {
+                moveRequests.add(bagSize);
+            }
+        }
+
+        @Override
+        public void opponentMoved(int heap, int taken, int timeoutSeconds) {
+            bagSize -= taken;
+
+            if(timeoutSeconds > 0) {
+                moveRequests.add(bagSize);
+            }
+        }
+
+        @Override
+        public void requestPlayAgain() throws RemoteException {
+            server.queuePlayer(playerCode, sessionKey);
+        }
+
+        @Override
+        public void serverMessage(String message) {
+            // Nothing to display
+        }
+
+        @Override
+        public void serverMessages(String[] messages) {
+            // Nothing to display
+        }
+
+        @Override
+        public void joinedServer() {
+            // Nothing to display
+        }
+
+        @Override
+        public void heartbeat() throws RemoteException {
+            server.heartbeat(playerCode, sessionKey);
+        }
+
+        @Override
+        public String getName() {
+            return "Loopback";
+        }
+
+        @Override
+        public boolean getIsHuman() {
+            return true;
+        }
+
+        @Override
+        public int getDifficulty() {
+            return Constants.EASY;
+        }
+
+        @Override
+        public int getOpponentType() {
+            return Constants.COMPUTER_PLAYER;
+        }
+
+        @Override
+        public void setInGameStatus(boolean inGameFlag) {
+            // Not tracked
+        }
+
+        @Override
+        public boolean getInGameStatus() {
+            return false;
+        }
+
+        @Override
+        public void setPlayerCode(int playerCode) {
+            this.playerCode = playerCode;
+        }
+
+        @Override
+        public void setSessionKey(long sessionKey) {
+            this.sessionKey = sessionKey;
+        }
+
+        @Override
+        public int getPlayerCode() {
+            return playerCode;
+        }
+
+        @Override
+        public int getMarbles(int bagSize) {
+            return 1;
+        }
+
+        @Override
+        public void won() {
+            // Nothing to display
+        }
+
+        @Override
+        public void lost() {
+            // Nothing to display
+        }
+
+        @Override
+        public boolean playAgain() {
+            return true;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, java.rmi.NotBoundException {
+        console = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                // Discard console output
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                // Discard console output
+            }
+        }));
+
+        lobby = new NimServerLobby(); // Binds the RMI name on the local registry
+        client = new LoopbackClient();
+
+        if("nio".equals(transport)) {
+            nioServer = new NioLobbyServer(lobby, 0, Runtime.getRuntime().availableProcessors());
+            server = NioServerConnection.connect("localhost", nioServer.getPort());
+        }
+        else {
+            server = (NimServerInterface) Naming.lookup("rmi://localhost/" + Constants.SERVERNAME);
+        }
+
+        client.server = server;
+        server.addPlayer(client);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws RemoteException {
+        if(nioServer != null) {
+            ((NioServerConnection) server).close();
+            nioServer.close();
+        }
+        UnicastRemoteObject.unexportObject(client, true);
+        System.setOut(console);
+    }
+
+    @Benchmark
+    public int move() throws RemoteException, InterruptedException {
+        Integer bagSize = client.moveRequests.poll(10, TimeUnit.SECONDS);
+
+        if(bagSize == null) {
+            throw new IllegalStateException("No move request from the server");
+        }
+
+        client.bagSize--;
+        server.submitMove(client.playerCode, client.sessionKey, 1);
+        return bagSize;
+    }
+}
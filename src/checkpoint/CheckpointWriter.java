@@ -0,0 +1,375 @@
+/**
+ * CheckpointWriter periodically saves the lobby's players, waiting queues and games in progress
+ */
+package checkpoint;
+
+import checkpoint.LobbyCheckpoint.PlayerRecord;
+import game.GameOfNim;
+import game.GameState;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+import java.util.function.IntSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Incremental checkpoints of the lobby.
+ * The lobby reports players joining and leaving and hands over each game it starts - none of
+ * these calls block. A single writer thread wakes every interval and appends only what has
+ * changed since the last checkpoint: player records, the games whose version has moved on, the
+ * waiting queues that have changed and a removal record for each finished game. A game is only
+ * locked while its few fields are copied, so the game threads are never held up by the disk.
+ * Each batch is written with one write and forced to disk once.
+ * The writer keeps its own copy of what the file holds. When the file has grown to several times
+ * that size it is rewritten from the copy and swapped in atomically, so the file stays small
+ * however long the server runs.
+ * @author Chris
+ */
+public class CheckpointWriter {
+    // System properties used to configure checkpoints
+    public static final String FILE_PROPERTY = "nim.checkpoint.file";       // Checkpoint file, "none" to turn checkpoints off
+    public static final String INTERVAL_PROPERTY = "nim.checkpoint.millis"; // Time between checkpoints
+
+    public static final String DEFAULT_FILE = "nim-checkpoint.dat";
+    public static final int DEFAULT_INTERVAL = 1000;
+
+    static final long MIN_COMPACT_SIZE = 1 << 20; // File is never rewritten below this size
+    static final int COMPACT_RATIO = 4;           // Rewrite once the file is this many times its compacted size
+
+    private final Path file;
+    private final long intervalMillis;
+    private final LobbyCheckpoint image; // What the file holds, writer thread only once started
+    private FileChannel channel;         // Appends to the file
+    private long fileSize;               // Bytes written to the file
+    private long compactedSize;          // Size of the file when it was last rewritten
+
+    private final ConcurrentLinkedQueue<Object> playerEvents = new ConcurrentLinkedQueue<>(); // PlayerRecord joined, Integer left
+    private final ConcurrentHashMap<GameOfNim, Integer> games = new ConcurrentHashMap<>(); // Version last written, -1 = never
+    private IntFunction<int[]> waitingSource; // Codes waiting in a bucket, null if the bucket has not changed
+    private int buckets;                      // Waiting buckets
+    private IntSupplier playerCodeSource;     // Highest player code handed out
+    private int writtenPlayerCode;            // Highest player code written
+
+    private final AtomicLong checkpoints = new AtomicLong();  // Batches written
+    private final AtomicLong gamesWritten = new AtomicLong(); // Game records written
+    private final AtomicLong compactions = new AtomicLong();  // Times the file has been rewritten
+    private ScheduledExecutorService timer;
+    private volatile boolean failed; // Writing has stopped after an error
+
+    /**
+     * Opens the checkpoint, rewriting the file from the checkpoint it was restored from
+     * @param file Checkpoint file
+     * @param restored Checkpoint read at startup, kept up to date by the writer from now on
+     * @param intervalMillis Time between checkpoints
+     * @throws IOException If the file cannot be written
+     */
+    public CheckpointWriter(Path file, LobbyCheckpoint restored, long intervalMillis) throws IOException {
+        this.file = file;
+        this.image = restored;
+        this.intervalMillis = Math.max(intervalMillis, 1);
+        writtenPlayerCode = restored.getNextPlayerCode();
+        compact(); // Drops any incomplete record left at the end of the file
+    }
+
+    /**
+     * Sets where the waiting queues are read from
+     * @param buckets Number of waiting buckets
+     * @param source Returns the codes waiting in a bucket, longest waiting first, or null if the
+     *        bucket has not changed since it was last asked. Called on the writer thread.
+     */
+    public void setWaitingSource(int buckets, IntFunction<int[]> source) {
+        this.buckets = buckets;
+        this.waitingSource = source;
+    }
+
+    /**
+     * Sets where the highest player code handed out is read from, so a restored lobby never reuses a code
+     * @param source Returns the highest player code
+     */
+    public void setPlayerCodeSource(IntSupplier source) {
+        this.playerCodeSource = source;
+    }
+
+    /**
+     * Records a player joining the lobby. Never blocks.
+     * @param playerCode Player's unique code
+     * @param name Player's name
+     * @param difficulty EASY or HARD
+     * @param opponentType HUMAN_PLAYER or COMPUTER_PLAYER
+     * @param sessionKey Player's session key, needed to rejoin after a restart
+     */
+    public void playerJoined(int playerCode, String name, int difficulty, int opponentType, long sessionKey) {
+        playerEvents.add(new PlayerRecord(playerCode, name, difficulty, opponentType, sessionKey));
+    }
+
+    /**
+     * Records a player leaving the lobby. Never blocks.
+     * @param playerCode Player's unique code
+     */
+    public void playerLeft(int playerCode) {
+        playerEvents.add(playerCode);
+    }
+
+    /**
+     * Starts checkpointing a game, it is dropped from the checkpoint once it is over. Never blocks.
+     * @param game The game, new or restored
+     */
+    public void track(GameOfNim game) {
+        games.put(game, game.isRestored() ? game.getVersion() : -1); // A restored game is already in the file
+    }
+
+    /**
+     * Starts writing checkpoints on a daemon thread. Games in the restored checkpoint which have
+     * not been handed back with track were not restored, and are dropped from the checkpoint.
+     */
+    public synchronized void start() {
+        if (timer != null) {
+            return;
+        }
+
+        if (dropUntracked()) {
+            try {
+                compact();
+            } catch (IOException e) {
+                System.out.println("Error writing checkpoint: " + e.getMessage());
+            }
+        }
+
+        timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Nim checkpoint writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleWithFixedDelay(this::checkpoint, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Removes the games in the checkpoint which are not being tracked
+     * @return true = a game was removed
+     */
+    private boolean dropUntracked() {
+        Set<Long> tracked = new HashSet<>();
+        boolean dropped = false;
+
+        for (GameOfNim game : games.keySet()) {
+            tracked.add(game.getGameId());
+        }
+
+        for (Long gameId : image.getGameIds()) {
+            if (!tracked.contains(gameId)) {
+                dropped |= image.removeGame(gameId);
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * Appends everything that has changed since the last checkpoint
+     */
+    synchronized void checkpoint() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream batch = new DataOutputStream(bytes);
+        Object event;
+
+        if (failed) {
+            return;
+        }
+
+        try {
+            while ((event = playerEvents.poll()) != null) {
+                if (event instanceof PlayerRecord) {
+                    image.putPlayer((PlayerRecord) event);
+                    LobbyCheckpoint.writeRecord(batch, LobbyCheckpoint.playerRecord((PlayerRecord) event));
+                }
+                else if (image.removePlayer((Integer) event)) {
+                    LobbyCheckpoint.writeRecord(batch, LobbyCheckpoint.playerLeftRecord((Integer) event));
+                }
+            }
+
+            writeGames(batch);
+            writeWaiting(batch);
+
+            if (playerCodeSource != null && playerCodeSource.getAsInt() > writtenPlayerCode) {
+                writtenPlayerCode = playerCodeSource.getAsInt();
+                image.setNextPlayerCode(writtenPlayerCode);
+                LobbyCheckpoint.writeRecord(batch, LobbyCheckpoint.nextCodeRecord(writtenPlayerCode));
+            }
+
+            if (bytes.size() > 0) {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+                fileSize += bytes.size();
+                checkpoints.incrementAndGet();
+            }
+
+            if (fileSize > Math.max(MIN_COMPACT_SIZE, compactedSize * COMPACT_RATIO)) {
+                compact();
+            }
+        } catch (IOException e) {
+            Logger.getLogger(CheckpointWriter.class.getName()).log(Level.SEVERE, null, e);
+            System.out.println("Error writing checkpoint, checkpoints stopped: " + e.getMessage());
+            failed = true;
+        }
+    }
+
+    /**
+     * Adds a record for each game whose version has moved on, and a removal record for each game that has ended
+     * @param batch Records being written
+     * @throws IOException If a record cannot be encoded
+     */
+    private void writeGames(DataOutputStream batch) throws IOException {
+        Iterator<Map.Entry<GameOfNim, Integer>> entries = games.entrySet().iterator();
+
+        while (entries.hasNext()) {
+            Map.Entry<GameOfNim, Integer> entry = entries.next();
+            GameOfNim game = entry.getKey();
+            GameState state;
+
+            if (game.getVersion() == entry.getValue()) { // Unchanged - no lock taken
+                continue;
+            }
+
+            state = game.snapshot();
+
+            if (state == null) { // Game over
+                entries.remove();
+
+                if (image.removeGame(game.getGameId())) {
+                    LobbyCheckpoint.writeRecord(batch, LobbyCheckpoint.gameOverRecord(game.getGameId()));
+                }
+                continue;
+            }
+
+            entry.setValue(state.getVersion());
+            image.putGame(state);
+            LobbyCheckpoint.writeRecord(batch, LobbyCheckpoint.gameRecord(state));
+            gamesWritten.incrementAndGet();
+        }
+    }
+
+    /**
+     * Adds a record for each waiting bucket that has changed
+     * @param batch Records being written
+     * @throws IOException If a record cannot be encoded
+     */
+    private void writeWaiting(DataOutputStream batch) throws IOException {
+        for (int bucket = 0; waitingSource != null && bucket < buckets; bucket++) {
+            int[] codes = waitingSource.apply(bucket);
+
+            if (codes != null) {
+                image.putWaiting(bucket, codes);
+                LobbyCheckpoint.writeRecord(batch, LobbyCheckpoint.waitingRecord(bucket, codes));
+            }
+        }
+    }
+
+    /**
+     * Rewrites the file from the writer's copy of the checkpoint. The new file is written alongside
+     * and moved over the old one, so there is always a complete checkpoint on disk.
+     * @throws IOException If the file cannot be written
+     */
+    private void compact() throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+
+        if (channel != null) {
+            channel.close();
+        }
+
+        try (OutputStream stream = Files.newOutputStream(temp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+
+            image.writeFile(out);
+            out.flush();
+        }
+
+        try (FileChannel written = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            written.force(true);
+        }
+
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        fileSize = channel.size();
+        compactedSize = fileSize;
+        compactions.incrementAndGet();
+    }
+
+    /**
+     * Returns the checkpoint file
+     * @return path
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the number of checkpoints written
+     * @return checkpoints
+     */
+    public long getCheckpoints() {
+        return checkpoints.get();
+    }
+
+    /**
+     * Returns the number of game records written
+     * @return game records
+     */
+    public long getGamesWritten() {
+        return gamesWritten.get();
+    }
+
+    /**
+     * Returns the number of times the file has been rewritten
+     * @return compactions
+     */
+    public long getCompactions() {
+        return compactions.get();
+    }
+
+    /**
+     * Writes a last checkpoint, then stops the writer thread and closes the file
+     */
+    public void close() {
+        synchronized (this) {
+            if (timer != null) {
+                timer.shutdownNow();
+                timer = null;
+            }
+        }
+
+        checkpoint();
+
+        synchronized (this) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.out.println("Error closing checkpoint: " + e.getMessage());
+            }
+            failed = true; // Nothing more is written
+        }
+    }
+}
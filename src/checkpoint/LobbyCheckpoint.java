@@ -0,0 +1,386 @@
+/**
+ * LobbyCheckpoint is the saved state of the lobby - its players, waiting queues and games in progress
+ */
+package checkpoint;
+
+import game.GameState;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * The lobby as held in the checkpoint file.
+ * The file is a header followed by records, each: int length, int CRC32 of the payload, payload.
+ * A payload is a type byte followed by the record's fields. The file is append only - a player or
+ * game record replaces any earlier record for the same player or game, and a removal record drops it.
+ * Reading replays the records in order, stopping at the first incomplete or corrupt record,
+ * which can only be the last one written before the server stopped.
+ * @author Chris
+ */
+public class LobbyCheckpoint {
+    public static final int MAGIC = 0x4E494D4B; // "NIMK", marks a checkpoint file
+    public static final int FORMAT = 2;         // Record layout version
+    static final int FORMAT_NO_KEYS = 1;        // Earlier layout, player records have no session key
+
+    static final int MAX_RECORD = 1 << 24; // Largest record accepted, anything bigger is a corrupt length
+
+    // Record types
+    static final int PLAYER = 1;       // int code, UTF name, byte difficulty, byte opponentType, long sessionKey
+    static final int PLAYER_LEFT = 2;  // int code
+    static final int GAME = 3;         // GameState
+    static final int GAME_OVER = 4;    // long gameId
+    static final int WAITING = 5;      // byte bucket, int count, count x int code - replaces the bucket
+    static final int NEXT_CODE = 6;    // int next player code
+
+    /**
+     * A player who was in the lobby, with the session key they must give to rejoin
+     */
+    public static final class PlayerRecord {
+        private final int playerCode;
+        private final String name;
+        private final int difficulty;
+        private final int opponentType;
+        private final long sessionKey; // 0 if saved before keys were checkpointed
+
+        public PlayerRecord(int playerCode, String name, int difficulty, int opponentType, long sessionKey) {
+            this.playerCode = playerCode;
+            this.name = name;
+            this.difficulty = difficulty;
+            this.opponentType = opponentType;
+            this.sessionKey = sessionKey;
+        }
+
+        public int getPlayerCode() {
+            return playerCode;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getDifficulty() {
+            return difficulty;
+        }
+
+        public int getOpponentType() {
+            return opponentType;
+        }
+
+        public long getSessionKey() {
+            return sessionKey;
+        }
+    }
+
+    private final Map<Integer, PlayerRecord> players = new LinkedHashMap<>(); // Keyed by player code
+    private final Map<Long, GameState> games = new LinkedHashMap<>();        // Keyed by game id
+    private final Map<Integer, int[]> waiting = new LinkedHashMap<>();       // Player codes keyed by bucket
+    private int nextPlayerCode;  // Highest player code handed out
+
+    /**
+     * Reads a checkpoint file
+     * @param file The file
+     * @return The checkpoint, empty if the file does not exist
+     * @throws IOException If the file cannot be read or is not a checkpoint
+     */
+    public static LobbyCheckpoint read(Path file) throws IOException {
+        LobbyCheckpoint checkpoint = new LobbyCheckpoint();
+
+        try (InputStream stream = Files.newInputStream(file)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+            int format;
+
+            if (in.readInt() != MAGIC || ((format = in.readUnsignedShort()) != FORMAT && format != FORMAT_NO_KEYS)) {
+                throw new IOException("Not a checkpoint file: " + file);
+            }
+
+            checkpoint.readRecords(in, format);
+        } catch (NoSuchFileException e) {
+            return checkpoint; // Nothing checkpointed yet
+        } catch (EOFException e) {
+            throw new IOException("Not a checkpoint file: " + file, e);
+        }
+        return checkpoint;
+    }
+
+    /**
+     * Replays records until the end of the file or the first incomplete or corrupt record
+     * @param in Positioned after the header
+     * @param format Record layout the file was written with
+     * @throws IOException If the file cannot be read
+     */
+    private void readRecords(DataInputStream in, int format) throws IOException {
+        CRC32 crc = new CRC32();
+
+        while (true) {
+            int length;
+            int checksum;
+            byte[] payload;
+
+            try {
+                length = in.readInt();
+                checksum = in.readInt();
+
+                if (length < 1 || length > MAX_RECORD) {
+                    return;
+                }
+
+                payload = new byte[length];
+                in.readFully(payload);
+            } catch (EOFException e) { // Torn write at the end of the file
+                return;
+            }
+
+            crc.reset();
+            crc.update(payload, 0, payload.length);
+
+            if ((int) crc.getValue() != checksum) {
+                return;
+            }
+
+            apply(new DataInputStream(new ByteArrayInputStream(payload)), format);
+        }
+    }
+
+    /**
+     * Applies one record
+     * @param in The record's payload
+     * @param format Record layout the file was written with
+     * @throws IOException If the record cannot be decoded
+     */
+    private void apply(DataInputStream in, int format) throws IOException {
+        int type = in.readUnsignedByte();
+
+        switch (type) {
+            case PLAYER:
+                putPlayer(new PlayerRecord(in.readInt(), in.readUTF(), in.readUnsignedByte(), in.readUnsignedByte(),
+                        format == FORMAT_NO_KEYS ? 0 : in.readLong()));
+                break;
+            case PLAYER_LEFT:
+                removePlayer(in.readInt());
+                break;
+            case GAME:
+                putGame(GameState.readFrom(in));
+                break;
+            case GAME_OVER:
+                removeGame(in.readLong());
+                break;
+            case WAITING:
+                int bucket = in.readUnsignedByte();
+                int[] codes = new int[in.readInt()];
+
+                for (int c = 0; c < codes.length; c++) {
+                    codes[c] = in.readInt();
+                }
+                putWaiting(bucket, codes);
+                break;
+            case NEXT_CODE:
+                setNextPlayerCode(in.readInt());
+                break;
+            default:
+                throw new IOException("Unknown checkpoint record: " + type);
+        }
+    }
+
+    /**
+     * Returns the players who were in the lobby
+     * @return players, in the order they joined
+     */
+    public Collection<PlayerRecord> getPlayers() {
+        return new ArrayList<>(players.values());
+    }
+
+    /**
+     * Returns the games that were in progress
+     * @return games
+     */
+    public Collection<GameState> getGames() {
+        return new ArrayList<>(games.values());
+    }
+
+    /**
+     * Returns the players who were waiting for a game
+     * @return player codes
+     */
+    public Set<Integer> getWaitingPlayers() {
+        Set<Integer> codes = new HashSet<>();
+
+        for (int[] bucket : waiting.values()) {
+            for (int code : bucket) {
+                if (players.containsKey(code)) { // Waiting records are not rewritten when a player leaves
+                    codes.add(code);
+                }
+            }
+        }
+        return codes;
+    }
+
+    /**
+     * Returns the highest player code handed out, new players must be given higher codes
+     * @return player code
+     */
+    public int getNextPlayerCode() {
+        return nextPlayerCode;
+    }
+
+    Collection<Long> getGameIds() {
+        return new ArrayList<>(games.keySet());
+    }
+
+    void putPlayer(PlayerRecord player) {
+        players.put(player.getPlayerCode(), player);
+        setNextPlayerCode(player.getPlayerCode());
+    }
+
+    boolean removePlayer(int playerCode) {
+        return players.remove(playerCode) != null;
+    }
+
+    void putGame(GameState state) {
+        games.put(state.getGameId(), state);
+
+        for (int t = 0; t < 2; t++) {
+            setNextPlayerCode(state.getPlayerCode(t));
+        }
+    }
+
+    boolean removeGame(long gameId) {
+        return games.remove(gameId) != null;
+    }
+
+    void putWaiting(int bucket, int[] codes) {
+        waiting.put(bucket, codes);
+    }
+
+    void setNextPlayerCode(int playerCode) {
+        nextPlayerCode = Math.max(nextPlayerCode, playerCode);
+    }
+
+    /**
+     * Writes the whole checkpoint as a new file - header and one record per player, game and bucket
+     * @param out Destination
+     * @throws IOException If the checkpoint cannot be written
+     */
+    void writeFile(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeShort(FORMAT);
+
+        for (PlayerRecord player : players.values()) {
+            writeRecord(out, playerRecord(player));
+        }
+
+        for (GameState state : games.values()) {
+            writeRecord(out, gameRecord(state));
+        }
+
+        for (Map.Entry<Integer, int[]> bucket : waiting.entrySet()) {
+            writeRecord(out, waitingRecord(bucket.getKey(), bucket.getValue()));
+        }
+
+        writeRecord(out, nextCodeRecord(nextPlayerCode));
+    }
+
+    /**
+     * Frames a record payload with its length and checksum
+     * @param out Destination
+     * @param payload Type and fields
+     * @throws IOException If the record cannot be written
+     */
+    static void writeRecord(DataOutputStream out, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+
+        crc.update(payload, 0, payload.length);
+        out.writeInt(payload.length);
+        out.writeInt((int) crc.getValue());
+        out.write(payload);
+    }
+
+    static byte[] playerRecord(PlayerRecord player) throws IOException {
+        Payload payload = new Payload(PLAYER);
+
+        payload.out.writeInt(player.getPlayerCode());
+        payload.out.writeUTF(player.getName());
+        payload.out.writeByte(player.getDifficulty());
+        payload.out.writeByte(player.getOpponentType());
+        payload.out.writeLong(player.getSessionKey());
+        return payload.toByteArray();
+    }
+
+    static byte[] playerLeftRecord(int playerCode) throws IOException {
+        Payload payload = new Payload(PLAYER_LEFT);
+
+        payload.out.writeInt(playerCode);
+        return payload.toByteArray();
+    }
+
+    static byte[] gameRecord(GameState state) throws IOException {
+        Payload payload = new Payload(GAME);
+
+        state.writeTo(payload.out);
+        return payload.toByteArray();
+    }
+
+    static byte[] gameOverRecord(long gameId) throws IOException {
+        Payload payload = new Payload(GAME_OVER);
+
+        payload.out.writeLong(gameId);
+        return payload.toByteArray();
+    }
+
+    static byte[] waitingRecord(int bucket, int[] codes) throws IOException {
+        Payload payload = new Payload(WAITING);
+
+        payload.out.writeByte(bucket);
+        payload.out.writeInt(codes.length);
+        for (int code : codes) {
+            payload.out.writeInt(code);
+        }
+        return payload.toByteArray();
+    }
+
+    static byte[] nextCodeRecord(int playerCode) throws IOException {
+        Payload payload = new Payload(NEXT_CODE);
+
+        payload.out.writeInt(playerCode);
+        return payload.toByteArray();
+    }
+
+    /**
+     * Record payload being built
+     */
+    private static final class Payload {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        final DataOutputStream out = new DataOutputStream(bytes);
+
+        Payload(int type) throws IOException {
+            out.writeByte(type);
+        }
+
+        byte[] toByteArray() {
+            return bytes.toByteArray();
+        }
+    }
+
+    /**
+     * Describes the checkpoint for the server console
+     * @return summary
+     */
+    @Override
+    public String toString() {
+        return players.size() + " players, " + games.size() + " games";
+    }
+}
@@ -0,0 +1,203 @@
+/**
+ * GameModel is the client's own copy of the game it is playing
+ */
+package client;
+
+import game.NimVariant;
+
+/**
+ * Mirror of the server's game, kept up to date from the server's events.
+ * The server sends the whole game once, with NimClientInterface.gameState, then only the
+ * opponent's move each turn with NimClientInterface.opponentMoved. The player's own moves are
+ * applied here as soon as they are made, so the client can check a move, show the legal choices
+ * and describe the game without asking the server. If the copy and the server ever disagree the
+ * client asks for the whole game again.
+ * Called from the transport's threads and the console thread, so every method is synchronized.
+ * @author Chris
+ */
+public class GameModel {
+    private String opponent;    // Opponent's name
+    private NimVariant variant; // Rules of the game, null before the first game
+    private int[] heaps;        // Marbles in each heap
+    private boolean playerTurn; // true = this player is to move
+
+    /**
+     * Replaces the copy with the whole game, as sent by the server
+     * @param opponent The opponent's name
+     * @param variant Rules of the game
+     * @param heaps Marbles in each heap
+     * @param playerTurn true = this player is to move
+     */
+    public synchronized void setState(String opponent, NimVariant variant, int[] heaps, boolean playerTurn) {
+        this.opponent = opponent;
+        this.variant = variant;
+        this.heaps = heaps.clone();
+        this.playerTurn = playerTurn;
+    }
+
+    /**
+     * Forgets the game once it is over
+     */
+    public synchronized void clear() {
+        opponent = null;
+        variant = null;
+        heaps = null;
+        playerTurn = false;
+    }
+
+    /**
+     * Applies the opponent's move
+     * @param heap Index of the heap taken from
+     * @param taken Marbles taken
+     * @return true = applied, false = the move is not legal in this copy, which is out of date
+     */
+    public synchronized boolean opponentMoved(int heap, int taken) {
+        if (variant == null || !variant.isLegalMove(heaps, heap, taken)) {
+            return false;
+        }
+
+        heaps[heap] -= taken;
+        playerTurn = true;
+        return true;
+    }
+
+    /**
+     * Applies this player's move, before it has reached the server
+     * @param heap Index of the heap taken from
+     * @param taken Marbles taken
+     * @return true = applied, false = not this player's turn or not a legal move
+     */
+    public synchronized boolean play(int heap, int taken) {
+        if (!playerTurn || !isLegalMove(heap, taken)) {
+            return false;
+        }
+
+        heaps[heap] -= taken;
+        playerTurn = false;
+        return true;
+    }
+
+    /**
+     * Checks a move against the rules and the heaps
+     * @param heap Index of the heap
+     * @param taken Marbles to take
+     * @return true = legal
+     */
+    public synchronized boolean isLegalMove(int heap, int taken) {
+        return variant != null && variant.isLegalMove(heaps, heap, taken);
+    }
+
+    /**
+     * Lists the amounts that may be taken from a heap
+     * @param heap Index of the heap
+     * @return marbles that may be taken, smallest first
+     */
+    public synchronized int[] takes(int heap) {
+        return variant != null && heap >= 0 && heap < heaps.length ? variant.takes(heaps[heap]) : new int[0];
+    }
+
+    /**
+     * Describes the choices for a heap, e.g. "minimum = 1, maximum = 7" or "1, 3 or 4"
+     * @param heap Index of the heap
+     * @return description, empty if nothing can be taken
+     */
+    public synchronized String describeTakes(int heap) {
+        int[] takes = takes(heap);
+        StringBuilder text = new StringBuilder();
+
+        if (takes.length > 0 && takes[takes.length - 1] - takes[0] == takes.length - 1) { // Every amount in a range
+            return "minimum = " + takes[0] + ", maximum = " + takes[takes.length - 1];
+        }
+
+        for (int t = 0; t < takes.length; t++) {
+            text.append(t == 0 ? "" : t == takes.length - 1 ? " or " : ", ").append(takes[t]);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Describes the heaps, e.g. "There are 12 marbles" or "Heaps: 3 0 5"
+     * @return description
+     */
+    public synchronized String describeHeaps() {
+        if (heaps == null) {
+            return "";
+        }
+
+        if (heaps.length == 1) {
+            return "There " + (heaps[0] == 1 ? "is 1 marble" : "are " + heaps[0] + " marbles");
+        }
+        return "Heaps: " + describeLeft();
+    }
+
+    /**
+     * Describes what is left after a move, e.g. "12 marbles" or "3 0 5"
+     * @return description
+     */
+    public synchronized String describeLeft() {
+        if (heaps == null) {
+            return "";
+        }
+
+        if (heaps.length == 1) {
+            return heaps[0] + " marbles";
+        }
+
+        StringBuilder text = new StringBuilder();
+
+        for (int heapSize : heaps) {
+            text.append(text.length() > 0 ? " " : "").append(heapSize);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Returns a heap's index if only one heap can be taken from, so the player need not choose
+     * @return index of the heap, -1 if there is a choice
+     */
+    public synchronized int onlyHeap() {
+        int only = -1;
+
+        if (heaps == null) {
+            return -1;
+        }
+
+        for (int heap = 0; heap < heaps.length; heap++) {
+            if (variant.takes(heaps[heap]).length > 0) {
+                if (only != -1) {
+                    return -1;
+                }
+                only = heap;
+            }
+        }
+        return only;
+    }
+
+    /**
+     * Returns whether this player is to move, false once they have moved or the game is over
+     * @return true = this player's turn
+     */
+    public synchronized boolean isPlayerTurn() {
+        return playerTurn;
+    }
+
+    public synchronized String getOpponent() {
+        return opponent;
+    }
+
+    public synchronized NimVariant getVariant() {
+        return variant;
+    }
+
+    /**
+     * Returns a copy of the heaps
+     * @return marbles in each heap
+     */
+    public synchronized int[] getHeaps() {
+        return heaps != null ? heaps.clone() : new int[0];
+    }
+
+    public synchronized int getHeapCount() {
+        return heaps != null ? heaps.length : 0;
+    }
+}
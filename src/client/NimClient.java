@@ -4,11 +4,20 @@ import java.rmi.server.UnicastRemoteObject;
 import server.NimServerInterface;
 import java.util.Scanner;
 import constants.Constants; // Game Constants
+import game.NimVariant;
 import java.rmi.Naming;
+import java.rmi.NoSuchObjectException;
 import java.rmi.RemoteException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import leaderboard.LeaderboardEntry;
 import player.PlayerInterface;
+import transport.NimProtocol;
+import transport.NioServerConnection;
 
 /**
  * NimClient provides client side functionality
@@ -22,6 +31,28 @@ public class NimClient extends UnicastRemoteObject implements NimClientInterface
     private String temp;       // Used to validate inputs
     private boolean inGame;    // In game flag
     private int playerCode;      // Player code used in lobby to ensure unique player
+    private volatile long sessionKey; // Secret proving who this player is, given by the server with the player code
+    private final Scanner input = new Scanner(System.in); // Console input, shared so no typed lines are lost between prompts
+    // Reads the console for the server's requests, so the server's calls return straight away
+    private final ExecutorService console = Executors.newSingleThreadExecutor();
+    // Sends the player's moves, so the console is not held up by the server
+    private final ExecutorService moveSender = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Nim move sender");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final GameModel game = new GameModel(); // Local copy of the game being played
+    // Checks the server is still there and rejoins it if it has restarted
+    private final ScheduledExecutorService serverWatch = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Nim server watch");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile boolean connected; // Last call to the server got through
+    private volatile boolean prompting; // The console is waiting for the player's move
+    
+    private static final int LEADERBOARD_SIZE = 10; // Players shown on the leaderboard
+    private static final int PING_SECONDS = 5;      // Time between checks that the server is still there
 
 
     /**
@@ -56,6 +87,15 @@ public class NimClient extends UnicastRemoteObject implements NimClientInterface
         this.playerCode = playerCode;
     }
     
+    /**
+     * Keeps the player's session key, sent with every call the player makes to the server
+     * @param sessionKey The key, as generated by server
+     */
+    @Override
+    public void setSessionKey(long sessionKey) throws RemoteException {
+        this.sessionKey = sessionKey;
+    }
+    
     /**
     * Gets the number of marbles the player wishes to take
     * @param bagSize The number of marbles in the bag
@@ -63,7 +103,6 @@ public class NimClient extends UnicastRemoteObject implements NimClientInterface
     */
     @Override
     public int getMarbles(int bagSize) {
-        Scanner input = new Scanner(System.in); // Assign input to system input stream
         int marbles = 0;
         
         // Prompt for number of marbles
@@ -90,6 +129,255 @@ public class NimClient extends UnicastRemoteObject implements NimClientInterface
         return marbles;
     }
     
+    /**
+     * Takes the whole game from the server into the local copy and, if it is the player's turn,
+     * asks for their move on the console thread
+     * @param opponent The opponent's name
+     * @param variant Rules of the game
+     * @param heaps The number of marbles in each heap
+     * @param timeoutSeconds Time the player has to move, 0 = the opponent is to move
+     * @throws RemoteException
+     */
+    @Override
+    public void gameState(String opponent, NimVariant variant, int[] heaps, int timeoutSeconds) throws RemoteException {
+        boolean newGame = game.getVariant() == null; // Otherwise the game is being sent again
+        
+        game.setState(opponent, variant, heaps, timeoutSeconds > 0);
+        
+        if (newGame) {
+            System.out.println("Opponent found - you are playing " + opponent + "\n"
+                    + (variant.isClassic() ? "\nStarting new game. " : "\nStarting new game of " + variant + ". ") 
+                    + game.describeHeaps() + "\n"
+                    + "First player is: " + (timeoutSeconds > 0 ? playerName : opponent));
+        }
+        else {
+            System.out.println(game.describeHeaps());
+        }
+        
+        if (timeoutSeconds > 0) {
+            console.execute(() -> makeMove(timeoutSeconds));
+        }
+    }
+    
+    /**
+     * Applies the opponent's move to the local copy of the game, describes it and, unless it
+     * ended the game, asks for the player's move on the console thread
+     * @param heap Index of the heap taken from
+     * @param taken The number of marbles taken
+     * @param timeoutSeconds Time the player has to move, 0 = the move ended the game
+     * @throws RemoteException
+     */
+    @Override
+    public void opponentMoved(int heap, int taken, int timeoutSeconds) throws RemoteException {
+        if (!game.opponentMoved(heap, taken)) { // Local copy is out of date
+            System.out.println("Game out of step with the server, asking for it again");
+            resync();
+            return;
+        }
+        
+        System.out.println("\n" + game.getOpponent() + " has taken " + taken + " marbles"
+                + (game.getHeapCount() > 1 ? " from heap " + (heap + 1) : "") + ", leaving " + game.describeLeft());
+        
+        if (timeoutSeconds > 0) {
+            console.execute(() -> makeMove(timeoutSeconds));
+        }
+    }
+    
+    /**
+     * Asks the player for their move, checking it against the local copy of the game, applies it
+     * and hands it to the sender thread - the console is free again straight away.
+     * The prompt is given up if the game ends while the player is entering their move, a turn
+     * timeout or their opponent leaving, so the console goes on to ask about the next game.
+     * @param timeoutSeconds Time the player has to move
+     */
+    private void makeMove(int timeoutSeconds) {
+        if (!game.isPlayerTurn()) { // Moved already after the game was sent again, or the game is over
+            return;
+        }
+        
+        prompting = true;
+        try {
+            System.out.println("You have " + timeoutSeconds + " seconds to make your move");
+            
+            int heap = game.onlyHeap();
+            
+            while (heap == -1) { // Several heaps to choose from
+                heap = readHeap();
+                
+                if (heap == -1) { // The game ended while the player was choosing
+                    return;
+                }
+                
+                if (game.takes(heap).length == 0) {
+                    System.out.println("No marbles can be taken from heap " + (heap + 1));
+                    heap = -1;
+                }
+            }
+            
+            int taken = readTake(heap);
+            
+            if (taken == 0 || !game.play(heap, taken)) { // The game ended, or changed, while the player was choosing
+                return;
+            }
+            
+            System.out.println("You have taken " + taken + " marbles, leaving " + game.describeLeft());
+            submit(heap, taken);
+        } finally {
+            prompting = false;
+        }
+    }
+    
+    /**
+     * Reads the number of marbles to take from a heap, asking again until a legal amount is entered
+     * @param heap Index of the heap
+     * @return Marbles to take, 0 if it is no longer the player's turn
+     */
+    private int readTake(int heap) {
+        String choices = game.describeTakes(heap);
+        
+        System.out.println(playerName + ", how many marbles do you wish to take (" + choices + ")?");
+        
+        while (true) {
+            try {
+                int taken = Integer.parseInt(input.nextLine());
+                
+                if (!game.isPlayerTurn()) {
+                    return 0;
+                }
+                
+                if (game.isLegalMove(heap, taken)) {
+                    return taken;
+                }
+            } catch (NumberFormatException e) {
+                if (!game.isPlayerTurn()) {
+                    return 0;
+                }
+            }
+            System.out.println("Invalid input, please choose (" + choices + ")");
+        }
+    }
+    
+    /**
+     * Sends a move to the server on the move sender thread
+     * @param heap Index of the heap taken from
+     * @param taken Marbles taken
+     */
+    private void submit(int heap, int taken) {
+        final NimVariant variant = game.getVariant();
+        final boolean classic = variant == null || variant.isClassic();
+        
+        moveSender.execute(() -> {
+            try {
+                if (classic) {
+                    serverLobby.submitMove(playerCode, sessionKey, taken); // Send the move to the game
+                }
+                else {
+                    serverLobby.submitHeapMove(playerCode, sessionKey, heap, taken);
+                }
+            } catch (RemoteException e) {
+                Logger.getLogger(NimClient.class.getName()).log(Level.SEVERE, null, e);
+                System.out.println("Error sending move to server: " + e.getMessage());
+            }
+        });
+    }
+    
+    /**
+     * Asks the server for the whole game, after the moves sent so far so it arrives after their answers
+     */
+    private void resync() {
+        moveSender.execute(() -> {
+            try {
+                serverLobby.requestGameState(playerCode, sessionKey);
+            } catch (RemoteException e) {
+                Logger.getLogger(NimClient.class.getName()).log(Level.SEVERE, null, e);
+                System.out.println("Error asking server for the game: " + e.getMessage());
+            }
+        });
+    }
+    
+    /**
+     * Reads the heap to take from, asking again until one is entered
+     * @return Index of the heap, -1 if it is no longer the player's turn
+     */
+    private int readHeap() {
+        int count = game.getHeapCount();
+        
+        System.out.println(playerName + ", which heap do you wish to take from (1 - " + count + ")?");
+        
+        while (true) {
+            try {
+                int value = Integer.parseInt(input.nextLine());
+                
+                if (!game.isPlayerTurn()) {
+                    return -1;
+                }
+                
+                if (value >= 1 && value <= count) {
+                    return value - 1;
+                }
+            } catch (NumberFormatException e) {
+                if (!game.isPlayerTurn()) {
+                    return -1;
+                }
+            }
+            System.out.println("Invalid input, please enter a value between: 1 and " + count);
+        }
+    }
+    
+    /**
+     * Asks the player if they would like to play again on the console thread.
+     * If yes, the player is queued for another game, if no they leave the lobby and the client closes
+     * @throws RemoteException
+     */
+    @Override
+    public void requestPlayAgain() throws RemoteException {
+        console.execute(() -> {
+            showLeaderboard();
+            
+            boolean again = playAgain();
+            
+            try {
+                if (again) {
+                    serverLobby.queuePlayer(playerCode, sessionKey); // Back into the lobby to await an opponent
+                }
+                else {
+                    serverLobby.leaveLobby(playerCode, sessionKey);
+                }
+            } catch (RemoteException e) {
+                Logger.getLogger(NimClient.class.getName()).log(Level.SEVERE, null, e);
+                System.out.println("Error contacting server: " + e.getMessage());
+            }
+            
+            if (!again) { // Finished with - stop accepting calls so the client can exit
+                try {
+                    UnicastRemoteObject.unexportObject(this, true);
+                } catch (NoSuchObjectException e) {
+                    // Already unexported
+                }
+                console.shutdown();
+                moveSender.shutdown();
+                serverWatch.shutdown();
+            }
+        });
+    }
+    
+    /**
+     * Displays the highest rated players
+     */
+    private void showLeaderboard() {
+        try {
+            LeaderboardEntry[] entries = serverLobby.getLeaderboard(LEADERBOARD_SIZE);
+            
+            System.out.println("\nLeaderboard");
+            for (int e = 0; e < entries.length; e++) {
+                System.out.println((e + 1) + ". " + entries[e]);
+            }
+            System.out.println();
+        } catch (RemoteException e) {
+            System.out.println("Leaderboard not available: " + e.getMessage());
+        }
+    }
+    
     /**
      * Returns the playerName of the player
      * @return Player's name
@@ -154,7 +442,9 @@ public class NimClient extends UnicastRemoteObject implements NimClientInterface
      */
     @Override
     public void won() {
+        game.clear();
         System.out.println("You win!");
+        endPrompt();
     }
     
     /**
@@ -162,7 +452,18 @@ public class NimClient extends UnicastRemoteObject implements NimClientInterface
      */
     @Override
     public void lost() {
+        game.clear();
         System.out.println("You loose!");
+        endPrompt();
+    }
+    
+    /**
+     * Tells a player still at the move prompt that it no longer needs an answer
+     */
+    private void endPrompt() {
+        if (prompting) {
+            System.out.println("Press Enter to continue");
+        }
     }
     
     /**
@@ -173,7 +474,6 @@ public class NimClient extends UnicastRemoteObject implements NimClientInterface
      */
     @Override
     public boolean playAgain() {
-        Scanner input = new Scanner(System.in); // Assign input to system input stream;
         String choice;
         boolean validChoice;
         
@@ -209,8 +509,6 @@ public class NimClient extends UnicastRemoteObject implements NimClientInterface
      * Accept and validate client details
      */
     private void getPlayerDetails() {
-        Scanner input = new Scanner(System.in); // Assign input to system input stream
-        
         System.out.println("Welcome to a Game of Nim client");
         System.out.println("Before continuing, please enter your details when prompted below -");
 
@@ -265,20 +563,70 @@ public class NimClient extends UnicastRemoteObject implements NimClientInterface
     }
         
     /**
-     * Attempt to connect to the server and add player to server lobby
+     * Attempt to connect to the server and add player to server lobby.
+     * Connects with RMI unless the nim.transport system property is "nio"
      */
     private void connectToServer() {
-        String serverURL = "rmi://localhost/" + Constants.SERVERNAME; // Server URL
-        
         try {
-            serverLobby = (NimServerInterface) Naming.lookup(serverURL);
+            serverLobby = lookupServer();
             serverLobby.addPlayer(this); // Join the server lobby
+            connected = true;
             
             // serverLobby.addPlayer(this); // Add player to the server queue 
         } catch(Exception e) {
             Logger.getLogger(NimClient.class.getName()).log(Level.SEVERE, null, e);
             System.out.println("Error connecting to server: " + e.getMessage());
+            return;
         } 
+        
+        serverWatch.scheduleWithFixedDelay(this::checkServer, PING_SECONDS, PING_SECONDS, TimeUnit.SECONDS);
+    }
+    
+    /**
+     * Finds the server lobby.
+     * Connects with RMI unless the nim.transport system property is "nio"
+     * @return The lobby
+     * @throws Exception If the server cannot be reached
+     */
+    private NimServerInterface lookupServer() throws Exception {
+        String serverURL = "rmi://localhost/" + Constants.SERVERNAME; // Server URL
+        
+        if ("nio".equalsIgnoreCase(System.getProperty(NimProtocol.TRANSPORT_PROPERTY))) { // Binary protocol, one connection made by the client
+            return NioServerConnection.connect("localhost", 
+                    Integer.getInteger(NimProtocol.PORT_PROPERTY, NimProtocol.DEFAULT_PORT));
+        }
+        return (NimServerInterface) Naming.lookup(serverURL);
+    }
+    
+    /**
+     * Pings the server, which also renews this player's lease. If the server cannot be reached it
+     * has gone away - it is looked up again and rejoined with this player's code, so a game saved
+     * in the server's checkpoint carries on once the server has restarted.
+     */
+    private void checkServer() {
+        if (playerCode == -1) { // Not joined yet
+            return;
+        }
+        
+        if (connected) {
+            try {
+                serverLobby.heartbeat(playerCode, sessionKey);
+                return;
+            } catch (RemoteException e) {
+                connected = false;
+                System.out.println("Lost connection to server, trying to rejoin...");
+            }
+        }
+        
+        try {
+            NimServerInterface lobby = lookupServer();
+            
+            serverLobby = lobby;
+            lobby.rejoin(this, playerCode, sessionKey);
+            connected = true;
+        } catch (Exception e) {
+            // Server not back yet, try again on the next check
+        }
     }
             
     /**
@@ -291,6 +639,18 @@ public class NimClient extends UnicastRemoteObject implements NimClientInterface
         System.out.println(message);
     }
     
+    /**
+     * Displays a batch of messages received from server
+     * @param messages Messages from the server, in the order they were sent
+     * @throws RemoteException
+     */
+    @Override
+    public void serverMessages(String[] messages) throws RemoteException {
+        for (String message : messages) {
+            System.out.println(message);
+        }
+    }
+    
     /**
      * Simple joined server confirmation message
      * @throws java.rmi.RemoteException
@@ -300,6 +660,15 @@ public class NimClient extends UnicastRemoteObject implements NimClientInterface
         System.out.println("Joined the server");
     }
     
+    /**
+     * Answers the lobby's liveness check straight away, the console may be waiting for input
+     * @throws RemoteException 
+     */
+    @Override
+    public void heartbeat() throws RemoteException {
+        serverLobby.heartbeat(playerCode, sessionKey);
+    }
+    
     /**
      * Constructs client
      * @param args
@@ -5,12 +5,14 @@
  */
 package client;
 
+import game.NimVariant;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 import player.PlayerInterface;
 
 /**
- *
+ * Calls the lobby and its games make on a client, independent of transport - implemented
+ * by NimClient over RMI and by the server side of each NIO connection
  * @author Chris
  */
 public interface NimClientInterface extends Remote, PlayerInterface {
@@ -21,6 +23,52 @@ public interface NimClientInterface extends Remote, PlayerInterface {
      */
     public void serverMessage(String message) throws RemoteException;
     
+    /**
+     * Displays a batch of messages from server, in order, in a single call
+     * @param messages Messages to display
+     */
+    public void serverMessages(String[] messages) throws RemoteException;
+    
+    /**
+     * Gives the player the secret that proves who they are, sent once when they join. Player codes
+     * are handed out in order, so the key, not the code, is what the player signs in with.
+     * @param sessionKey The player's session key
+     */
+    public void setSessionKey(long sessionKey) throws RemoteException;
+    
+    /**
+     * Sends the player the whole game - when it starts, when they rejoin it and if their copy of it
+     * is found to be wrong. Returns straight away. If it is the player's turn they send their move
+     * back with NimServerInterface.submitMove or NimServerInterface.submitHeapMove.
+     * @param opponent The opponent's name
+     * @param variant Rules of the game
+     * @param heaps The number of marbles in each heap
+     * @param timeoutSeconds Time the player has to move before forfeiting the game, 0 = the opponent is to move
+     */
+    public void gameState(String opponent, NimVariant variant, int[] heaps, int timeoutSeconds) throws RemoteException;
+    
+    /**
+     * Tells the player their opponent's move, the only call they are sent each turn. Returns straight
+     * away, the player applies the move to their copy of the game and sends their own move back with
+     * NimServerInterface.submitMove or NimServerInterface.submitHeapMove.
+     * @param heap Index of the heap taken from
+     * @param taken The number of marbles taken
+     * @param timeoutSeconds Time the player has to move before forfeiting the game, 0 = the move ended the game
+     */
+    public void opponentMoved(int heap, int taken, int timeoutSeconds) throws RemoteException;
+    
+    /**
+     * Asks the player if they would like to play again. Returns straight away, the player
+     * answers with NimServerInterface.queuePlayer or NimServerInterface.leaveLobby
+     */
+    public void requestPlayAgain() throws RemoteException;
+    
+    /**
+     * Liveness check from the lobby, the client answers with NimServerInterface.heartbeat.
+     * A client that does not answer within its lease is evicted from the lobby.
+     */
+    public void heartbeat() throws RemoteException;
+    
     /**
      * Simple joined server confirmation message
      */
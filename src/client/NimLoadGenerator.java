@@ -0,0 +1,431 @@
+/**
+ * NimLoadGenerator connects thousands of synthetic players to a running server lobby
+ */
+package client;
+
+import constants.Constants;
+import game.NimVariant;
+import java.rmi.Naming;
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import metrics.Histogram;
+import server.NimServerInterface;
+import transport.NimProtocol;
+import transport.NioServerConnection;
+
+/**
+ * Headless load generator for the lobby.
+ * Keeps a fixed number of synthetic players connected to the server on localhost. Each player
+ * joins with a random difficulty and opponent type, waits a think time before every move, takes
+ * a random legal move from its own copy of the game and plays again or leaves when the game ends.
+ * A player who leaves is replaced by a new one, so the population stays the same and joins carry on.
+ * All players share a small pool of timer threads - nothing blocks while a player is thinking.
+ * @author Chris
+ */
+public class NimLoadGenerator {
+    // System properties used to configure the load
+    public static final String PLAYERS_PROPERTY = "nim.load.players";                 // Players kept connected
+    public static final String EASY_PERCENT_PROPERTY = "nim.load.easyPercent";        // Percentage of players choosing EASY
+    public static final String COMPUTER_PERCENT_PROPERTY = "nim.load.computerPercent"; // Percentage choosing a computer opponent
+    public static final String THINK_MILLIS_PROPERTY = "nim.load.thinkMillis";        // Mean think time per move
+    public static final String PLAY_AGAIN_PERCENT_PROPERTY = "nim.load.playAgainPercent"; // Chance of playing again
+    public static final String SECONDS_PROPERTY = "nim.load.seconds";                 // Length of the run
+    public static final String THREADS_PROPERTY = "nim.load.threads";                 // Timer threads driving the players
+
+    public static final int DEFAULT_PLAYERS = 1000;
+    public static final int DEFAULT_EASY_PERCENT = 50;
+    public static final int DEFAULT_COMPUTER_PERCENT = 50;
+    public static final int DEFAULT_THINK_MILLIS = 100;
+    public static final int DEFAULT_PLAY_AGAIN_PERCENT = 90;
+    public static final int DEFAULT_SECONDS = 60;
+
+    private static final int REPORT_SECONDS = 5; // Time between progress lines
+
+    private final int easyPercent;
+    private final int computerPercent;
+    private final int thinkMillis;
+    private final int playAgainPercent;
+    private final boolean nio;               // true = NIO transport, false = RMI
+    private final ScheduledExecutorService timers; // Runs joins, moves and replies
+    private volatile boolean running = true;
+    private final AtomicInteger nextPlayer = new AtomicInteger();    // Numbers the players
+    private final Set<LoadPlayer> players = ConcurrentHashMap.newKeySet(); // Players currently connected
+
+    // Statistics, written by every player without locking
+    private final LongAdder joins = new LongAdder();
+    private final LongAdder moves = new LongAdder();
+    private final LongAdder games = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final Histogram timeToMatch = new Histogram(); // Microseconds from queueing to game start
+
+    /**
+     * Synthetic player, answers the server's requests on the timer threads
+     */
+    class LoadPlayer implements NimClientInterface {
+        private final String name;
+        private final int difficulty;
+        private final int opponentType;
+        private volatile NimServerInterface server; // Lobby, as seen over the chosen transport, null until joined
+        private volatile int playerCode = -1;
+        private volatile long sessionKey;
+        private volatile boolean inGame;
+        private volatile long queuedAt;        // When the player last joined or queued
+        private final GameModel game = new GameModel(); // Local copy of the game, moves are chosen from it
+
+        LoadPlayer(int number) {
+            ThreadLocalRandom rand = ThreadLocalRandom.current();
+
+            name = "Load " + number;
+            difficulty = rand.nextInt(100) < easyPercent ? Constants.EASY : Constants.HARD;
+            opponentType = rand.nextInt(100) < computerPercent ? Constants.COMPUTER_PLAYER : Constants.HUMAN_PLAYER;
+        }
+
+        /**
+         * Connects to the server and joins the lobby
+         */
+        void join() {
+            try {
+                if (nio) {
+                    server = NioServerConnection.connect("localhost",
+                            Integer.getInteger(NimProtocol.PORT_PROPERTY, NimProtocol.DEFAULT_PORT));
+                }
+                else {
+                    UnicastRemoteObject.exportObject(this, 0); // So the server can call back
+                    server = (NimServerInterface) Naming.lookup("rmi://localhost/" + Constants.SERVERNAME);
+                }
+
+                queuedAt = System.nanoTime();
+                server.addPlayer(this);
+                joins.increment();
+            } catch (Exception e) {
+                error(e);
+            }
+        }
+
+        /**
+         * Leaves the lobby and disconnects
+         */
+        void leave() {
+            if (server == null) { // Never got to join
+                players.remove(this);
+                return;
+            }
+            
+            try {
+                server.leaveLobby(playerCode, sessionKey);
+            } catch (RemoteException e) {
+                error(e);
+            }
+            disconnect();
+        }
+
+        /**
+         * Drops the connection to the server
+         */
+        void disconnect() {
+            players.remove(this);
+
+            if (server instanceof NioServerConnection) {
+                ((NioServerConnection) server).close();
+            }
+            else {
+                try {
+                    UnicastRemoteObject.unexportObject(this, true);
+                } catch (NoSuchObjectException e) {
+                    // Never exported
+                }
+            }
+        }
+
+        /**
+         * Counts a failed call, the player is replaced
+         */
+        private void error(Exception e) {
+            errors.increment();
+
+            if (running) {
+                disconnect();
+                replace();
+            }
+        }
+
+        /**
+         * Waits a random think time, mean thinkMillis, then runs the task on a timer thread
+         */
+        private void think(Runnable task) {
+            if (running) {
+                timers.schedule(task, thinkMillis == 0 ? 0 : ThreadLocalRandom.current().nextInt(thinkMillis * 2),
+                        TimeUnit.MILLISECONDS);
+            }
+        }
+
+        @Override
+        public void gameState(String opponent, NimVariant variant, int[] heaps, int timeoutSeconds) {
+            game.setState(opponent, variant, heaps, timeoutSeconds > 0);
+
+            if (timeoutSeconds > 0) {
+                move();
+            }
+        }
+
+        @Override
+        public void opponentMoved(int heap, int taken, int timeoutSeconds) {
+            if (!game.opponentMoved(heap, taken)) { // Out of step, ask for the whole game
+                try {
+                    server.requestGameState(playerCode, sessionKey);
+                } catch (RemoteException e) {
+                    error(e);
+                }
+            }
+            else if (timeoutSeconds > 0) {
+                move();
+            }
+        }
+
+        /**
+         * Takes a random legal move from the local copy of the game after a think time
+         */
+        private void move() {
+            think(() -> {
+                NimVariant variant = game.getVariant();
+
+                if (variant != null) {
+                    int move = variant.randomMove(game.getHeaps(), ThreadLocalRandom.current());
+
+                    game.play(NimVariant.heapOf(move), NimVariant.takenOf(move));
+                    submit(move);
+                }
+            });
+        }
+
+        /**
+         * Sends a move to the server
+         */
+        private void submit(int move) {
+            NimVariant variant = game.getVariant();
+
+            try {
+                if (variant == null || variant.isClassic()) {
+                    server.submitMove(playerCode, sessionKey, NimVariant.takenOf(move));
+                }
+                else {
+                    server.submitHeapMove(playerCode, sessionKey, NimVariant.heapOf(move), NimVariant.takenOf(move));
+                }
+                moves.increment();
+            } catch (RemoteException e) {
+                error(e);
+            }
+        }
+
+        @Override
+        public void requestPlayAgain() {
+            games.increment();
+
+            think(() -> {
+                if (ThreadLocalRandom.current().nextInt(100) < playAgainPercent) {
+                    try {
+                        queuedAt = System.nanoTime();
+                        server.queuePlayer(playerCode, sessionKey);
+                    } catch (RemoteException e) {
+                        error(e);
+                    }
+                }
+                else { // Leave, someone new takes this player's place
+                    leave();
+                    replace();
+                }
+            });
+        }
+
+        @Override
+        public void setInGameStatus(boolean inGameFlag) {
+            if (inGameFlag && !inGame) { // Matched
+                timeToMatch.record((System.nanoTime() - queuedAt) / 1000);
+            }
+            inGame = inGameFlag;
+        }
+
+        @Override
+        public void serverMessage(String message) {
+            // Nothing to display
+        }
+
+        @Override
+        public void serverMessages(String[] messages) {
+            // Nothing to display
+        }
+
+        @Override
+        public void joinedServer() {
+            // Nothing to display
+        }
+
+        @Override
+        public void heartbeat() throws RemoteException {
+            server.heartbeat(playerCode, sessionKey);
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public boolean getIsHuman() {
+            return true;
+        }
+
+        @Override
+        public int getDifficulty() {
+            return difficulty;
+        }
+
+        @Override
+        public int getOpponentType() {
+            return opponentType;
+        }
+
+        @Override
+        public boolean getInGameStatus() {
+            return inGame;
+        }
+
+        @Override
+        public void setPlayerCode(int playerCode) {
+            this.playerCode = playerCode;
+        }
+
+        @Override
+        public void setSessionKey(long sessionKey) {
+            this.sessionKey = sessionKey;
+        }
+
+        @Override
+        public int getPlayerCode() {
+            return playerCode;
+        }
+
+        @Override
+        public int getMarbles(int bagSize) {
+            return ThreadLocalRandom.current().nextInt(bagSize / 2) + 1; // Only used by synchronous callers
+        }
+
+        @Override
+        public void won() {
+            game.clear(); // Counted in requestPlayAgain
+        }
+
+        @Override
+        public void lost() {
+            game.clear(); // Counted in requestPlayAgain
+        }
+
+        @Override
+        public boolean playAgain() {
+            return true;
+        }
+    }
+
+    /**
+     * Constructs a load generator configured from the nim.load.* and nim.transport system properties
+     */
+    public NimLoadGenerator() {
+        easyPercent = Integer.getInteger(EASY_PERCENT_PROPERTY, DEFAULT_EASY_PERCENT);
+        computerPercent = Integer.getInteger(COMPUTER_PERCENT_PROPERTY, DEFAULT_COMPUTER_PERCENT);
+        thinkMillis = Integer.getInteger(THINK_MILLIS_PROPERTY, DEFAULT_THINK_MILLIS);
+        playAgainPercent = Integer.getInteger(PLAY_AGAIN_PERCENT_PROPERTY, DEFAULT_PLAY_AGAIN_PERCENT);
+        nio = "nio".equalsIgnoreCase(System.getProperty(NimProtocol.TRANSPORT_PROPERTY));
+        timers = Executors.newScheduledThreadPool(Integer.getInteger(THREADS_PROPERTY,
+                Runtime.getRuntime().availableProcessors() * 4), runnable -> {
+            Thread thread = new Thread(runnable, "Nim load player");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Adds a new player and joins them to the lobby on a timer thread
+     */
+    private void replace() {
+        if (!running) {
+            return;
+        }
+
+        LoadPlayer player = new LoadPlayer(nextPlayer.incrementAndGet());
+
+        players.add(player);
+        timers.execute(() -> {
+            if (running) {
+                player.join();
+            }
+        });
+    }
+
+    /**
+     * Runs the load, printing progress every few seconds and a summary at the end
+     * @param playerCount Players kept connected
+     * @param seconds Length of the run
+     * @throws InterruptedException
+     */
+    public void run(int playerCount, int seconds) throws InterruptedException {
+        long start = System.nanoTime();
+        long[] last = new long[3]; // joins, moves, games at the last report
+
+        System.out.println("Load: " + playerCount + " players over " + (nio ? "NIO" : "RMI") + " for " + seconds + " seconds, "
+                + easyPercent + "% easy, " + computerPercent + "% v computer, think " + thinkMillis + "ms, play again "
+                + playAgainPercent + "%");
+
+        for (int p = 0; p < playerCount; p++) {
+            replace();
+        }
+
+        for (int elapsed = REPORT_SECONDS; elapsed <= seconds; elapsed += REPORT_SECONDS) {
+            Thread.sleep(REPORT_SECONDS * 1000L);
+
+            System.out.println(String.format("%3ds: joins/s=%.0f moves/s=%.0f games/s=%.0f errors=%d", elapsed,
+                    (joins.sum() - last[0]) / (double) REPORT_SECONDS, (moves.sum() - last[1]) / (double) REPORT_SECONDS,
+                    (games.sum() - last[2]) / (double) REPORT_SECONDS, errors.sum()));
+
+            last[0] = joins.sum();
+            last[1] = moves.sum();
+            last[2] = games.sum();
+        }
+
+        running = false;
+        double runSeconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.println(String.format("\nTotal: joins/s=%.0f moves/s=%.0f games/s=%.0f errors=%d", joins.sum() / runSeconds,
+                moves.sum() / runSeconds, games.sum() / runSeconds, errors.sum()));
+        System.out.println(String.format("Time to match: p50<=%dus p90<=%dus p99<=%dus max=%dus (%d matches)",
+                timeToMatch.getPercentile(50), timeToMatch.getPercentile(90), timeToMatch.getPercentile(99),
+                timeToMatch.getMax(), timeToMatch.getCount()));
+
+        timers.shutdownNow();
+
+        for (LoadPlayer player : players) { // Leave politely so the server's lobby empties
+            player.leave();
+        }
+    }
+
+    /**
+     * Runs the load generator against a server on localhost
+     * @param args Optional number of players and run length in seconds, overriding the system properties
+     * @throws InterruptedException
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int playerCount = args.length > 0 ? Integer.parseInt(args[0]) : Integer.getInteger(PLAYERS_PROPERTY, DEFAULT_PLAYERS);
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : Integer.getInteger(SECONDS_PROPERTY, DEFAULT_SECONDS);
+
+        new NimLoadGenerator().run(playerCount, seconds);
+        System.exit(0);
+    }
+}
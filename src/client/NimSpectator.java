@@ -0,0 +1,235 @@
+/**
+ * NimSpectator watches a game in progress from the console
+ */
+package client;
+
+import constants.Constants;
+import game.NimVariant;
+import java.rmi.Naming;
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Scanner;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import server.NimServerInterface;
+import transport.NimProtocol;
+import transport.NioServerConnection;
+
+/**
+ * Console spectator.
+ * Lists the games in progress, between the highest rated players first, and prints the moves of
+ * the chosen game as the server sends them. A spectator does not join the lobby - it is only ever
+ * sent messages, so the player calls do nothing. Press enter to pick another game, q to quit.
+ * Finished games can be played back with r and the game number.
+ * @author Chris
+ */
+public class NimSpectator extends UnicastRemoteObject implements NimClientInterface {
+    private static final long serialVersionUID = 1L;
+    private static final int GAMES_LISTED = 10; // Games offered to watch
+
+    private final NimServerInterface serverLobby;
+    private volatile long gameId = -1;          // Game being watched, -1 = none
+
+    /**
+     * Constructor
+     * @param serverLobby The lobby
+     * @throws RemoteException
+     */
+    public NimSpectator(NimServerInterface serverLobby) throws RemoteException {
+        this.serverLobby = serverLobby;
+    }
+
+    /**
+     * Lets the user pick games to watch until they quit
+     * @param input Console input
+     * @throws RemoteException If the server cannot be reached
+     */
+    private void run(Scanner input) throws RemoteException {
+        String line = "";
+
+        while (true) {
+            if (line.isEmpty()) { // Starting out or asked for the list
+                String[] games = serverLobby.listGames(GAMES_LISTED);
+
+                if (games.length == 0) {
+                    System.out.println("No games in progress");
+                }
+                for (String game : games) {
+                    System.out.println(game);
+                }
+            }
+
+            System.out.println("Enter a game number to watch, r and a game number to replay it, enter to list the games again, q to quit:");
+
+            if (!input.hasNextLine()) {
+                return;
+            }
+            line = input.nextLine().trim();
+
+            if (gameId != -1) { // Stop watching the last game
+                serverLobby.stopSpectating(this, gameId);
+                gameId = -1;
+            }
+
+            if (line.equalsIgnoreCase("q")) {
+                return;
+            }
+
+            if (!line.isEmpty()) {
+                try {
+                    if (line.toLowerCase().startsWith("r")) { // Play back a finished game
+                        serverMessages(serverLobby.getReplay(Long.parseLong(line.substring(1).trim())));
+                    }
+                    else {
+                        gameId = Long.parseLong(line);
+                        serverLobby.spectate(this, gameId);
+                    }
+                } catch (NumberFormatException e) {
+                    System.out.println("Not a game number: " + line);
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the server lobby.
+     * Connects with RMI unless the nim.transport system property is "nio"
+     * @return The lobby
+     * @throws Exception If the server cannot be reached
+     */
+    private static NimServerInterface lookupServer() throws Exception {
+        if ("nio".equalsIgnoreCase(System.getProperty(NimProtocol.TRANSPORT_PROPERTY))) {
+            return NioServerConnection.connect("localhost",
+                    Integer.getInteger(NimProtocol.PORT_PROPERTY, NimProtocol.DEFAULT_PORT));
+        }
+        return (NimServerInterface) Naming.lookup("rmi://localhost/" + Constants.SERVERNAME);
+    }
+
+    @Override
+    public void serverMessage(String message) throws RemoteException {
+        System.out.println(message);
+    }
+
+    @Override
+    public void serverMessages(String[] messages) throws RemoteException {
+        for (String message : messages) {
+            System.out.println(message);
+        }
+    }
+
+    @Override
+    public void gameState(String opponent, NimVariant variant, int[] heaps, int timeoutSeconds) throws RemoteException {
+        // Spectators do not play
+    }
+
+    @Override
+    public void opponentMoved(int heap, int taken, int timeoutSeconds) throws RemoteException {
+        // Spectators do not play
+    }
+
+    @Override
+    public void requestPlayAgain() throws RemoteException {
+        // Spectators do not play
+    }
+
+    @Override
+    public void heartbeat() throws RemoteException {
+        // Spectators hold no lease
+    }
+
+    @Override
+    public void joinedServer() throws RemoteException {
+        // Spectators do not join
+    }
+
+    @Override
+    public String getName() throws RemoteException {
+        return "Spectator";
+    }
+
+    @Override
+    public boolean getIsHuman() throws RemoteException {
+        return true;
+    }
+
+    @Override
+    public int getDifficulty() throws RemoteException {
+        return Constants.EASY;
+    }
+
+    @Override
+    public int getOpponentType() throws RemoteException {
+        return Constants.HUMAN_PLAYER;
+    }
+
+    @Override
+    public void setInGameStatus(boolean inGameFlag) throws RemoteException {
+        // Spectators are never in a game
+    }
+
+    @Override
+    public boolean getInGameStatus() throws RemoteException {
+        return false;
+    }
+
+    @Override
+    public void setPlayerCode(int playerCode) throws RemoteException {
+        // Spectators have no player code
+    }
+
+    @Override
+    public void setSessionKey(long sessionKey) throws RemoteException {
+        // Spectators do not join
+    }
+
+    @Override
+    public int getPlayerCode() throws RemoteException {
+        return -1;
+    }
+
+    @Override
+    public int getMarbles(int bagSize) throws RemoteException {
+        throw new RemoteException("Spectators do not play");
+    }
+
+    @Override
+    public void won() throws RemoteException {
+        // Spectators do not play
+    }
+
+    @Override
+    public void lost() throws RemoteException {
+        // Spectators do not play
+    }
+
+    @Override
+    public boolean playAgain() throws RemoteException {
+        return false;
+    }
+
+    /**
+     * Watches games on the server running on localhost
+     * @param args
+     */
+    public static void main(String[] args) {
+        NimSpectator spectator = null;
+
+        try {
+            spectator = new NimSpectator(lookupServer());
+            spectator.run(new Scanner(System.in));
+        } catch (Exception e) {
+            Logger.getLogger(NimSpectator.class.getName()).log(Level.SEVERE, null, e);
+            System.out.println("Error connecting to server: " + e.getMessage());
+        }
+
+        if (spectator != null) {
+            try {
+                UnicastRemoteObject.unexportObject(spectator, true); // Let the JVM exit
+            } catch (NoSuchObjectException e) {
+                // Already unexported
+            }
+        }
+        System.exit(0);
+    }
+}
@@ -4,139 +4,971 @@
 package game;
 
 import client.NimClientInterface;
-import constants.Constants;
 import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongUnaryOperator;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import metrics.NimMetrics;
+import player.ComputerPlayer;
 import player.PlayerInterface;
-import server.NimServerInterface;
+import server.ClientOutbox;
 import server.NimServerLobby;
+import server.PlayerProfile;
 
 
 /**
- * Game logic, controls interactions between two players
+ * Game logic, controls interactions between two players.
+ * The game is a state machine: it plays computer moves itself and, when it is a human's turn,
+ * sends them a move request and returns. The game carries on when the human's move arrives
+ * through submitMove, so no thread waits while a human is thinking. A human who does not move
+ * before the turn deadline forfeits the game.
+ * The server is authoritative - every move is checked against the rules before it is played.
+ * An illegal move from a human is refused and they are asked again, a player who makes more
+ * illegal moves than the retry budget allows forfeits the game.
+ * The rules come from a NimVariant - the classic single bag game unless another variant is given.
+ * The heaps are held in an int[] and changed in place, so playing a move allocates nothing.
+ * Every change to the game bumps its version, so a checkpoint only has to copy the games which
+ * have changed - see snapshot. A game restored from a checkpoint carries on from the saved position
+ * once run, its humans are reattached as they rejoin the lobby.
  * @author Chris
  */
 public class GameOfNim implements Runnable {
+    /**
+     * Told when a game has ended
+     */
+    public interface GameListener {
+        public void gameOver(GameOfNim game);
+    }
+    
+    /**
+     * Told about each move and the result as they happen, for spectators. Called on the game's
+     * thread holding the game's lock, so it must not block.
+     */
+    public interface EventListener {
+        public void gameEvent(GameOfNim game, String event);
+    }
+    
+    // System property holding the number of seconds a human has to make a move
+    public static final String TURN_TIMEOUT_PROPERTY = "nim.turnTimeout";
+    public static final int DEFAULT_TURN_TIMEOUT = 120;
+    // System property holding the number of illegal moves a player may make in a game without forfeiting
+    public static final String MOVE_RETRIES_PROPERTY = "nim.moveRetries";
+    public static final int DEFAULT_MOVE_RETRIES = 3;
+    
+    private static final AtomicLong nextGameId = new AtomicLong(); // Source of unique game ids
+    private static volatile LongUnaryOperator gameIdSequence = id -> id + 1; // Next id after the last one issued
+    
     private Random rand = new Random(); // Used to simulate coin toss
+    private final long gameId;          // Unique id of the game, kept when the game is restored
+    private volatile int version;       // Bumped on every change to the game, read without the lock by checkpoints
+    private final boolean restored;     // Game was restored from a checkpoint
     private int player;                 // Holds the current player (0 or 1)
-    private int marbles;                // The number of marbles in the bag
+    private int marbles;                // The number of marbles left in all the heaps
+    private final NimVariant variant;   // Rules of the game
+    private final int[] heaps;          // Marbles in each heap, the classic game has one heap - the bag
     private boolean won = false;        // Game won flag
     private int difficulty;             // Difficulty level for the game
     private PlayerInterface[] players = new PlayerInterface[2]; // Array for players
-    NimServerInterface lobby;
+    // Player details, fetched once when the game is constructed as they cannot change during a game
+    private final String[] names = new String[2];       // Player names
+    private final boolean[] human = new boolean[2];     // true = human player
+    private final int[] playerCodes = new int[2];       // Players' lobby codes
+    private final ClientOutbox[] outboxes = new ClientOutbox[2]; // Players' message queues, null if not available
+    private final boolean[] left = new boolean[2];      // true = player has left during the game
+    private final boolean[] stateSent = new boolean[2]; // true = human player has been sent the whole game
+    // Opponent's last move, not yet sent to the player - it goes with their next turn
+    private final int[] unsentMove = {NimVariant.NO_MOVE, NimVariant.NO_MOVE};
+    NimServerLobby lobby;
+    private final GameScheduler scheduler;              // Runs turn deadlines, null if there is no lobby
+    private final NimMetrics metrics = NimMetrics.shared(); // Game statistics
     ConcurrentHashMap<Integer, NimClientInterface> queue;
+    
+    private final int initialMarbles;    // The number of marbles the game started with
+    private final int[] initialHeaps;    // The heaps the game started with
+    private final int firstPlayer;       // The player who moved first
+    private final int turnTimeout = Integer.getInteger(TURN_TIMEOUT_PROPERTY, DEFAULT_TURN_TIMEOUT); // Seconds per move
+    private final int moveRetries = Integer.getInteger(MOVE_RETRIES_PROPERTY, DEFAULT_MOVE_RETRIES); // Illegal moves allowed
+    private final int[] rejectedMoves = new int[2]; // Illegal moves refused from each player
+    private boolean started;             // run() has been called
+    private long startTime;              // When the game started
+    private long startMillis;            // Wall clock time the game started
+    private long endMillis;              // Wall clock time the game ended
+    private final int[] moves;           // Marbles taken on each turn, a game has fewer turns than marbles
+    private final byte[] moveHeaps;      // Heap taken from on each turn
+    private int turns;                   // The number of turns taken
+    private int winner = -1;             // The winning player (0 or 1), -1 until the game is over
+    private boolean forfeit;             // Game ended by a player running out of time or leaving
+    private boolean failed;              // Game abandoned because a player could not be reached
+    private int moveRequest;             // Counts move requests, so a deadline for an old request is ignored
+    private long moveRequestedAt;        // When the current move was requested
+    private ScheduledFuture<?> deadline; // Current turn deadline
+    private boolean listenersNotified;   // Game over has been reported to the listeners
+    private final List<GameListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile EventListener eventListener; // Spectators' feed, null until someone watches
 
     /**
-     * Constructs the game based on difficulty
+     * Constructs the game based on difficulty, reading each player's details from the player
      * @param p1 Player 1
      * @param p2 Player 2
      * @param difficulty Difficulty - EASY or HARD
-     * @param lobby Reference back to the lobby. Used when asking players if they wish to play again.
+     * @param lobby Reference back to the lobby. Supplies the players' message queues and the scheduler.
+     * @throws RemoteException If a remote player's details cannot be read
      */
-    public GameOfNim(PlayerInterface p1, PlayerInterface p2, int difficulty, NimServerLobby lobby) {
-        players[0] = p1; // Initialise first player
-        players[1] = p2; // Initialise second player   
+    public GameOfNim(PlayerInterface p1, PlayerInterface p2, int difficulty, NimServerLobby lobby) throws RemoteException {
+        this(PlayerProfile.of(p1), PlayerProfile.of(p2), difficulty, lobby);
+    }
+    
+    /**
+     * Constructs a classic single bag game based on difficulty
+     * @param p1 Player 1's details, as cached by the lobby
+     * @param p2 Player 2's details, as cached by the lobby
+     * @param difficulty Difficulty - EASY or HARD
+     * @param lobby Reference back to the lobby. Supplies the players' message queues and the scheduler.
+     */
+    public GameOfNim(PlayerProfile p1, PlayerProfile p2, int difficulty, NimServerLobby lobby) {
+        this(p1, p2, difficulty, NimVariant.classic(), lobby);
+    }
+    
+    /**
+     * Constructs the game based on difficulty and variant
+     * @param p1 Player 1's details, as cached by the lobby
+     * @param p2 Player 2's details, as cached by the lobby
+     * @param difficulty Difficulty - EASY or HARD
+     * @param variant Rules of the game
+     * @param lobby Reference back to the lobby. Supplies the players' message queues and the scheduler.
+     */
+    public GameOfNim(PlayerProfile p1, PlayerProfile p2, int difficulty, NimVariant variant, NimServerLobby lobby) {
+        gameId = nextGameId.updateAndGet(gameIdSequence);
+        restored = false;
+        players[0] = p1.getPlayer(); // Initialise first player
+        players[1] = p2.getPlayer(); // Initialise second player   
         this.difficulty = difficulty; // Set difficulty
         this.lobby = lobby; // Reference to the lobby
+        scheduler = lobby != null ? lobby.getScheduler() : null;
 
         // Decide which player will start the game - coin toss
         player = rand.nextInt(2); // returns value between 0 and 1 inclusive
+        firstPlayer = player;
         
-        // Initialise the number of marbles at the start
-        // Needs to be atleast 5 to give the game the possibility of several moves
-        marbles = rand.nextInt(difficulty == Constants.EASY ? 19 : 99) + 5; 
+        // Initialise the heaps at the start
+        // A classic bag needs to be atleast 5 to give the game the possibility of several moves
+        this.variant = variant;
+        heaps = variant.initialHeaps(rand, difficulty);
+        initialHeaps = heaps.clone();
         
-        try {
-            System.out.println("Game on: " + p1.getName() + " v " + p2.getName());
-        } catch (RemoteException ex) {
-            Logger.getLogger(GameOfNim.class.getName()).log(Level.SEVERE, null, ex);
+        for (int heapSize : heaps) {
+            marbles += heapSize;
         }
+        initialMarbles = marbles;
+        moves = new int[initialMarbles];
+        moveHeaps = new byte[initialMarbles];
         
+        // Copy the player details so the game only calls a client to get moves and send messages
         for (int t = 0; t < 2; t++) {
-            try {
-                if (players[t].getIsHuman()) {
-                    ((NimClientInterface) players[t]).serverMessage("\nStarting new game. There are " + marbles + " marbles");
-                    ((NimClientInterface) players[t]).serverMessage("First player is: " + players[player].getName());
-                }
-            } catch (RemoteException e) {
-                System.out.println("Error sending output to player console: " + e.getMessage());
+            PlayerProfile profile = t == 0 ? p1 : p2;
+            
+            names[t] = profile.getName();
+            human[t] = profile.isHuman();
+            playerCodes[t] = profile.getPlayerCode();
+            
+            if (human[t] && lobby != null) {
+                outboxes[t] = lobby.getOutbox(playerCodes[t]);
+            }
+        }
+        
+        Logger.getLogger(GameOfNim.class.getName()).log(Level.FINE, "Game on: {0} v {1}", names);
+    }
+    
+    /**
+     * Restores a game in progress from a checkpoint. Computer players are rebuilt, human players
+     * have no connection until they rejoin the lobby and are attached - see attach.
+     * @param state The game as it was checkpointed
+     * @param lobby Reference back to the lobby. Supplies the scheduler.
+     */
+    public GameOfNim(GameState state, NimServerLobby lobby) {
+        gameId = state.getGameId();
+        nextGameId.accumulateAndGet(gameId, Math::max); // New games never reuse a restored id
+        restored = true;
+        version = state.getVersion();
+        this.lobby = lobby;
+        scheduler = lobby != null ? lobby.getScheduler() : null;
+        difficulty = state.getDifficulty();
+        variant = state.getVariant();
+        heaps = state.getHeaps();
+        initialHeaps = state.getInitialHeaps();
+        firstPlayer = state.getFirstPlayer();
+        player = state.getPlayer();
+        startMillis = state.getStartMillis();
+        
+        for (int heapSize : heaps) {
+            marbles += heapSize;
+        }
+        
+        int total = 0;
+        for (int heapSize : initialHeaps) {
+            total += heapSize;
+        }
+        initialMarbles = total;
+        moves = new int[initialMarbles];
+        moveHeaps = new byte[initialMarbles];
+        
+        int[] savedMoves = state.getMoves();
+        int[] savedHeaps = state.getMoveHeaps();
+        
+        turns = Math.min(savedMoves.length, moves.length);
+        for (int m = 0; m < turns; m++) {
+            moves[m] = savedMoves[m];
+            moveHeaps[m] = (byte) savedHeaps[m];
+        }
+        
+        for (int t = 0; t < 2; t++) {
+            names[t] = state.getName(t);
+            human[t] = state.isHuman(t);
+            playerCodes[t] = state.getPlayerCode(t);
+            rejectedMoves[t] = state.getRejectedMoves(t);
+            
+            if (!human[t]) {
+                players[t] = new ComputerPlayer(names[t], difficulty);
             }
         }
     }
     
     /**
-     * Runs the game engine in its own thread. 
-     * This enables multiple games to run concurrently
+     * Makes sure new games are given ids above those already used, e.g. by games stored before a restart
+     * @param highestGameId Highest game id used
+     */
+    public static void reserveGameIds(long highestGameId) {
+        nextGameId.accumulateAndGet(highestGameId, Math::max);
+    }
+    
+    /**
+     * Restricts new game ids to a share of the ids, so the games of several lobby shards never share an id
+     * @param sequence Returns the next id to issue after the last one issued
+     */
+    public static void partitionGameIds(LongUnaryOperator sequence) {
+        gameIdSequence = sequence;
+    }
+    
+    /**
+     * Adds a listener told when the game ends
+     * @param listener The listener
+     */
+    public void addGameListener(GameListener listener) {
+        listeners.add(listener);
+    }
+    
+    /**
+     * Sets the listener told about each move and the result, there is no cost to the game until one is set
+     * @param listener The listener, null to stop
+     */
+    public void setEventListener(EventListener listener) {
+        eventListener = listener;
+    }
+    
+    /**
+     * Starts the game. Computer moves are played straight away, the method returns once a human
+     * has been asked for a move or the game is over - a computer v computer game is played to the end.
      */
     @Override
     public void run() {
-        int marblesTaken; // The number of marbles taken during a player's turn
-        System.out.println("In thread");
+        synchronized (this) {
+            if (started) {
+                return;
+            }
+            
+            started = true;
+            startTime = System.nanoTime();
+            if (!restored) { // A restored game keeps its original start time
+                startMillis = System.currentTimeMillis();
+            }
+            metrics.gameStarted();
+            
+            if (left[0] || left[1]) { // A player left before the game started
+                endGame(left[0] ? 1 : 0);
+            }
+            else {
+                for (int t = 0; t < 2; t++) {
+                    if (human[t] && t != player) { // The first player is sent the game with their turn
+                        sendState(t, 0);
+                    }
+                }
+                advance();
+            }
+        }
         
-        // Main game loop. Uses x = 1 - x to track the current player
-        do { 
-            try {
-                marblesTaken = players[player].getMarbles(marbles); // Get marbles choice from player
-                marbles -= marblesTaken;
-                
-                // Output message
-                if(players[1 - player].getIsHuman()) // If opponent is human, output the number of marbles taken
-                    ((NimClientInterface)players[1 - player]).serverMessage("\n" + players[player].getName() + 
-                            " has taken " + marblesTaken + " marbles, leaving " + marbles + " marbles");
+        notifyIfOver();
+    }
+    
+    /**
+     * Accepts a human player's move from the bag of a classic game
+     * @param playerCode Code of the player making the move
+     * @param marblesTaken The number of marbles taken
+     * @return true = move received, false = it is not this player's turn
+     */
+    public boolean submitMove(int playerCode, int marblesTaken) {
+        return submitMove(playerCode, 0, marblesTaken);
+    }
+    
+    /**
+     * Accepts a human player's move. A move the rules do not allow is refused and the player is asked
+     * again, until they run out of retries and forfeit.
+     * @param playerCode Code of the player making the move
+     * @param heap Index of the heap taken from
+     * @param marblesTaken The number of marbles taken
+     * @return true = move received, false = it is not this player's turn
+     */
+    public boolean submitMove(int playerCode, int heap, int marblesTaken) {
+        synchronized (this) {
+            if (won || !started || !human[player] || playerCodes[player] != playerCode) {
+                return false;
+            }
+            
+            if (!variant.isLegalMove(heaps, heap, marblesTaken)) {
+                rejectMove(heap, marblesTaken);
+            }
+            else {
+                metrics.remoteCall(NimMetrics.RemoteCall.GET_MARBLES, System.nanoTime() - moveRequestedAt);
+                cancelDeadline();
+
+                applyMove(heap, marblesTaken);
+                advance();
+            }
+        }
+        
+        notifyIfOver();
+        return true;
+    }
+    
+    /**
+     * Ends the game because a player has left or can no longer be reached, their opponent wins
+     * @param playerCode Code of the player who left
+     */
+    public void playerLeft(int playerCode) {
+        synchronized (this) {
+            int t = playerCodes[0] == playerCode && human[0] ? 0 : 1;
+            
+            if (won || left[t] || playerCodes[t] != playerCode || !human[t]) {
+                return;
+            }
+            
+            left[t] = true;
+            failed = true;
+            forfeit = true;
+            
+            if (human[1 - t]) {
+                message(1 - t, "\n" + names[t] + " has left the game");
+            }
+            publish(names[t] + " has left the game");
+            
+            if (started) { // Otherwise the game ends as soon as it is run
+                endGame(1 - t);
+            }
+        }
+        
+        notifyIfOver();
+    }
+    
+    /**
+     * Reconnects a human player of a restored game who has rejoined the lobby. They are told where
+     * the game stands and, if it is their turn, asked for their move again with a fresh turn deadline.
+     * @param playerCode Code of the player
+     * @param client The player's new connection
+     * @param outbox The player's new message queue
+     * @return true = attached, false = the player is not in this game or it is over
+     */
+    public boolean attach(int playerCode, NimClientInterface client, ClientOutbox outbox) {
+        synchronized (this) {
+            int t = playerCodes[0] == playerCode && human[0] ? 0 : 1;
+            
+            if (won || left[t] || playerCodes[t] != playerCode || !human[t]) {
+                return false;
+            }
+            
+            players[t] = client;
+            outboxes[t] = outbox;
+            
+            call(t, NimMetrics.RemoteCall.SET_IN_GAME_STATUS, c -> c.setInGameStatus(true));
+            message(t, "\nResumed game against " + names[1 - t]);
+            stateSent[t] = false; // The new connection is sent the whole game
+            
+            if (started && player == t) {
+                cancelDeadline();
+                requestMove();
+            }
+            else {
+                sendState(t, 0);
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Sends a human player the whole game again, their client's copy is out of step. Unlike a refused
+     * move it uses none of their retries, and if it is their turn the deadline still stands.
+     * @param playerCode Code of the player
+     * @return true = sent, false = the player is not in this game, it has not started or it is over
+     */
+    public boolean resendState(int playerCode) {
+        synchronized (this) {
+            int t = playerCodes[0] == playerCode && human[0] ? 0 : 1;
+            
+            if (won || !started || left[t] || playerCodes[t] != playerCode || !human[t]) {
+                return false;
+            }
+            
+            if (player == t) { // Tell them the time they have left, atleast a second so they know it is their turn
+                long waited = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - moveRequestedAt);
                 
-                if(marbles < 1) { // Error, too many marbles taken in a turn
-                    System.out.println("Error taking marbles");
+                sendState(t, (int) Math.max(1, turnTimeout - waited));
+            }
+            else {
+                sendState(t, 0);
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Copies the game for a checkpoint. Only holds the game's lock while the few fields are copied,
+     * writing the copy out is left to the caller.
+     * @return The game's state, null if the game is over
+     */
+    public synchronized GameState snapshot() {
+        if (won) {
+            return null;
+        }
+        
+        return new GameState(gameId, version, variant, difficulty, playerCodes, names, human, firstPlayer, player,
+                heaps, initialHeaps, getMoves(), getMoveHeaps(), rejectedMoves, startMillis);
+    }
+    
+    /**
+     * Plays moves until a human has to move or the game is over. Called holding the game's lock.
+     */
+    private void advance() {
+        int move; // The heap and number of marbles taken during a player's turn
+        
+        while (!won) {
+            if (human[player]) { // Ask the human and wait for their move to be submitted
+                requestMove();
+                return;
+            }
+            
+            try {
+                if (players[player] instanceof ComputerPlayer) { // Plays any variant
+                    move = ((ComputerPlayer) players[player]).chooseMove(variant, heaps);
                 }
-                
-            } catch (RemoteException ex) {
+                else {
+                    move = NimVariant.move(0, players[player].getMarbles(heaps[0])); // Get marbles choice from player
+                }
+            } catch (RemoteException ex) { // Only computer players are asked directly, this should not happen
                 Logger.getLogger(GameOfNim.class.getName()).log(Level.SEVERE, null, ex);
+                failed = true;
+                endGame(1 - player);
+                return;
             }
             
-            if(marbles == 1) { // Game has finished, the opponent is left with the last marble
-                
-                try { // Current player has won the game
-                    if(players[player].getIsHuman()) { // Only if human
-                        players[player].won();  // Inform player of win
-                    } 
-                    
-                    player = 1 - player;    // Switch player 
-                    
-                    if(players[player].getIsHuman()) { // Only if human
-                        players[player].lost(); // Inform player of loss
-                    }
-                } catch (RemoteException ex) {
-                    Logger.getLogger(GameOfNim.class.getName()).log(Level.SEVERE, null, ex);
+            if (!variant.isLegalMove(heaps, NimVariant.heapOf(move), NimVariant.takenOf(move))) { // Should never happen
+                Logger.getLogger(GameOfNim.class.getName()).log(Level.WARNING, "Illegal move by computer player {0}", names[player]);
+                rejectedMoves[player]++;
+                metrics.moveRejected(true);
+                failed = true;
+                endGame(1 - player);
+                return;
+            }
+            
+            applyMove(NimVariant.heapOf(move), NimVariant.takenOf(move));
+        }
+    }
+    
+    /**
+     * Refuses an illegal move from the current human player. They are asked again if they have retries
+     * left - the turn deadline still stands - otherwise they forfeit the game.
+     * @param heap Index of the heap the player tried to take from
+     * @param marblesTaken The number of marbles the player tried to take
+     */
+    private void rejectMove(int heap, int marblesTaken) {
+        int retriesLeft = moveRetries - ++rejectedMoves[player];
+        
+        version++;
+        
+        metrics.moveRejected(retriesLeft < 0);
+        
+        if (retriesLeft < 0) { // Too many illegal moves
+            forfeit = true;
+            
+            for (int t = 0; t < 2; t++) {
+                if (human[t]) {
+                    message(t, "\n" + names[player] + " made too many illegal moves and forfeits the game");
                 }
-                
-                won = true; // Set won flag
             }
-             
-            player = 1 - player; // Switch players - if game is won then this will set back to winner
+            publish(names[player] + " made too many illegal moves and forfeits the game");
             
-        } while(!won); // Keep looping until the game has been won
+            endGame(1 - player);
+            return;
+        }
         
+        message(player, "\nIllegal move - " + marblesTaken + " marbles can not be taken"
+                + (variant.isClassic() ? "" : " from heap " + (heap + 1))
+                + ". You have " + retriesLeft + (retriesLeft == 1 ? " retry" : " retries") + " left");
+        stateSent[player] = false; // The player's copy of the game is wrong, send the whole game again
+        sendMoveRequest();
+    }
+    
+    /**
+     * Takes marbles from a heap for the current player and moves on to the next turn, the move has already been checked
+     * @param heap Index of the heap
+     * @param marblesTaken The number of marbles taken
+     */
+    private void applyMove(int heap, int marblesTaken) {
+        heaps[heap] -= marblesTaken;
+        marbles -= marblesTaken;
         
-        // Game has ended, see if players wish to play again and clean up before exiting
-        for (player = 0; player < 2; player++) {
-            try {
-                if(players[player].getIsHuman()) {
-                    if (players[player].playAgain()) { // If the player wants to play again, tell the lobby
-                        players[player].setInGameStatus(false); // Indicate no longer in a game
-
-                        lobby.queuePlayer(players[player].getPlayerCode()); // Add this player to the waitingPlayers queue
-                    }
-                    else { // If the player doesn't want to play again, tell the lobby to remove them
-                        // Remove the player from the queue - the hashMap, player will no longer be registered in the server
-                        lobby.leaveLobby(players[player].getPlayerCode());         
-                    }
+        if (turns < moves.length) {
+            moves[turns] = marblesTaken;
+            moveHeaps[turns] = (byte) heap;
+        }
+        turns++;
+        version++;
+        
+        if(human[1 - player]) { // Sent with the opponent's turn, their client describes the move
+            unsentMove[1 - player] = NimVariant.move(heap, marblesTaken);
+        }
+        
+        if(eventListener != null) { // Someone is watching, output the number of marbles taken
+            String event;
+            
+            if(variant.isClassic()) {
+                event = names[player] + " has taken " + marblesTaken + " marbles, leaving " + marbles + " marbles";
+            }
+            else {
+                event = names[player] + " has taken " + marblesTaken + " marbles from heap " + (heap + 1) + ", leaving " + heapsText();
+            }
+            publish(event);
+        }
+        
+        if(variant.isGameOver(heaps)) { // Game has finished, no marbles can be taken
+            endGame(variant.lastMoverWins() ? player : 1 - player); // Classic: the opponent is left with the last marble
+        }
+        else {
+            player = 1 - player; // Switch players
+        }
+    }
+    
+    /**
+     * Sends the current human player a move request and starts their turn deadline
+     */
+    private void requestMove() {
+        final int request = ++moveRequest;
+        
+        moveRequestedAt = System.nanoTime();
+        sendMoveRequest();
+        
+        if (scheduler != null) {
+            deadline = scheduler.schedule(() -> turnTimedOut(request), turnTimeout, TimeUnit.SECONDS);
+        }
+    }
+    
+    /**
+     * Asks the current human player for their move. Once they have the whole game they are only
+     * sent their opponent's move - one compact call a turn, their client keeps the game up to date.
+     */
+    private void sendMoveRequest() {
+        final int move = unsentMove[player];
+        
+        if (!stateSent[player] || move == NimVariant.NO_MOVE) {
+            sendState(player, turnTimeout);
+            return;
+        }
+        
+        unsentMove[player] = NimVariant.NO_MOVE;
+        call(player, NimMetrics.RemoteCall.REQUEST_MOVE, 
+                client -> client.opponentMoved(NimVariant.heapOf(move), NimVariant.takenOf(move), turnTimeout));
+    }
+    
+    /**
+     * Sends a human player the whole game
+     * @param t The player (0 or 1)
+     * @param timeoutSeconds Time they have to move, 0 = it is not their turn
+     */
+    private void sendState(int t, int timeoutSeconds) {
+        final String opponent = names[1 - t];
+        final int[] heapSizes = heaps.clone();
+        
+        stateSent[t] = true;
+        unsentMove[t] = NimVariant.NO_MOVE;
+        call(t, NimMetrics.RemoteCall.REQUEST_MOVE, client -> client.gameState(opponent, variant, heapSizes, timeoutSeconds));
+    }
+    
+    /**
+     * Lists the heaps for a message to the players
+     * @return heap sizes separated by spaces
+     */
+    private String heapsText() {
+        StringBuilder text = new StringBuilder();
+        
+        for (int heapSize : heaps) {
+            text.append(text.length() > 0 ? " " : "").append(heapSize);
+        }
+        return text.toString();
+    }
+    
+    /**
+     * The current player did not move in time and forfeits the game
+     * @param request The move request the deadline belongs to
+     */
+    private void turnTimedOut(int request) {
+        synchronized (this) {
+            if (won || request != moveRequest) { // Player has already moved
+                return;
+            }
+            
+            forfeit = true;
+            
+            for (int t = 0; t < 2; t++) {
+                if (human[t]) {
+                    message(t, "\n" + names[player] + " ran out of time and forfeits the game");
                 }
-               
-            } catch (RemoteException e) {
-                System.out.println("Error with game ending: " + e.getMessage());
             }
+            publish(names[player] + " ran out of time and forfeits the game");
+            
+            endGame(1 - player);
         }
+        
+        notifyIfOver();
+    }
+    
+    /**
+     * Cancels the current turn deadline
+     */
+    private void cancelDeadline() {
+        if (deadline != null) {
+            deadline.cancel(false);
+            deadline = null;
+        }
+    }
+    
+    /**
+     * Finishes the game, telling the players the result and asking humans if they want to play again
+     * @param winningPlayer The winning player (0 or 1)
+     */
+    private void endGame(int winningPlayer) {
+        won = true; // Set won flag
+        version++;
+        winner = winningPlayer;
+        player = winningPlayer;
+        cancelDeadline();
+        endMillis = System.currentTimeMillis();
+        
+        metrics.gameFinished(System.nanoTime() - startTime, turns, failed);
+        publish(names[winner] + " wins");
+        
+        for (int t = 0; t < 2; t++) {
+            if (human[t] && !left[t]) { // Only if human and still here
+                final int move = unsentMove[t];
+                
+                if (move != NimVariant.NO_MOVE && stateSent[t]) { // The move that ended the game
+                    unsentMove[t] = NimVariant.NO_MOVE;
+                    call(t, NimMetrics.RemoteCall.REQUEST_MOVE, 
+                            client -> client.opponentMoved(NimVariant.heapOf(move), NimVariant.takenOf(move), 0));
+                }
+                
+                if (t == winner) {
+                    call(t, NimMetrics.RemoteCall.WON, client -> client.won());   // Inform player of win
+                }
+                else {
+                    call(t, NimMetrics.RemoteCall.LOST, client -> client.lost()); // Inform player of loss
+                }
+                
+                // Indicate no longer in a game, the player answers by queueing again or leaving the lobby
+                call(t, NimMetrics.RemoteCall.SET_IN_GAME_STATUS, client -> client.setInGameStatus(false));
+                call(t, NimMetrics.RemoteCall.PLAY_AGAIN, client -> client.requestPlayAgain());
+            }
+        }
+    }
+    
+    /**
+     * Tells the listeners the game is over, once, without holding the game's lock
+     */
+    private void notifyIfOver() {
+        synchronized (this) {
+            if (!won || listenersNotified) {
+                return;
+            }
+            
+            listenersNotified = true;
+        }
+        
+        for (GameListener listener : listeners) {
+            listener.gameOver(this);
+        }
+    }
+    
+    /**
+     * Passes an event on to the spectators' feed, if anyone is watching
+     * @param event What happened, written once and shared by every spectator
+     */
+    private void publish(String event) {
+        EventListener listener = eventListener;
+        
+        if (listener != null) {
+            listener.gameEvent(this, event);
+        }
+    }
+    
+    /**
+     * Describes where the game stands, for spectators and the list of games
+     * @return e.g. "Game 12: Alice v Bob, Classic Nim - 14 marbles left, Alice to move"
+     */
+    public synchronized String describe() {
+        return "Game " + gameId + ": " + names[0] + " v " + names[1] + ", " + variant + " - " 
+                + (variant.isClassic() ? marbles + " marbles left" : "heaps " + heapsText())
+                + (won ? ", " + names[winner] + " has won" : ", " + names[player] + " to move");
+    }
+    
+    /**
+     * Sends a console message to a human player without waiting for it to be delivered
+     * @param t The player (0 or 1)
+     * @param message The message
+     */
+    private void message(int t, String message) {
+        if (players[t] == null) { // Restored game, the player has not rejoined yet
+            return;
+        }
+        
+        if (outboxes[t] != null) {
+            outboxes[t].send(message);
+            return;
+        }
+        
+        try { // No outbox, e.g. the player has already left the lobby - send directly
+            ((NimClientInterface) players[t]).serverMessage(message);
+        } catch (RemoteException e) {
+            System.out.println("Error sending output to player console: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Makes a call on a human player, in order with their messages and without waiting for it
+     * @param t The player (0 or 1)
+     * @param type Metric the call is recorded under
+     * @param call The call
+     */
+    private void call(int t, NimMetrics.RemoteCall type, ClientOutbox.ClientCall call) {
+        if (players[t] == null) { // Restored game, the player has not rejoined yet
+            return;
+        }
+        
+        if (outboxes[t] != null) {
+            outboxes[t].send(type, call);
+            return;
+        }
+        
+        try { // No outbox - call directly
+            call.call((NimClientInterface) players[t]);
+        } catch (RemoteException e) {
+            System.out.println("Error calling player: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Returns the game's unique id
+     * @return game id
+     */
+    public long getGameId() {
+        return gameId;
+    }
+    
+    /**
+     * Returns the game's version, bumped on every change. Does not take the game's lock.
+     * @return version
+     */
+    public int getVersion() {
+        return version;
+    }
+    
+    /**
+     * Returns whether the game was restored from a checkpoint
+     * @return true = restored
+     */
+    public boolean isRestored() {
+        return restored;
+    }
+    
+    /**
+     * Returns whether the game is over
+     * @return true = game over
+     */
+    public synchronized boolean isOver() {
+        return won;
+    }
+    
+    /**
+     * Returns the winning player
+     * @return 0 or 1, -1 if the game is not over
+     */
+    public synchronized int getWinner() {
+        return winner;
+    }
+    
+    /**
+     * Returns whether the game was ended by a player running out of time or leaving
+     * @return true = forfeited
+     */
+    public synchronized boolean isForfeit() {
+        return forfeit;
+    }
+    
+    /**
+     * Returns whether the game was abandoned because a player could not be reached
+     * @return true = failed
+     */
+    public synchronized boolean isFailed() {
+        return failed;
+    }
+    
+    /**
+     * Returns the number of turns taken
+     * @return turns
+     */
+    public synchronized int getTurns() {
+        return turns;
+    }
+    
+    /**
+     * Returns the number of illegal moves refused from a player
+     * @param t The player (0 or 1)
+     * @return rejected moves
+     */
+    public synchronized int getRejectedMoves(int t) {
+        return rejectedMoves[t];
+    }
+    
+    /**
+     * Returns the marbles taken on each turn so far
+     * @return moves, in turn order
+     */
+    public synchronized int[] getMoves() {
+        return Arrays.copyOf(moves, Math.min(turns, moves.length));
+    }
+    
+    /**
+     * Returns the wall clock time the game started
+     * @return milliseconds since the epoch, 0 if not started
+     */
+    public synchronized long getStartMillis() {
+        return startMillis;
+    }
+    
+    /**
+     * Returns the wall clock time the game ended
+     * @return milliseconds since the epoch, 0 if not over
+     */
+    public synchronized long getEndMillis() {
+        return endMillis;
+    }
+    
+    /**
+     * Returns the heap taken from on each turn so far
+     * @return heap indexes, in turn order - all 0 in a classic game
+     */
+    public synchronized int[] getMoveHeaps() {
+        int[] result = new int[Math.min(turns, moveHeaps.length)];
+        
+        for (int m = 0; m < result.length; m++) {
+            result[m] = moveHeaps[m];
+        }
+        return result;
+    }
+    
+    /**
+     * Returns the number of marbles left in the bag, or in all the heaps
+     * @return marbles
+     */
+    public synchronized int getMarbles() {
+        return marbles;
+    }
+    
+    /**
+     * Returns the marbles left in each heap
+     * @return heaps
+     */
+    public synchronized int[] getHeaps() {
+        return heaps.clone();
+    }
+    
+    /**
+     * Returns the number of marbles the game started with
+     * @return initial marbles
+     */
+    public int getInitialMarbles() {
+        return initialMarbles;
+    }
+    
+    /**
+     * Returns the heaps the game started with
+     * @return initial heaps
+     */
+    public int[] getInitialHeaps() {
+        return initialHeaps.clone();
+    }
+    
+    /**
+     * Returns the rules of the game
+     * @return variant
+     */
+    public NimVariant getVariant() {
+        return variant;
+    }
+    
+    /**
+     * Returns the player who moved first
+     * @return 0 or 1
+     */
+    public int getFirstPlayer() {
+        return firstPlayer;
+    }
+    
+    /**
+     * Returns the game difficulty
+     * @return EASY or HARD
+     */
+    public int getDifficulty() {
+        return difficulty;
+    }
+    
+    /**
+     * Returns a player's lobby code
+     * @param t The player (0 or 1)
+     * @return player code, -1 for a computer player
+     */
+    public int getPlayerCode(int t) {
+        return playerCodes[t];
+    }
+    
+    /**
+     * Returns a player's name
+     * @param t The player (0 or 1)
+     * @return name
+     */
+    public String getName(int t) {
+        return names[t];
+    }
+    
+    /**
+     * Returns whether a player is human
+     * @param t The player (0 or 1)
+     * @return true = human
+     */
+    public boolean isHuman(int t) {
+        return human[t];
     }
 }
@@ -0,0 +1,260 @@
+/**
+ * GameScheduler runs GameOfNim games on an executor, limiting how many may be in progress at once
+ */
+package game;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Schedules games onto a pluggable executor.
+ * A game slot must be reserved (tryReserve) before a game is submitted, this lets the lobby
+ * keep players in its queue rather than starting more games than the cap allows.
+ * Games only use a thread while they have work to do - a game waiting for a human's move
+ * holds its slot but no thread, and turn deadlines are kept on a single timer thread.
+ * @author Chris
+ */
+public class GameScheduler implements GameSchedulerMBean {
+    // System properties used to configure the scheduler
+    public static final String SCHEDULER_PROPERTY = "nim.scheduler";      // "virtual" (default) or "pool"
+    public static final String MAX_GAMES_PROPERTY = "nim.maxGames";       // Cap on concurrent games
+    public static final String POOL_THREADS_PROPERTY = "nim.poolThreads"; // Threads in the bounded pool
+
+    public static final int DEFAULT_MAX_GAMES = 10000;
+    public static final int DEFAULT_POOL_THREADS = 256;
+
+    public static final String OBJECT_NAME = "nim:type=GameScheduler";
+
+    private final ExecutorService executor; // Runs the games
+    private final ScheduledExecutorService timer; // Fires turn deadlines, the work itself is handed to the executor
+    private final Semaphore slots;          // One permit per game allowed to be in progress
+    private final int maxGames;             // The concurrent game cap
+
+    private final AtomicInteger activeGames = new AtomicInteger();   // Games started and not yet finished
+    private final AtomicInteger queuedGames = new AtomicInteger();   // Games submitted but not yet started
+    private final AtomicLong completedGames = new AtomicLong();      // Games that have finished
+
+    private volatile Runnable gameFinishedListener; // Told whenever a slot is freed
+
+    /**
+     * Constructs a scheduler around any executor
+     * @param executor Executor the games are run on
+     * @param maxGames Maximum number of games reserved or running at once
+     */
+    public GameScheduler(ExecutorService executor, int maxGames) {
+        if(maxGames < 1) {
+            throw new IllegalArgumentException("maxGames must be at least 1: " + maxGames);
+        }
+
+        this.executor = executor;
+        this.maxGames = maxGames;
+        slots = new Semaphore(maxGames);
+        timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Nim game timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Scheduler running each game on its own virtual thread.
+     * Virtual threads need a Java 21 runtime, on older runtimes each game gets a platform thread instead.
+     * @param maxGames Maximum number of concurrent games
+     * @return The scheduler
+     */
+    public static GameScheduler virtualThreads(int maxGames) {
+        ExecutorService executor;
+
+        try { // Looked up reflectively so the project still builds for older Java versions
+            executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            executor = Executors.newCachedThreadPool();
+        }
+
+        return new GameScheduler(executor, maxGames);
+    }
+
+    /**
+     * Scheduler running games on a fixed pool of platform threads
+     * @param threads Number of pool threads
+     * @param maxGames Maximum number of games running or waiting for a pool thread
+     * @return The scheduler
+     */
+    public static GameScheduler boundedPool(int threads, int maxGames) {
+        return new GameScheduler(Executors.newFixedThreadPool(threads), maxGames);
+    }
+
+    /**
+     * Builds the scheduler described by the nim.scheduler, nim.maxGames and nim.poolThreads system properties
+     * @return The scheduler
+     */
+    public static GameScheduler fromSystemProperties() {
+        int maxGames = Integer.getInteger(MAX_GAMES_PROPERTY, DEFAULT_MAX_GAMES);
+
+        if("pool".equalsIgnoreCase(System.getProperty(SCHEDULER_PROPERTY))) {
+            return boundedPool(Integer.getInteger(POOL_THREADS_PROPERTY, DEFAULT_POOL_THREADS), maxGames);
+        }
+
+        return virtualThreads(maxGames);
+    }
+
+    /**
+     * Sets the listener told when a game slot becomes free, e.g. so the lobby can match waiting players
+     * @param listener Called on the thread of the finishing game
+     */
+    public void setGameFinishedListener(Runnable listener) {
+        gameFinishedListener = listener;
+    }
+
+    /**
+     * Reserves a slot for a new game without blocking
+     * @return true = slot reserved, false = cap reached
+     */
+    public boolean tryReserve() {
+        return slots.tryAcquire();
+    }
+
+    /**
+     * Hands back a reserved slot that was not used to start a game
+     */
+    public void release() {
+        slots.release();
+        notifyListener();
+    }
+
+    /**
+     * Starts a game using a slot previously taken with tryReserve.
+     * The slot is held until the game tells its listeners it is over.
+     * @param game The game to start
+     */
+    public void submit(GameOfNim game) {
+        queuedGames.incrementAndGet();
+        game.addGameListener(finished -> gameFinished());
+
+        try {
+            executor.execute(() -> {
+                queuedGames.decrementAndGet();
+                activeGames.incrementAndGet();
+                game.run(); // Plays until a human has to move, or the game is over
+            });
+        } catch (RejectedExecutionException e) { // Executor has been shut down
+            queuedGames.decrementAndGet();
+            release();
+            throw e;
+        }
+    }
+
+    /**
+     * Runs a step of a game, e.g. the computer's reply to a move, on the executor
+     * @param task The work to run
+     */
+    public void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    /**
+     * Runs a step of a game on the executor after a delay, used for turn deadlines
+     * @param task The work to run
+     * @param delay Time to wait
+     * @param unit Unit of the delay
+     * @return Future which can be used to cancel the task
+     */
+    public ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return timer.schedule(() -> executor.execute(task), delay, unit);
+    }
+
+    /**
+     * Frees the slot of a game that has ended
+     */
+    private void gameFinished() {
+        activeGames.decrementAndGet();
+        completedGames.incrementAndGet();
+        slots.release();
+        notifyListener();
+    }
+
+    /**
+     * Tells the listener a slot is free
+     */
+    private void notifyListener() {
+        Runnable listener = gameFinishedListener;
+
+        if(listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Registers the scheduler with the platform MBean server as nim:type=GameScheduler
+     */
+    public void registerMBean() {
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+
+            if(!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            }
+        } catch (JMException e) {
+            System.out.println("Error registering game scheduler MBean: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the number of games started and not yet finished
+     * @return active games
+     */
+    @Override
+    public int getActiveGames() {
+        return activeGames.get();
+    }
+
+    /**
+     * Returns the number of games submitted but not yet started
+     * @return queued games
+     */
+    @Override
+    public int getQueuedGames() {
+        return queuedGames.get();
+    }
+
+    /**
+     * Returns the number of games that have finished
+     * @return completed games
+     */
+    @Override
+    public long getCompletedGames() {
+        return completedGames.get();
+    }
+
+    /**
+     * Returns the concurrent game cap
+     * @return maximum games
+     */
+    @Override
+    public int getMaxGames() {
+        return maxGames;
+    }
+
+    /**
+     * Stops accepting games and waits for the tasks already handed to the executor to finish
+     * @param timeout Maximum time to wait
+     * @param unit Unit of the timeout
+     * @return true = all games finished
+     * @throws InterruptedException
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        timer.shutdownNow();
+        executor.shutdown();
+        return executor.awaitTermination(timeout, unit);
+    }
+}
@@ -0,0 +1,35 @@
+/**
+ * JMX view of the game scheduler
+ */
+package game;
+
+/**
+ * Management interface for GameScheduler, registered as nim:type=GameScheduler
+ * @author Chris
+ */
+public interface GameSchedulerMBean {
+
+    /**
+     * Returns the number of games started and not yet finished
+     * @return active games
+     */
+    public int getActiveGames();
+
+    /**
+     * Returns the number of games submitted but not yet started
+     * @return queued games
+     */
+    public int getQueuedGames();
+
+    /**
+     * Returns the number of games that have finished
+     * @return completed games
+     */
+    public long getCompletedGames();
+
+    /**
+     * Returns the concurrent game cap
+     * @return maximum games
+     */
+    public int getMaxGames();
+}
@@ -0,0 +1,232 @@
+/**
+ * GameState is a copy of a game in progress, written to the checkpoint so the game can be restored
+ */
+package game;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Immutable snapshot of a game in progress, taken by GameOfNim.snapshot.
+ * Written compactly: heap sizes and moves are shorts and move heaps are bytes - no heap starts
+ * with more than NimVariant.MAX_HEAP marbles and no game has more than NimVariant.MAX_HEAPS heaps.
+ * Computer players are not saved, a restored game builds a new one from the name and difficulty.
+ * @author Chris
+ */
+public final class GameState {
+    private final long gameId;
+    private final int version;
+    private final NimVariant variant;
+    private final int difficulty;
+    private final int[] playerCodes;
+    private final String[] names;
+    private final boolean[] human;
+    private final int firstPlayer;
+    private final int player;
+    private final int[] heaps;
+    private final int[] initialHeaps;
+    private final int[] moves;
+    private final int[] moveHeaps;
+    private final int[] rejectedMoves;
+    private final long startMillis;
+
+    /**
+     * Constructor, the arrays are copied
+     * @param gameId Game's unique id
+     * @param version Game's version when the snapshot was taken
+     * @param variant Rules of the game
+     * @param difficulty EASY or HARD
+     * @param playerCodes Codes of player 0 and 1, -1 for a computer
+     * @param names Names of player 0 and 1
+     * @param human true = the player is human
+     * @param firstPlayer Player who moved first (0 or 1)
+     * @param player Player whose turn it is (0 or 1)
+     * @param heaps Marbles left in each heap
+     * @param initialHeaps Heaps the game started with
+     * @param moves Marbles taken on each turn so far
+     * @param moveHeaps Heap taken from on each turn so far
+     * @param rejectedMoves Illegal moves refused from player 0 and 1
+     * @param startMillis Wall clock time the game started
+     */
+    public GameState(long gameId, int version, NimVariant variant, int difficulty, int[] playerCodes, String[] names,
+            boolean[] human, int firstPlayer, int player, int[] heaps, int[] initialHeaps, int[] moves, int[] moveHeaps,
+            int[] rejectedMoves, long startMillis) {
+        this.gameId = gameId;
+        this.version = version;
+        this.variant = variant;
+        this.difficulty = difficulty;
+        this.playerCodes = playerCodes.clone();
+        this.names = names.clone();
+        this.human = human.clone();
+        this.firstPlayer = firstPlayer;
+        this.player = player;
+        this.heaps = heaps.clone();
+        this.initialHeaps = initialHeaps.clone();
+        this.moves = moves.clone();
+        this.moveHeaps = moveHeaps.clone();
+        this.rejectedMoves = rejectedMoves.clone();
+        this.startMillis = startMillis;
+    }
+
+    /**
+     * Writes the snapshot
+     * @param out Destination
+     * @throws IOException If the snapshot cannot be written
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeLong(gameId);
+        out.writeInt(version);
+        variant.writeTo(out);
+        out.writeByte(difficulty);
+        out.writeByte(firstPlayer);
+        out.writeByte(player);
+        out.writeLong(startMillis);
+
+        for (int t = 0; t < 2; t++) {
+            out.writeInt(playerCodes[t]);
+            out.writeUTF(names[t]);
+            out.writeBoolean(human[t]);
+            out.writeByte(rejectedMoves[t]);
+        }
+
+        out.writeByte(heaps.length);
+        for (int h = 0; h < heaps.length; h++) {
+            out.writeShort(initialHeaps[h]);
+            out.writeShort(heaps[h]);
+        }
+
+        out.writeShort(moves.length);
+        for (int m = 0; m < moves.length; m++) {
+            out.writeShort(moves[m]);
+            out.writeByte(moveHeaps[m]);
+        }
+    }
+
+    /**
+     * Reads a snapshot written by writeTo
+     * @param in Source
+     * @return The snapshot
+     * @throws IOException If the snapshot cannot be read
+     */
+    public static GameState readFrom(DataInput in) throws IOException {
+        long gameId = in.readLong();
+        int version = in.readInt();
+        NimVariant variant = NimVariant.readFrom(in);
+        int difficulty = in.readUnsignedByte();
+        int firstPlayer = in.readUnsignedByte();
+        int player = in.readUnsignedByte();
+        long startMillis = in.readLong();
+        int[] playerCodes = new int[2];
+        String[] names = new String[2];
+        boolean[] human = new boolean[2];
+        int[] rejectedMoves = new int[2];
+        int[] heaps;
+        int[] initialHeaps;
+        int[] moves;
+        int[] moveHeaps;
+
+        for (int t = 0; t < 2; t++) {
+            playerCodes[t] = in.readInt();
+            names[t] = in.readUTF();
+            human[t] = in.readBoolean();
+            rejectedMoves[t] = in.readUnsignedByte();
+        }
+
+        heaps = new int[in.readUnsignedByte()];
+        initialHeaps = new int[heaps.length];
+        for (int h = 0; h < heaps.length; h++) {
+            initialHeaps[h] = in.readUnsignedShort();
+            heaps[h] = in.readUnsignedShort();
+        }
+
+        moves = new int[in.readUnsignedShort()];
+        moveHeaps = new int[moves.length];
+        for (int m = 0; m < moves.length; m++) {
+            moves[m] = in.readUnsignedShort();
+            moveHeaps[m] = in.readUnsignedByte();
+        }
+
+        if (firstPlayer > 1 || player > 1 || heaps.length != variant.getHeapCount()) {
+            throw new IOException("Invalid game state for game " + gameId);
+        }
+
+        return new GameState(gameId, version, variant, difficulty, playerCodes, names, human, firstPlayer, player,
+                heaps, initialHeaps, moves, moveHeaps, rejectedMoves, startMillis);
+    }
+
+    public long getGameId() {
+        return gameId;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public NimVariant getVariant() {
+        return variant;
+    }
+
+    public int getDifficulty() {
+        return difficulty;
+    }
+
+    /**
+     * Returns a player's code
+     * @param t The player (0 or 1)
+     * @return player code, -1 for a computer player
+     */
+    public int getPlayerCode(int t) {
+        return playerCodes[t];
+    }
+
+    public String getName(int t) {
+        return names[t];
+    }
+
+    public boolean isHuman(int t) {
+        return human[t];
+    }
+
+    public int getFirstPlayer() {
+        return firstPlayer;
+    }
+
+    /**
+     * Returns the player whose turn it is
+     * @return 0 or 1
+     */
+    public int getPlayer() {
+        return player;
+    }
+
+    public int[] getHeaps() {
+        return heaps.clone();
+    }
+
+    public int[] getInitialHeaps() {
+        return initialHeaps.clone();
+    }
+
+    public int[] getMoves() {
+        return moves.clone();
+    }
+
+    public int[] getMoveHeaps() {
+        return moveHeaps.clone();
+    }
+
+    public int getRejectedMoves(int t) {
+        return rejectedMoves[t];
+    }
+
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "Game " + gameId + " v" + version + ": " + names[0] + " v " + names[1] + ", heaps " + Arrays.toString(heaps);
+    }
+}
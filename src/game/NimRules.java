@@ -0,0 +1,64 @@
+/**
+ * NimRules holds the rules of the Game of Nim, shared by the game engine and the simulator
+ */
+package game;
+
+import constants.Constants;
+import java.util.Random;
+
+/**
+ * Rules: a bag of marbles, players take turns taking between 1 and half the bag,
+ * the player left with the last marble loses.
+ * @author Chris
+ */
+public final class NimRules {
+    // The bag starts with atleast 5 marbles to give the game the possibility of several moves
+    public static final int MIN_START_MARBLES = 5;
+    // Number of different starting bag sizes for each difficulty
+    public static final int EASY_START_RANGE = 19;
+    public static final int HARD_START_RANGE = 99;
+    // Largest possible starting bag
+    public static final int MAX_START_MARBLES = MIN_START_MARBLES + HARD_START_RANGE - 1;
+
+    private NimRules() {
+        // Static rules only
+    }
+
+    /**
+     * Chooses the number of marbles the game starts with
+     * @param rand Random number generator
+     * @param difficulty Game difficulty - EASY or HARD
+     * @return Starting number of marbles
+     */
+    public static int initialMarbles(Random rand, int difficulty) {
+        return rand.nextInt(difficulty == Constants.EASY ? EASY_START_RANGE : HARD_START_RANGE) + MIN_START_MARBLES;
+    }
+
+    /**
+     * Returns the most marbles that may be taken from the bag
+     * @param marbles The number of marbles in the bag
+     * @return Maximum marbles that can be taken
+     */
+    public static int maxTake(int marbles) {
+        return marbles / 2;
+    }
+
+    /**
+     * Checks a move is legal
+     * @param marbles The number of marbles in the bag
+     * @param taken The number of marbles the player wants to take
+     * @return true = legal move
+     */
+    public static boolean isLegalMove(int marbles, int taken) {
+        return taken >= 1 && taken <= maxTake(marbles);
+    }
+
+    /**
+     * Checks whether the game has finished - the player to move is left with the last marble
+     * @param marbles The number of marbles in the bag
+     * @return true = game over, the player who moved last has won
+     */
+    public static boolean isGameOver(int marbles) {
+        return marbles == 1;
+    }
+}
@@ -0,0 +1,218 @@
+/**
+ * NimSimulator plays large batches of computer v computer games with no lobby, RMI or console players
+ */
+package game;
+
+import constants.Constants;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.IntStream;
+import player.MoveEngine;
+
+/**
+ * Headless bulk simulator used to tune the computer player and check fairness.
+ * Games are split into chunks played in parallel on the common fork/join pool. Each chunk
+ * counts its results into a plain long[] which are added together at the end, so nothing
+ * is allocated or shared while games are being played.
+ * @author Chris
+ */
+public class NimSimulator {
+    // Games played by one fork/join task
+    private static final int CHUNK_SIZE = 1 << 16;
+
+    // Difficulty matchups, indexed by (first player difficulty, second player difficulty)
+    private static final int DIFFICULTIES = Constants.DIFFICULTY_MAX - Constants.DIFFICULTY_MIN + 1;
+    private static final int MATCHUPS = DIFFICULTIES * DIFFICULTIES;
+    private static final int BAG_SIZES = NimRules.MAX_START_MARBLES + 1;
+
+    private final MoveEngine moveEngine = MoveEngine.shared(); // Computer player moves
+
+    /**
+     * Results of a simulation run.
+     * games[m][b] and firstMoverWins[m][b] hold, for matchup m and starting bag size b,
+     * the number of games played and the number won by the player who moved first.
+     */
+    public static class Results {
+        private final long[] games = new long[MATCHUPS * BAG_SIZES];
+        private final long[] firstMoverWins = new long[MATCHUPS * BAG_SIZES];
+
+        /**
+         * Adds another set of results into this one
+         * @param other Results to add
+         */
+        void merge(Results other) {
+            for (int i = 0; i < games.length; i++) {
+                games[i] += other.games[i];
+                firstMoverWins[i] += other.firstMoverWins[i];
+            }
+        }
+
+        /**
+         * Returns the number of games played for a matchup and starting bag size
+         * @param firstDifficulty Difficulty of the player who moved first
+         * @param secondDifficulty Difficulty of the other player
+         * @param bagSize Starting number of marbles
+         * @return games played
+         */
+        public long getGames(int firstDifficulty, int secondDifficulty, int bagSize) {
+            return games[index(firstDifficulty, secondDifficulty, bagSize)];
+        }
+
+        /**
+         * Returns the number of games won by the first mover for a matchup and starting bag size
+         * @param firstDifficulty Difficulty of the player who moved first
+         * @param secondDifficulty Difficulty of the other player
+         * @param bagSize Starting number of marbles
+         * @return games won by the player who moved first
+         */
+        public long getFirstMoverWins(int firstDifficulty, int secondDifficulty, int bagSize) {
+            return firstMoverWins[index(firstDifficulty, secondDifficulty, bagSize)];
+        }
+
+        /**
+         * Returns the total number of games played
+         * @return games played
+         */
+        public long getTotalGames() {
+            long total = 0;
+
+            for (long count : games) {
+                total += count;
+            }
+            return total;
+        }
+    }
+
+    /**
+     * Works out the results slot for a matchup and starting bag size
+     */
+    private static int index(int firstDifficulty, int secondDifficulty, int bagSize) {
+        return ((firstDifficulty - Constants.DIFFICULTY_MIN) * DIFFICULTIES
+                + (secondDifficulty - Constants.DIFFICULTY_MIN)) * BAG_SIZES + bagSize;
+    }
+
+    /**
+     * Plays a number of games in parallel.
+     * Each game picks a random difficulty for both players and, as in the lobby, the first
+     * player's difficulty decides the starting bag size. The first mover is decided by coin toss.
+     * @param totalGames Number of games to play
+     * @return The combined results
+     */
+    public Results simulate(long totalGames) {
+        int chunks = (int) ((totalGames + CHUNK_SIZE - 1) / CHUNK_SIZE);
+
+        return IntStream.range(0, chunks)
+                .parallel()
+                .mapToObj(chunk -> playGames(Math.min(CHUNK_SIZE, totalGames - (long) chunk * CHUNK_SIZE)))
+                .collect(Results::new, Results::merge, Results::merge);
+    }
+
+    /**
+     * Plays a chunk of games on the current thread
+     * @param count Number of games to play
+     * @return The chunk's results
+     */
+    private Results playGames(long count) {
+        ThreadLocalRandom rand = ThreadLocalRandom.current();
+        Results results = new Results();
+        int[] difficulty = new int[2]; // Difficulty of player 0 and 1
+        int first;
+        int marbles;
+        int startMarbles;
+        int player;
+        int slot;
+
+        for (long game = 0; game < count; game++) {
+            difficulty[0] = rand.nextInt(DIFFICULTIES) + Constants.DIFFICULTY_MIN;
+            difficulty[1] = rand.nextInt(DIFFICULTIES) + Constants.DIFFICULTY_MIN;
+            first = rand.nextInt(2); // Coin toss
+            startMarbles = NimRules.initialMarbles(rand, difficulty[0]);
+
+            marbles = startMarbles;
+            player = first;
+
+            // Same loop as GameOfNim - the player who leaves the last marble wins
+            while (true) {
+                marbles -= moveEngine.getMarbles(marbles, difficulty[player]);
+
+                if (NimRules.isGameOver(marbles)) {
+                    break;
+                }
+
+                player = 1 - player;
+            }
+
+            slot = index(difficulty[first], difficulty[1 - first], startMarbles);
+            results.games[slot]++;
+
+            if (player == first) {
+                results.firstMoverWins[slot]++;
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Prints win rates by difficulty matchup, first mover and starting bag size
+     * @param results Results to print
+     */
+    public static void printResults(Results results) {
+        long games;
+        long wins;
+
+        System.out.println("Games played: " + results.getTotalGames());
+
+        System.out.println("\nFirst mover win rate by difficulty (first v second):");
+        for (int first = Constants.DIFFICULTY_MIN; first <= Constants.DIFFICULTY_MAX; first++) {
+            for (int second = Constants.DIFFICULTY_MIN; second <= Constants.DIFFICULTY_MAX; second++) {
+                games = 0;
+                wins = 0;
+
+                for (int bag = 0; bag < BAG_SIZES; bag++) {
+                    games += results.getGames(first, second, bag);
+                    wins += results.getFirstMoverWins(first, second, bag);
+                }
+
+                System.out.println(difficultyName(first) + " v " + difficultyName(second) + ": " + rate(wins, games)
+                        + " (" + games + " games)");
+            }
+        }
+
+        System.out.println("\nFirst mover win rate by starting bag size (all matchups):");
+        for (int bag = NimRules.MIN_START_MARBLES; bag < BAG_SIZES; bag++) {
+            games = 0;
+            wins = 0;
+
+            for (int first = Constants.DIFFICULTY_MIN; first <= Constants.DIFFICULTY_MAX; first++) {
+                for (int second = Constants.DIFFICULTY_MIN; second <= Constants.DIFFICULTY_MAX; second++) {
+                    games += results.getGames(first, second, bag);
+                    wins += results.getFirstMoverWins(first, second, bag);
+                }
+            }
+
+            System.out.println(bag + " marbles: " + rate(wins, games) + " (" + games + " games)");
+        }
+    }
+
+    private static String difficultyName(int difficulty) {
+        return difficulty == Constants.EASY ? "Easy" : "Hard";
+    }
+
+    private static String rate(long wins, long games) {
+        return games == 0 ? "-" : String.format("%.2f%%", 100.0 * wins / games);
+    }
+
+    /**
+     * Runs a simulation from the command line
+     * @param args Optional number of games to play, default 10,000,000
+     */
+    public static void main(String[] args) {
+        long games = args.length > 0 ? Long.parseLong(args[0]) : 10000000L;
+        long start = System.nanoTime();
+        Results results = new NimSimulator().simulate(games);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        printResults(results);
+        System.out.println(String.format("\n%d games in %.2f seconds (%.0f games per minute)", games, seconds, games / seconds * 60));
+    }
+}
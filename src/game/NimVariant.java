@@ -0,0 +1,731 @@
+/**
+ * NimVariant is a pluggable rule set for the game engine - the classic single bag game, multi-heap Nim and subtraction games
+ */
+package game;
+
+import constants.Constants;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Rules of a game played on one or more heaps of marbles held in an int[].
+ * On their turn a player takes marbles from a single heap. Each variant decides how many may be
+ * taken from a heap, and whether the player who takes the last marble wins (normal play) or
+ * loses (misere play). The game is over when no marbles can be taken.
+ * Validation and the optimal strategy work on the heaps in place and allocate nothing, a move
+ * is returned packed into an int - see move, heapOf and takenOf.
+ * The optimal strategy uses the Sprague-Grundy value of each heap: the player to move wins
+ * if the XOR of the heaps' values (the nim-sum) is not zero.
+ * Variants are immutable and shared by every game. They are sent to clients in the writeTo form,
+ * so the strategy tables never travel and the classic variant is still the shared instance.
+ * @author Chris
+ */
+public abstract class NimVariant implements Serializable {
+    // System properties used to choose the variant hosted by the lobby
+    public static final String VARIANT_PROPERTY = "nim.variant";                   // "classic" (default), "nim" or "subtraction"
+    public static final String HEAPS_PROPERTY = "nim.variant.heaps";               // Number of heaps
+    public static final String MISERE_PROPERTY = "nim.variant.misere";             // true = taking the last marble loses
+    public static final String SUBTRACTION_PROPERTY = "nim.variant.subtraction";   // Marbles that may be taken, e.g. "1,3,4"
+
+    public static final int DEFAULT_HEAPS = 3;  // Heaps in a nim or subtraction game, classic defaults to a single bag
+    public static final int MAX_HEAPS = 16;
+    public static final int MAX_TAKES = 255;    // Largest subtraction set, the count is written as a byte
+    public static final String DEFAULT_SUBTRACTION = "1,2,3";
+
+    // Largest starting heap of a multi-heap game for each difficulty
+    public static final int EASY_MAX_HEAP = 9;
+    public static final int HARD_MAX_HEAP = 31;
+    // Largest heap any game starts with, heaps only get smaller so the strategy tables stop here
+    public static final int MAX_HEAP = Math.max(NimRules.MAX_START_MARBLES, HARD_MAX_HEAP);
+
+    public static final int NO_MOVE = -1; // No move found
+
+    // Rule codes used when a variant is written out
+    private static final int CLASSIC_RULE = 0;
+    private static final int NIM_RULE = 1;
+    private static final int SUBTRACTION_RULE = 2;
+
+    private static final NimVariant CLASSIC = new Classic(1, false);
+    private static final long serialVersionUID = 1L;
+
+    protected final int heapCount;  // Heaps a game starts with
+    protected final boolean misere; // true = the player taking the last marble loses
+    private boolean[] misereWins;   // Single heap misere play, misereWins[heap] = true when the player to move wins
+
+    /**
+     * Constructor
+     * @param heapCount Heaps a game starts with
+     * @param misere true = misere play, false = normal play
+     */
+    protected NimVariant(int heapCount, boolean misere) {
+        if (heapCount < 1 || heapCount > MAX_HEAPS) {
+            throw new IllegalArgumentException("Heaps must be between 1 and " + MAX_HEAPS + ": " + heapCount);
+        }
+
+        this.heapCount = heapCount;
+        this.misere = misere;
+    }
+
+    /**
+     * The original game - a single bag, take between 1 and half the bag, the player left with the last marble loses
+     * @return The classic variant
+     */
+    public static NimVariant classic() {
+        return CLASSIC;
+    }
+
+    /**
+     * The take 1 to half a heap rule on any number of heaps
+     * @param heaps Number of heaps
+     * @param misere true = misere play, only supported on a single heap
+     * @return The variant
+     */
+    public static NimVariant classic(int heaps, boolean misere) {
+        return heaps == 1 && !misere ? CLASSIC : new Classic(heaps, misere);
+    }
+
+    /**
+     * Multi-heap Nim, any number of marbles may be taken from a heap
+     * @param heaps Number of heaps
+     * @param misere true = misere play
+     * @return The variant
+     */
+    public static NimVariant nim(int heaps, boolean misere) {
+        return new AnyAmount(heaps, misere);
+    }
+
+    /**
+     * Subtraction game, the number of marbles taken must come from a fixed set
+     * @param takes Marbles that may be taken
+     * @param heaps Number of heaps
+     * @param misere true = misere play, only supported on a single heap
+     * @return The variant
+     */
+    public static NimVariant subtraction(int[] takes, int heaps, boolean misere) {
+        return new Subtraction(takes, heaps, misere);
+    }
+
+    /**
+     * Builds the variant described by the nim.variant, nim.variant.heaps, nim.variant.misere and
+     * nim.variant.subtraction system properties
+     * @return The variant
+     */
+    public static NimVariant fromSystemProperties() {
+        String rule = System.getProperty(VARIANT_PROPERTY, "classic");
+        boolean misere = Boolean.getBoolean(MISERE_PROPERTY);
+
+        if ("nim".equalsIgnoreCase(rule)) {
+            return nim(Integer.getInteger(HEAPS_PROPERTY, DEFAULT_HEAPS), misere);
+        }
+
+        if ("subtraction".equalsIgnoreCase(rule)) {
+            String[] values = System.getProperty(SUBTRACTION_PROPERTY, DEFAULT_SUBTRACTION).split(",");
+            int[] takes = new int[values.length];
+
+            for (int t = 0; t < values.length; t++) {
+                takes[t] = Integer.parseInt(values[t].trim());
+            }
+            return subtraction(takes, Integer.getInteger(HEAPS_PROPERTY, DEFAULT_HEAPS), misere);
+        }
+
+        if (!"classic".equalsIgnoreCase(rule)) {
+            throw new IllegalArgumentException("Unknown " + VARIANT_PROPERTY + ": " + rule);
+        }
+        return classic(Integer.getInteger(HEAPS_PROPERTY, 1), misere);
+    }
+
+    /**
+     * Writes the variant, so a game in progress can be restored with the same rules
+     * @param out Destination
+     * @throws IOException If the variant cannot be written
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeByte(this instanceof AnyAmount ? NIM_RULE : this instanceof Subtraction ? SUBTRACTION_RULE : CLASSIC_RULE);
+        out.writeByte(heapCount);
+        out.writeBoolean(misere);
+
+        if (this instanceof Subtraction) {
+            int[] takes = ((Subtraction) this).takes;
+
+            out.writeByte(takes.length);
+            for (int taken : takes) {
+                out.writeShort(taken);
+            }
+        }
+    }
+
+    /**
+     * Reads a variant written by writeTo
+     * @param in Source
+     * @return The variant, the shared classic variant for the original game
+     * @throws IOException If the variant cannot be read or is not valid
+     */
+    public static NimVariant readFrom(DataInput in) throws IOException {
+        int rule = in.readUnsignedByte();
+        int heaps = in.readUnsignedByte();
+        boolean misere = in.readBoolean();
+
+        try {
+            switch (rule) {
+                case CLASSIC_RULE:
+                    return classic(heaps, misere);
+                case NIM_RULE:
+                    return nim(heaps, misere);
+                case SUBTRACTION_RULE:
+                    int[] takes = new int[in.readUnsignedByte()];
+
+                    for (int t = 0; t < takes.length; t++) {
+                        takes[t] = in.readUnsignedShort();
+                    }
+                    return subtraction(takes, heaps, misere);
+                default:
+                    throw new IOException("Unknown variant rule: " + rule);
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid variant: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Serializes the variant as its writeTo form
+     * @return Stand in written in place of the variant
+     * @throws ObjectStreamException Never, the variant is written to memory
+     */
+    protected final Object writeReplace() throws ObjectStreamException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try {
+            writeTo(new DataOutputStream(bytes));
+        } catch (IOException e) {
+            throw new InvalidObjectException(e.getMessage());
+        }
+        return new SerializedForm(bytes.toByteArray());
+    }
+
+    /**
+     * A variant as it is serialized, read back with readFrom
+     */
+    private static final class SerializedForm implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] rules;
+
+        SerializedForm(byte[] rules) {
+            this.rules = rules;
+        }
+
+        private Object readResolve() throws ObjectStreamException {
+            try {
+                return readFrom(new DataInputStream(new ByteArrayInputStream(rules)));
+            } catch (IOException e) {
+                throw new InvalidObjectException(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Packs a move into an int
+     * @param heap Index of the heap
+     * @param taken Marbles taken, less than 2^24
+     * @return The move
+     */
+    public static int move(int heap, int taken) {
+        return heap << 24 | taken;
+    }
+
+    /**
+     * Returns the heap a move takes from
+     * @param move Packed move
+     * @return heap index
+     */
+    public static int heapOf(int move) {
+        return move >>> 24;
+    }
+
+    /**
+     * Returns the marbles a move takes
+     * @param move Packed move
+     * @return marbles taken
+     */
+    public static int takenOf(int move) {
+        return move & 0xFFFFFF;
+    }
+
+    /**
+     * Returns the number of different amounts that may be taken from a heap
+     * @param heapSize Marbles in the heap
+     * @return legal takes, 0 if the heap cannot be taken from
+     */
+    protected abstract int legalTakes(int heapSize);
+
+    /**
+     * Returns one of the amounts that may be taken from a heap
+     * @param heapSize Marbles in the heap
+     * @param index 0 to legalTakes(heapSize) - 1, smallest first
+     * @return marbles taken
+     */
+    protected abstract int take(int heapSize, int index);
+
+    /**
+     * Checks an amount may be taken from a heap
+     * @param heapSize Marbles in the heap
+     * @param taken Marbles to take
+     * @return true = legal
+     */
+    protected abstract boolean canTake(int heapSize, int taken);
+
+    /**
+     * Returns the Sprague-Grundy value of a heap in normal play
+     * @param heapSize Marbles in the heap
+     * @return Grundy value, 0 when the player to move loses on this heap alone
+     */
+    protected abstract int grundy(int heapSize);
+
+    /**
+     * Returns the name of the rule, e.g. "Nim"
+     * @return name
+     */
+    protected abstract String ruleName();
+
+    /**
+     * Works out the outcome of every single heap position in misere play. Called by the
+     * constructors of variants which only support misere play on a single heap.
+     */
+    protected final void buildMisereTable() {
+        misereWins = new boolean[MAX_HEAP + 1];
+
+        for (int heapSize = 0; heapSize <= MAX_HEAP; heapSize++) {
+            boolean wins = legalTakes(heapSize) == 0; // Nothing left to take - the opponent took the last marble
+
+            for (int index = 0; !wins && index < legalTakes(heapSize); index++) {
+                wins = !misereWins[heapSize - take(heapSize, index)];
+            }
+            misereWins[heapSize] = wins;
+        }
+    }
+
+    /**
+     * Chooses the starting heaps
+     * @param rand Random number generator
+     * @param difficulty EASY or HARD, hard games start with larger heaps
+     * @return The heaps
+     */
+    public int[] initialHeaps(Random rand, int difficulty) {
+        int[] heaps = new int[heapCount];
+        int maxHeap = difficulty == Constants.EASY ? EASY_MAX_HEAP : HARD_MAX_HEAP;
+
+        do {
+            for (int h = 0; h < heapCount; h++) {
+                heaps[h] = rand.nextInt(maxHeap) + 1;
+            }
+        } while (isGameOver(heaps)); // Atleast one move must be possible
+
+        return heaps;
+    }
+
+    /**
+     * Checks a move is legal
+     * @param heaps The heaps
+     * @param heap Index of the heap to take from
+     * @param taken The number of marbles to take
+     * @return true = legal move
+     */
+    public boolean isLegalMove(int[] heaps, int heap, int taken) {
+        return heap >= 0 && heap < heaps.length && canTake(heaps[heap], taken);
+    }
+
+    /**
+     * Lists the amounts that may be taken from a heap, e.g. to show a player their choices
+     * @param heapSize Marbles in the heap
+     * @return marbles that may be taken, smallest first, empty if the heap cannot be taken from
+     */
+    public int[] takes(int heapSize) {
+        int[] takes = new int[legalTakes(heapSize)];
+
+        for (int index = 0; index < takes.length; index++) {
+            takes[index] = take(heapSize, index);
+        }
+        return takes;
+    }
+
+    /**
+     * Checks whether the game has finished - no marbles can be taken from any heap
+     * @param heaps The heaps
+     * @return true = game over
+     */
+    public boolean isGameOver(int[] heaps) {
+        for (int heapSize : heaps) {
+            if (legalTakes(heapSize) > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns who wins once the game is over
+     * @return true = the player who moved last wins (normal play), false = they lose (misere play)
+     */
+    public boolean lastMoverWins() {
+        return !misere;
+    }
+
+    /**
+     * Returns whether this is the original single bag game
+     * @return true = classic rules, normal play, one heap
+     */
+    public boolean isClassic() {
+        return this == CLASSIC;
+    }
+
+    /**
+     * Returns the number of heaps a game starts with
+     * @return heaps
+     */
+    public int getHeapCount() {
+        return heapCount;
+    }
+
+    /**
+     * Returns whether the player taking the last marble loses
+     * @return true = misere play
+     */
+    public boolean isMisere() {
+        return misere;
+    }
+
+    /**
+     * Finds a move which leaves the opponent in a losing position
+     * @param heaps The heaps, unchanged
+     * @return The packed move, NO_MOVE if every move loses against perfect play
+     */
+    public int winningMove(int[] heaps) {
+        return misere ? misereMove(heaps) : normalMove(heaps);
+    }
+
+    /**
+     * Chooses a random legal move
+     * @param heaps The heaps, unchanged
+     * @param rand Random number generator
+     * @return The packed move, NO_MOVE if the game is over
+     */
+    public int randomMove(int[] heaps, Random rand) {
+        int start = rand.nextInt(heaps.length); // Heap to try first
+
+        for (int h = 0; h < heaps.length; h++) {
+            int heap = (start + h) % heaps.length;
+            int takes = legalTakes(heaps[heap]);
+
+            if (takes > 0) {
+                return move(heap, take(heaps[heap], rand.nextInt(takes)));
+            }
+        }
+        return NO_MOVE;
+    }
+
+    /**
+     * Normal play strategy - move to a position with a nim-sum of zero
+     * @param heaps The heaps
+     * @return The packed move, NO_MOVE if the nim-sum is already zero
+     */
+    protected int normalMove(int[] heaps) {
+        int nimSum = 0;
+
+        for (int heapSize : heaps) {
+            nimSum ^= grundy(heapSize);
+        }
+
+        if (nimSum == 0) {
+            return NO_MOVE;
+        }
+
+        for (int heap = 0; heap < heaps.length; heap++) {
+            int value = grundy(heaps[heap]);
+            int target = value ^ nimSum;
+
+            if (target < value) { // A heap with a higher value can always be moved to any lower value
+                int taken = takeTo(heaps[heap], target);
+
+                if (taken != NO_MOVE) {
+                    return move(heap, taken);
+                }
+            }
+        }
+        return NO_MOVE;
+    }
+
+    /**
+     * Finds how many marbles to take from a heap to leave a heap with the given Grundy value
+     * @param heapSize Marbles in the heap
+     * @param target Grundy value wanted
+     * @return marbles to take, NO_MOVE if there is no such move
+     */
+    protected int takeTo(int heapSize, int target) {
+        for (int index = 0; index < legalTakes(heapSize); index++) {
+            int taken = take(heapSize, index);
+
+            if (grundy(heapSize - taken) == target) {
+                return taken;
+            }
+        }
+        return NO_MOVE;
+    }
+
+    /**
+     * Misere play strategy, using the outcome table on a single heap
+     * @param heaps The heaps
+     * @return The packed move, NO_MOVE if every move loses
+     */
+    protected int misereMove(int[] heaps) {
+        int heapSize = heaps[0];
+
+        for (int index = 0; index < legalTakes(heapSize); index++) {
+            int taken = take(heapSize, index);
+
+            if (!misereWins[heapSize - taken]) {
+                return move(0, taken);
+            }
+        }
+        return NO_MOVE;
+    }
+
+    /**
+     * Describes the variant, e.g. "Misere Nim, 3 heaps"
+     * @return description shown to players
+     */
+    @Override
+    public String toString() {
+        return (misere ? "Misere " : "") + ruleName() + (heapCount > 1 ? ", " + heapCount + " heaps" : "");
+    }
+
+    /**
+     * Rejects misere play on more than one heap for rules without a multi-heap misere strategy
+     */
+    void requireSingleMisereHeap() {
+        if (misere && heapCount > 1) {
+            throw new IllegalArgumentException("Misere play is only supported on a single heap for " + ruleName());
+        }
+    }
+
+    /**
+     * Original rule - take between 1 and half the heap. A heap of one can not be taken from,
+     * so in normal play the player left with the last marble loses.
+     * Grundy values: g(2n) = n, g(2n + 1) = g(n), so heaps of 2^k - 1 are losing.
+     */
+    private static final class Classic extends NimVariant {
+        private static final long serialVersionUID = 1L; // Written through SerializedForm, never directly
+
+        Classic(int heapCount, boolean misere) {
+            super(heapCount, misere);
+            requireSingleMisereHeap();
+
+            if (misere) {
+                buildMisereTable();
+            }
+        }
+
+        @Override
+        public int[] initialHeaps(Random rand, int difficulty) {
+            if (heapCount == 1) { // The original game
+                return new int[] {NimRules.initialMarbles(rand, difficulty)};
+            }
+            return super.initialHeaps(rand, difficulty);
+        }
+
+        @Override
+        protected int legalTakes(int heapSize) {
+            return NimRules.maxTake(heapSize);
+        }
+
+        @Override
+        protected int take(int heapSize, int index) {
+            return index + 1;
+        }
+
+        @Override
+        protected boolean canTake(int heapSize, int taken) {
+            return NimRules.isLegalMove(heapSize, taken);
+        }
+
+        @Override
+        protected int grundy(int heapSize) {
+            while ((heapSize & 1) == 1) { // g(2n + 1) = g(n)
+                heapSize >>= 1;
+            }
+            return heapSize >> 1;
+        }
+
+        @Override
+        protected String ruleName() {
+            return "Classic Nim";
+        }
+    }
+
+    /**
+     * Nim - take any number of marbles from one heap. The Grundy value of a heap is its size.
+     * Misere Nim is played as normal Nim until the move would leave no heap bigger than one,
+     * then the player leaves an odd number of heaps of one.
+     */
+    private static final class AnyAmount extends NimVariant {
+        private static final long serialVersionUID = 1L;
+
+        AnyAmount(int heapCount, boolean misere) {
+            super(heapCount, misere);
+        }
+
+        @Override
+        protected int legalTakes(int heapSize) {
+            return heapSize;
+        }
+
+        @Override
+        protected int take(int heapSize, int index) {
+            return index + 1;
+        }
+
+        @Override
+        protected boolean canTake(int heapSize, int taken) {
+            return taken >= 1 && taken <= heapSize;
+        }
+
+        @Override
+        protected int grundy(int heapSize) {
+            return heapSize;
+        }
+
+        @Override
+        protected int takeTo(int heapSize, int target) {
+            return heapSize - target;
+        }
+
+        @Override
+        protected int misereMove(int[] heaps) {
+            int bigHeap = -1; // A heap of more than one marble
+            int bigHeaps = 0;
+            int ones = 0;     // Heaps of exactly one marble
+            int oneHeap = -1;
+
+            for (int heap = 0; heap < heaps.length; heap++) {
+                if (heaps[heap] > 1) {
+                    bigHeaps++;
+                    bigHeap = heap;
+                }
+                else if (heaps[heap] == 1) {
+                    ones++;
+                    oneHeap = heap;
+                }
+            }
+
+            if (bigHeaps == 0) { // Only heaps of one left, leave an odd number of them
+                return ones % 2 == 0 && ones > 0 ? move(oneHeap, 1) : NO_MOVE;
+            }
+
+            if (bigHeaps == 1) { // Empty the big heap or leave one, whichever leaves an odd number of ones
+                return move(bigHeap, ones % 2 == 1 ? heaps[bigHeap] : heaps[bigHeap] - 1);
+            }
+
+            return normalMove(heaps);
+        }
+
+        @Override
+        protected String ruleName() {
+            return "Nim";
+        }
+    }
+
+    /**
+     * Subtraction game - the number of marbles taken must be in a fixed set.
+     * Grundy values are worked out once for every heap size up to MAX_HEAP.
+     */
+    private static final class Subtraction extends NimVariant {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] takes;   // Marbles that may be taken, ascending
+        private final int[] grundy;  // grundy[heapSize]
+
+        Subtraction(int[] takes, int heapCount, boolean misere) {
+            super(heapCount, misere);
+            requireSingleMisereHeap();
+
+            this.takes = Arrays.stream(takes).distinct().sorted().toArray();
+
+            if (this.takes.length == 0 || this.takes[0] < 1) {
+                throw new IllegalArgumentException("Subtraction set must hold positive numbers: " + Arrays.toString(takes));
+            }
+
+            if (this.takes.length > MAX_TAKES || this.takes[this.takes.length - 1] > MAX_HEAP) {
+                throw new IllegalArgumentException("Subtraction set must hold atmost " + MAX_TAKES + " numbers, each atmost " 
+                        + MAX_HEAP + ": " + Arrays.toString(takes));
+            }
+
+            if (this.takes[0] > EASY_MAX_HEAP) { // Otherwise an easy game could never start with a move to make
+                throw new IllegalArgumentException("Smallest take must be atmost " + EASY_MAX_HEAP + ": " + Arrays.toString(takes));
+            }
+
+            grundy = new int[MAX_HEAP + 1];
+            boolean[] seen = new boolean[this.takes.length + 1]; // A heap has atmost takes.length options
+
+            for (int heapSize = 1; heapSize <= MAX_HEAP; heapSize++) {
+                int value = 0;
+
+                Arrays.fill(seen, false);
+                for (int index = 0; index < legalTakes(heapSize); index++) {
+                    int option = grundy[heapSize - this.takes[index]];
+
+                    if (option < seen.length) {
+                        seen[option] = true;
+                    }
+                }
+
+                while (seen[value]) { // Minimum excluded value
+                    value++;
+                }
+                grundy[heapSize] = value;
+            }
+
+            if (misere) {
+                buildMisereTable();
+            }
+        }
+
+        @Override
+        protected int legalTakes(int heapSize) {
+            int count = 0;
+
+            while (count < takes.length && takes[count] <= heapSize) {
+                count++;
+            }
+            return count;
+        }
+
+        @Override
+        protected int take(int heapSize, int index) {
+            return takes[index];
+        }
+
+        @Override
+        protected boolean canTake(int heapSize, int taken) {
+            return taken <= heapSize && Arrays.binarySearch(takes, taken) >= 0;
+        }
+
+        @Override
+        protected int grundy(int heapSize) {
+            return grundy[heapSize];
+        }
+
+        @Override
+        protected String ruleName() {
+            return "Subtraction game " + Arrays.toString(takes);
+        }
+    }
+}
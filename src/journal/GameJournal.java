@@ -0,0 +1,233 @@
+/**
+ * GameJournal appends the result of every finished game to a memory-mapped file
+ */
+package journal;
+
+import game.GameOfNim;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append only journal of game results.
+ * Finishing games only queue their record - a single writer thread takes everything queued,
+ * copies it into the memory-mapped file and forces the batch to disk once, so the game threads
+ * never wait for the disk and one sync covers however many games ended meanwhile.
+ * The file is mapped a chunk at a time and grows as chunks fill.
+ * @author Chris
+ */
+public class GameJournal implements GameOfNim.GameListener {
+    // System properties used to configure the journal
+    public static final String FILE_PROPERTY = "nim.journal.file";   // Journal file, "none" to turn the journal off
+    public static final String QUEUE_PROPERTY = "nim.journal.queue"; // Records waiting to be written
+    
+    public static final String DEFAULT_FILE = "nim-journal.dat";
+    public static final int DEFAULT_QUEUE = 65536;
+    public static final int RECORDS_PER_CHUNK = 1 << 16; // 16MB of records mapped at a time
+    
+    static final long CHUNK_SIZE = (long) RECORDS_PER_CHUNK * GameRecord.SIZE;
+    
+    private final Path file;
+    private final FileChannel channel;
+    private final ArrayBlockingQueue<GameRecord> queue; // Records waiting for the writer thread
+    private final Thread writer;
+    
+    private MappedByteBuffer chunk;   // Chunk being written, writer thread only
+    private long chunkStart;          // File offset of the chunk
+    private long nextRecord;          // Index of the next record to write
+    
+    private final AtomicLong written = new AtomicLong();  // Records written
+    private final AtomicLong dropped = new AtomicLong();  // Records lost because the queue was full
+    private final AtomicLong commits = new AtomicLong();  // Batches forced to disk
+    private volatile boolean closed;
+    
+    /**
+     * Opens the journal, appending after any records already in the file
+     * @param file Journal file
+     * @param queueSize Records allowed to wait for the writer thread
+     * @throws IOException If the file cannot be opened
+     */
+    public GameJournal(Path file, int queueSize) throws IOException {
+        this.file = file;
+        queue = new ArrayBlockingQueue<>(queueSize);
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        nextRecord = JournalReader.countRecords(channel);
+        mapChunk(nextRecord);
+        
+        writer = new Thread(this::writeRecords, "Nim journal writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+    
+    /**
+     * Opens the journal named by the nim.journal.file system property
+     * @return The journal, null if it is turned off or cannot be opened
+     */
+    public static GameJournal fromSystemProperties() {
+        String name = System.getProperty(FILE_PROPERTY, DEFAULT_FILE);
+        
+        if ("none".equalsIgnoreCase(name)) {
+            return null;
+        }
+        
+        try {
+            GameJournal journal = new GameJournal(Paths.get(name), Integer.getInteger(QUEUE_PROPERTY, DEFAULT_QUEUE));
+            
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> { // Write whatever is still queued
+                try {
+                    journal.close();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+            return journal;
+        } catch (IOException e) {
+            System.out.println("Error opening game journal " + name + ": " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Records a finished game, called on the game's thread. Never blocks.
+     * @param game The finished game
+     */
+    @Override
+    public void gameOver(GameOfNim game) {
+        append(GameRecord.of(game));
+    }
+    
+    /**
+     * Queues a record for the writer thread
+     * @param record The record
+     * @return true = queued, false = dropped because the writer has fallen behind or the journal is closed
+     */
+    public boolean append(GameRecord record) {
+        if (closed || !queue.offer(record)) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Writer thread - takes every queued record, writes them and forces the batch to disk
+     */
+    private void writeRecords() {
+        List<GameRecord> batch = new ArrayList<>();
+        GameRecord first;
+        
+        try {
+            while (!closed || !queue.isEmpty()) {
+                first = queue.poll(100, TimeUnit.MILLISECONDS);
+                
+                if (first == null) {
+                    continue;
+                }
+                
+                batch.add(first);
+                queue.drainTo(batch);
+                
+                for (GameRecord record : batch) {
+                    write(record);
+                }
+                
+                chunk.force(); // Group commit
+                commits.incrementAndGet();
+                written.addAndGet(batch.size());
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            Logger.getLogger(GameJournal.class.getName()).log(Level.SEVERE, null, e);
+            System.out.println("Error writing game journal, journal stopped: " + e.getMessage());
+            closed = true;
+        }
+    }
+    
+    /**
+     * Writes a record at the end of the journal, mapping the next chunk if this one is full
+     * @param record The record
+     * @throws IOException If the next chunk cannot be mapped
+     */
+    private void write(GameRecord record) throws IOException {
+        long offset = nextRecord * GameRecord.SIZE - chunkStart;
+        
+        if (offset >= CHUNK_SIZE) {
+            chunk.force(); // Finish with the full chunk before moving on
+            mapChunk(nextRecord);
+            offset = 0;
+        }
+        
+        chunk.position((int) offset);
+        record.writeTo(chunk);
+        nextRecord++;
+    }
+    
+    /**
+     * Maps the chunk holding a record, growing the file if needed
+     * @param record Index of the record
+     * @throws IOException If the chunk cannot be mapped
+     */
+    private void mapChunk(long record) throws IOException {
+        chunkStart = record / RECORDS_PER_CHUNK * CHUNK_SIZE;
+        chunk = channel.map(FileChannel.MapMode.READ_WRITE, chunkStart, CHUNK_SIZE);
+    }
+    
+    /**
+     * Returns the journal file
+     * @return path
+     */
+    public Path getFile() {
+        return file;
+    }
+    
+    /**
+     * Returns the number of records written by this journal
+     * @return records written
+     */
+    public long getWritten() {
+        return written.get();
+    }
+    
+    /**
+     * Returns the number of records dropped because the writer had fallen behind
+     * @return records dropped
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+    
+    /**
+     * Returns the number of batches forced to disk
+     * @return group commits
+     */
+    public long getCommits() {
+        return commits.get();
+    }
+    
+    /**
+     * Writes everything queued, then closes the file
+     * @throws InterruptedException
+     */
+    public void close() throws InterruptedException {
+        closed = true;
+        writer.join();
+        
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("Error closing game journal: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/**
+ * GameRecord is one finished game as held in the game result journal
+ */
+package journal;
+
+import game.GameOfNim;
+import java.nio.ByteBuffer;
+
+/**
+ * Immutable result of a finished game, stored as a fixed size binary record.
+ * Layout, big endian:
+ *   0 int magic, 4 long start millis, 12 long end millis, 20 int player 0 code, 24 int player 1 code,
+ *   28 byte difficulty, 29 byte first player, 30 byte winner, 31 byte flags,
+ *   32 short initial marbles, 34 short move count, 36 one unsigned byte per move.
+ * Games with more moves than fit, or a move over 255 marbles, keep their first moves and are flagged truncated.
+ * @author Chris
+ */
+public class GameRecord {
+    public static final int SIZE = 256;            // Bytes per record
+    public static final int MAGIC = 0x4E494D31;    // "NIM1", marks a written record
+    public static final int MAX_MOVES = SIZE - 36; // Moves held in a record
+    
+    // Flag bits
+    public static final int FORFEIT = 1;    // Player ran out of time or left
+    public static final int FAILED = 2;     // Player could not be reached
+    public static final int TRUNCATED = 4;  // Not every move is held
+    public static final int VARIANT = 8;    // Not the classic single bag game - initial marbles is the total of 
+                                            // all the heaps and only the marbles taken on each turn are held
+    
+    private final long startMillis;
+    private final long endMillis;
+    private final int[] playerCodes;
+    private final int difficulty;
+    private final int firstPlayer;
+    private final int winner;
+    private final int flags;
+    private final int initialMarbles;
+    private final int[] moves;
+    
+    /**
+     * Constructor
+     * @param startMillis Wall clock time the game started
+     * @param endMillis Wall clock time the game ended
+     * @param playerCodes Codes of player 0 and 1, -1 for a computer
+     * @param difficulty EASY or HARD
+     * @param firstPlayer Player who moved first (0 or 1)
+     * @param winner Winning player (0 or 1)
+     * @param flags FORFEIT, FAILED and TRUNCATED bits
+     * @param initialMarbles Marbles the game started with
+     * @param moves Marbles taken on each turn
+     */
+    public GameRecord(long startMillis, long endMillis, int[] playerCodes, int difficulty, int firstPlayer, 
+            int winner, int flags, int initialMarbles, int[] moves) {
+        this.startMillis = startMillis;
+        this.endMillis = endMillis;
+        this.playerCodes = playerCodes.clone();
+        this.difficulty = difficulty;
+        this.firstPlayer = firstPlayer;
+        this.winner = winner;
+        this.flags = flags;
+        this.initialMarbles = initialMarbles;
+        this.moves = moves.clone();
+    }
+    
+    /**
+     * Builds the record of a finished game
+     * @param game The game
+     * @return The record
+     */
+    public static GameRecord of(GameOfNim game) {
+        return new GameRecord(game.getStartMillis(), game.getEndMillis(), 
+                new int[] {game.getPlayerCode(0), game.getPlayerCode(1)}, game.getDifficulty(), game.getFirstPlayer(),
+                game.getWinner(), (game.isForfeit() ? FORFEIT : 0) | (game.isFailed() ? FAILED : 0) 
+                        | (game.getVariant().isClassic() ? 0 : VARIANT),
+                game.getInitialMarbles(), game.getMoves());
+    }
+    
+    /**
+     * Writes the record
+     * @param buffer Buffer with atleast SIZE bytes remaining, its position moves past the record
+     */
+    public void writeTo(ByteBuffer buffer) {
+        int start = buffer.position();
+        int count = Math.min(moves.length, MAX_MOVES);
+        int recordFlags = flags | (count < moves.length ? TRUNCATED : 0);
+        
+        for (int m = 0; m < count; m++) {
+            if (moves[m] > 0xFF) { // Does not fit a byte, keep the moves before it
+                count = m;
+                recordFlags |= TRUNCATED;
+            }
+        }
+        
+        buffer.position(start + 4); // Magic is written last, see below
+        buffer.putLong(startMillis);
+        buffer.putLong(endMillis);
+        buffer.putInt(playerCodes[0]);
+        buffer.putInt(playerCodes[1]);
+        buffer.put((byte) difficulty);
+        buffer.put((byte) firstPlayer);
+        buffer.put((byte) winner);
+        buffer.put((byte) recordFlags);
+        buffer.putShort((short) initialMarbles);
+        buffer.putShort((short) count);
+        
+        for (int m = 0; m < count; m++) {
+            buffer.put((byte) moves[m]);
+        }
+        
+        // The magic marks the record as complete, so a reader never sees half a record
+        buffer.putInt(start, MAGIC);
+        buffer.position(start + SIZE);
+    }
+    
+    /**
+     * Reads a record
+     * @param buffer Buffer holding the record
+     * @param offset Where the record starts
+     * @return The record, null if no record has been written there
+     */
+    public static GameRecord readFrom(ByteBuffer buffer, int offset) {
+        int[] moves;
+        
+        if (buffer.getInt(offset) != MAGIC) {
+            return null;
+        }
+        
+        moves = new int[buffer.getShort(offset + 34) & 0xFFFF];
+        
+        for (int m = 0; m < moves.length; m++) {
+            moves[m] = buffer.get(offset + 36 + m) & 0xFF;
+        }
+        
+        return new GameRecord(buffer.getLong(offset + 4), buffer.getLong(offset + 12), 
+                new int[] {buffer.getInt(offset + 20), buffer.getInt(offset + 24)}, buffer.get(offset + 28), 
+                buffer.get(offset + 29), buffer.get(offset + 30), buffer.get(offset + 31), 
+                buffer.getShort(offset + 32) & 0xFFFF, moves);
+    }
+    
+    public long getStartMillis() {
+        return startMillis;
+    }
+    
+    public long getEndMillis() {
+        return endMillis;
+    }
+    
+    /**
+     * Returns a player's code
+     * @param player 0 or 1
+     * @return player code, -1 for a computer player
+     */
+    public int getPlayerCode(int player) {
+        return playerCodes[player];
+    }
+    
+    public int getDifficulty() {
+        return difficulty;
+    }
+    
+    public int getFirstPlayer() {
+        return firstPlayer;
+    }
+    
+    public int getWinner() {
+        return winner;
+    }
+    
+    public int getFlags() {
+        return flags;
+    }
+    
+    public boolean isForfeit() {
+        return (flags & FORFEIT) != 0;
+    }
+    
+    public int getInitialMarbles() {
+        return initialMarbles;
+    }
+    
+    /**
+     * Returns the marbles taken on each turn
+     * @return moves, in turn order
+     */
+    public int[] getMoves() {
+        return moves.clone();
+    }
+}
@@ -0,0 +1,169 @@
+/**
+ * JournalReader streams the records of a game result journal
+ */
+package journal;
+
+import constants.Constants;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Reads a journal from the start, a chunk at a time through a read only mapping.
+ * Can be used while the server is still appending - records written after the reader
+ * reaches the end are not seen.
+ * @author Chris
+ */
+public class JournalReader implements Iterator<GameRecord>, Closeable {
+    private final FileChannel channel;
+    private final long records;       // Records in the journal when it was opened
+    private long next;                // Index of the next record to read
+    private MappedByteBuffer chunk;   // Chunk holding the next record
+    private long chunkStart;          // Index of the first record in the chunk
+    
+    /**
+     * Opens a journal for reading
+     * @param file Journal file
+     * @throws IOException If the file cannot be read
+     */
+    public JournalReader(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        records = countRecords(channel);
+    }
+    
+    /**
+     * Streams every record in a journal, the stream must be closed to release the file
+     * @param file Journal file
+     * @return The records, oldest first
+     * @throws IOException If the file cannot be read
+     */
+    public static Stream<GameRecord> stream(Path file) throws IOException {
+        JournalReader reader = new JournalReader(file);
+        
+        return StreamSupport.stream(Spliterators.spliterator(reader, reader.records, 
+                Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.IMMUTABLE), false).onClose(reader::close);
+    }
+    
+    /**
+     * Finds the number of records in a journal. Records are written in order, so the written
+     * records are followed by unwritten space and a binary search finds the end
+     * @param channel Open journal file
+     * @return Number of records
+     * @throws IOException If the file cannot be read
+     */
+    static long countRecords(FileChannel channel) throws IOException {
+        ByteBuffer magic = ByteBuffer.allocate(4);
+        long low = 0;                                   // Records before low are written
+        long high = channel.size() / GameRecord.SIZE;   // Records from high on are not
+        long mid;
+        
+        while (low < high) {
+            mid = (low + high) >>> 1;
+            magic.clear();
+            channel.read(magic, mid * GameRecord.SIZE);
+            
+            if (magic.position() == 4 && magic.getInt(0) == GameRecord.MAGIC) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+    
+    /**
+     * Returns the number of records in the journal when it was opened
+     * @return records
+     */
+    public long getRecordCount() {
+        return records;
+    }
+    
+    @Override
+    public boolean hasNext() {
+        return next < records;
+    }
+    
+    @Override
+    public GameRecord next() {
+        long chunkIndex;
+        
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        
+        if (chunk == null || next - chunkStart >= GameJournal.RECORDS_PER_CHUNK) {
+            chunkStart = next / GameJournal.RECORDS_PER_CHUNK * GameJournal.RECORDS_PER_CHUNK;
+            chunkIndex = chunkStart * GameRecord.SIZE;
+            
+            try {
+                chunk = channel.map(FileChannel.MapMode.READ_ONLY, chunkIndex, 
+                        Math.min(GameJournal.CHUNK_SIZE, channel.size() - chunkIndex));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        
+        return GameRecord.readFrom(chunk, (int) ((next++ - chunkStart) * GameRecord.SIZE));
+    }
+    
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("Error closing game journal: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Prints a summary of a journal
+     * @param args Optional journal file, default nim-journal.dat
+     * @throws IOException If the journal cannot be read
+     */
+    public static void main(String[] args) throws IOException {
+        Path file = Paths.get(args.length > 0 ? args[0] : GameJournal.DEFAULT_FILE);
+        long[] games = new long[Constants.DIFFICULTY_MAX + 1];
+        long[] firstMoverWins = new long[Constants.DIFFICULTY_MAX + 1];
+        long forfeits = 0;
+        long moves = 0;
+        
+        try (JournalReader reader = new JournalReader(file)) {
+            while (reader.hasNext()) {
+                GameRecord record = reader.next();
+                int difficulty = Math.max(0, Math.min(record.getDifficulty(), Constants.DIFFICULTY_MAX));
+                
+                games[difficulty]++;
+                moves += record.getMoves().length;
+                
+                if (record.getWinner() == record.getFirstPlayer()) {
+                    firstMoverWins[difficulty]++;
+                }
+                if (record.isForfeit()) {
+                    forfeits++;
+                }
+            }
+            
+            System.out.println("Games in " + file + ": " + reader.getRecordCount() + " (" + forfeits + " forfeited, " 
+                    + moves + " moves)");
+        }
+        
+        for (int difficulty = Constants.DIFFICULTY_MIN; difficulty <= Constants.DIFFICULTY_MAX; difficulty++) {
+            System.out.println((difficulty == Constants.EASY ? "Easy" : "Hard") + ": " + games[difficulty] + " games, first mover won " 
+                    + (games[difficulty] == 0 ? "-" : String.format("%.2f%%", 100.0 * firstMoverWins[difficulty] / games[difficulty])));
+        }
+    }
+}
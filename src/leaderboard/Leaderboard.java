@@ -0,0 +1,298 @@
+/**
+ * Leaderboard keeps each player's win, loss, streak and rating statistics as games finish
+ */
+package leaderboard;
+
+import constants.Constants;
+import game.GameOfNim;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Incrementally maintained leaderboard.
+ * Players are known by name, so their record survives leaving the lobby and rejoining. Each finished
+ * game updates both players' entries and Elo ratings under a pair of striped locks, so games between
+ * different players update in parallel. The entries are also held in a skip list ordered by rating,
+ * so a top N query only walks the first N entries.
+ * @author Chris
+ */
+public class Leaderboard implements GameOfNim.GameListener {
+    // System properties used to configure the leaderboard
+    public static final String FILE_PROPERTY = "nim.leaderboard.file";         // Snapshot file, "none" to keep it in memory only
+    public static final String INTERVAL_PROPERTY = "nim.leaderboard.interval"; // Seconds between snapshots
+    
+    public static final String DEFAULT_FILE = "nim-leaderboard.dat";
+    public static final int DEFAULT_INTERVAL = 60;
+    
+    public static final double INITIAL_RATING = 1500; // Rating of a new player
+    public static final double K_FACTOR = 32;         // Largest rating change from one game
+    
+    // Added to a computer player's name, so each difficulty is rated on its own
+    private static final String EASY_SUFFIX = " (Easy)";
+    private static final String HARD_SUFFIX = " (Hard)";
+    
+    private static final int STRIPES = 256;           // Locks shared out between players by name
+    private static final int SNAPSHOT_VERSION = 1;
+    
+    // Highest rating first, names break ties so every player has their own place
+    private static final Comparator<LeaderboardEntry> RANKING = Comparator
+            .comparingDouble(LeaderboardEntry::getRating).reversed()
+            .thenComparing(LeaderboardEntry::getName);
+    
+    private final ConcurrentHashMap<String, LeaderboardEntry> players = new ConcurrentHashMap<>(); // Current entry for each name
+    private final ConcurrentSkipListSet<LeaderboardEntry> ranking = new ConcurrentSkipListSet<>(RANKING);
+    private final Object[] locks = new Object[STRIPES];
+    private ScheduledExecutorService snapshotExecutor;
+    
+    /**
+     * Constructs an empty leaderboard
+     */
+    public Leaderboard() {
+        for (int s = 0; s < STRIPES; s++) {
+            locks[s] = new Object();
+        }
+    }
+    
+    /**
+     * Builds the leaderboard described by the nim.leaderboard.* system properties, loading the last
+     * snapshot and saving new ones periodically
+     * @return The leaderboard
+     */
+    public static Leaderboard fromSystemProperties() {
+        Leaderboard leaderboard = new Leaderboard();
+        String name = System.getProperty(FILE_PROPERTY, DEFAULT_FILE);
+        
+        if (!"none".equalsIgnoreCase(name)) {
+            Path file = Paths.get(name);
+            
+            try {
+                leaderboard.load(file);
+            } catch (NoSuchFileException e) {
+                // First run, nothing to load
+            } catch (IOException e) {
+                System.out.println("Error loading leaderboard " + name + ": " + e.getMessage());
+            }
+            
+            leaderboard.startSnapshots(file, Integer.getInteger(INTERVAL_PROPERTY, DEFAULT_INTERVAL));
+        }
+        return leaderboard;
+    }
+    
+    /**
+     * Records a finished game
+     * @param game The finished game
+     */
+    @Override
+    public void gameOver(GameOfNim game) {
+        int winner = game.getWinner();
+        
+        if (winner < 0) {
+            return;
+        }
+        
+        recordResult(playerName(game, winner), playerName(game, 1 - winner));
+    }
+    
+    /**
+     * Names a player - computer players are rated per difficulty
+     * @param game The game
+     * @param t The player (0 or 1)
+     * @return Name the player is rated under
+     */
+    public static String playerName(GameOfNim game, int t) {
+        return game.isHuman(t) ? game.getName(t) : game.getName(t) + (game.getDifficulty() == Constants.EASY ? EASY_SUFFIX : HARD_SUFFIX);
+    }
+    
+    /**
+     * Returns whether a name is kept for computer players, a human using it would share their entry
+     * @param name Player's name
+     * @return true = a human may not use the name
+     */
+    public static boolean isComputerName(String name) {
+        return name.endsWith(EASY_SUFFIX) || name.endsWith(HARD_SUFFIX);
+    }
+    
+    /**
+     * Updates both players' statistics and ratings after a game. A game between two players
+     * sharing a name is not rated, their one entry cannot both win and lose.
+     * @param winnerName Name of the winner
+     * @param loserName Name of the loser
+     */
+    public void recordResult(String winnerName, String loserName) {
+        if (winnerName.equals(loserName)) {
+            return;
+        }
+        
+        int winnerStripe = stripe(winnerName);
+        int loserStripe = stripe(loserName);
+        
+        // Always lock the lower stripe first so two games can never wait on each other
+        synchronized (locks[Math.min(winnerStripe, loserStripe)]) {
+            synchronized (locks[Math.max(winnerStripe, loserStripe)]) {
+                LeaderboardEntry winner = entry(winnerName);
+                LeaderboardEntry loser = entry(loserName);
+                double expected = 1 / (1 + Math.pow(10, (loser.getRating() - winner.getRating()) / 400)); // Winner's expected score
+                double change = K_FACTOR * (1 - expected);
+                
+                update(winner, winner.afterGame(winner.getRating() + change, true));
+                update(loser, loser.afterGame(loser.getRating() - change, false));
+            }
+        }
+    }
+    
+    /**
+     * Returns a player's current entry, a new player starts on the initial rating. Called holding the player's stripe.
+     */
+    private LeaderboardEntry entry(String name) {
+        LeaderboardEntry entry = players.get(name);
+        
+        return entry != null ? entry : new LeaderboardEntry(name, INITIAL_RATING, 0, 0, 0, 0);
+    }
+    
+    /**
+     * Replaces a player's entry in the map and the ranking. Called holding the player's stripe.
+     */
+    private void update(LeaderboardEntry old, LeaderboardEntry entry) {
+        ranking.remove(old);
+        players.put(entry.getName(), entry);
+        ranking.add(entry);
+    }
+    
+    private static int stripe(String name) {
+        return (name.hashCode() & 0x7FFFFFFF) % STRIPES;
+    }
+    
+    /**
+     * Returns the highest rated players
+     * @param count Number of players wanted
+     * @return Entries, highest rating first
+     */
+    public LeaderboardEntry[] top(int count) {
+        LeaderboardEntry[] top = new LeaderboardEntry[Math.max(0, Math.min(count, players.size()))];
+        Iterator<LeaderboardEntry> entries = ranking.iterator();
+        int found = 0;
+        
+        while (found < top.length && entries.hasNext()) {
+            top[found++] = entries.next();
+        }
+        
+        return found == top.length ? top : Arrays.copyOf(top, found);
+    }
+    
+    /**
+     * Returns a player's entry
+     * @param name Player's name
+     * @return The entry, null if the player has not finished a game
+     */
+    public LeaderboardEntry get(String name) {
+        return players.get(name);
+    }
+    
+    /**
+     * Returns the number of players on the leaderboard
+     * @return players
+     */
+    public int size() {
+        return players.size();
+    }
+    
+    /**
+     * Writes every entry to a file, replacing it atomically. Games carry on while the snapshot is written.
+     * @param file Snapshot file
+     * @throws IOException If the file cannot be written
+     */
+    public void save(Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(SNAPSHOT_VERSION);
+            
+            for (LeaderboardEntry entry : players.values()) {
+                out.writeBoolean(true); // Another entry follows
+                out.writeUTF(entry.getName());
+                out.writeDouble(entry.getRating());
+                out.writeInt(entry.getWins());
+                out.writeInt(entry.getLosses());
+                out.writeInt(entry.getStreak());
+                out.writeInt(entry.getBestStreak());
+            }
+            out.writeBoolean(false);
+        }
+        
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    /**
+     * Loads the entries from a snapshot file
+     * @param file Snapshot file
+     * @throws IOException If the file cannot be read
+     */
+    public void load(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != SNAPSHOT_VERSION) {
+                throw new IOException("Unknown leaderboard snapshot version");
+            }
+            
+            while (in.readBoolean()) {
+                LeaderboardEntry entry = new LeaderboardEntry(in.readUTF(), in.readDouble(), in.readInt(), in.readInt(), 
+                        in.readInt(), in.readInt());
+                
+                synchronized (locks[stripe(entry.getName())]) {
+                    LeaderboardEntry old = players.get(entry.getName());
+                    
+                    if (old != null) {
+                        ranking.remove(old);
+                    }
+                    players.put(entry.getName(), entry);
+                    ranking.add(entry);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Saves a snapshot periodically and when the server shuts down
+     * @param file Snapshot file
+     * @param interval Seconds between snapshots, 0 for shut down only
+     */
+    public synchronized void startSnapshots(Path file, long interval) {
+        if (snapshotExecutor != null) {
+            return;
+        }
+        
+        snapshotExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Nim leaderboard snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        
+        Runnable snapshot = () -> {
+            try {
+                save(file);
+            } catch (IOException e) {
+                System.out.println("Error writing leaderboard snapshot: " + e.getMessage());
+            }
+        };
+        
+        if (interval > 0) {
+            snapshotExecutor.scheduleAtFixedRate(snapshot, interval, interval, TimeUnit.SECONDS);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(snapshot));
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * LeaderboardEntry is a player's standing on the leaderboard
+ */
+package leaderboard;
+
+import java.io.Serializable;
+
+/**
+ * Immutable snapshot of a player's statistics, sent to clients as is.
+ * A new entry replaces the old one each time the player finishes a game.
+ * @author Chris
+ */
+public class LeaderboardEntry implements Serializable {
+    private static final long serialVersionUID = 1L;
+    
+    private final String name;
+    private final double rating;
+    private final int wins;
+    private final int losses;
+    private final int streak;     // Current run of wins, negative for a run of losses
+    private final int bestStreak; // Longest run of wins
+    
+    /**
+     * Constructor
+     * @param name Player's name
+     * @param rating Elo rating
+     * @param wins Games won
+     * @param losses Games lost
+     * @param streak Current run of wins, negative for a run of losses
+     * @param bestStreak Longest run of wins
+     */
+    public LeaderboardEntry(String name, double rating, int wins, int losses, int streak, int bestStreak) {
+        this.name = name;
+        this.rating = rating;
+        this.wins = wins;
+        this.losses = losses;
+        this.streak = streak;
+        this.bestStreak = bestStreak;
+    }
+    
+    /**
+     * Returns the entry after a game
+     * @param newRating Rating after the game
+     * @param won true = player won the game
+     * @return Updated entry
+     */
+    LeaderboardEntry afterGame(double newRating, boolean won) {
+        int newStreak = won ? Math.max(streak, 0) + 1 : Math.min(streak, 0) - 1;
+        
+        return new LeaderboardEntry(name, newRating, wins + (won ? 1 : 0), losses + (won ? 0 : 1), newStreak, 
+                Math.max(bestStreak, newStreak));
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    public double getRating() {
+        return rating;
+    }
+    
+    public int getWins() {
+        return wins;
+    }
+    
+    public int getLosses() {
+        return losses;
+    }
+    
+    public int getStreak() {
+        return streak;
+    }
+    
+    public int getBestStreak() {
+        return bestStreak;
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("%-24s %6.0f  W %d  L %d  streak %d", name, rating, wins, losses, streak);
+    }
+}
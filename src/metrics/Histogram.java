@@ -0,0 +1,104 @@
+/**
+ * Histogram records a distribution of values without locking
+ */
+package metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free histogram with power of two buckets.
+ * Bucket i counts values from 2^(i-1) to 2^i - 1, so recording is a couple of atomic adds
+ * and percentiles are accurate to within a factor of two.
+ * @author Chris
+ */
+public class Histogram {
+    private static final int BUCKETS = 65; // Bucket 0 holds zero, bucket 64 holds values of 2^63 and above
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Records a value
+     * @param value Value to record, negative values are counted as zero
+     */
+    public void record(long value) {
+        if(value < 0) {
+            value = 0;
+        }
+
+        buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * Returns the number of values recorded
+     * @return count
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Returns the mean of the values recorded
+     * @return mean, 0 if nothing has been recorded
+     */
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * Returns the largest value recorded
+     * @return max
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns an upper bound for a percentile
+     * @param percentile Percentile wanted, 0 to 100
+     * @return Top of the bucket holding the percentile, never more than the max
+     */
+    public long getPercentile(double percentile) {
+        long total = 0;
+        long target;
+        long seen = 0;
+
+        for(int b = 0; b < BUCKETS; b++) {
+            total += buckets.get(b);
+        }
+
+        if(total == 0) {
+            return 0;
+        }
+
+        target = (long) Math.ceil(total * percentile / 100.0);
+
+        for(int b = 0; b < BUCKETS; b++) {
+            seen += buckets.get(b);
+
+            if(seen >= target && seen > 0) {
+                return b == 0 ? 0 : Math.min(b >= 63 ? Long.MAX_VALUE : (1L << b) - 1, getMax());
+            }
+        }
+
+        return getMax();
+    }
+
+    /**
+     * Summarises the histogram on one line
+     * @param unit Unit of the values, for display
+     * @return count, mean, median, 99th percentile and max
+     */
+    public String summary(String unit) {
+        return String.format("count=%d mean=%.1f%s p50<=%d%s p99<=%d%s max=%d%s", getCount(), getMean(), unit,
+                getPercentile(50), unit, getPercentile(99), unit, getMax(), unit);
+    }
+}
@@ -0,0 +1,392 @@
+/**
+ * NimMetrics collects lobby and game statistics
+ */
+package metrics;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Metrics for the lobby and running games.
+ * Recording only touches counters and lock free histograms so it is cheap enough for the game loop.
+ * The numbers are read through JMX (nim:type=Metrics) or a snapshot file written periodically.
+ * @author Chris
+ */
+public class NimMetrics implements NimMetricsMBean {
+    // Remote calls made to players, timed separately
+    public enum RemoteCall {
+        GET_DETAILS,        // Name, difficulty and opponent type read on joining
+        SET_PLAYER_CODE,
+        SET_IN_GAME_STATUS,
+        REQUEST_MOVE,       // Delivering the game, or the opponent's move, to the player to move
+        HEARTBEAT,          // Liveness check
+        GET_MARBLES,        // From requesting a move to receiving it
+        SERVER_MESSAGES,
+        WON,
+        LOST,
+        PLAY_AGAIN
+    }
+
+    // System properties used to configure the snapshot file
+    public static final String FILE_PROPERTY = "nim.metrics.file";         // Snapshot file name
+    public static final String INTERVAL_PROPERTY = "nim.metrics.interval"; // Seconds between snapshots, 0 = off
+
+    public static final String DEFAULT_FILE = "nim-metrics.txt";
+    public static final int DEFAULT_INTERVAL = 60;
+
+    public static final String OBJECT_NAME = "nim:type=Metrics";
+
+    // Metrics shared by the lobby and its games
+    private static final NimMetrics SHARED = new NimMetrics();
+
+    private final Histogram timeToMatch = new Histogram();  // Microseconds
+    private final Histogram humanTimeToMatch = new Histogram(); // Microseconds, human v human matches only
+    private final Histogram matchRatingGap = new Histogram();   // Rating difference of human v human matches
+    private final Histogram gameDuration = new Histogram(); // Milliseconds
+    private final Histogram turnsPerGame = new Histogram();
+    private final Histogram[] remoteCalls = new Histogram[RemoteCall.values().length]; // Microseconds
+
+    private final LongAdder gamesStarted = new LongAdder();
+    private final LongAdder gamesCompleted = new LongAdder();
+    private final LongAdder gamesFailed = new LongAdder();
+    private final LongAdder movesRejected = new LongAdder();   // Illegal moves refused
+    private final LongAdder illegalForfeits = new LongAdder(); // Games forfeited for too many illegal moves
+    private final LongAdder playersEvicted = new LongAdder();  // Players dropped because their lease ran out
+    private final LongAdder spectators = new LongAdder();        // Spectators watching now
+    private final LongAdder spectatorSkips = new LongAdder();    // Events spectators missed by falling behind
+    private final LongAdder spectatorsDropped = new LongAdder(); // Spectators dropped for being too slow or failing
+
+    private volatile String[] bucketNames = new String[0];
+    private volatile Supplier<int[]> queueDepthSource; // Reads the current queue depths
+
+    private ScheduledExecutorService snapshotExecutor;
+
+    /**
+     * Constructor
+     */
+    public NimMetrics() {
+        for(int c = 0; c < remoteCalls.length; c++) {
+            remoteCalls[c] = new Histogram();
+        }
+    }
+
+    /**
+     * Returns the metrics shared by the lobby and its games
+     * @return Shared metrics
+     */
+    public static NimMetrics shared() {
+        return SHARED;
+    }
+
+    /**
+     * Sets where the queue depths are read from
+     * @param names Name of each bucket
+     * @param source Returns the depth of each bucket, in the same order as names
+     */
+    public void setQueueDepthSource(String[] names, Supplier<int[]> source) {
+        bucketNames = names.clone();
+        queueDepthSource = source;
+    }
+
+    /**
+     * Records how long a player waited for a match
+     * @param waitNanos Time from being queued to being matched
+     */
+    public void playerMatched(long waitNanos) {
+        timeToMatch.record(TimeUnit.NANOSECONDS.toMicros(waitNanos));
+    }
+
+    /**
+     * Records the quality of a human v human match
+     * @param playerWaitNanos Time the first player waited
+     * @param opponentWaitNanos Time the opponent waited
+     * @param ratingGap Difference between the players' ratings
+     */
+    public void ratedMatch(long playerWaitNanos, long opponentWaitNanos, double ratingGap) {
+        humanTimeToMatch.record(TimeUnit.NANOSECONDS.toMicros(playerWaitNanos));
+        humanTimeToMatch.record(TimeUnit.NANOSECONDS.toMicros(opponentWaitNanos));
+        matchRatingGap.record(Math.round(ratingGap));
+    }
+
+    /**
+     * Records a game starting
+     */
+    public void gameStarted() {
+        gamesStarted.increment();
+    }
+
+    /**
+     * Records an illegal move being refused
+     * @param forfeited true = the player has used up their retries and forfeits the game
+     */
+    public void moveRejected(boolean forfeited) {
+        movesRejected.increment();
+
+        if(forfeited) {
+            illegalForfeits.increment();
+        }
+    }
+
+    /**
+     * Records a player being evicted because the lobby stopped hearing from them
+     */
+    public void playerEvicted() {
+        playersEvicted.increment();
+    }
+
+    /**
+     * Records a spectator starting to watch a game
+     */
+    public void spectatorJoined() {
+        spectators.increment();
+    }
+
+    /**
+     * Records a spectator no longer watching a game
+     */
+    public void spectatorLeft() {
+        spectators.decrement();
+    }
+
+    /**
+     * Records a slow spectator skipping ahead past events that were overwritten before they were sent
+     * @param events Events skipped
+     */
+    public void spectatorSkipped(long events) {
+        spectatorSkips.add(events);
+    }
+
+    /**
+     * Records a spectator being dropped for falling too far behind or a failed call
+     */
+    public void spectatorDropped() {
+        spectatorsDropped.increment();
+    }
+
+    /**
+     * Records a game ending
+     * @param durationNanos How long the game ran
+     * @param turns Number of turns taken
+     * @param failed true = game abandoned because of an error
+     */
+    public void gameFinished(long durationNanos, int turns, boolean failed) {
+        if(failed) {
+            gamesFailed.increment();
+            return;
+        }
+
+        gamesCompleted.increment();
+        gameDuration.record(TimeUnit.NANOSECONDS.toMillis(durationNanos));
+        turnsPerGame.record(turns);
+    }
+
+    /**
+     * Records the latency of a remote call to a player
+     * @param call The call made
+     * @param nanos How long it took
+     */
+    public void remoteCall(RemoteCall call, long nanos) {
+        remoteCalls[call.ordinal()].record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    @Override
+    public String[] getQueueDepths() {
+        Supplier<int[]> source = queueDepthSource;
+        String[] names = bucketNames;
+        int[] depths;
+        String[] result;
+
+        if(source == null) {
+            return new String[0];
+        }
+
+        depths = source.get();
+        result = new String[Math.min(names.length, depths.length)];
+
+        for(int b = 0; b < result.length; b++) {
+            result[b] = names[b] + "=" + depths[b];
+        }
+        return result;
+    }
+
+    @Override
+    public long getGamesStarted() {
+        return gamesStarted.sum();
+    }
+
+    @Override
+    public long getGamesCompleted() {
+        return gamesCompleted.sum();
+    }
+
+    @Override
+    public long getGamesFailed() {
+        return gamesFailed.sum();
+    }
+
+    @Override
+    public long getMovesRejected() {
+        return movesRejected.sum();
+    }
+
+    @Override
+    public long getIllegalMoveForfeits() {
+        return illegalForfeits.sum();
+    }
+
+    @Override
+    public long getPlayersEvicted() {
+        return playersEvicted.sum();
+    }
+
+    @Override
+    public long getSpectators() {
+        return spectators.sum();
+    }
+
+    @Override
+    public long getSpectatorEventsSkipped() {
+        return spectatorSkips.sum();
+    }
+
+    @Override
+    public long getSpectatorsDropped() {
+        return spectatorsDropped.sum();
+    }
+
+    @Override
+    public String getTimeToMatch() {
+        return timeToMatch.summary("us");
+    }
+
+    @Override
+    public String getHumanTimeToMatch() {
+        return humanTimeToMatch.summary("us");
+    }
+
+    @Override
+    public String getMatchRatingGap() {
+        return matchRatingGap.summary("");
+    }
+
+    @Override
+    public String getGameDuration() {
+        return gameDuration.summary("ms");
+    }
+
+    @Override
+    public String getTurnsPerGame() {
+        return turnsPerGame.summary("");
+    }
+
+    @Override
+    public String[] getRemoteCallLatencies() {
+        String[] result = new String[remoteCalls.length];
+
+        for(RemoteCall call : RemoteCall.values()) {
+            result[call.ordinal()] = call + ": " + remoteCalls[call.ordinal()].summary("us");
+        }
+        return result;
+    }
+
+    @Override
+    public String getSnapshot() {
+        StringBuilder snapshot = new StringBuilder();
+
+        snapshot.append("Snapshot: ").append(new Date()).append('\n');
+        snapshot.append("Games started: ").append(getGamesStarted())
+                .append(", completed: ").append(getGamesCompleted())
+                .append(", failed: ").append(getGamesFailed()).append('\n');
+        snapshot.append("Moves rejected: ").append(getMovesRejected())
+                .append(", illegal move forfeits: ").append(getIllegalMoveForfeits())
+                .append(", players evicted: ").append(getPlayersEvicted()).append('\n');
+        snapshot.append("Spectators: ").append(getSpectators())
+                .append(", events skipped: ").append(getSpectatorEventsSkipped())
+                .append(", dropped: ").append(getSpectatorsDropped()).append('\n');
+
+        snapshot.append("Queue depths:");
+        for(String depth : getQueueDepths()) {
+            snapshot.append(' ').append(depth);
+        }
+        snapshot.append('\n');
+
+        snapshot.append("Time to match: ").append(getTimeToMatch()).append('\n');
+        snapshot.append("Human time to match: ").append(getHumanTimeToMatch()).append('\n');
+        snapshot.append("Match rating gap: ").append(getMatchRatingGap()).append('\n');
+        snapshot.append("Game duration: ").append(getGameDuration()).append('\n');
+        snapshot.append("Turns per game: ").append(getTurnsPerGame()).append('\n');
+
+        snapshot.append("Remote calls:\n");
+        for(String latency : getRemoteCallLatencies()) {
+            snapshot.append("  ").append(latency).append('\n');
+        }
+
+        return snapshot.toString();
+    }
+
+    /**
+     * Writes a snapshot, replacing the file in one step so readers never see half a snapshot
+     * @param file File to write
+     * @throws IOException
+     */
+    public void writeSnapshot(Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+
+        Files.write(temp, getSnapshot().getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server as nim:type=Metrics
+     */
+    public void registerMBean() {
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+
+            if(!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            }
+        } catch (JMException e) {
+            System.out.println("Error registering metrics MBean: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Starts writing snapshots as configured by the nim.metrics.file and nim.metrics.interval system properties
+     */
+    public synchronized void startSnapshots() {
+        long interval = Integer.getInteger(INTERVAL_PROPERTY, DEFAULT_INTERVAL);
+        Path file = Paths.get(System.getProperty(FILE_PROPERTY, DEFAULT_FILE));
+
+        if(interval <= 0 || snapshotExecutor != null) {
+            return;
+        }
+
+        snapshotExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Nim metrics snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        snapshotExecutor.scheduleAtFixedRate(() -> {
+            try {
+                writeSnapshot(file);
+            } catch (IOException e) {
+                System.out.println("Error writing metrics snapshot: " + e.getMessage());
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * JMX view of the lobby and game metrics
+ */
+package metrics;
+
+/**
+ * Management interface for NimMetrics, registered as nim:type=Metrics
+ * @author Chris
+ */
+public interface NimMetricsMBean {
+
+    /**
+     * Returns the number of players waiting in each (difficulty, opponent type) bucket
+     * @return Bucket names with their queue depths
+     */
+    public String[] getQueueDepths();
+
+    /**
+     * Returns the number of games started
+     * @return games started
+     */
+    public long getGamesStarted();
+
+    /**
+     * Returns the number of games that finished normally
+     * @return games completed
+     */
+    public long getGamesCompleted();
+
+    /**
+     * Returns the number of games abandoned because of an error
+     * @return games failed
+     */
+    public long getGamesFailed();
+
+    /**
+     * Returns the number of illegal moves refused by games
+     * @return moves rejected
+     */
+    public long getMovesRejected();
+
+    /**
+     * Returns the number of games forfeited by a player who kept making illegal moves
+     * @return illegal move forfeits
+     */
+    public long getIllegalMoveForfeits();
+
+    /**
+     * Returns the number of players evicted because the lobby stopped hearing from them
+     * @return players evicted
+     */
+    public long getPlayersEvicted();
+
+    /**
+     * Returns the number of spectators watching games
+     * @return spectators
+     */
+    public long getSpectators();
+
+    /**
+     * Returns the number of game events slow spectators skipped past
+     * @return events skipped
+     */
+    public long getSpectatorEventsSkipped();
+
+    /**
+     * Returns the number of spectators dropped for falling too far behind or failing to respond
+     * @return spectators dropped
+     */
+    public long getSpectatorsDropped();
+
+    /**
+     * Returns the distribution of the time players waited for a match
+     * @return Time to match summary in milliseconds
+     */
+    public String getTimeToMatch();
+
+    /**
+     * Returns the distribution of the time human players waited for a human opponent
+     * @return Time to match summary in microseconds
+     */
+    public String getHumanTimeToMatch();
+
+    /**
+     * Returns the distribution of the rating difference between matched human players
+     * @return Rating gap summary
+     */
+    public String getMatchRatingGap();
+
+    /**
+     * Returns the distribution of game durations
+     * @return Game duration summary in milliseconds
+     */
+    public String getGameDuration();
+
+    /**
+     * Returns the distribution of turns per game
+     * @return Turns per game summary
+     */
+    public String getTurnsPerGame();
+
+    /**
+     * Returns the latency of each remote call made to players
+     * @return Call names with their latency summaries in microseconds
+     */
+    public String[] getRemoteCallLatencies();
+
+    /**
+     * Returns all of the metrics as text, as written to the snapshot file
+     * @return Snapshot of the metrics
+     */
+    public String getSnapshot();
+}
@@ -7,9 +7,10 @@
 
 package player;
 
-import java.util.Random;
 import constants.Constants;
+import game.NimVariant;
 import java.rmi.RemoteException;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class ComputerPlayer implements PlayerInterface {
     private String name = "Default Player"; // Default players name
@@ -19,7 +20,7 @@ public class ComputerPlayer implements PlayerInterface {
     private boolean inGame;  // In game flag
     private int gameCode;    // Game code used in lobby to ensure unique player
     
-    Random rand = new Random(); // random number generator
+    private final MoveEngine moveEngine = MoveEngine.shared(); // Shared move calculator
    
     /**
      * Constructor
@@ -82,41 +83,44 @@ public class ComputerPlayer implements PlayerInterface {
     */
     @Override
     public int getMarbles(int bagSize) {
-        int marbles;
-        int marbleMax; // Used to calculate the maximum number of marbles that can be taken
-        int pot = 0; // Used to calculate maximum n^2 within the bag
-        
         if(bagSize < 2) { // This is an error there should be atleas 2 marbles
             System.out.println("Error - too few marbles remaining");
             return 0;
         }
         
-        marbleMax = bagSize / 2; // The maximum number of marbles that can be taken
-        
-        // Easy difficulty, just take a random amount of marbles
-        if(difficulty == Constants.EASY) { 
-            return rand.nextInt(marbleMax) + 1; // Take random number of marbles - atleast 1 at most marbleMax
-        }
-        
         /* 
-           Hard game - calculate possible moves
-           If possible, we want to leave the number of remaining marbles as n^2-1
-           But we cannot take more than half of the marbles
+           Easy game takes a random amount of marbles.
+           Hard game leaves the number of remaining marbles as n^2-1 where possible,
+           the move engine has these precomputed
         */
+        return moveEngine.getMarbles(bagSize, difficulty);
+    }
+    
+    /**
+     * Chooses a move in any variant of the game.
+     * Easy game takes a random legal move. Hard game plays the variant's optimal strategy,
+     * taking a random legal move when there is no winning move.
+     * The classic single bag game is played exactly as getMarbles plays it.
+     * @param variant Rules of the game
+     * @param heaps The heaps, unchanged
+     * @return The packed move, see NimVariant.move
+     */
+    public int chooseMove(NimVariant variant, int[] heaps) {
+        int move = NimVariant.NO_MOVE;
         
-        // Find maximum n^2 within bagSize
-        for(int count = 2; count <= bagSize; count *= 2) 
-            pot = count;
-
-        // Check if the bagSize is already n^2-1 as this will alter the legal move choice
-        if(bagSize == (pot * 2 - 1)) {
-            marbles = rand.nextInt(marbleMax) + 1; // Take random number of marbles - atleast 1 at most marbleMax
+        if(variant.isClassic()) {
+            return NimVariant.move(0, getMarbles(heaps[0]));
         }
-        else { // Take enough marbles to leave the bagSize as n^2-1
-            marbles = bagSize - pot + 1;
+        
+        if(difficulty != Constants.EASY) {
+            move = variant.winningMove(heaps);
+        }
+        
+        if(move == NimVariant.NO_MOVE) { // Easy game or no winning move
+            move = variant.randomMove(heaps, ThreadLocalRandom.current());
         }
         
-        return marbles;
+        return move;
     }
     
     /**
@@ -0,0 +1,85 @@
+/**
+ * @author Chris Nicholas
+ * Class calculates computer player moves
+ *
+ */
+
+package player;
+
+import constants.Constants;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Shared, immutable move calculator for computer players.
+ * The winning move for every bag size up to the table size is worked out once, so a hard move
+ * is a single array lookup. Larger bags fall back to the same calculation done with bit operations.
+ */
+public final class MoveEngine {
+    // System property holding the largest bag size stored in the table
+    public static final String TABLE_SIZE_PROPERTY = "nim.moveTable.max";
+    public static final int DEFAULT_TABLE_SIZE = 1 << 16;
+
+    // Engine shared by every computer player
+    private static final MoveEngine SHARED = new MoveEngine(Integer.getInteger(TABLE_SIZE_PROPERTY, DEFAULT_TABLE_SIZE));
+
+    // hardMoves[bagSize] = marbles to take, 0 when the bag is already 2^n-1 and no winning move exists
+    private final int[] hardMoves;
+
+    /**
+     * Constructor, precomputes the move table
+     * @param maxBagSize Largest bag size held in the table
+     */
+    public MoveEngine(int maxBagSize) {
+        hardMoves = new int[Math.max(maxBagSize, 1) + 1];
+
+        for(int bagSize = 2; bagSize < hardMoves.length; bagSize++) {
+            hardMoves[bagSize] = winningMove(bagSize);
+        }
+    }
+
+    /**
+     * Returns the engine shared by all computer players
+     * @return Shared engine
+     */
+    public static MoveEngine shared() {
+        return SHARED;
+    }
+
+    /**
+     * Works out how many marbles to take to leave 2^n-1 in the bag.
+     * The largest power of two no bigger than bagSize + 1 gives the target directly
+     * @param bagSize The number of marbles in the bag, at least 2
+     * @return The number of marbles to take, 0 if the bag is already 2^n-1
+     */
+    private static int winningMove(int bagSize) {
+        return bagSize + 1 - Integer.highestOneBit(bagSize + 1);
+    }
+
+    /**
+     * Gets the number of marbles a computer player takes
+     * @param bagSize The number of marbles in the bag, at least 2
+     * @param difficulty EASY or HARD
+     * @return The number of marbles to take
+     */
+    public int getMarbles(int bagSize, int difficulty) {
+        int marbles = 0;
+
+        if(difficulty != Constants.EASY) { // Hard game - take the winning move if there is one
+            marbles = bagSize < hardMoves.length ? hardMoves[bagSize] : winningMove(bagSize);
+        }
+
+        if(marbles == 0) { // Easy game or no winning move, take random number of marbles - atleast 1 at most bagSize / 2
+            marbles = ThreadLocalRandom.current().nextInt(bagSize / 2) + 1;
+        }
+
+        return marbles;
+    }
+
+    /**
+     * Returns the largest bag size held in the move table
+     * @return Table size
+     */
+    public int getMaxBagSize() {
+        return hardMoves.length - 1;
+    }
+}
@@ -5,13 +5,15 @@
  */
 package player;
 
+import java.rmi.Remote;
 import java.rmi.RemoteException;
 
 /**
- *
+ * Player operations shared by human clients and computer players.
+ * Extends Remote so newer RMI runtimes accept these methods as remote calls on a NimClient
  * @author Chris
  */
-public interface PlayerInterface {
+public interface PlayerInterface extends Remote {
 
     /**
      * Returns the player's name
@@ -0,0 +1,332 @@
+/**
+ * ReplayRecord is one finished game as held in the replay store - everything needed to play it back
+ */
+package replay;
+
+import constants.Constants;
+import game.GameOfNim;
+import game.NimVariant;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Immutable record of a finished game, stored compactly.
+ * Numbers are varints - 7 bits a byte, low bits first, top bit set on every byte but the last -
+ * so small numbers take a single byte. Layout:
+ *   varint game id, varint start millis, varint duration millis, byte difficulty, byte flags,
+ *   variant (NimVariant.writeTo), varint player code + 1 and UTF name for player 0 and 1,
+ *   varint per initial heap, varint move count, varint per move.
+ * A move is stored as marbles taken x heap count + heap, which is the marbles taken in a classic
+ * game - so a move takes one byte until it is 128 or more.
+ * @author Chris
+ */
+public final class ReplayRecord {
+    // Flag bits
+    public static final int FIRST_PLAYER = 1; // Player 1 moved first, otherwise player 0
+    public static final int WINNER = 2;       // Player 1 won, otherwise player 0
+    public static final int HUMAN_0 = 4;      // Player 0 is human
+    public static final int HUMAN_1 = 8;      // Player 1 is human
+    public static final int FORFEIT = 16;     // Player ran out of time, left or made too many illegal moves
+    public static final int FAILED = 32;      // Player could not be reached
+
+    private final long gameId;
+    private final long startMillis;
+    private final long endMillis;
+    private final int difficulty;
+    private final int flags;
+    private final NimVariant variant;
+    private final int[] playerCodes;
+    private final String[] names;
+    private final int[] initialHeaps;
+    private final int[] moves;      // Marbles taken on each turn
+    private final int[] moveHeaps;  // Heap taken from on each turn
+
+    /**
+     * Constructor, the arrays are copied
+     * @param gameId Game's unique id
+     * @param startMillis Wall clock time the game started
+     * @param endMillis Wall clock time the game ended
+     * @param difficulty EASY or HARD
+     * @param flags FIRST_PLAYER, WINNER, HUMAN_0, HUMAN_1, FORFEIT and FAILED bits
+     * @param variant Rules of the game
+     * @param playerCodes Codes of player 0 and 1, -1 for a computer
+     * @param names Names of player 0 and 1
+     * @param initialHeaps Heaps the game started with
+     * @param moves Marbles taken on each turn
+     * @param moveHeaps Heap taken from on each turn
+     */
+    public ReplayRecord(long gameId, long startMillis, long endMillis, int difficulty, int flags, NimVariant variant,
+            int[] playerCodes, String[] names, int[] initialHeaps, int[] moves, int[] moveHeaps) {
+        this.gameId = gameId;
+        this.startMillis = startMillis;
+        this.endMillis = endMillis;
+        this.difficulty = difficulty;
+        this.flags = flags;
+        this.variant = variant;
+        this.playerCodes = playerCodes.clone();
+        this.names = names.clone();
+        this.initialHeaps = initialHeaps.clone();
+        this.moves = moves.clone();
+        this.moveHeaps = moveHeaps.clone();
+    }
+
+    /**
+     * Builds the record of a finished game
+     * @param game The game
+     * @return The record
+     */
+    public static ReplayRecord of(GameOfNim game) {
+        int flags = (game.getFirstPlayer() == 1 ? FIRST_PLAYER : 0) | (game.getWinner() == 1 ? WINNER : 0)
+                | (game.isHuman(0) ? HUMAN_0 : 0) | (game.isHuman(1) ? HUMAN_1 : 0)
+                | (game.isForfeit() ? FORFEIT : 0) | (game.isFailed() ? FAILED : 0);
+
+        return new ReplayRecord(game.getGameId(), game.getStartMillis(), game.getEndMillis(), game.getDifficulty(),
+                flags, game.getVariant(), new int[] {game.getPlayerCode(0), game.getPlayerCode(1)},
+                new String[] {game.getName(0), game.getName(1)}, game.getInitialHeaps(), game.getMoves(),
+                game.getMoveHeaps());
+    }
+
+    /**
+     * Encodes the record
+     * @return The record's bytes
+     */
+    public byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 + moves.length);
+        DataOutputStream out = new DataOutputStream(bytes);
+        int heapCount = variant.getHeapCount();
+
+        try {
+            writeVarint(out, gameId);
+            writeVarint(out, startMillis);
+            writeVarint(out, Math.max(endMillis - startMillis, 0));
+            out.writeByte(difficulty);
+            out.writeByte(flags);
+            variant.writeTo(out);
+
+            for (int t = 0; t < 2; t++) {
+                writeVarint(out, playerCodes[t] + 1L); // Computers are -1
+                out.writeUTF(names[t]);
+            }
+
+            for (int heap : initialHeaps) {
+                writeVarint(out, heap);
+            }
+
+            writeVarint(out, moves.length);
+            for (int m = 0; m < moves.length; m++) {
+                writeVarint(out, (long) moves[m] * heapCount + moveHeaps[m]);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // Not thrown by a ByteArrayOutputStream
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes a record written by toBytes
+     * @param bytes The record's bytes
+     * @return The record
+     * @throws IOException If the bytes are not a record
+     */
+    public static ReplayRecord fromBytes(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        long gameId = readVarint(in);
+        long startMillis = readVarint(in);
+        long endMillis = startMillis + readVarint(in);
+        int difficulty = in.readUnsignedByte();
+        int flags = in.readUnsignedByte();
+        NimVariant variant = NimVariant.readFrom(in);
+        int heapCount = variant.getHeapCount();
+        int[] playerCodes = new int[2];
+        String[] names = new String[2];
+        int[] initialHeaps = new int[heapCount];
+        int[] moves;
+        int[] moveHeaps;
+
+        for (int t = 0; t < 2; t++) {
+            playerCodes[t] = (int) readVarint(in) - 1;
+            names[t] = in.readUTF();
+        }
+
+        for (int h = 0; h < heapCount; h++) {
+            initialHeaps[h] = (int) readVarint(in);
+        }
+
+        long count = readVarint(in);
+
+        if (count > in.available()) { // Every move takes atleast a byte
+            throw new IOException("Bad move count " + count + " in replay of game " + gameId);
+        }
+
+        moves = new int[(int) count];
+        moveHeaps = new int[moves.length];
+        for (int m = 0; m < moves.length; m++) {
+            long move = readVarint(in);
+
+            moves[m] = (int) (move / heapCount);
+            moveHeaps[m] = (int) (move % heapCount);
+        }
+
+        return new ReplayRecord(gameId, startMillis, endMillis, difficulty, flags, variant, playerCodes, names,
+                initialHeaps, moves, moveHeaps);
+    }
+
+    /**
+     * Writes a varint
+     * @param out Destination
+     * @param value Value, not negative
+     * @throws IOException If the value cannot be written
+     */
+    static void writeVarint(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * Reads a varint
+     * @param in Source
+     * @return The value
+     * @throws IOException If the varint is cut short or too long
+     */
+    static long readVarint(DataInput in) throws IOException {
+        long value = 0;
+
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint too long");
+    }
+
+    /**
+     * Plays the game back as the lines its players saw
+     * @return The start of the game, each move and the result
+     */
+    public String[] playBack() {
+        List<String> lines = new ArrayList<>(moves.length + 2);
+        int[] heaps = initialHeaps.clone();
+        int player = getFirstPlayer();
+        int marbles = 0;
+
+        for (int heap : heaps) {
+            marbles += heap;
+        }
+
+        lines.add("Game " + gameId + ": " + names[0] + " v " + names[1] + ", " + variant + ", "
+                + (difficulty == Constants.EASY ? "Easy" : "Hard") + ", " + new Date(startMillis) + " - "
+                + (variant.isClassic() ? marbles + " marbles" : "heaps " + heapsText(heaps))
+                + ", " + names[player] + " first");
+
+        for (int m = 0; m < moves.length; m++) {
+            heaps[moveHeaps[m]] -= moves[m];
+            marbles -= moves[m];
+
+            if (variant.isClassic()) {
+                lines.add(names[player] + " has taken " + moves[m] + " marbles, leaving " + marbles + " marbles");
+            }
+            else {
+                lines.add(names[player] + " has taken " + moves[m] + " marbles from heap " + (moveHeaps[m] + 1)
+                        + ", leaving " + heapsText(heaps));
+            }
+            player = 1 - player;
+        }
+
+        lines.add(names[getWinner()] + " wins" + (isForfeit() ? " by forfeit" : "")
+                + " (" + (endMillis - startMillis) / 1000 + "s)");
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    /**
+     * Lists the heaps as the players saw them
+     * @param heaps Heap sizes
+     * @return heap sizes separated by spaces
+     */
+    private static String heapsText(int[] heaps) {
+        StringBuilder text = new StringBuilder();
+
+        for (int heapSize : heaps) {
+            text.append(text.length() > 0 ? " " : "").append(heapSize);
+        }
+        return text.toString();
+    }
+
+    public long getGameId() {
+        return gameId;
+    }
+
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    public long getEndMillis() {
+        return endMillis;
+    }
+
+    public int getDifficulty() {
+        return difficulty;
+    }
+
+    public NimVariant getVariant() {
+        return variant;
+    }
+
+    /**
+     * Returns a player's code
+     * @param t The player (0 or 1)
+     * @return player code, -1 for a computer player
+     */
+    public int getPlayerCode(int t) {
+        return playerCodes[t];
+    }
+
+    public String getName(int t) {
+        return names[t];
+    }
+
+    public boolean isHuman(int t) {
+        return (flags & (t == 0 ? HUMAN_0 : HUMAN_1)) != 0;
+    }
+
+    public int getFirstPlayer() {
+        return (flags & FIRST_PLAYER) != 0 ? 1 : 0;
+    }
+
+    public int getWinner() {
+        return (flags & WINNER) != 0 ? 1 : 0;
+    }
+
+    public boolean isForfeit() {
+        return (flags & FORFEIT) != 0;
+    }
+
+    public boolean isFailed() {
+        return (flags & FAILED) != 0;
+    }
+
+    public int[] getInitialHeaps() {
+        return initialHeaps.clone();
+    }
+
+    public int[] getMoves() {
+        return moves.clone();
+    }
+
+    public int[] getMoveHeaps() {
+        return moveHeaps.clone();
+    }
+}
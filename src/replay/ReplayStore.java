@@ -0,0 +1,741 @@
+/**
+ * ReplayStore keeps the moves of every finished game in segment files indexed by game id
+ */
+package replay;
+
+import game.GameOfNim;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append only store of game replays.
+ * Records go into numbered segment files, a new segment is started when one fills. Each record is
+ * framed as: varint length, ReplayRecord bytes, int CRC32 of the bytes. A full segment gets an
+ * index file - its game ids, sorted, each with the record's offset. Full segments and their
+ * indexes are mapped read only, so finding a replay is a binary search of the index and reading it
+ * is a copy out of the mapping, with no system calls and no file left open. The segment being
+ * written is indexed in memory and read with positional reads.
+ * As with the game journal, finishing games only queue their record and a single writer thread
+ * writes batches, forcing each batch to disk once.
+ * Opening the store checks each segment against its index - a segment without a matching index,
+ * which can only be the last one, is scanned, cut back to its last complete record and indexed.
+ * @author Chris
+ */
+public class ReplayStore implements GameOfNim.GameListener {
+    // System properties used to configure the replay store
+    public static final String DIR_PROPERTY = "nim.replay.dir";           // Replay directory, "none" to turn replays off
+    public static final String SEGMENT_PROPERTY = "nim.replay.segmentMB"; // Size a segment is filled to
+    public static final String QUEUE_PROPERTY = "nim.replay.queue";       // Records waiting to be written
+
+    public static final String DEFAULT_DIR = "nim-replays";
+    public static final int DEFAULT_SEGMENT = 16;
+    public static final int DEFAULT_QUEUE = 65536;
+
+    static final int MAGIC = 0x4E494D52;       // "NIMR", starts a segment file
+    static final int INDEX_MAGIC = 0x4E494D58; // "NIMX", starts an index file
+    static final int FORMAT = 1;
+    static final int HEADER = 6;               // Segment header - magic and format
+    static final int INDEX_HEADER = 18;        // Index header - magic, format, int entries, long segment length
+    static final int INDEX_ENTRY = 12;         // long game id, int offset
+    static final int MAX_RECORD = 1 << 20;     // Largest record accepted, anything bigger is a corrupt length
+
+    /**
+     * A full segment, mapped read only with its index
+     */
+    private static final class Segment {
+        final MappedByteBuffer data;
+        final MappedByteBuffer index;
+        final int entries;
+        final long minId;
+        final long maxId;
+
+        Segment(MappedByteBuffer data, MappedByteBuffer index) {
+            this.data = data;
+            this.index = index;
+            this.entries = index.getInt(6);
+            this.minId = entries > 0 ? index.getLong(INDEX_HEADER) : Long.MAX_VALUE;
+            this.maxId = entries > 0 ? index.getLong(INDEX_HEADER + (entries - 1) * INDEX_ENTRY) : Long.MIN_VALUE;
+        }
+
+        /**
+         * Finds a game's record
+         * @param gameId The game's id
+         * @return Offset of the record, -1 if the game is not in this segment
+         */
+        int find(long gameId) {
+            int low = 0;
+            int high = entries - 1;
+
+            if (gameId < minId || gameId > maxId) {
+                return -1;
+            }
+
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                long id = index.getLong(INDEX_HEADER + mid * INDEX_ENTRY);
+
+                if (id < gameId) {
+                    low = mid + 1;
+                }
+                else if (id > gameId) {
+                    high = mid - 1;
+                }
+                else {
+                    return index.getInt(INDEX_HEADER + mid * INDEX_ENTRY + 8);
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * The segment being written with its index, replaced as a whole when the segment is sealed
+     */
+    private static final class Active {
+        final int number;
+        final FileChannel channel;
+        final Map<Long, Integer> index; // Offset of each game's record
+
+        Active(int number, FileChannel channel, Map<Long, Integer> index) {
+            this.number = number;
+            this.channel = channel;
+            this.index = index;
+        }
+    }
+
+    private final Path dir;
+    private final long segmentBytes;
+    private final ArrayBlockingQueue<ReplayRecord> queue; // Records waiting for the writer thread
+    private final Thread writer;
+
+    private volatile Segment[] sealed = new Segment[0]; // Full segments, newest first
+    private volatile Active active;                     // Segment being written
+    private long activeLength;                          // Bytes in the segment being written, writer thread only
+
+    private final AtomicLong highestGameId = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();  // Records written
+    private final AtomicLong dropped = new AtomicLong();  // Records lost because the queue was full
+    private final AtomicLong moves = new AtomicLong();    // Moves in the records written
+    private final AtomicLong bytes = new AtomicLong();    // Bytes of the records written, framing included
+    private volatile boolean closed;
+
+    /**
+     * Opens the store, appending after any replays already in the directory
+     * @param dir Replay directory, created if needed
+     * @param segmentBytes Size a segment is filled to
+     * @param queueSize Records allowed to wait for the writer thread
+     * @throws IOException If the store cannot be opened
+     */
+    public ReplayStore(Path dir, long segmentBytes, int queueSize) throws IOException {
+        List<Integer> numbers = new ArrayList<>();
+        List<Segment> full = new ArrayList<>();
+
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        queue = new ArrayBlockingQueue<>(queueSize);
+        Files.createDirectories(dir);
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "replay-*.seg")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+
+                numbers.add(Integer.parseInt(name.substring(7, name.length() - 4)));
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Unexpected file in replay directory " + dir, e);
+        }
+        Collections.sort(numbers);
+
+        for (int n = 0; n < numbers.size() - 1; n++) {
+            full.add(openSealed(numbers.get(n)));
+        }
+        Collections.reverse(full);
+        sealed = full.toArray(new Segment[full.size()]);
+
+        openActive(numbers.isEmpty() ? 1 : numbers.get(numbers.size() - 1));
+
+        writer = new Thread(this::writeRecords, "Nim replay writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Opens the store named by the nim.replay.dir system property
+     * @return The store, null if replays are turned off or the store cannot be opened
+     */
+    public static ReplayStore fromSystemProperties() {
+        String name = System.getProperty(DIR_PROPERTY, DEFAULT_DIR);
+
+        if ("none".equalsIgnoreCase(name)) {
+            return null;
+        }
+
+        try {
+            ReplayStore store = new ReplayStore(Paths.get(name), Integer.getInteger(SEGMENT_PROPERTY, DEFAULT_SEGMENT) * (1L << 20),
+                    Integer.getInteger(QUEUE_PROPERTY, DEFAULT_QUEUE));
+
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> { // Write whatever is still queued
+                try {
+                    store.close();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+            return store;
+        } catch (IOException e) {
+            System.out.println("Error opening replay store " + name + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Records a finished game, called on the game's thread. Never blocks.
+     * @param game The finished game
+     */
+    @Override
+    public void gameOver(GameOfNim game) {
+        append(ReplayRecord.of(game));
+    }
+
+    /**
+     * Queues a record for the writer thread
+     * @param record The record
+     * @return true = queued, false = dropped because the writer has fallen behind or the store is closed
+     */
+    public boolean append(ReplayRecord record) {
+        if (closed || !queue.offer(record)) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads a game's replay, from any thread
+     * @param gameId The game's id
+     * @return The replay, null if the game is not in the store
+     * @throws IOException If the record cannot be read
+     */
+    public ReplayRecord read(long gameId) throws IOException {
+        Active current = active; // Read before the sealed segments - a segment is sealed before it stops being active
+        Integer offset = current.index.get(gameId);
+
+        if (offset != null) {
+            try {
+                return readActive(current.channel, offset);
+            } catch (ClosedChannelException e) { // Sealed meanwhile, read it from the mapping
+                return read(gameId);
+            }
+        }
+
+        for (Segment segment : sealed) { // Newest first, recent games are asked for most
+            int found = segment.find(gameId);
+
+            if (found >= 0) {
+                ByteBuffer data = segment.data.duplicate();
+
+                data.position(found);
+                return decode(data, data.limit() - found);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads a record from the segment being written
+     * @param channel The segment
+     * @param offset Where the record starts
+     * @return The record
+     * @throws IOException If the record cannot be read
+     */
+    private ReplayRecord readActive(FileChannel channel, int offset) throws IOException {
+        ByteBuffer frame = ByteBuffer.allocate(256);
+        int length;
+
+        channel.read(frame, offset);
+        frame.flip();
+        length = peekLength(frame);
+
+        if (length > frame.remaining()) { // Longer record than the first read held
+            ByteBuffer whole = ByteBuffer.allocate(length);
+
+            while (whole.hasRemaining() && channel.read(whole, offset + whole.position()) >= 0) {
+                // Keep reading
+            }
+            whole.flip();
+            frame = whole;
+        }
+        return decode(frame, frame.remaining());
+    }
+
+    /**
+     * Returns the size of the frame starting at a buffer's position, without moving it
+     * @param frame Buffer positioned at a frame
+     * @return Frame size - length, record and checksum, -1 if the length is cut short or corrupt
+     */
+    static int peekLength(ByteBuffer frame) {
+        int length = 0;
+
+        for (int b = 0; b < 4 && frame.position() + b < frame.limit(); b++) {
+            int value = frame.get(frame.position() + b);
+
+            length |= (value & 0x7F) << (7 * b);
+            if ((value & 0x80) == 0) {
+                return length > MAX_RECORD ? -1 : b + 1 + length + 4;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Decodes the frame at a buffer's position
+     * @param frame Buffer positioned at a frame, moved past it
+     * @param available Bytes available from the position
+     * @return The record
+     * @throws IOException If the frame is incomplete or corrupt
+     */
+    private static ReplayRecord decode(ByteBuffer frame, int available) throws IOException {
+        byte[] record = readFrame(frame, available);
+
+        if (record == null) {
+            throw new IOException("Corrupt replay record");
+        }
+        return ReplayRecord.fromBytes(record);
+    }
+
+    /**
+     * Reads a frame and checks it
+     * @param frame Buffer positioned at a frame, moved past it if it is complete
+     * @param available Bytes available from the position
+     * @return The record's bytes, null if the frame is incomplete or corrupt
+     */
+    private static byte[] readFrame(ByteBuffer frame, int available) {
+        int size = peekLength(frame);
+        int start = frame.position();
+        CRC32 crc = new CRC32();
+        byte[] record;
+
+        if (size < 0 || size > available) {
+            return null;
+        }
+
+        while (frame.get() < 0) { // Skip the length, its last byte has the top bit clear
+        }
+
+        record = new byte[size - 4 - (frame.position() - start)];
+        frame.get(record);
+        crc.update(record, 0, record.length);
+        return (int) crc.getValue() == frame.getInt() ? record : null;
+    }
+
+    /**
+     * Writer thread - takes every queued record, writes them and forces the batch to disk
+     */
+    private void writeRecords() {
+        List<ReplayRecord> batch = new ArrayList<>();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(1 << 16);
+        DataOutputStream out = new DataOutputStream(buffer);
+        List<Long> ids = new ArrayList<>();        // Game id of each record framed in the buffer
+        List<Integer> starts = new ArrayList<>();  // Where each record starts in the buffer
+        ReplayRecord first;
+
+        try {
+            while (!closed || !queue.isEmpty()) {
+                first = queue.poll(100, TimeUnit.MILLISECONDS);
+
+                if (first == null) {
+                    continue;
+                }
+
+                batch.add(first);
+                queue.drainTo(batch);
+
+                for (ReplayRecord record : batch) {
+                    byte[] bytes = record.toBytes();
+                    CRC32 crc = new CRC32();
+                    int start = buffer.size();
+
+                    crc.update(bytes, 0, bytes.length);
+                    ReplayRecord.writeVarint(out, bytes.length);
+                    out.write(bytes);
+                    out.writeInt((int) crc.getValue());
+
+                    if (activeLength + buffer.size() > segmentBytes && activeLength + start > HEADER) { // Segment full
+                        byte[] rest = Arrays.copyOfRange(buffer.toByteArray(), start, buffer.size());
+
+                        flush(buffer.toByteArray(), start, ids, starts);
+                        seal();
+                        buffer.reset();
+                        buffer.write(rest);
+                        ids.clear();
+                        starts.clear();
+                        start = 0;
+                    }
+
+                    ids.add(record.getGameId());
+                    starts.add(start);
+                    moves.addAndGet(record.getMoves().length);
+                }
+
+                flush(buffer.toByteArray(), buffer.size(), ids, starts);
+                written.addAndGet(batch.size());
+                buffer.reset();
+                ids.clear();
+                starts.clear();
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            Logger.getLogger(ReplayStore.class.getName()).log(Level.SEVERE, null, e);
+            System.out.println("Error writing replays, replays stopped: " + e.getMessage());
+            closed = true;
+        }
+    }
+
+    /**
+     * Appends framed records to the segment being written, forces them to disk and indexes them
+     * @param frames Framed records
+     * @param length Bytes of frames to write
+     * @param ids Game id of each record in the frames
+     * @param starts Where each record starts in the frames
+     * @throws IOException If the segment cannot be written
+     */
+    private void flush(byte[] frames, int length, List<Long> ids, List<Integer> starts) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(frames, 0, length);
+        Active current = active;
+
+        while (data.hasRemaining()) {
+            current.channel.write(data, activeLength + data.position());
+        }
+        current.channel.force(false); // Group commit
+
+        for (int r = 0; r < ids.size(); r++) { // Readers can find the records once they are on disk
+            current.index.put(ids.get(r), (int) (activeLength + starts.get(r)));
+            highestGameId.accumulateAndGet(ids.get(r), Math::max);
+        }
+
+        activeLength += length;
+        bytes.addAndGet(length);
+    }
+
+    /**
+     * Finishes the segment being written - writes its index, maps it and starts the next segment
+     * @throws IOException If the index cannot be written or the next segment started
+     */
+    private void seal() throws IOException {
+        Active current = active;
+
+        writeIndex(current.number, current.index, activeLength);
+
+        Segment segment = mapSegment(current.number);
+        Segment[] full = new Segment[sealed.length + 1];
+
+        full[0] = segment;
+        System.arraycopy(sealed, 0, full, 1, sealed.length);
+        sealed = full; // Readers find the segment here before it stops being active
+        openActive(current.number + 1);
+        current.channel.close();
+    }
+
+    /**
+     * Opens a full segment, indexing it first if its index is missing or out of date
+     * @param number Segment number
+     * @return The mapped segment
+     * @throws IOException If the segment cannot be read
+     */
+    private Segment openSealed(int number) throws IOException {
+        if (!indexMatches(number)) {
+            Map<Long, Integer> index = new ConcurrentHashMap<>();
+            long length = scan(number, index);
+
+            writeIndex(number, index, length);
+        }
+        return mapSegment(number);
+    }
+
+    /**
+     * Opens a segment for writing, creating it or carrying on after its last complete record
+     * @param number Segment number
+     * @throws IOException If the segment cannot be opened
+     */
+    private void openActive(int number) throws IOException {
+        Map<Long, Integer> index = new ConcurrentHashMap<>();
+        FileChannel channel;
+
+        if (indexMatches(number)) { // Closed cleanly, no need to scan it
+            activeLength = readIndex(number, index);
+        }
+        else if (Files.exists(segmentFile(number))) {
+            activeLength = scan(number, index);
+        }
+        else {
+            activeLength = 0;
+        }
+
+        channel = FileChannel.open(segmentFile(number), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+
+        if (activeLength == 0) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+
+            header.putInt(MAGIC).putShort((short) FORMAT).flip();
+            channel.write(header, 0);
+            channel.force(false);
+            activeLength = HEADER;
+        }
+
+        active = new Active(number, channel, index);
+    }
+
+    /**
+     * Reads a segment's index
+     * @param number Segment number
+     * @param index Filled with the offset of each game's record
+     * @return Length of the segment the index describes
+     * @throws IOException If the index cannot be read
+     */
+    private long readIndex(int number, Map<Long, Integer> index) throws IOException {
+        ByteBuffer entries = ByteBuffer.wrap(Files.readAllBytes(indexFile(number)));
+        int count = entries.getInt(6);
+
+        entries.position(INDEX_HEADER);
+        for (int e = 0; e < count; e++) {
+            long gameId = entries.getLong();
+
+            index.put(gameId, entries.getInt());
+            highestGameId.accumulateAndGet(gameId, Math::max);
+        }
+        return entries.getLong(10);
+    }
+
+    /**
+     * Reads a segment's records, cutting off an incomplete or corrupt last record
+     * @param number Segment number
+     * @param index Filled with the offset of each game's record
+     * @return Length of the segment's complete records
+     * @throws IOException If the file cannot be read or is not a segment
+     */
+    private long scan(int number, Map<Long, Integer> index) throws IOException {
+        Path file = segmentFile(number);
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            byte[] record;
+
+            if (data.limit() < HEADER || data.getInt(0) != MAGIC || data.getShort(4) != FORMAT) {
+                throw new IOException("Not a replay segment: " + file);
+            }
+
+            data.position(HEADER);
+            while (true) {
+                int offset = data.position();
+
+                record = readFrame(data, data.limit() - offset);
+                if (record == null) {
+                    break;
+                }
+
+                long gameId = ReplayRecord.fromBytes(record).getGameId();
+
+                index.put(gameId, offset);
+                highestGameId.accumulateAndGet(gameId, Math::max);
+            }
+
+            if (data.position() < channel.size()) { // Torn write when the server stopped
+                System.out.println("Replay segment " + file + " cut back from " + channel.size() + " to "
+                        + data.position() + " bytes");
+                channel.truncate(data.position());
+            }
+            return data.position();
+        }
+    }
+
+    /**
+     * Writes a segment's index, replacing any old one in one step
+     * @param number Segment number
+     * @param index Offset of each game's record
+     * @param length Length of the segment the index describes
+     * @throws IOException If the index cannot be written
+     */
+    private void writeIndex(int number, Map<Long, Integer> index, long length) throws IOException {
+        Long[] ids = index.keySet().toArray(new Long[index.size()]);
+        ByteBuffer buffer = ByteBuffer.allocate(INDEX_HEADER + ids.length * INDEX_ENTRY);
+        Path file = indexFile(number);
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+
+        Arrays.sort(ids);
+        buffer.putInt(INDEX_MAGIC).putShort((short) FORMAT).putInt(ids.length).putLong(length);
+        for (Long id : ids) {
+            buffer.putLong(id).putInt(index.get(id));
+        }
+        buffer.flip();
+
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Checks a segment has an index written when it was its current length
+     * @param number Segment number
+     * @return true = the index can be used
+     * @throws IOException If the files cannot be read
+     */
+    private boolean indexMatches(int number) throws IOException {
+        Path file = indexFile(number);
+
+        if (!Files.exists(file)) {
+            return false;
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER);
+
+            channel.read(header, 0);
+            return header.position() == INDEX_HEADER && header.getInt(0) == INDEX_MAGIC
+                    && channel.size() == INDEX_HEADER + (long) header.getInt(6) * INDEX_ENTRY
+                    && header.getLong(10) == Files.size(segmentFile(number));
+        }
+    }
+
+    /**
+     * Maps a full segment and its index read only, the files are closed once mapped
+     * @param number Segment number
+     * @return The mapped segment
+     * @throws IOException If the files cannot be mapped
+     */
+    private Segment mapSegment(int number) throws IOException {
+        MappedByteBuffer data;
+        MappedByteBuffer index;
+
+        try (FileChannel channel = FileChannel.open(segmentFile(number), StandardOpenOption.READ)) {
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        try (FileChannel channel = FileChannel.open(indexFile(number), StandardOpenOption.READ)) {
+            index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        return new Segment(data, index);
+    }
+
+    private Path segmentFile(int number) {
+        return dir.resolve(String.format("replay-%06d.seg", number));
+    }
+
+    private Path indexFile(int number) {
+        return dir.resolve(String.format("replay-%06d.idx", number));
+    }
+
+    /**
+     * Returns the highest game id in the store, new games must be given higher ids
+     * @return game id, 0 if the store is empty
+     */
+    public long getHighestGameId() {
+        return highestGameId.get();
+    }
+
+    /**
+     * Returns the number of records written by this store
+     * @return records written
+     */
+    public long getWritten() {
+        return written.get();
+    }
+
+    /**
+     * Returns the number of records dropped because the writer had fallen behind
+     * @return records dropped
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Returns the bytes written for each move, framing and game details included
+     * @return bytes per move, 0 if nothing has been written
+     */
+    public double getBytesPerMove() {
+        return moves.get() == 0 ? 0 : (double) bytes.get() / moves.get();
+    }
+
+    /**
+     * Writes everything queued, then writes the index of the segment being written and closes it
+     * @throws InterruptedException
+     */
+    public void close() throws InterruptedException {
+        closed = true;
+        writer.join();
+
+        try {
+            writeIndex(active.number, active.index, activeLength); // Saves a scan when the store is next opened
+            active.channel.close();
+        } catch (IOException e) {
+            System.out.println("Error closing replay store: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Prints a game's replay, or a summary of the store
+     * @param args Optional game id, then optional replay directory, default nim-replays
+     * @throws Exception If the store cannot be read
+     */
+    public static void main(String[] args) throws Exception {
+        Path dir = Paths.get(args.length > 1 ? args[1] : DEFAULT_DIR);
+        ReplayStore store = new ReplayStore(dir, Long.MAX_VALUE, 1);
+
+        try {
+            if (args.length > 0) {
+                ReplayRecord record = store.read(Long.parseLong(args[0]));
+
+                if (record == null) {
+                    System.out.println("No replay of game " + args[0] + " in " + dir);
+                    return;
+                }
+                for (String line : record.playBack()) {
+                    System.out.println(line);
+                }
+                return;
+            }
+
+            long games = store.active.index.size();
+            long size = Files.size(store.segmentFile(store.active.number));
+
+            for (Segment segment : store.sealed) {
+                games += segment.entries;
+                size += segment.data.limit();
+            }
+            System.out.println("Replays in " + dir + ": " + games + " games, " + size + " bytes in "
+                    + (store.sealed.length + 1) + " segments, highest game id " + store.getHighestGameId());
+        } finally {
+            store.close();
+        }
+    }
+}
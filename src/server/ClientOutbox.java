@@ -0,0 +1,258 @@
+/**
+ * ClientOutbox queues console messages and calls for one client and delivers them in batches
+ *
+ * @author Chris
+ */
+
+package server;
+
+import client.NimClientInterface;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import metrics.NimMetrics;
+
+/**
+ * Per client message pipeline.
+ * Messages and calls are queued without blocking the sender and delivered in the order they
+ * were queued on a delivery thread. Consecutive messages are sent together in a single
+ * serverMessages call. Messages are only console output - a batch that fails is tried once more
+ * and then dropped, and when the client falls too far behind the overflow policy decides whether
+ * new messages are dropped. Calls carry the game itself, so each is made exactly once and in
+ * order: a call that fails, or that does not fit in the queue, gives up on the client.
+ */
+public class ClientOutbox {
+    // What to do when a client's queue is full of messages, a call that does not fit always gives up on the client
+    public enum OverflowPolicy {
+        DROP,      // Discard the new message
+        DISCONNECT // Give up on the client
+    }
+
+    /**
+     * A call to make on the client, in order with the queued messages
+     */
+    public interface ClientCall {
+        public void call(NimClientInterface client) throws RemoteException;
+    }
+
+    /**
+     * Queued call along with the metric its latency is recorded under
+     */
+    private static class QueuedCall {
+        final NimMetrics.RemoteCall type;
+        final ClientCall call;
+
+        QueuedCall(NimMetrics.RemoteCall type, ClientCall call) {
+            this.type = type;
+            this.call = call;
+        }
+    }
+
+    // System properties used to configure outboxes
+    public static final String SIZE_PROPERTY = "nim.outbox.size";     // Queued messages per client
+    public static final String POLICY_PROPERTY = "nim.outbox.policy"; // "drop" (default) or "disconnect"
+
+    public static final int DEFAULT_SIZE = 256;
+
+    private final NimClientInterface client;        // Client the messages are for
+    private final ArrayBlockingQueue<Object> queue; // Messages (String) and calls (QueuedCall) waiting to be sent
+    private final Executor executor;                // Runs deliveries
+    private final OverflowPolicy policy;            // Applied when the queue is full
+    private final Runnable disconnectListener;      // Told when the client is given up on
+
+    private final AtomicBoolean deliveryScheduled = new AtomicBoolean(); // A delivery task is queued or running
+    private final AtomicBoolean closed = new AtomicBoolean(); // Client has been disconnected
+
+    /**
+     * Constructs an outbox
+     * @param client Client the messages are for
+     * @param size Maximum number of undelivered messages and calls
+     * @param policy What to do when the queue is full
+     * @param executor Runs the deliveries
+     * @param disconnectListener Called once if the client is disconnected, may be null
+     */
+    public ClientOutbox(NimClientInterface client, int size, OverflowPolicy policy, Executor executor, Runnable disconnectListener) {
+        this.client = client;
+        this.policy = policy;
+        this.executor = executor;
+        this.disconnectListener = disconnectListener;
+        queue = new ArrayBlockingQueue<>(size);
+    }
+
+    /**
+     * Reads the overflow policy from the nim.outbox.policy system property
+     * @return The configured policy
+     */
+    public static OverflowPolicy policyFromSystemProperties() {
+        return "disconnect".equalsIgnoreCase(System.getProperty(POLICY_PROPERTY)) ? OverflowPolicy.DISCONNECT : OverflowPolicy.DROP;
+    }
+
+    /**
+     * Queues a message for the client, never blocks
+     * @param message Message to display on the client console
+     * @return true = queued, false = dropped
+     */
+    public boolean send(String message) {
+        return enqueue(message);
+    }
+
+    /**
+     * Queues a call to the client, made after everything queued before it has been delivered
+     * @param type Metric the call's latency is recorded under
+     * @param call The call to make
+     * @return true = queued, false = dropped
+     */
+    public boolean send(NimMetrics.RemoteCall type, ClientCall call) {
+        return enqueue(new QueuedCall(type, call));
+    }
+
+    /**
+     * Returns whether the client has been disconnected
+     * @return true = disconnected
+     */
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    /**
+     * Adds a message or call to the queue and makes sure a delivery is scheduled
+     * @param item String or QueuedCall
+     * @return true = queued, false = dropped
+     */
+    private boolean enqueue(Object item) {
+        if(closed.get()) {
+            return false;
+        }
+
+        if(!queue.offer(item)) { // Client is not keeping up
+            if(policy == OverflowPolicy.DISCONNECT || item instanceof QueuedCall) { // A lost call would stall their game
+                disconnect();
+            }
+            return false;
+        }
+
+        if(deliveryScheduled.compareAndSet(false, true)) {
+            executor.execute(this::deliver);
+        }
+        return true;
+    }
+
+    /**
+     * Delivers everything queued so far, repeating until the queue is empty
+     */
+    private void deliver() {
+        List<Object> pending = new ArrayList<>();
+        List<String> messages = new ArrayList<>();
+
+        do {
+            while(queue.drainTo(pending) > 0) {
+                for(Object item : pending) {
+                    if(item instanceof String) { // Collect consecutive messages into one batch
+                        messages.add((String) item);
+                    }
+                    else {
+                        flushMessages(messages);
+                        makeCall((QueuedCall) item);
+                    }
+                }
+
+                flushMessages(messages);
+                pending.clear();
+            }
+
+            deliveryScheduled.set(false);
+
+            // A message may have arrived after the queue was found empty, carry on if so and nobody else has
+        } while(!queue.isEmpty() && deliveryScheduled.compareAndSet(false, true));
+    }
+
+    /**
+     * Sends a batch of messages in one call, trying once more if it fails. Losing console output
+     * is not enough to give up on the client - one that has really gone stops renewing its lease
+     * and the lobby's LeaseMonitor evicts it.
+     * @param messages Messages to send, cleared afterwards
+     */
+    private void flushMessages(List<String> messages) {
+        if(messages.isEmpty()) {
+            return;
+        }
+
+        final String[] batch = messages.toArray(new String[messages.size()]);
+
+        for(int attempt = 0; attempt < 2; attempt++) {
+            try {
+                if(!closed.get()) {
+                    call(NimMetrics.RemoteCall.SERVER_MESSAGES, c -> c.serverMessages(batch));
+                }
+                break;
+            } catch (RemoteException e) {
+                Logger.getLogger(ClientOutbox.class.getName()).log(Level.WARNING, "Error sending output to player console"
+                        + (attempt == 0 ? ", trying again: " : ", " + batch.length + " messages dropped: ") + e.getMessage());
+            }
+        }
+
+        messages.clear();
+    }
+
+    /**
+     * Makes a queued call on the client, once - a call that timed out may still have reached the
+     * client, so making it again could apply a move twice. If it fails the client is given up on.
+     * @param queuedCall The call
+     */
+    private void makeCall(QueuedCall queuedCall) {
+        if(closed.get()) {
+            return;
+        }
+
+        try {
+            call(queuedCall.type, queuedCall.call);
+        } catch (RemoteException e) {
+            Logger.getLogger(ClientOutbox.class.getName()).log(Level.WARNING, "Error calling player, " + queuedCall.type 
+                    + " failed: " + e.getMessage());
+            disconnect();
+        }
+    }
+
+    /**
+     * Makes a call on the client and records its latency
+     * @param type Metric the call's latency is recorded under
+     * @param call The call to make
+     * @throws RemoteException If the call fails
+     */
+    private void call(NimMetrics.RemoteCall type, ClientCall call) throws RemoteException {
+        long callStart = System.nanoTime();
+
+        call.call(client);
+        NimMetrics.shared().remoteCall(type, System.nanoTime() - callStart);
+    }
+
+    /**
+     * Closes the outbox when the lobby has already dropped the client - later messages are discarded
+     * and the disconnect listener is not called
+     */
+    public void close() {
+        if(closed.compareAndSet(false, true)) {
+            queue.clear();
+        }
+    }
+
+    /**
+     * Gives up on the client - later messages are discarded
+     */
+    private void disconnect() {
+        if(!closed.compareAndSet(false, true)) {
+            return;
+        }
+
+        queue.clear();
+
+        if(disconnectListener != null) {
+            disconnectListener.run();
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/**
+ * LeaseMonitor keeps track of which clients are still alive, so the lobby can evict the ones that are not
+ *
+ * @author Chris
+ */
+
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.rmi.server.RMISocketFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+/**
+ * Client liveness based on leases.
+ * Every client holds a lease which is renewed whenever the lobby hears from it - a move, a queue
+ * request or an answer to a heartbeat. A single timer thread sweeps the leases: clients that have
+ * been quiet for a heartbeat interval are sent a heartbeat, all in the same sweep, and clients that
+ * have been quiet for the whole lease are evicted. Renewing a lease replaces it in the map, so a
+ * sweep that has decided to evict a client can tell it was heard from in the meantime - the
+ * replacement is a single map update, cheap enough to do on every call.
+ */
+public class LeaseMonitor {
+    // System properties used to configure liveness checks
+    public static final String HEARTBEAT_PROPERTY = "nim.heartbeat.seconds"; // Quiet time before a client is sent a heartbeat
+    public static final String LEASE_PROPERTY = "nim.lease.seconds";         // Quiet time before a client is evicted, 0 = never
+    public static final String CALL_TIMEOUT_PROPERTY = "nim.callTimeout";    // Milliseconds a remote call to a client may block
+
+    public static final int DEFAULT_HEARTBEAT = 5;
+    public static final int DEFAULT_LEASE = 20;
+    public static final int DEFAULT_CALL_TIMEOUT = 10000;
+
+    /**
+     * RMI socket factory which gives up connecting to an unreachable client after a timeout
+     */
+    private static class TimeoutSocketFactory extends RMISocketFactory {
+        private final int timeoutMillis;
+
+        TimeoutSocketFactory(int timeoutMillis) {
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            Socket socket = new Socket();
+
+            socket.connect(new InetSocketAddress(host, port), timeoutMillis);
+            return socket;
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port) throws IOException {
+            return new ServerSocket(port);
+        }
+    }
+
+    /**
+     * Last time a client was heard from, replaced rather than changed when the client is heard from again
+     */
+    private static class Lease {
+        final long renewedAt = System.nanoTime();
+    }
+
+    private final ConcurrentHashMap<Integer, Lease> leases = new ConcurrentHashMap<>(); // Keyed by player code
+    private final long heartbeatNanos;  // Quiet time before a heartbeat is sent
+    private final long leaseNanos;      // Quiet time before a client is evicted
+    private final IntConsumer heartbeat; // Sends a heartbeat to a player
+    private final IntConsumer evictor;   // Removes a player from the lobby
+    private ScheduledExecutorService timer;
+
+    /**
+     * Constructor
+     * @param heartbeatSeconds Quiet time before a client is sent a heartbeat, also the time between sweeps
+     * @param leaseSeconds Quiet time before a client is evicted, 0 = never evict
+     * @param heartbeat Sends a heartbeat to the player with the given code, must not block
+     * @param evictor Removes the player with the given code from the lobby, must not block
+     */
+    public LeaseMonitor(int heartbeatSeconds, int leaseSeconds, IntConsumer heartbeat, IntConsumer evictor) {
+        this.heartbeatNanos = TimeUnit.SECONDS.toNanos(Math.max(heartbeatSeconds, 1));
+        this.leaseNanos = TimeUnit.SECONDS.toNanos(leaseSeconds);
+        this.heartbeat = heartbeat;
+        this.evictor = evictor;
+    }
+
+    /**
+     * Builds a monitor configured by the nim.heartbeat.seconds and nim.lease.seconds system properties
+     * @param heartbeat Sends a heartbeat to the player with the given code, must not block
+     * @param evictor Removes the player with the given code from the lobby, must not block
+     * @return The monitor, not yet started
+     */
+    public static LeaseMonitor fromSystemProperties(IntConsumer heartbeat, IntConsumer evictor) {
+        return new LeaseMonitor(Integer.getInteger(HEARTBEAT_PROPERTY, DEFAULT_HEARTBEAT),
+                Integer.getInteger(LEASE_PROPERTY, DEFAULT_LEASE), heartbeat, evictor);
+    }
+
+    /**
+     * Bounds how long an RMI call to a client can block, so a dead client holds up a delivery thread
+     * for atmost nim.callTimeout milliseconds to connect and the same again waiting for the reply.
+     * Must be called before the first call to a client, a response timeout given on the command line
+     * or a socket factory installed elsewhere is kept.
+     */
+    public static void boundRemoteCalls() {
+        int timeout = Integer.getInteger(CALL_TIMEOUT_PROPERTY, DEFAULT_CALL_TIMEOUT);
+
+        if(System.getProperty("sun.rmi.transport.tcp.responseTimeout") == null) { // Waiting for a reply
+            System.setProperty("sun.rmi.transport.tcp.responseTimeout", String.valueOf(timeout));
+        }
+
+        synchronized(LeaseMonitor.class) {
+            if(RMISocketFactory.getSocketFactory() == null) { // Opening a connection
+                try {
+                    RMISocketFactory.setSocketFactory(new TimeoutSocketFactory(timeout));
+                } catch (IOException e) {
+                    System.out.println("Error setting RMI connect timeout: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts sweeping the leases on a daemon thread
+     */
+    public synchronized void start() {
+        if(timer != null || leaseNanos == 0) {
+            return;
+        }
+
+        timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Nim lease monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleWithFixedDelay(this::sweep, heartbeatNanos, heartbeatNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stops sweeping the leases
+     */
+    public synchronized void stop() {
+        if(timer != null) {
+            timer.shutdownNow();
+            timer = null;
+        }
+    }
+
+    /**
+     * Gives a newly joined client a lease
+     * @param playerCode The player's code
+     */
+    public void register(int playerCode) {
+        leases.put(playerCode, new Lease());
+    }
+
+    /**
+     * Renews a client's lease, the lobby has just heard from it
+     * @param playerCode The player's code
+     */
+    public void renew(int playerCode) {
+        leases.computeIfPresent(playerCode, (code, lease) -> new Lease()); // Not if already evicted or left
+    }
+
+    /**
+     * Drops the lease of a client who has left
+     * @param playerCode The player's code
+     */
+    public void remove(int playerCode) {
+        leases.remove(playerCode);
+    }
+
+    /**
+     * Returns the number of clients holding a lease
+     * @return leases
+     */
+    public int size() {
+        return leases.size();
+    }
+
+    /**
+     * Sends heartbeats to quiet clients and evicts clients whose lease has run out
+     */
+    void sweep() {
+        long now = System.nanoTime();
+
+        for(Map.Entry<Integer, Lease> entry : leases.entrySet()) {
+            long quiet = now - entry.getValue().renewedAt;
+
+            try {
+                if(quiet >= leaseNanos) {
+                    if(leases.remove(entry.getKey(), entry.getValue())) { // Still the same lease, so not renewed or removed meanwhile
+                        evictor.accept(entry.getKey());
+                    }
+                }
+                else if(quiet >= heartbeatNanos) {
+                    heartbeat.accept(entry.getKey());
+                }
+            } catch (RuntimeException e) { // One bad player must not stop the sweep
+                System.out.println("Error checking player " + entry.getKey() + ": " + e.getMessage());
+            }
+        }
+    }
+}
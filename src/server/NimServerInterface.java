@@ -8,9 +8,11 @@ package server;
 import client.NimClientInterface;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import leaderboard.LeaderboardEntry;
 
 /**
- *
+ * Lobby operations, independent of transport - served by NimServerLobby over RMI
+ * and by transport.NioServerConnection over the NIO protocol
  * @author Chris
  */
 public interface NimServerInterface extends Remote {
@@ -23,20 +25,114 @@ public interface NimServerInterface extends Remote {
     public void addPlayer(NimClientInterface player) throws RemoteException;
     //public void addPlayer(NimClientInterface humanPlayer) throws RemoteException;
     
+    /**
+     * Rejoins the lobby with the code the player was given before the server restarted, resuming
+     * their game if it was restored. A code the lobby does not know joins as a new player.
+     * @param player the player rejoining the server
+     * @param playerCode the player's code from before the restart
+     * @param sessionKey the player's session key, as given by NimClientInterface.setSessionKey
+     * @throws java.rmi.RemoteException
+     */
+    public void rejoin(NimClientInterface player, int playerCode, long sessionKey) throws RemoteException;
+    
+    /*
+     * The calls below are made by a player who has joined. Each carries the session key the player
+     * was given with their code - a call with the wrong key is refused with java.rmi.AccessException.
+     */
+    
     /**
      * Adds a waiting player to the queue
      * @param playerKey Unique key representing the player in the gamers HashMap 
+     * @param sessionKey The player's session key
      * @throws java.rmi.RemoteException 
      */
-    public void queuePlayer(int playerKey) throws RemoteException;
+    public void queuePlayer(int playerKey, long sessionKey) throws RemoteException;
     
     /**
      * Player does not wish to stay in the game
      * Removes the required player from the lobby
      * @param playerCode
+     * @param sessionKey The player's session key
+     * @throws RemoteException
+     */
+    public void leaveLobby(int playerCode, long sessionKey) throws RemoteException;
+    
+    /**
+     * Sends the player's move to their game, in answer to NimClientInterface.gameState or opponentMoved
+     * @param playerCode The player's unique code
+     * @param sessionKey The player's session key
+     * @param marbles The number of marbles taken
+     * @throws RemoteException
+     */
+    public void submitMove(int playerCode, long sessionKey, int marbles) throws RemoteException;
+    
+    /**
+     * Sends the player's move to their game, in a game with several heaps
+     * @param playerCode The player's unique code
+     * @param sessionKey The player's session key
+     * @param heap Index of the heap taken from
+     * @param marbles The number of marbles taken
+     * @throws RemoteException
+     */
+    public void submitHeapMove(int playerCode, long sessionKey, int heap, int marbles) throws RemoteException;
+    
+    /**
+     * Tells the lobby the player is still there, in answer to NimClientInterface.heartbeat
+     * @param playerCode The player's unique code
+     * @param sessionKey The player's session key
+     * @throws RemoteException
+     */
+    public void heartbeat(int playerCode, long sessionKey) throws RemoteException;
+    
+    /**
+     * Asks for the whole game to be sent again with NimClientInterface.gameState, when the client's
+     * copy is out of step. Not a move, so it never counts against the player's retries.
+     * @param playerCode The player's unique code
+     * @param sessionKey The player's session key
+     * @throws RemoteException
+     */
+    public void requestGameState(int playerCode, long sessionKey) throws RemoteException;
+    
+    /**
+     * Returns the highest rated players
+     * @param count Number of players wanted
+     * @return Leaderboard entries, highest rating first
+     * @throws RemoteException
+     */
+    public LeaderboardEntry[] getLeaderboard(int count) throws RemoteException;
+    
+    /**
+     * Describes the games in progress, those between the highest rated players first
+     * @param count Number of games wanted
+     * @return One line per game, starting "Game <id>:"
+     * @throws RemoteException
+     */
+    public String[] listGames(int count) throws RemoteException;
+    
+    /**
+     * Starts sending a game's moves to the client as serverMessages, beginning with where the game
+     * stands. The client does not need to have joined the lobby and stops receiving when the game ends.
+     * @param spectator The client watching
+     * @param gameId Id of the game, as given by listGames
+     * @throws RemoteException
+     */
+    public void spectate(NimClientInterface spectator, long gameId) throws RemoteException;
+    
+    /**
+     * Stops sending a game's moves to the client
+     * @param spectator The client watching
+     * @param gameId Id of the game
+     * @throws RemoteException
+     */
+    public void stopSpectating(NimClientInterface spectator, long gameId) throws RemoteException;
+    
+    /**
+     * Plays back a finished game
+     * @param gameId Id of the game
+     * @return The start of the game, each move and the result, or why it cannot be played back
      * @throws RemoteException
      */
-    public void leaveLobby(int playerCode) throws RemoteException;
+    public String[] getReplay(long gameId) throws RemoteException;
 
     /**
      * Simple testing output to console
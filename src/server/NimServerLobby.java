@@ -8,249 +8,1267 @@
 
 package server;
 
+import checkpoint.CheckpointWriter;
+import checkpoint.LobbyCheckpoint;
 import client.NimClientInterface;
 import constants.Constants;
 import game.GameOfNim;
-import static java.lang.Thread.sleep;
+import game.GameScheduler;
+import game.GameState;
+import game.NimVariant;
+import journal.GameJournal;
+import leaderboard.Leaderboard;
+import leaderboard.LeaderboardEntry;
 import player.ComputerPlayer;
+import replay.ReplayRecord;
+import replay.ReplayStore;
+import shard.PlayerTransfer;
+import shard.ShardInterface;
+import shard.ShardPartition;
+import java.rmi.AccessException;
 import java.rmi.Naming;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.server.UnicastRemoteObject;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Random;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-import player.PlayerInterface;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import metrics.NimMetrics;
+import spectator.SpectatorHub;
+import transport.NioLobbyServer;
 
 
-public class NimServerLobby extends UnicastRemoteObject implements NimServerInterface {
+public class NimServerLobby extends UnicastRemoteObject implements ShardInterface {
     // Inner class for waiting players
     class WaitingPlayer {
         Integer key = 0;
         boolean inGame = false;
+        int difficulty;   // Difficulty the player asked for
+        int opponentType; // Opponent type the player asked for
+        long queuedAt = System.nanoTime(); // When the player was queued, for time to match metrics
+        double rating;    // Player's rating when they were queued
+        long sequence;    // Arrival order, a requeued player keeps their place
         
         WaitingPlayer(int key, boolean inGame) {
             this.key = key;
             this.inGame = inGame;
            
         }
+        
+        WaitingPlayer(int key, int difficulty, int opponentType, double rating) {
+            this(key, false);
+            this.difficulty = difficulty;
+            this.opponentType = opponentType;
+            this.rating = rating;
+            this.sequence = nextSequence.incrementAndGet();
+        }
     }
     
     static int port = 1099;
     
+    // Number of opponent types - HUMAN_PLAYER and COMPUTER_PLAYER
+    private static final int OPPONENT_TYPES = 2;
+    
+    // System property holding the milliseconds between sweeps that widen the rating search windows
+    public static final String MATCH_SWEEP_PROPERTY = "nim.match.sweepMillis";
+    public static final int DEFAULT_MATCH_SWEEP = 1000;
+    
+    // System property holding the seconds a player restored from a checkpoint has to rejoin
+    public static final String REJOIN_PROPERTY = "nim.checkpoint.rejoinSeconds";
+    public static final int DEFAULT_REJOIN = 120;
+    
     // ConcurrentHashMap for holding players who join the lobby - serializable
     private ConcurrentHashMap<Integer, NimClientInterface> gamers;
-    // Synchronized list for waiting players - players who are in the lobby waiting for a game
-    private final List<WaitingPlayer> waitingPlayers = Collections.synchronizedList(new ArrayList<>());
+    // Details of each player in gamers, read once when they joined
+    private final ConcurrentHashMap<Integer, PlayerProfile> profiles = new ConcurrentHashMap<>();
+    // Source of unique player codes - they are handed out in order, so they are routing ids, not secrets
+    private final AtomicInteger nextPlayerCode = new AtomicInteger();
+    // Source of the session keys players prove who they are with
+    private final SecureRandom sessionKeys = new SecureRandom();
+    // This lobby's share of the player codes and game ids when it is one of several shards
+    private final ShardPartition partition = ShardPartition.fromSystemProperties();
+    // Waiting players bucketed by (difficulty, opponentType) - each bucket is locked on its own
+    private final List<RatingQueue> waitingPlayers = new ArrayList<>();
+    // Orders waiting players by arrival
+    private final AtomicLong nextSequence = new AtomicLong();
+    // Set when a match was held back by the game cap, so freed slots trigger a full sweep
+    private volatile boolean slotsExhausted;
+    // Re-examines waiting humans as their rating search windows widen
+    private final ScheduledExecutorService matchTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Nim matchmaking sweep");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Runs the games and caps how many are in progress
+    private final GameScheduler scheduler;
+    // Records the result of every game, null if the journal is turned off
+    private final GameJournal journal = GameJournal.fromSystemProperties();
+    // Moves of every game, for replays, null if replays are turned off
+    private final ReplayStore replays = ReplayStore.fromSystemProperties();
+    // Rules of the games hosted by this lobby
+    private final NimVariant variant = NimVariant.fromSystemProperties();
+    // Player rankings, kept after players leave the lobby
+    private final Leaderboard leaderboard = Leaderboard.fromSystemProperties();
+    // Lobby and game statistics
+    private final NimMetrics metrics = NimMetrics.shared();
+    // Game each human player is currently playing, keyed by player code
+    private final ConcurrentHashMap<Integer, GameOfNim> activeGames = new ConcurrentHashMap<>();
+    // Every game in progress, keyed by game id, for spectators
+    private final ConcurrentHashMap<Long, GameOfNim> liveGames = new ConcurrentHashMap<>();
+    // Live feeds of the games being watched
+    private final SpectatorHub spectators = SpectatorHub.fromSystemProperties();
+    // Outgoing message queue for each player in gamers
+    private final ConcurrentHashMap<Integer, ClientOutbox> outboxes = new ConcurrentHashMap<>();
+    // Evicts players the lobby has stopped hearing from
+    private final LeaseMonitor leases = LeaseMonitor.fromSystemProperties(this::sendHeartbeat, this::evictPlayer);
+    // Saves the players, waiting queues and games so a restarted lobby can carry on, null if turned off
+    private final CheckpointWriter checkpoints;
+    // Players restored from the checkpoint who have not rejoined yet, keyed by player code
+    private final ConcurrentHashMap<Integer, LobbyCheckpoint.PlayerRecord> restoredPlayers = new ConcurrentHashMap<>();
+    // Restored players who were waiting for a game, or playing one, when the checkpoint was taken
+    private final Set<Integer> restoredWaiting = ConcurrentHashMap.newKeySet();
+    private final Set<Integer> restoredInGame = ConcurrentHashMap.newKeySet();
+    // Version of each waiting bucket when it was last checkpointed, checkpoint thread only
+    private int[] checkpointedBuckets;
+    // Delivers queued messages to clients, daemon threads so they never keep the server alive
+    private final ExecutorService messageExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "Nim message delivery");
+        thread.setDaemon(true);
+        return thread;
+    });
     
     
     /**
-     * Server lobby initialises game lobby
+     * Server lobby initialises game lobby, scheduler configured from system properties
      * @throws RemoteException 
      */
     public NimServerLobby() throws RemoteException {
+        this(GameScheduler.fromSystemProperties());
+    }
+    
+    /**
+     * Server lobby initialises game lobby and publishes it in the RMI registry
+     * @param scheduler Scheduler the lobby's games are run on
+     * @throws RemoteException 
+     */
+    public NimServerLobby(GameScheduler scheduler) throws RemoteException {
+        this(scheduler, true);
+    }
+    
+    /**
+     * Server lobby initialises game lobby
+     * @param scheduler Scheduler the lobby's games are run on
+     * @param publish true = start the RMI registry and bind the lobby, false = only called in process, e.g. by benchmarks
+     * @throws RemoteException 
+     */
+    public NimServerLobby(GameScheduler scheduler, boolean publish) throws RemoteException {
+        LeaseMonitor.boundRemoteCalls(); // Before the first call to a client
+        this.scheduler = scheduler;
         
         // Instantiate gamers list (HashMap) for human players
         gamers = new ConcurrentHashMap<>();
         
-        initialiseServerLobby(); // Initialise the lobby
+        // One waiting bucket for every difficulty and opponent type combination
+        for (int b = 0; b < (Constants.DIFFICULTY_MAX - Constants.DIFFICULTY_MIN + 1) * OPPONENT_TYPES; b++) {
+            waitingPlayers.add(new RatingQueue());
+        }
+        
+        // When a game ends its slot is free again, give it to whoever has been held in the queue
+        scheduler.setGameFinishedListener(this::slotFreed);
+        
+        GameOfNim.partitionGameIds(partition::next); // Every id when the lobby is not sharded
+        
+        if(replays != null) { // Game ids index the replays, never reuse one
+            GameOfNim.reserveGameIds(replays.getHighestGameId());
+        }
+        
+        // Carry on from the last checkpoint, then keep checkpointing
+        LobbyCheckpoint saved = readCheckpoint();
+        
+        checkpoints = openCheckpoints(saved);
+        restore(saved);
+        
+        if(checkpoints != null) {
+            checkpointedBuckets = new int[waitingPlayers.size()];
+            Arrays.fill(checkpointedBuckets, -1);
+            checkpoints.setWaitingSource(waitingPlayers.size(), this::waitingCodes);
+            checkpoints.setPlayerCodeSource(nextPlayerCode::get);
+            checkpoints.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(checkpoints::close)); // Save the games still in progress
+        }
         
-        lobbyManager(); // Start the lobby manager
+        // Waiting humans accept wider rating gaps over time, look for matches again periodically
+        long sweep = Integer.getInteger(MATCH_SWEEP_PROPERTY, DEFAULT_MATCH_SWEEP);
+        matchTimer.scheduleWithFixedDelay(this::matchWaitingPlayers, sweep, sweep, TimeUnit.MILLISECONDS);
+        leases.start();
+        
+        // Publish metrics through JMX and the snapshot file
+        metrics.setQueueDepthSource(bucketNames(), this::queueDepths);
+        metrics.registerMBean();
+        metrics.startSnapshots();
+        scheduler.registerMBean();
+        
+        if(publish) {
+            initialiseServerLobby(); // Initialise the lobby
+        }
     }
        
     /** 
-     * Adds a human player to the game lobby
-     * @throws java.rmi.RemoteException
+     * Adds a human player to the game lobby.
+     * Not synchronized - the player's code comes from an atomic sequence and their details are
+     * read once, before they are registered, so a slow client only delays its own sign up.
+     * @throws java.rmi.RemoteException If the player cannot be reached, or has taken a name kept for computer players
      */
     @Override
-    public synchronized void addPlayer(NimClientInterface player) throws RemoteException {
-        Random rand = new Random();
-        int key;
-        
-        // Generate a unique code for this player and check it doesn't already exist in the lobby
-        do { 
-            key = rand.nextInt(); 
-        } while(gamers.containsKey(key));
+    public void addPlayer(NimClientInterface player) throws RemoteException {
+        final int key = nextPlayerCode.updateAndGet(code -> (int) partition.next(code)); // Unique code for this player
+        final long sessionKey = newSessionKey();
+        PlayerProfile profile;
+        long callStart;
         
+        callStart = System.nanoTime();
         player.setPlayerCode(key); // Set the game code for this player
+        player.setSessionKey(sessionKey);
+        metrics.remoteCall(NimMetrics.RemoteCall.SET_PLAYER_CODE, System.nanoTime() - callStart);
         
-        gamers.put(key, player);  // Add the player to the gamers list
+        // Read the player's details once, they are cached in the profile from now on
+        callStart = System.nanoTime();
+        profile = new PlayerProfile(key, player.getName(), player.getDifficulty(), player.getOpponentType(), true, player, 
+                sessionKey);
+        metrics.remoteCall(NimMetrics.RemoteCall.GET_DETAILS, System.nanoTime() - callStart);
+        
+        if(Leaderboard.isComputerName(profile.getName())) { // Would be rated as a computer player
+            throw new RemoteException("The name " + profile.getName() + " is kept for computer players");
+        }
         
-        queuePlayer(key); // Add the player to the waiting players queue
+        register(profile, player);
+        
+        if(checkpoints != null) {
+            checkpoints.playerJoined(key, profile.getName(), profile.getDifficulty(), profile.getOpponentType(), 
+                    profile.getSessionKey());
+        }
         
         // Information messages to server and player consoles, confirming player added to lobby
         
-        System.out.println("New player: " + player.getName() + ", Code = " + player.getPlayerCode() + 
-                           ", Difficulty: " + (player.getDifficulty() == 1 ? "Easy" : "Hard") + 
-                           ", Opponent type: " + (player.getOpponentType() == 1 ? "Human" : "Computer"));
+        System.out.println("New player: " + profile.getName() + ", Code = " + key + 
+                           ", Difficulty: " + (profile.getDifficulty() == 1 ? "Easy" : "Hard") + 
+                           ", Opponent type: " + (profile.getOpponentType() == 1 ? "Human" : "Computer") +
+                           ", Players in lobby: " + gamers.size());
               
-        player.serverMessage("\nAwaiting opponent...");
+        getOutbox(key).send("\nAwaiting opponent...");
+        
+        queue(key); // Add the player to the waiting players queue - may start a game straight away
+    }
+    
+    /**
+     * Rejoins a player restored from the checkpoint, after the server restarted. A player who was
+     * in a game is reattached to it, a player who was waiting is queued again. The player proves the
+     * code is theirs with the session key checkpointed with it, and keeps that key. Anyone else - an
+     * unknown code, or a key that does not match the code - joins as a new player.
+     * @param player The player
+     * @param playerCode The player's code from before the restart
+     * @param sessionKey The player's session key
+     * @throws RemoteException
+     */
+    @Override
+    public void rejoin(NimClientInterface player, int playerCode, long sessionKey) throws RemoteException {
+        LobbyCheckpoint.PlayerRecord saved = restoredPlayers.remove(playerCode);
+        PlayerProfile profile = profiles.get(playerCode);
+        GameOfNim game;
+        
+        if(saved == null && profile != null && profile.getSessionKey() == sessionKey 
+                && profile.getPlayer().equals(player)) { // Never lost, nothing to restore
+            leases.renew(playerCode);
+            return;
+        }
+        
+        if(saved == null || saved.getSessionKey() == 0 || saved.getSessionKey() != sessionKey) {
+            if(saved != null) { // Not this player's code, leave it for its owner
+                restoredPlayers.put(playerCode, saved);
+            }
+            
+            addPlayer(player);
+            return;
+        }
+        
+        player.setPlayerCode(playerCode);
+        player.setSessionKey(sessionKey); // Same key, the connection signs the player's calls with it
+        profile = new PlayerProfile(playerCode, saved.getName(), saved.getDifficulty(), saved.getOpponentType(), true, player, 
+                sessionKey);
+        register(profile, player);
+        
+        System.out.println("Player rejoined: " + profile.getName() + ", Code = " + playerCode 
+                + ", Players in lobby: " + gamers.size());
+        getOutbox(playerCode).send("\nRejoined the server");
+        
+        game = activeGames.get(playerCode);
+        
+        if(game != null && game.attach(playerCode, player, getOutbox(playerCode))) {
+            restoredInGame.remove(playerCode);
+            return;
+        }
+        
+        if(restoredInGame.remove(playerCode)) { // Their game ended while they were away
+            ClientOutbox outbox = getOutbox(playerCode);
+            
+            outbox.send("\nYour game ended while you were away");
+            outbox.send(NimMetrics.RemoteCall.SET_IN_GAME_STATUS, client -> client.setInGameStatus(false));
+            outbox.send(NimMetrics.RemoteCall.PLAY_AGAIN, client -> client.requestPlayAgain());
+        }
+        else if(restoredWaiting.remove(playerCode)) {
+            getOutbox(playerCode).send("\nAwaiting opponent...");
+            queue(playerCode);
+        }
+        // Otherwise they were deciding whether to play again, their answer queues them or removes them
+    }
+    
+    /**
+     * Returns a new session key, never 0 - computer players have no key
+     * @return session key
+     */
+    private long newSessionKey() {
+        long sessionKey;
         
-        System.out.println("Players in lobby:");
+        do {
+            sessionKey = sessionKeys.nextLong();
+        } while(sessionKey == 0);
+        return sessionKey;
+    }
+    
+    /**
+     * Adds a player to the lobby's maps and gives them an outbox and a lease
+     * @param profile The player's details
+     * @param player The player
+     */
+    private void register(PlayerProfile profile, NimClientInterface player) {
+        final int key = profile.getPlayerCode();
         
-        for (Integer p : gamers.keySet()) {
-            System.out.println(gamers.get(p).getName());
+        outboxes.put(key, new ClientOutbox(player, Integer.getInteger(ClientOutbox.SIZE_PROPERTY, ClientOutbox.DEFAULT_SIZE),
+                ClientOutbox.policyFromSystemProperties(), messageExecutor, () -> disconnectPlayer(key, "not receiving messages")));
+        profiles.put(key, profile);
+        leases.register(key);
+        gamers.put(key, player);  // Add the player to the gamers list
+    }
+    
+    /**
+     * Checks a call comes from the player it claims to - anyone can send a player code, only the
+     * player has their session key
+     * @param playerCode The player's unique code
+     * @param sessionKey The session key sent with the call
+     * @return The player's profile, null if they are not in the lobby
+     * @throws AccessException If the key is not the player's
+     */
+    private PlayerProfile authorize(int playerCode, long sessionKey) throws AccessException {
+        PlayerProfile profile = profiles.get(playerCode);
+        
+        if(profile != null && profile.getSessionKey() != sessionKey) {
+            throw new AccessException("Not signed in as player " + playerCode);
         }
+        return profile;
     }
     
     /**
-     * Adds a waiting player to the queue
+     * Adds a waiting player to the queue and immediately tries to match them
      * @param playerKey Unique key representing the player in the gamers HashMap 
+     * @param sessionKey The player's session key
      * @throws java.rmi.RemoteException 
      */
     @Override
-    public void queuePlayer(int playerKey) throws RemoteException {
-        waitingPlayers.add(new WaitingPlayer(playerKey, false)); 
+    public void queuePlayer(int playerKey, long sessionKey) throws RemoteException {
+        if(authorize(playerKey, sessionKey) != null) {
+            queue(playerKey);
+        }
+    }
+    
+    /**
+     * Adds a waiting player to the queue and immediately tries to match them
+     * @param playerKey Unique key representing the player in the gamers HashMap 
+     */
+    private void queue(int playerKey) {
+        PlayerProfile profile = profiles.get(playerKey);
+        int bucket;
+        
+        if(profile == null) { // Player has already left the lobby
+            return;
+        }
+        
+        leases.renew(playerKey);
+        bucket = bucketIndex(profile.getDifficulty(), profile.getOpponentType());
+        
+        if(bucket < 0) { // Client sent details outside of the valid ranges
+            System.out.println("Cannot queue player " + playerKey + " - invalid difficulty or opponent type");
+            return;
+        }
+        
+        WaitingPlayer waiting = new WaitingPlayer(playerKey, profile.getDifficulty(), profile.getOpponentType(), 
+                rating(profile.getName()));
+        
+        synchronized(waitingPlayers.get(bucket)) {
+            if(!waitingPlayers.get(bucket).add(waiting)) { // Already waiting
+                return;
+            }
+        }
+        
+        matchArrival(bucket, waiting); // Arrival driven matching - only this player can have a new match
     }
             
     /**
      * Removes the required player from the lobby
      * @param playerCode
+     * @param sessionKey The player's session key
      * @throws RemoteException
      */
     @Override
-    public void leaveLobby(int playerCode) throws RemoteException {
-        String name = "";
+    public void leaveLobby(int playerCode, long sessionKey) throws RemoteException {
+        if(authorize(playerCode, sessionKey) == null) { // Already gone
+            return;
+        }
         
-        try {
-            name = gamers.get(playerCode).getName();
-            gamers.get(playerCode).serverMessage("Leaving server.");
-        } catch (RemoteException e) {
-            System.out.println("Player " + gamers.get(playerCode).getName() + " has left the server");
+        PlayerProfile profile = profiles.remove(playerCode);
+        ClientOutbox outbox = outboxes.remove(playerCode);
+        
+        if(outbox != null) { // The client stops taking calls once it has left, so nothing more is sent
+            outbox.close();
         }
        
         gamers.remove(playerCode); // Remove the player from the HashMap
-        System.out.println("Player " + name + " " + playerCode + " removed from lobby");
+        leases.remove(playerCode);
+        removeWaitingPlayer(playerCode, profile);
+        
+        if(checkpoints != null && profile != null) {
+            checkpoints.playerLeft(playerCode);
+        }
+        endPlayersGame(playerCode);
+        System.out.println("Player " + (profile != null ? profile.getName() : "") + " " + playerCode + " removed from lobby");
     }
     
     /**
-     * The lobbyManager looks after pairing opponents and starting new games
+     * Passes a player's move on to the game they are playing
+     * @param playerCode The player's unique code
+     * @param sessionKey The player's session key
+     * @param marbles The number of marbles taken
+     * @throws RemoteException
      */
-    private void lobbyManager(/*NimClientInterface player*/) {
-        NimClientInterface player;
-        PlayerInterface opponent;
-        GameOfNim game;
-        WaitingPlayer queuedPlayer;
-        WaitingPlayer queuedOpponent;
-        List<WaitingPlayer> removalList = new ArrayList<>();
-        int iteration = 0;
+    @Override
+    public void submitMove(int playerCode, long sessionKey, int marbles) throws RemoteException {
+        if(authorize(playerCode, sessionKey) == null) { // Not in the lobby, a restored player must rejoin first
+            return;
+        }
+        
+        GameOfNim game = activeGames.get(playerCode);
+        ClientOutbox outbox = outboxes.get(playerCode);
+        
+        leases.renew(playerCode);
+        
+        if((game == null || !game.submitMove(playerCode, marbles)) && outbox != null) { // Move arrived late or out of turn
+            outbox.send("\nMove ignored - it is not your turn");
+        }
+    }
+    
+    /**
+     * Passes a player's move in a game with several heaps on to the game they are playing
+     * @param playerCode The player's unique code
+     * @param sessionKey The player's session key
+     * @param heap Index of the heap taken from
+     * @param marbles The number of marbles taken
+     * @throws RemoteException
+     */
+    @Override
+    public void submitHeapMove(int playerCode, long sessionKey, int heap, int marbles) throws RemoteException {
+        if(authorize(playerCode, sessionKey) == null) {
+            return;
+        }
+        
+        GameOfNim game = activeGames.get(playerCode);
+        ClientOutbox outbox = outboxes.get(playerCode);
+        
+        leases.renew(playerCode);
+        
+        if((game == null || !game.submitMove(playerCode, heap, marbles)) && outbox != null) { // Move arrived late or out of turn
+            outbox.send("\nMove ignored - it is not your turn");
+        }
+    }
+    
+    /**
+     * Renews the player's lease, in answer to NimClientInterface.heartbeat
+     * @param playerCode The player's unique code
+     * @param sessionKey The player's session key
+     * @throws RemoteException
+     */
+    @Override
+    public void heartbeat(int playerCode, long sessionKey) throws RemoteException {
+        if(authorize(playerCode, sessionKey) != null) {
+            leases.renew(playerCode);
+        }
+    }
+    
+    /**
+     * Sends the player the whole of the game they are playing again, their client's copy is out of step
+     * @param playerCode The player's unique code
+     * @param sessionKey The player's session key
+     * @throws RemoteException
+     */
+    @Override
+    public void requestGameState(int playerCode, long sessionKey) throws RemoteException {
+        if(authorize(playerCode, sessionKey) == null) {
+            return;
+        }
+        
+        GameOfNim game = activeGames.get(playerCode);
+        
+        leases.renew(playerCode);
+        
+        if(game != null) { // Otherwise the game is over, the result is on its way
+            game.resendState(playerCode);
+        }
+    }
+    
+    /**
+     * Returns the highest rated players
+     * @param count Number of players wanted
+     * @return Leaderboard entries, highest rating first
+     * @throws RemoteException
+     */
+    @Override
+    public LeaderboardEntry[] getLeaderboard(int count) throws RemoteException {
+        return leaderboard.top(count);
+    }
+    
+    /**
+     * Describes the games in progress, those between the highest rated players first
+     * @param count Number of games wanted
+     * @return One line per game, with the number of spectators
+     * @throws RemoteException
+     */
+    @Override
+    public String[] listGames(int count) throws RemoteException {
+        List<GameOfNim> games = new ArrayList<>(liveGames.values());
+        Map<GameOfNim, Double> ratings = new HashMap<>();
+        
+        for(GameOfNim game : games) { // Rated by the stronger player
+            ratings.put(game, Math.max(rating(game, 0), rating(game, 1)));
+        }
+        games.sort(Comparator.comparing(ratings::get).reversed());
         
-        System.out.println("Entering Lobby Manager");
+        String[] descriptions = new String[Math.min(Math.max(count, 0), games.size())];
         
-        while(true) { // Main 'game loop', Lobby tries to start games for waiting players
+        for(int g = 0; g < descriptions.length; g++) {
+            GameOfNim game = games.get(g);
             
-            synchronized(waitingPlayers) { // Iterate through the list of waiting players and if possible, give them a game
-                
-                // Search through waitingPlayers queue for players waiting for a game if found, try to find them an opponent from the queue 
-                System.out.println("Players waiting for a game = " + waitingPlayers.size());
-                
-                for(int waitingPlayer = 0; waitingPlayer < waitingPlayers.size(); waitingPlayer++) {
-                    
-                    queuedPlayer = waitingPlayers.get(waitingPlayer); // Get the player from the queue
+            descriptions[g] = game.describe() + " (" + spectators.spectators(game.getGameId()) + " watching)";
+        }
+        return descriptions;
+    }
+    
+    /**
+     * Returns a player's rating
+     * @param game The player's game
+     * @param t The player (0 or 1)
+     * @return rating, the initial rating if they have not finished a game
+     */
+    private double rating(GameOfNim game, int t) {
+        LeaderboardEntry entry = leaderboard.get(Leaderboard.playerName(game, t));
+        
+        return entry != null ? entry.getRating() : Leaderboard.INITIAL_RATING;
+    }
+    
+    /**
+     * Starts sending a game's moves to a spectator, who does not need to have joined the lobby
+     * @param spectator The client watching
+     * @param gameId Id of the game, as given by listGames
+     * @throws RemoteException
+     */
+    @Override
+    public void spectate(NimClientInterface spectator, long gameId) throws RemoteException {
+        GameOfNim game = liveGames.get(gameId);
+        
+        if(game == null || !spectators.watch(game, spectator)) {
+            spectator.serverMessage("No game " + gameId + " in progress");
+        }
+    }
+    
+    /**
+     * Stops sending a game's moves to a spectator
+     * @param spectator The client watching
+     * @param gameId Id of the game
+     * @throws RemoteException
+     */
+    @Override
+    public void stopSpectating(NimClientInterface spectator, long gameId) throws RemoteException {
+        spectators.stop(gameId, spectator);
+    }
+    
+    /**
+     * Plays back a finished game
+     * @param gameId Id of the game
+     * @return The start of the game, each move and the result
+     * @throws RemoteException
+     */
+    @Override
+    public String[] getReplay(long gameId) throws RemoteException {
+        if(replays == null) {
+            return new String[] {"Replays are turned off"};
+        }
+        
+        try {
+            ReplayRecord record = replays.read(gameId);
+            
+            return record != null ? record.playBack() : new String[] {"No replay of game " + gameId};
+        } catch (IOException e) {
+            System.out.println("Error reading replay of game " + gameId + ": " + e.getMessage());
+            return new String[] {"Replay of game " + gameId + " could not be read"};
+        }
+    }
+    
+    /**
+     * Reports the players who have waited at least the given time for a human opponent,
+     * so the coordinator can pair them with lone players on other shards
+     * @param waitedMillis Minimum time waited
+     * @param limit Most players reported for each difficulty, longest waiting first
+     * @return The players, without their clients
+     * @throws RemoteException
+     */
+    @Override
+    public PlayerTransfer[] lonePlayers(long waitedMillis, int limit) throws RemoteException {
+        List<PlayerTransfer> lone = new ArrayList<>();
+        long now = System.nanoTime();
+        
+        for(int difficulty = Constants.DIFFICULTY_MIN; difficulty <= Constants.DIFFICULTY_MAX; difficulty++) {
+            RatingQueue queue = waitingPlayers.get(bucketIndex(difficulty, Constants.HUMAN_PLAYER));
+            
+            synchronized(queue) {
+                for(WaitingPlayer waiting : queue.oldest(limit)) {
+                    long waited = TimeUnit.NANOSECONDS.toMillis(now - waiting.queuedAt);
                     
-                    if(queuedPlayer.inGame) { // If this player is already in game skip to next player (loop iteration)
-                        continue; // A bit naughty - but save a lot of extra code
+                    if(waited < waitedMillis) { // The rest arrived later
+                        break;
                     }
                     
-                    player = gamers.get(queuedPlayer.key); // Retrieve the player details from the gamer HashMap
+                    lone.add(new PlayerTransfer(waiting.key, null, waiting.difficulty, waiting.opponentType, 
+                            waiting.rating, waited, 0, null));
+                }
+            }
+        }
+        return lone.toArray(new PlayerTransfer[lone.size()]);
+    }
+    
+    /**
+     * Takes a waiting player out of this shard so they can join another.
+     * The player is removed from the waiting queue under its lock, so they cannot be matched here
+     * as well. Their outbox is dropped without closing, so queued messages are still delivered.
+     * @param playerCode The player's unique code
+     * @return The player, with their client, null if they are no longer waiting
+     * @throws RemoteException
+     */
+    @Override
+    public PlayerTransfer releasePlayer(int playerCode) throws RemoteException {
+        PlayerProfile profile = profiles.get(playerCode);
+        int bucket = profile != null ? bucketIndex(profile.getDifficulty(), profile.getOpponentType()) : -1;
+        WaitingPlayer waiting;
+        
+        if(bucket < 0) {
+            return null;
+        }
+        
+        synchronized(waitingPlayers.get(bucket)) {
+            waiting = waitingPlayers.get(bucket).remove(playerCode);
+        }
+        
+        if(waiting == null) { // Matched, or left, in the meantime
+            return null;
+        }
+        
+        profiles.remove(playerCode);
+        outboxes.remove(playerCode);
+        gamers.remove(playerCode);
+        leases.remove(playerCode);
+        
+        if(checkpoints != null) {
+            checkpoints.playerLeft(playerCode);
+        }
+        
+        System.out.println("Player " + profile.getName() + " " + playerCode + " moved to another shard");
+        return new PlayerTransfer(playerCode, profile.getName(), waiting.difficulty, waiting.opponentType, waiting.rating,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - waiting.queuedAt), profile.getSessionKey(), 
+                (NimClientInterface) profile.getPlayer());
+    }
+    
+    /**
+     * Adds a player released by another shard and queues them, keeping their code and their place
+     * in the rating window, then tries to match them straight away
+     * @param player The player
+     * @throws RemoteException
+     */
+    @Override
+    public void acceptPlayer(PlayerTransfer player) throws RemoteException {
+        final int key = player.getPlayerCode();
+        PlayerProfile profile = new PlayerProfile(key, player.getName(), player.getDifficulty(), player.getOpponentType(), 
+                true, player.getClient(), player.getSessionKey());
+        int bucket = bucketIndex(player.getDifficulty(), player.getOpponentType());
+        WaitingPlayer waiting;
+        
+        if(bucket < 0) {
+            return;
+        }
+        
+        register(profile, player.getClient());
+        
+        if(checkpoints != null) {
+            checkpoints.playerJoined(key, profile.getName(), profile.getDifficulty(), profile.getOpponentType(), 
+                    profile.getSessionKey());
+        }
+        
+        System.out.println("Player " + profile.getName() + " " + key + " moved from another shard, Players in lobby: " 
+                + gamers.size());
+        
+        waiting = new WaitingPlayer(key, player.getDifficulty(), player.getOpponentType(), player.getRating());
+        waiting.queuedAt = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(player.getWaitedMillis());
+        
+        synchronized(waitingPlayers.get(bucket)) {
+            if(!waitingPlayers.get(bucket).add(waiting)) {
+                return;
+            }
+        }
+        
+        matchArrival(bucket, waiting);
+    }
+    
+    /**
+     * Returns the leaderboard updated by this lobby's games
+     * @return The leaderboard
+     */
+    public Leaderboard getLeaderboard() {
+        return leaderboard;
+    }
+    
+    /**
+     * Returns the outgoing message queue for a player
+     * @param playerCode The player's unique code
+     * @return The player's outbox, null if the player is not in the lobby
+     */
+    public ClientOutbox getOutbox(int playerCode) {
+        return outboxes.get(playerCode);
+    }
+    
+    /**
+     * Removes a player whose client could not keep up with, or failed to receive, its messages,
+     * or who has not been heard from within their lease
+     * @param playerCode The player's unique code
+     * @param reason Why the player is being removed, for the server console
+     */
+    private void disconnectPlayer(int playerCode, String reason) {
+        ClientOutbox outbox = outboxes.remove(playerCode);
+        PlayerProfile profile = profiles.remove(playerCode);
+        
+        if(outbox != null) {
+            outbox.close();
+        }
+        
+        if(gamers.remove(playerCode) != null) {
+            System.out.println("Player " + (profile != null ? profile.getName() + " " : "") + playerCode 
+                    + " disconnected - " + reason);
+        }
+        
+        leases.remove(playerCode);
+        removeWaitingPlayer(playerCode, profile);
+        
+        if(checkpoints != null && profile != null) {
+            checkpoints.playerLeft(playerCode);
+        }
+        
+        endPlayersGame(playerCode);
+    }
+    
+    /**
+     * Asks a quiet player to show they are still there, queued behind their other messages
+     * @param playerCode The player's unique code
+     */
+    private void sendHeartbeat(int playerCode) {
+        ClientOutbox outbox = outboxes.get(playerCode);
+        
+        if(outbox != null) {
+            outbox.send(NimMetrics.RemoteCall.HEARTBEAT, client -> client.heartbeat());
+        }
+    }
+    
+    /**
+     * Drops a player the lobby has stopped hearing from. They are taken out of the waiting queues
+     * straight away, so matching never reaches them, and their opponent wins any game in progress.
+     * @param playerCode The player's unique code
+     */
+    private void evictPlayer(int playerCode) {
+        metrics.playerEvicted();
+        disconnectPlayer(playerCode, "not heard from within the lease");
+    }
+    
+    /**
+     * Takes a player who has left out of their waiting queue
+     * @param playerCode The player's unique code
+     * @param profile The player's details, null if not known
+     */
+    private void removeWaitingPlayer(int playerCode, PlayerProfile profile) {
+        int bucket = profile != null ? bucketIndex(profile.getDifficulty(), profile.getOpponentType()) : -1;
+        
+        if(bucket >= 0) {
+            synchronized(waitingPlayers.get(bucket)) {
+                waitingPlayers.get(bucket).remove(playerCode);
+            }
+        }
+    }
+    
+    /**
+     * Ends the game of a player who has left, their opponent is awarded the win
+     * @param playerCode The player's unique code
+     */
+    private void endPlayersGame(int playerCode) {
+        GameOfNim game = activeGames.get(playerCode);
+        
+        if(game != null) {
+            game.playerLeft(playerCode);
+        }
+    }
+    
+    /**
+     * Maps a difficulty and opponent type onto its waiting bucket
+     * @param difficulty EASY or HARD
+     * @param opponentType HUMAN_PLAYER or COMPUTER_PLAYER
+     * @return Index into waitingPlayers, -1 if either value is out of range
+     */
+    private int bucketIndex(int difficulty, int opponentType) {
+        if(difficulty < Constants.DIFFICULTY_MIN || difficulty > Constants.DIFFICULTY_MAX 
+                || opponentType < Constants.HUMAN_PLAYER || opponentType > Constants.COMPUTER_PLAYER) {
+            return -1;
+        }
+        
+        return (difficulty - Constants.DIFFICULTY_MIN) * OPPONENT_TYPES + (opponentType - Constants.HUMAN_PLAYER);
+    }
+    
+    /**
+     * Names each bucket, in bucket order, for the metrics
+     * @return Bucket names
+     */
+    private String[] bucketNames() {
+        String[] names = new String[waitingPlayers.size()];
+        
+        for(int difficulty = Constants.DIFFICULTY_MIN; difficulty <= Constants.DIFFICULTY_MAX; difficulty++) {
+            for(int opponentType = Constants.HUMAN_PLAYER; opponentType <= Constants.COMPUTER_PLAYER; opponentType++) {
+                names[bucketIndex(difficulty, opponentType)] = (difficulty == Constants.EASY ? "Easy" : "Hard") 
+                        + "/" + (opponentType == Constants.HUMAN_PLAYER ? "Human" : "Computer");
+            }
+        }
+        return names;
+    }
+    
+    /**
+     * Reads the number of players waiting in each bucket
+     * @return Queue depth of each bucket
+     */
+    private int[] queueDepths() {
+        int[] depths = new int[waitingPlayers.size()];
+        
+        for(int bucket = 0; bucket < depths.length; bucket++) {
+            synchronized(waitingPlayers.get(bucket)) {
+                depths[bucket] = waitingPlayers.get(bucket).size();
+            }
+        }
+        return depths;
+    }
+    
+    /**
+     * Looks up a player's rating
+     * @param name The player's name
+     * @return Rating on the leaderboard, the starting rating for a new player
+     */
+    private double rating(String name) {
+        LeaderboardEntry entry = leaderboard.get(name);
+        
+        return entry != null ? entry.getRating() : Leaderboard.INITIAL_RATING;
+    }
+    
+    /**
+     * A game slot has been freed - if players were held back by the game cap, try all the buckets again
+     */
+    private void slotFreed() {
+        if(slotsExhausted) {
+            slotsExhausted = false;
+            matchWaitingPlayers();
+        }
+    }
+    
+    /**
+     * Tries to match the players in every bucket, used by the periodic sweep and when game slots become free
+     */
+    private void matchWaitingPlayers() {
+        for(int bucket = 0; bucket < waitingPlayers.size(); bucket++) {
+            matchPlayers(bucket);
+        }
+    }
+    
+    /**
+     * Tries to match a player who has just been queued. Only the new player is considered, 
+     * so the cost is a couple of O(log n) lookups however many are waiting.
+     * @param bucket Index of the player's bucket
+     * @param arrival The player
+     */
+    private void matchArrival(int bucket, WaitingPlayer arrival) {
+        RatingQueue queue = waitingPlayers.get(bucket);
+        WaitingPlayer queuedPlayer = null;
+        WaitingPlayer queuedOpponent = null;
+        
+        synchronized(queue) {
+            if(!queue.contains(arrival)) { // Already matched by a sweep
+                return;
+            }
+            
+            if(arrival.opponentType == Constants.COMPUTER_PLAYER) {
+                queuedPlayer = queue.oldest(); // Nobody waiting ahead unless the game cap was reached
+            }
+            else {
+                queuedOpponent = queue.findOpponent(arrival, System.nanoTime());
+                
+                if(queuedOpponent == null) { // Nobody close enough in rating, wait for the sweep or the next arrival
+                    return;
+                }
+                
+                // Longest waiting player first, they are told who moves first
+                queuedPlayer = queuedOpponent.sequence < arrival.sequence ? queuedOpponent : arrival;
+                queuedOpponent = queuedPlayer == arrival ? queuedOpponent : arrival;
+            }
+            
+            if(!scheduler.tryReserve()) { // Game cap reached - hold the players until a game finishes
+                slotsExhausted = true;
+                return;
+            }
+            
+            queue.remove(queuedPlayer);
+            
+            if(queuedOpponent != null) {
+                queue.remove(queuedOpponent);
+            }
+        }
+        
+        startGame(queuedPlayer, queuedOpponent);
+    }
+    
+    /**
+     * Pairs the players waiting in a bucket and starts their games.
+     * Everyone in a bucket wants the same difficulty and opponent type. A computer opponent is always
+     * available, so those players are simply taken in arrival order. Humans are taken in arrival order
+     * and each is matched with the nearest rated waiting opponent, once the gap is within the search
+     * window of whichever has waited longer. Only the bucket is locked while matching, the games are
+     * set up after the lock has been released.
+     * Each match needs a game slot from the scheduler, once the cap is reached players stay queued.
+     * @param bucket Index of the bucket to match
+     */
+    private void matchPlayers(int bucket) {
+        RatingQueue queue = waitingPlayers.get(bucket);
+        List<WaitingPlayer> matched = new ArrayList<>();
+        long now = System.nanoTime();
+        WaitingPlayer queuedOpponent;
+        
+        synchronized(queue) {
+            for(WaitingPlayer queuedPlayer : queue.inArrivalOrder()) {
+                if(!queue.contains(queuedPlayer)) { // Already taken as an opponent
+                    continue;
+                }
+                
+                queuedOpponent = null;
+                
+                if(queuedPlayer.opponentType == Constants.HUMAN_PLAYER) {
+                    queuedOpponent = queue.findOpponent(queuedPlayer, now);
                     
-                    // Try to pair waiting players with another appropriate player from the waitingPlayers queue
-                    try { 
-                        if(player.getOpponentType() == Constants.COMPUTER_PLAYER) { // Instantiate new computer player
-                            opponent = new ComputerPlayer("Computer Player", player.getDifficulty());  // Construct computer player based on players chosen difficulty
-                            
-                            queuedPlayer.inGame = true;                                         // Flag as in-game 
-                            removalList.add(queuedPlayer);                                      // Record for removal from waitingPlayers queue
-                        }
-                        else { // player wants to play a human opponent
-                            
-                            opponent = null; // No opponent yet
-                            
-                            // Run through the remainder of the waitingPlayers list to see if there is a suitable opponent available
-                            for(int tempOpponent = waitingPlayer + 1; tempOpponent < waitingPlayers.size() && opponent == null; tempOpponent++) {
-                                queuedOpponent = waitingPlayers.get(tempOpponent); // Get possible opponent from waiting player queue
-                                
-                                if(!queuedOpponent.inGame) { // if this player is not already in a game, retrieve details and check difficulty
-                                    opponent = gamers.get(queuedOpponent.key); // Retrieve the opponents details from the map
-
-                                    // If the two players are not of the same difficulty or opponent type, no match
-                                    if((player.getDifficulty() != opponent.getDifficulty()) || (player.getOpponentType() != opponent.getOpponentType())) { 
-                                        opponent = null; // Not a suitable opponent
-                                    }
-                                    else { // Suitable player and oponent found, flag both players as in game and ready for removal from waitingPLayers queue
-                                        queuedPlayer.inGame = true;   // Flag as in-game 
-                                        queuedOpponent.inGame = true; // Flag as in-game
-                                        
-                                        removalList.add(queuedPlayer);   // Record for removal from waitingPlayers queue
-                                        removalList.add(queuedOpponent); // Record for removal from waitingPlayers queue
-                                    }
-                                }
-                            }
-                        }    
-                        
-                        if (opponent != null) { // A player and opponent were found in the waitingPlayers queue
-                            try {
-                                // Message to player
-                                player.serverMessage("Opponent found - you are playing " + opponent.getName());
-
-                                // Message to opponent (if human)
-                                if (opponent.getIsHuman()) {
-                                    ((NimClientInterface) opponent).serverMessage("Opponent found - you are playing " + player.getName());
-                                }
-
-                                // Construct game
-                                game = new GameOfNim((PlayerInterface) player, (PlayerInterface) opponent, player.getDifficulty(), this);
-                                player.setInGameStatus(true);   // Set players status to in game
-                                opponent.setInGameStatus(true); // Set the opponents status to in game
-
-                                Thread thread = new Thread(game); // Run game in its own thread
-                                thread.start(); // Start (run) the thread
-
-                            } catch (RemoteException e) {
-                                System.out.println("Error starting game");
-                                System.out.println(e.getStackTrace()[0].toString());
-                            }
-                        }
-                         
-                    } catch (Exception e) {
-                        
-                        System.out.println("Error matching opponents");
-                        System.out.println(e.getStackTrace()[0].toString());
+                    if(queuedOpponent == null) { // Nobody close enough in rating yet
+                        continue;
                     }
-                } // Finished looking for player/opponent matches
+                }
                 
-                // Remove any players from the waitingPlayers queue who have been given a game
-                if(!removalList.isEmpty()) {
-                    System.out.println("Waiting player: " + waitingPlayers.size() + " in Removal List: " + removalList.size());
-                    for(WaitingPlayer p : waitingPlayers) {
-                        
-                        try {
-                            System.out.println(gamers.get(p.key).getName());
-                        } catch (RemoteException ex) {
-                            Logger.getLogger(NimServerLobby.class.getName()).log(Level.SEVERE, null, ex);
-                        }
-                    }
-                    
-                    System.out.println("waitingPlayers List size = " + waitingPlayers.size());
-                    System.out.println("Clearing Removal List");
-                    waitingPlayers.removeAll(removalList);
-                    System.out.println("waitingPlayers List size = " + waitingPlayers.size());
-
-                    removalList.clear(); // Clear the removal List
+                if(!scheduler.tryReserve()) { // Game cap reached - hold the players until a game finishes
+                    slotsExhausted = true;
+                    break;
                 }
+                
+                queue.remove(queuedPlayer);
+                
+                if(queuedOpponent != null) {
+                    queue.remove(queuedOpponent);
+                }
+                
+                matched.add(queuedPlayer);
+                matched.add(queuedOpponent); // null for a computer opponent
             }
-            try { // As the game loops and continually accesses ConcurrentHashmap, pause to stop the thread being greedy
-                sleep(1000); // The pause could be mutch shorter, but this stops console output messages runnung away
-            } catch(Exception e) {
-                System.out.println("Error sleeping:" + e.getMessage());
+        }
+        
+        for(int m = 0; m < matched.size(); m += 2) {
+            startGame(matched.get(m), matched.get(m + 1));
+        }
+    }
+    
+    /**
+     * Sets up and starts a game between a waiting player and their opponent.
+     * The caller must already hold a game slot from the scheduler.
+     * @param queuedPlayer The player who has waited longest
+     * @param queuedOpponent The opponent taken from the same bucket, null for a computer opponent
+     */
+    private void startGame(WaitingPlayer queuedPlayer, WaitingPlayer queuedOpponent) {
+        PlayerProfile player = profiles.get(queuedPlayer.key); // Retrieve the player details cached when they joined
+        PlayerProfile opponent;
+        GameOfNim game;
+        
+        if(queuedOpponent == null) { // Construct computer player based on players chosen difficulty
+            ComputerPlayer computer = new ComputerPlayer("Computer Player", queuedPlayer.difficulty);
+            
+            opponent = new PlayerProfile(computer.getPlayerCode(), computer.getName(), computer.getDifficulty(), 
+                    computer.getOpponentType(), false, computer);
+        }
+        else {
+            opponent = profiles.get(queuedOpponent.key); // Retrieve the opponents details
+        }
+        
+        if(player == null || opponent == null) { // One of the pair left the lobby while waiting - requeue the other
+            scheduler.release(); // Slot is not needed
+            requeue(player != null ? queuedPlayer : opponent != null ? queuedOpponent : null); // Neither if both left
+            return;
+        }
+        
+        queuedPlayer.inGame = true;
+        metrics.playerMatched(System.nanoTime() - queuedPlayer.queuedAt);
+        
+        if(queuedOpponent != null) {
+            queuedOpponent.inGame = true;
+            metrics.playerMatched(System.nanoTime() - queuedOpponent.queuedAt);
+            metrics.ratedMatch(System.nanoTime() - queuedPlayer.queuedAt, 
+                    System.nanoTime() - queuedOpponent.queuedAt, Math.abs(queuedPlayer.rating - queuedOpponent.rating));
+        }
+        
+        // Construct game - this also tells the players who they are playing
+        game = new GameOfNim(player, opponent, queuedPlayer.difficulty, variant, this);
+        
+        for(PlayerProfile profile : new PlayerProfile[] {player, opponent}) {
+            ClientOutbox outbox = outboxes.get(profile.getPlayerCode());
+            
+            if(profile.isHuman() && outbox != null) { // Set status to in game, in order with the start message
+                activeGames.put(profile.getPlayerCode(), game);
+                outbox.send(NimMetrics.RemoteCall.SET_IN_GAME_STATUS, client -> client.setInGameStatus(true));
+            }
+        }
+        
+        watchGame(game);
+        scheduler.submit(game); // Run the game on the scheduler using the reserved slot
+    }
+    
+    /**
+     * Adds the lobby's listeners to a game and hands it to the checkpoint
+     * @param game A new or restored game
+     */
+    private void watchGame(GameOfNim game) {
+        liveGames.put(game.getGameId(), game);
+        game.addGameListener(finished -> { // Moves are no longer routed to this game
+            for(int t = 0; t < 2; t++) {
+                activeGames.remove(finished.getPlayerCode(t), finished);
             }
+            liveGames.remove(finished.getGameId(), finished);
+        });
+        
+        game.addGameListener(leaderboard); // Update the players' ratings once the game is over
+        
+        if(journal != null) { // Write the result once the game is over
+            game.addGameListener(journal);
+        }
+        
+        if(replays != null) { // Store the moves once the game is over
+            game.addGameListener(replays);
+        }
+        
+        if(checkpoints != null) { // Saved while in progress, dropped from the checkpoint once over
+            checkpoints.track(game);
         }
     }
     
+    /**
+     * Reads the checkpoint named by the nim.checkpoint.file system property
+     * @return The checkpoint, empty if there is none or checkpoints are turned off
+     */
+    private LobbyCheckpoint readCheckpoint() {
+        String name = System.getProperty(CheckpointWriter.FILE_PROPERTY, CheckpointWriter.DEFAULT_FILE);
+        
+        if("none".equalsIgnoreCase(name)) {
+            return new LobbyCheckpoint();
+        }
+        
+        try {
+            return LobbyCheckpoint.read(Paths.get(name));
+        } catch (IOException e) {
+            System.out.println("Error reading checkpoint " + name + ", starting with an empty lobby: " + e.getMessage());
+            return new LobbyCheckpoint();
+        }
+    }
+    
+    /**
+     * Opens the checkpoint writer named by the nim.checkpoint.file system property
+     * @param saved The checkpoint the lobby is restored from
+     * @return The writer, not yet started - null if checkpoints are turned off or the file cannot be written
+     */
+    private CheckpointWriter openCheckpoints(LobbyCheckpoint saved) {
+        String name = System.getProperty(CheckpointWriter.FILE_PROPERTY, CheckpointWriter.DEFAULT_FILE);
+        
+        if("none".equalsIgnoreCase(name)) {
+            return null;
+        }
+        
+        try {
+            return new CheckpointWriter(Paths.get(name), saved, 
+                    Integer.getInteger(CheckpointWriter.INTERVAL_PROPERTY, CheckpointWriter.DEFAULT_INTERVAL));
+        } catch (IOException e) {
+            System.out.println("Error opening checkpoint " + name + ", checkpoints turned off: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Restores the players and games from a checkpoint. The games carry on straight away - a restored
+     * player who is asked to move has the usual turn deadline to rejoin, or forfeits. Players who have
+     * not rejoined within nim.checkpoint.rejoinSeconds are forgotten.
+     * @param saved The checkpoint
+     */
+    private void restore(LobbyCheckpoint saved) {
+        List<GameOfNim> games = new ArrayList<>();
+        
+        nextPlayerCode.set(Math.max(nextPlayerCode.get(), saved.getNextPlayerCode())); // New players get new codes
+        
+        for(LobbyCheckpoint.PlayerRecord player : saved.getPlayers()) {
+            restoredPlayers.put(player.getPlayerCode(), player);
+        }
+        restoredWaiting.addAll(saved.getWaitingPlayers());
+        
+        for(GameState state : saved.getGames()) {
+            GameOfNim game;
+            
+            if(!scheduler.tryReserve()) { // The game cap is lower than before the restart
+                System.out.println("Game cap reached, not restoring " + state);
+                continue;
+            }
+            
+            game = new GameOfNim(state, this);
+            
+            for(int t = 0; t < 2; t++) {
+                if(game.isHuman(t) && restoredPlayers.containsKey(game.getPlayerCode(t))) {
+                    activeGames.put(game.getPlayerCode(t), game);
+                    restoredInGame.add(game.getPlayerCode(t));
+                }
+            }
+            
+            watchGame(game);
+            games.add(game);
+        }
+        
+        if(restoredPlayers.isEmpty() && games.isEmpty()) {
+            return;
+        }
+        
+        System.out.println("Restored " + restoredPlayers.size() + " players and " + games.size() 
+                + " games from the checkpoint, waiting for players to rejoin");
+        
+        for(GameOfNim game : games) {
+            scheduler.submit(game);
+        }
+        
+        matchTimer.schedule(this::forgetRestoredPlayers, Integer.getInteger(REJOIN_PROPERTY, DEFAULT_REJOIN), TimeUnit.SECONDS);
+    }
+    
+    /**
+     * Forgets the restored players who have not rejoined
+     */
+    private void forgetRestoredPlayers() {
+        int forgotten = 0;
+        
+        for(Integer playerCode : restoredPlayers.keySet()) {
+            if(restoredPlayers.remove(playerCode) != null) {
+                restoredWaiting.remove(playerCode);
+                restoredInGame.remove(playerCode);
+                forgotten++;
+                
+                if(checkpoints != null) {
+                    checkpoints.playerLeft(playerCode);
+                }
+            }
+        }
+        
+        if(forgotten > 0) {
+            System.out.println(forgotten + " restored players did not rejoin and have been removed");
+        }
+    }
+    
+    /**
+     * Reads the players waiting in a bucket for the checkpoint, including restored players who
+     * were waiting and have not rejoined yet
+     * @param bucket Index of the bucket
+     * @return Player codes, longest waiting first - null if the bucket has not changed since the last checkpoint
+     */
+    private int[] waitingCodes(int bucket) {
+        RatingQueue queue = waitingPlayers.get(bucket);
+        int[] codes;
+        int waiting;
+        
+        synchronized(queue) {
+            if(queue.version() == checkpointedBuckets[bucket]) {
+                return null;
+            }
+            
+            checkpointedBuckets[bucket] = queue.version();
+            codes = queue.keys();
+        }
+        
+        waiting = codes.length;
+        for(Integer playerCode : restoredWaiting) {
+            LobbyCheckpoint.PlayerRecord player = restoredPlayers.get(playerCode);
+            
+            if(player != null && bucketIndex(player.getDifficulty(), player.getOpponentType()) == bucket) {
+                codes = Arrays.copyOf(codes, waiting + 1);
+                codes[waiting++] = playerCode;
+            }
+        }
+        return codes;
+    }
+    
+    /**
+     * Puts a player whose opponent vanished back in their original place in their bucket
+     * @param queuedPlayer The remaining player, ignored if null or if they have left the lobby too
+     */
+    private void requeue(WaitingPlayer queuedPlayer) {
+        int bucket;
+        
+        if(queuedPlayer == null) {
+            return;
+        }
+        
+        bucket = bucketIndex(queuedPlayer.difficulty, queuedPlayer.opponentType);
+        
+        synchronized(waitingPlayers.get(bucket)) {
+            // Checked under the bucket's lock - leaveLobby drops the profile before it clears the player's
+            // bucket, so a player leaving now is either seen here or taken out of the bucket after this
+            if(!profiles.containsKey(queuedPlayer.key)) {
+                return;
+            }
+            waitingPlayers.get(bucket).add(queuedPlayer);
+        }
+        
+        matchArrival(bucket, queuedPlayer);
+    }
+    
     /**
      * Initialises the server lobby ready to accept client connections
      */
@@ -259,18 +1277,24 @@ public class NimServerLobby extends UnicastRemoteObject implements NimServerInte
             System.out.println("Starting: Server initialising...");
             
             // Start RMI registry (saves typing rmiregistry into command line)
-            try {
-                LocateRegistry.createRegistry(port);
-                
-                System.out.println("1. RMI registry ready on port " + port);
+            if(partition.isSharded()) { // Bound in the coordinator's registry
+                System.out.println("1. Using the coordinator's RMI registry on port " + port);
                 System.out.println("----------------------------------");
-                        
-            } catch(Exception e) {
-                System.out.println("Exception starting RMI registry:");
-                System.out.println(e.getCause());
+            }
+            else {
+                try {
+                    LocateRegistry.createRegistry(port);
+                    
+                    System.out.println("1. RMI registry ready on port " + port);
+                    System.out.println("----------------------------------");
+                            
+                } catch(Exception e) {
+                    System.out.println("Exception starting RMI registry:");
+                    System.out.println(e.getCause());
+                }
             }
             
-            Naming.rebind(Constants.SERVERNAME, this); 
+            Naming.rebind(partition.getName(), this); // Shards are reached through the coordinator
             
             ready();
             
@@ -285,15 +1309,29 @@ public class NimServerLobby extends UnicastRemoteObject implements NimServerInte
      */
     @Override
     public void ready() throws RemoteException {
-        System.out.println("Server awaiting connections...\n");
+        System.out.println((partition.isSharded() ? "Lobby " + partition + " awaiting the coordinator... " 
+                : "Server awaiting connections... ") + "Playing " + variant + "\n");
+    }
+    
+    /**
+     * Returns the scheduler running this lobby's games, exposes the active, queued and completed game counts
+     * @return The game scheduler
+     */
+    public GameScheduler getScheduler() {
+        return scheduler;
     }
         
     /**
-     * Instantiates lobby
+     * Instantiates lobby, served over both RMI and the NIO transport.
+     * A shard - nim.shard.count above 1 - is only bound in RMI, for shard.LobbyCoordinator
      */
     public static void main(String[] args) {
         try {
             NimServerLobby lobby = new NimServerLobby();
+            
+            if(!lobby.partition.isSharded()) { // A shard's NIO clients connect to the coordinator
+                NioLobbyServer.start(lobby); // Same lobby over the binary protocol
+            }
         } catch(RemoteException e) {
             System.err.println("Problem Initialising Game Lobby: " + e.getMessage());
         }
@@ -0,0 +1,127 @@
+/**
+ * PlayerProfile holds the details of a player, read once when they join the lobby
+ *
+ * @author Chris
+ */
+
+package server;
+
+import java.rmi.RemoteException;
+import player.PlayerInterface;
+
+/**
+ * Immutable server side copy of a player's details.
+ * A client's name, difficulty and opponent type cannot change once it has joined, so the lobby
+ * reads them over RMI once and uses this copy for matching, logging and game setup. The player
+ * object itself is only used to interact with the player - moves, messages and play again.
+ */
+public final class PlayerProfile {
+    private final int playerCode;            // Player's unique code in the lobby
+    private final String name;               // Player's name
+    private final int difficulty;            // EASY or HARD
+    private final int opponentType;          // HUMAN_PLAYER or COMPUTER_PLAYER
+    private final boolean human;             // true = human player
+    private final long sessionKey;           // Secret the player proves who they are with, 0 for computer players
+    private final PlayerInterface player;    // The player, only used to interact with them
+
+    /**
+     * Constructor
+     * @param playerCode Player's unique code
+     * @param name Player's name
+     * @param difficulty EASY or HARD
+     * @param opponentType HUMAN_PLAYER or COMPUTER_PLAYER
+     * @param human true = human player
+     * @param player The player
+     */
+    public PlayerProfile(int playerCode, String name, int difficulty, int opponentType, boolean human, PlayerInterface player) {
+        this(playerCode, name, difficulty, opponentType, human, player, 0);
+    }
+    
+    /**
+     * Constructor for a player who has been given a session key
+     * @param playerCode Player's unique code
+     * @param name Player's name
+     * @param difficulty EASY or HARD
+     * @param opponentType HUMAN_PLAYER or COMPUTER_PLAYER
+     * @param human true = human player
+     * @param player The player
+     * @param sessionKey Secret the player proves who they are with
+     */
+    public PlayerProfile(int playerCode, String name, int difficulty, int opponentType, boolean human, PlayerInterface player,
+            long sessionKey) {
+        this.playerCode = playerCode;
+        this.name = name;
+        this.difficulty = difficulty;
+        this.opponentType = opponentType;
+        this.human = human;
+        this.player = player;
+        this.sessionKey = sessionKey;
+    }
+    
+    /**
+     * Reads a player's details into a profile, one call per detail if the player is remote
+     * @param player The player
+     * @return The player's profile
+     * @throws RemoteException
+     */
+    public static PlayerProfile of(PlayerInterface player) throws RemoteException {
+        return new PlayerProfile(player.getPlayerCode(), player.getName(), player.getDifficulty(), 
+                player.getOpponentType(), player.getIsHuman(), player);
+    }
+
+    /**
+     * Returns the player's unique code
+     * @return player code
+     */
+    public int getPlayerCode() {
+        return playerCode;
+    }
+
+    /**
+     * Returns the player's name
+     * @return name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the difficulty the player asked for
+     * @return EASY or HARD
+     */
+    public int getDifficulty() {
+        return difficulty;
+    }
+
+    /**
+     * Returns the opponent type the player asked for
+     * @return HUMAN_PLAYER or COMPUTER_PLAYER
+     */
+    public int getOpponentType() {
+        return opponentType;
+    }
+
+    /**
+     * Returns whether this is a human player
+     * @return true = human player
+     */
+    public boolean isHuman() {
+        return human;
+    }
+
+    /**
+     * Returns the secret the player proves who they are with - their code only says where they are
+     * @return session key
+     */
+    public long getSessionKey() {
+        return sessionKey;
+    }
+
+    /**
+     * Returns the player, used only to interact with them
+     * @return player
+     */
+    public PlayerInterface getPlayer() {
+        return player;
+    }
+}
@@ -0,0 +1,199 @@
+/**
+ * RatingQueue holds the players waiting in one lobby bucket, ordered by rating and by arrival
+ *
+ * @author Chris
+ */
+
+package server;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import server.NimServerLobby.WaitingPlayer;
+
+/**
+ * Waiting players indexed twice: by rating, to find the nearest rated opponent, and by arrival,
+ * so the longest waiting player is served first. Adding and removing are O(log n), finding an
+ * opponent is O(log n) per player whose rating lies within the widest window. Not thread safe -
+ * the lobby locks the queue.
+ * A pair is acceptable once their rating gap is within the search window of whichever has waited
+ * longer. A window starts at the base gap and widens the longer a player waits.
+ */
+class RatingQueue {
+    // System properties used to tune the search window
+    public static final String BASE_GAP_PROPERTY = "nim.match.baseGap";           // Rating gap accepted straight away
+    public static final String GAP_PER_SECOND_PROPERTY = "nim.match.gapPerSecond"; // Widening per second waited
+    public static final String MAX_GAP_PROPERTY = "nim.match.maxGap";             // Widest window
+    
+    public static final int DEFAULT_BASE_GAP = 50;
+    public static final int DEFAULT_GAP_PER_SECOND = 25;
+    public static final int DEFAULT_MAX_GAP = Integer.MAX_VALUE; // Eventually anyone will do
+    
+    private static final double BASE_GAP = Integer.getInteger(BASE_GAP_PROPERTY, DEFAULT_BASE_GAP);
+    private static final double GAP_PER_NANO = Integer.getInteger(GAP_PER_SECOND_PROPERTY, DEFAULT_GAP_PER_SECOND) 
+            / (double) TimeUnit.SECONDS.toNanos(1);
+    private static final double MAX_GAP = Integer.getInteger(MAX_GAP_PROPERTY, DEFAULT_MAX_GAP);
+    
+    private final TreeSet<WaitingPlayer> byRating = new TreeSet<>(Comparator
+            .comparingDouble((WaitingPlayer player) -> player.rating).thenComparingLong(player -> player.sequence));
+    private final TreeSet<WaitingPlayer> byArrival = new TreeSet<>(Comparator.comparingLong(player -> player.sequence));
+    private final HashMap<Integer, WaitingPlayer> byKey = new HashMap<>(); // So a player who leaves can be found
+    private int version; // Bumped whenever a player is added or removed, so checkpoints skip unchanged queues
+    
+    /**
+     * Adds a player, a requeued player goes back to their original place
+     * @param player The player
+     * @return true = added, false = the player is already waiting
+     */
+    boolean add(WaitingPlayer player) {
+        if(byKey.putIfAbsent(player.key, player) != null) {
+            return false;
+        }
+        
+        byRating.add(player);
+        byArrival.add(player);
+        version++;
+        return true;
+    }
+    
+    /**
+     * Removes a player
+     * @param player The player
+     */
+    void remove(WaitingPlayer player) {
+        byKey.remove(player.key, player);
+        byRating.remove(player);
+        
+        if(byArrival.remove(player)) {
+            version++;
+        }
+    }
+    
+    /**
+     * Removes a player who has left the lobby
+     * @param key The player's code
+     * @return The player, null if they were not waiting
+     */
+    WaitingPlayer remove(int key) {
+        WaitingPlayer player = byKey.get(key);
+        
+        if(player != null) {
+            remove(player);
+        }
+        return player;
+    }
+    
+    int version() {
+        return version;
+    }
+    
+    /**
+     * Returns the codes of every waiting player, longest waiting first
+     * @return player codes
+     */
+    int[] keys() {
+        int[] keys = new int[byArrival.size()];
+        int k = 0;
+        
+        for(WaitingPlayer player : byArrival) {
+            keys[k++] = player.key;
+        }
+        return keys;
+    }
+    
+    int size() {
+        return byArrival.size();
+    }
+    
+    boolean isEmpty() {
+        return byArrival.isEmpty();
+    }
+    
+    boolean contains(WaitingPlayer player) {
+        return byArrival.contains(player);
+    }
+    
+    /**
+     * Returns the player who has waited longest
+     * @return The player, null if the queue is empty
+     */
+    WaitingPlayer oldest() {
+        return byArrival.isEmpty() ? null : byArrival.first();
+    }
+    
+    /**
+     * Returns the players who have waited longest
+     * @param count Most players returned
+     * @return The players, longest waiting first
+     */
+    List<WaitingPlayer> oldest(int count) {
+        List<WaitingPlayer> players = new ArrayList<>(Math.min(count, byArrival.size()));
+        
+        for(WaitingPlayer player : byArrival) {
+            if(players.size() == count) {
+                break;
+            }
+            players.add(player);
+        }
+        return players;
+    }
+    
+    /**
+     * Returns every player, longest waiting first
+     * @return Copy of the queue in arrival order
+     */
+    List<WaitingPlayer> inArrivalOrder() {
+        return new ArrayList<>(byArrival);
+    }
+    
+    /**
+     * Finds the waiting opponent nearest in rating to a player whose pairing is acceptable. The
+     * nearest players may not be - a farther one who has waited longer can have a wider window -
+     * so the search walks outward on both sides until the gap is wider than any window in the queue.
+     * @param player A player in the queue
+     * @param now Current System.nanoTime()
+     * @return The opponent, null if there is no acceptable opponent yet
+     */
+    WaitingPlayer findOpponent(WaitingPlayer player, long now) {
+        double playerWindow = window(player, now);
+        double limit = Math.max(playerWindow, window(byArrival.first(), now)); // Oldest has the widest window
+        WaitingPlayer below = byRating.lower(player);
+        WaitingPlayer above = byRating.higher(player);
+        
+        while (below != null || above != null) {
+            WaitingPlayer nearest;
+            
+            if (below == null || (above != null && above.rating - player.rating < player.rating - below.rating)) {
+                nearest = above;
+                above = byRating.higher(above);
+            }
+            else {
+                nearest = below;
+                below = byRating.lower(below);
+            }
+            
+            double gap = Math.abs(nearest.rating - player.rating);
+            
+            if (gap > limit) {
+                return null; // Every player left is farther still
+            }
+            if (gap <= Math.max(playerWindow, window(nearest, now))) {
+                return nearest;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Returns the rating gap a player will currently accept
+     * @param player The player
+     * @param now Current System.nanoTime()
+     * @return Widest acceptable gap
+     */
+    static double window(WaitingPlayer player, long now) {
+        return Math.min(MAX_GAP, BASE_GAP + (now - player.queuedAt) * GAP_PER_NANO);
+    }
+}
@@ -0,0 +1,585 @@
+/**
+ * LobbyCoordinator spreads the lobby over several shard processes
+ */
+package shard;
+
+import client.NimClientInterface;
+import constants.Constants;
+import java.lang.reflect.Proxy;
+import java.net.MalformedURLException;
+import java.rmi.ConnectException;
+import java.rmi.ConnectIOException;
+import java.rmi.Naming;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.RemoteObject;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import leaderboard.LeaderboardEntry;
+import server.NimServerInterface;
+import transport.NioLobbyServer;
+
+/**
+ * Front door of a sharded lobby, bound under the usual server name so clients need no changes.
+ * Each shard is a NimServerLobby process started with nim.shard.index and nim.shard.count, owning
+ * the players whose codes it issued and the games it runs. The coordinator holds no game state:
+ * new players are placed on the shards in turn, and every later call is passed to the shard that
+ * owns the player's code or the game's id. Games call the players back directly from their shard.
+ *
+ * Players waiting for a human opponent are only matched within their shard. Every
+ * nim.shard.overflowMillis the coordinator collects the players who have waited that long on each
+ * shard and, for each difficulty, pairs the longest waiting with the nearest rated lone player on
+ * another shard, who is moved across to be matched. A moved player keeps their code, the
+ * coordinator remembers where they went.
+ *
+ * NIO clients connect to the coordinator. Their connections are exported over RMI here when they
+ * join, so the shards can call them back like any RMI client.
+ * @author Chris
+ */
+public class LobbyCoordinator extends UnicastRemoteObject implements NimServerInterface {
+    private static final long serialVersionUID = 1L;
+
+    // System property holding the milliseconds a player waits on their shard before looking on the others
+    public static final String OVERFLOW_PROPERTY = "nim.shard.overflowMillis";
+    public static final int DEFAULT_OVERFLOW = 3000;
+
+    private static final int OVERFLOW_LIMIT = 64; // Most lone players taken from each shard per difficulty and sweep
+    private static final int RELEASE_SECONDS = 10; // Time a shard has to deliver its last messages to an NIO client that left
+    private static final Object IN_USE = new Object(); // Exported connection that is still playing or watching
+
+    /**
+     * A call made on a shard
+     */
+    private interface ShardCall<T> {
+        T call(ShardInterface shard) throws RemoteException;
+    }
+
+    /**
+     * A lone player and the shard they are waiting on
+     */
+    private static final class LonePlayer {
+        final int shard;
+        final PlayerTransfer player;
+
+        LonePlayer(int shard, PlayerTransfer player) {
+            this.shard = shard;
+            this.player = player;
+        }
+    }
+
+    private final int shardCount;
+    private final AtomicReferenceArray<ShardInterface> shards; // Looked up when first needed, null until then
+    private final AtomicInteger nextShard = new AtomicInteger(); // Where the next new player goes
+    private final long overflowMillis;
+
+    // Shard of each player moved away from the shard that issued their code
+    private final ConcurrentHashMap<Integer, Integer> moved = new ConcurrentHashMap<>();
+    // NIO connections exported for the shards to call back, players by code
+    private final ConcurrentHashMap<Integer, NimClientInterface> exportedPlayers = new ConcurrentHashMap<>();
+    // Every exported connection, IN_USE or the token of its pending release
+    private final ConcurrentHashMap<NimClientInterface, Object> exported = new ConcurrentHashMap<>();
+
+    private final AtomicInteger playersMoved = new AtomicInteger();
+    // Runs the overflow sweeps and unexports connections that have left
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Nim shard coordinator");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Constructor, shards are found in the registry as they are needed
+     * @param shardCount Number of shards
+     * @param overflowMillis Time a player waits on their shard before looking on the others
+     * @throws RemoteException
+     */
+    public LobbyCoordinator(int shardCount, long overflowMillis) throws RemoteException {
+        this.shardCount = shardCount;
+        this.overflowMillis = overflowMillis;
+        shards = new AtomicReferenceArray<>(shardCount);
+
+        timer.scheduleWithFixedDelay(this::matchAcrossShards, overflowMillis, overflowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns a shard, looking it up in the registry if it has not been reached yet
+     * @param index The shard
+     * @return The shard
+     * @throws RemoteException If the shard is not running
+     */
+    private ShardInterface shard(int index) throws RemoteException {
+        ShardInterface shard = shards.get(index);
+
+        if (shard == null) {
+            try {
+                shard = (ShardInterface) Naming.lookup("rmi://localhost/" + ShardPartition.name(index));
+                shards.set(index, shard);
+            } catch (NotBoundException | MalformedURLException e) {
+                throw new RemoteException("Lobby shard " + index + " is not running", e);
+            }
+        }
+        return shard;
+    }
+
+    /**
+     * Calls a shard. If the shard cannot be reached it is looked up again next time, it may have restarted.
+     * @param index The shard
+     * @param call The call
+     * @return Whatever the call returns
+     * @throws RemoteException If the shard cannot be reached or the call fails
+     */
+    private <T> T onShard(int index, ShardCall<T> call) throws RemoteException {
+        ShardInterface shard = shard(index);
+
+        try {
+            return call.call(shard);
+        } catch (ConnectException | ConnectIOException | NoSuchObjectException e) {
+            shards.compareAndSet(index, shard, null);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the shard a player is on
+     * @param playerCode The player's unique code
+     * @return The shard that issued the code, unless the player has been moved
+     */
+    private int shardOf(int playerCode) {
+        Integer shard = moved.get(playerCode);
+
+        return shard != null ? shard : ShardPartition.owner(playerCode, shardCount);
+    }
+
+    /**
+     * Makes a client reachable from the shards. RMI clients already are, an NIO connection lives in
+     * this process and is exported the first time it is passed on.
+     * @param client The client
+     */
+    private void export(NimClientInterface client) throws RemoteException {
+        if (Proxy.isProxyClass(client.getClass()) || client instanceof RemoteObject) { // Already a remote reference
+            return;
+        }
+
+        synchronized (client) {
+            if (exported.put(client, IN_USE) == null) { // Also cancels a pending release
+                UnicastRemoteObject.exportObject(client, 0);
+            }
+        }
+    }
+
+    /**
+     * Stops exporting an NIO connection straight away
+     * @param client The client, ignored if never exported
+     */
+    private void unexport(NimClientInterface client) {
+        synchronized (client) {
+            if (exported.remove(client) != null) {
+                try {
+                    UnicastRemoteObject.unexportObject(client, true);
+                } catch (NoSuchObjectException e) {
+                    // Already unexported
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops exporting an NIO connection that has left, once its shard has had time to send the last messages.
+     * The release is cancelled if the connection joins or watches again in the meantime.
+     * @param client The client, ignored if null or never exported
+     */
+    private void release(NimClientInterface client) {
+        Object token = new Object();
+
+        if (client != null && exported.replace(client, IN_USE, token)) {
+            timer.schedule(() -> {
+                synchronized (client) {
+                    if (exported.remove(client, token)) {
+                        try {
+                            UnicastRemoteObject.unexportObject(client, true);
+                        } catch (NoSuchObjectException e) {
+                            // Already unexported
+                        }
+                    }
+                }
+            }, RELEASE_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Remembers an exported player by the code their shard gave them, so they can be unexported when they leave
+     * @param player The player
+     */
+    private void trackExported(NimClientInterface player) throws RemoteException {
+        if (exported.containsKey(player)) {
+            exportedPlayers.put(player.getPlayerCode(), player); // A local call on an NIO connection
+        }
+    }
+
+    /**
+     * Adds a player to the next shard in turn, skipping any shard that cannot be reached
+     * @param player The player
+     * @throws RemoteException If no shard can be reached
+     */
+    @Override
+    public void addPlayer(NimClientInterface player) throws RemoteException {
+        int first = nextShard.getAndIncrement();
+        RemoteException failure = null;
+
+        export(player);
+
+        for (int s = 0; s < shardCount; s++) {
+            try {
+                onShard(Math.floorMod(first + s, shardCount), shard -> {
+                    shard.addPlayer(player);
+                    return null;
+                });
+                trackExported(player);
+                return;
+            } catch (ConnectException | ConnectIOException | NoSuchObjectException e) {
+                failure = e;
+            } catch (RemoteException e) {
+                if (e.getCause() instanceof NotBoundException) { // Shard not started, try the next
+                    failure = e;
+                    continue;
+                }
+                unexport(player);
+                throw e;
+            }
+        }
+
+        unexport(player);
+        throw new RemoteException("No lobby shard is running", failure);
+    }
+
+    /**
+     * Rejoins a player on the shard that owns their code
+     * @param player The player
+     * @param playerCode The player's code from before the restart
+     * @param sessionKey The player's session key
+     * @throws RemoteException
+     */
+    @Override
+    public void rejoin(NimClientInterface player, int playerCode, long sessionKey) throws RemoteException {
+        export(player);
+        onShard(shardOf(playerCode), shard -> {
+            shard.rejoin(player, playerCode, sessionKey); // An unknown code joins that shard as a new player
+            return null;
+        });
+        trackExported(player);
+    }
+
+    @Override
+    public void queuePlayer(int playerKey, long sessionKey) throws RemoteException {
+        onShard(shardOf(playerKey), shard -> {
+            shard.queuePlayer(playerKey, sessionKey);
+            return null;
+        });
+    }
+
+    @Override
+    public void leaveLobby(int playerCode, long sessionKey) throws RemoteException {
+        onShard(shardOf(playerCode), lobby -> { // The shard checks the key before anything is let go
+            lobby.leaveLobby(playerCode, sessionKey);
+            return null;
+        });
+
+        moved.remove(playerCode);
+        release(exportedPlayers.remove(playerCode));
+    }
+
+    @Override
+    public void submitMove(int playerCode, long sessionKey, int marbles) throws RemoteException {
+        onShard(shardOf(playerCode), shard -> {
+            shard.submitMove(playerCode, sessionKey, marbles);
+            return null;
+        });
+    }
+
+    @Override
+    public void submitHeapMove(int playerCode, long sessionKey, int heap, int marbles) throws RemoteException {
+        onShard(shardOf(playerCode), shard -> {
+            shard.submitHeapMove(playerCode, sessionKey, heap, marbles);
+            return null;
+        });
+    }
+
+    @Override
+    public void heartbeat(int playerCode, long sessionKey) throws RemoteException {
+        onShard(shardOf(playerCode), shard -> {
+            shard.heartbeat(playerCode, sessionKey);
+            return null;
+        });
+    }
+
+    @Override
+    public void requestGameState(int playerCode, long sessionKey) throws RemoteException {
+        onShard(shardOf(playerCode), shard -> {
+            shard.requestGameState(playerCode, sessionKey);
+            return null;
+        });
+    }
+
+    /**
+     * Merges the shards' leaderboards. A player who has played on several shards is rated on each,
+     * the entry with the most games is used.
+     * @param count Number of players wanted
+     * @return Leaderboard entries, highest rating first
+     * @throws RemoteException
+     */
+    @Override
+    public LeaderboardEntry[] getLeaderboard(int count) throws RemoteException {
+        Map<String, LeaderboardEntry> entries = new HashMap<>();
+        List<LeaderboardEntry> merged;
+
+        for (int s = 0; s < shardCount; s++) {
+            LeaderboardEntry[] top;
+
+            try {
+                top = onShard(s, shard -> shard.getLeaderboard(count));
+            } catch (RemoteException e) { // Leave out a shard that is down
+                continue;
+            }
+
+            for (LeaderboardEntry entry : top) {
+                entries.merge(entry.getName(), entry, (a, b) ->
+                        a.getWins() + a.getLosses() >= b.getWins() + b.getLosses() ? a : b);
+            }
+        }
+
+        merged = new ArrayList<>(entries.values());
+        merged.sort(Comparator.comparingDouble(LeaderboardEntry::getRating).reversed());
+        return merged.subList(0, Math.min(Math.max(count, 0), merged.size())).toArray(new LeaderboardEntry[0]);
+    }
+
+    /**
+     * Lists the games in progress on every shard, taking each shard's best rated games in turn
+     * @param count Number of games wanted
+     * @return One line per game
+     * @throws RemoteException
+     */
+    @Override
+    public String[] listGames(int count) throws RemoteException {
+        List<String[]> lists = new ArrayList<>();
+        List<String> games = new ArrayList<>();
+
+        for (int s = 0; s < shardCount; s++) {
+            try {
+                lists.add(onShard(s, shard -> shard.listGames(count)));
+            } catch (RemoteException e) { // Leave out a shard that is down
+            }
+        }
+
+        for (int g = 0; games.size() < count; g++) {
+            int before = games.size();
+
+            for (String[] list : lists) {
+                if (g < list.length && games.size() < count) {
+                    games.add(list[g]);
+                }
+            }
+
+            if (games.size() == before) { // Every list used up
+                break;
+            }
+        }
+        return games.toArray(new String[games.size()]);
+    }
+
+    @Override
+    public void spectate(NimClientInterface spectator, long gameId) throws RemoteException {
+        export(spectator);
+        onShard(ShardPartition.owner(gameId, shardCount), shard -> { // Games never move
+            shard.spectate(spectator, gameId);
+            return null;
+        });
+    }
+
+    @Override
+    public void stopSpectating(NimClientInterface spectator, long gameId) throws RemoteException {
+        onShard(ShardPartition.owner(gameId, shardCount), shard -> {
+            shard.stopSpectating(spectator, gameId);
+            return null;
+        });
+
+        if (!exportedPlayers.containsValue(spectator)) { // Exported only to watch
+            release(spectator);
+        }
+    }
+
+    @Override
+    public String[] getReplay(long gameId) throws RemoteException {
+        return onShard(ShardPartition.owner(gameId, shardCount), shard -> shard.getReplay(gameId));
+    }
+
+    /**
+     * Pairs players left waiting on their own shard with lone players on the other shards.
+     * For each difficulty the longest waiting player is paired with the nearest rated lone player
+     * on a different shard, who is moved to the first player's shard and matched there on arrival.
+     */
+    private void matchAcrossShards() {
+        Map<Integer, List<LonePlayer>> byDifficulty = new HashMap<>();
+
+        try {
+            for (int s = 0; s < shardCount; s++) {
+                final int index = s;
+                PlayerTransfer[] lone;
+
+                try {
+                    lone = onShard(s, shard -> shard.lonePlayers(overflowMillis, OVERFLOW_LIMIT));
+                } catch (RemoteException e) { // Shard down or not started yet
+                    continue;
+                }
+
+                for (PlayerTransfer player : lone) {
+                    byDifficulty.computeIfAbsent(player.getDifficulty(), d -> new ArrayList<>()).add(new LonePlayer(index, player));
+                }
+            }
+
+            for (List<LonePlayer> lone : byDifficulty.values()) {
+                lone.sort(Comparator.comparingLong((LonePlayer p) -> p.player.getWaitedMillis()).reversed());
+
+                while (lone.size() > 1) {
+                    LonePlayer first = lone.remove(0);
+                    LonePlayer nearest = null;
+
+                    for (LonePlayer other : lone) {
+                        if (other.shard != first.shard && (nearest == null
+                                || Math.abs(other.player.getRating() - first.player.getRating())
+                                < Math.abs(nearest.player.getRating() - first.player.getRating()))) {
+                            nearest = other;
+                        }
+                    }
+
+                    if (nearest != null) {
+                        lone.remove(nearest);
+                        move(nearest.player.getPlayerCode(), nearest.shard, first.shard);
+                    }
+                }
+            }
+        } catch (RuntimeException e) { // Keep the sweep running
+            Logger.getLogger(LobbyCoordinator.class.getName()).log(Level.SEVERE, null, e);
+        }
+    }
+
+    /**
+     * Moves a waiting player between shards. If the new shard cannot take them they are put back.
+     * @param playerCode The player's unique code
+     * @param from Shard the player is waiting on
+     * @param to Shard to move them to
+     */
+    private void move(int playerCode, int from, int to) {
+        PlayerTransfer player;
+
+        try {
+            player = onShard(from, shard -> shard.releasePlayer(playerCode));
+        } catch (RemoteException e) {
+            return;
+        }
+
+        if (player == null) { // Matched or gone since they were reported
+            return;
+        }
+
+        setShard(playerCode, to); // Calls from the player go to the new shard from now on
+
+        try {
+            onShard(to, shard -> {
+                shard.acceptPlayer(player);
+                return null;
+            });
+            playersMoved.incrementAndGet();
+        } catch (RemoteException e) {
+            setShard(playerCode, from);
+
+            try {
+                onShard(from, shard -> {
+                    shard.acceptPlayer(player);
+                    return null;
+                });
+            } catch (RemoteException ex) {
+                System.out.println("Player " + playerCode + " lost moving between shards: " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Records the shard a player is on, forgetting players who are back on the shard that issued their code
+     * @param playerCode The player's unique code
+     * @param shard The shard
+     */
+    private void setShard(int playerCode, int shard) {
+        if (shard == ShardPartition.owner(playerCode, shardCount)) {
+            moved.remove(playerCode);
+        }
+        else {
+            moved.put(playerCode, shard);
+        }
+    }
+
+    /**
+     * Returns the number of players moved between shards to find an opponent
+     * @return players moved
+     */
+    public int getPlayersMoved() {
+        return playersMoved.get();
+    }
+
+    @Override
+    public void ready() throws RemoteException {
+        System.out.println("Coordinator awaiting connections... " + shardCount + " lobby shards\n");
+    }
+
+    /**
+     * Starts the coordinator on the RMI registry's port and the NIO port. The shards are started
+     * separately with -Dnim.shard.index=0 .. n-1 and -Dnim.shard.count=n, after the coordinator,
+     * which owns the registry.
+     * @param args Optional number of shards, nim.shard.count if not given
+     */
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : Integer.getInteger(ShardPartition.COUNT_PROPERTY, 2);
+
+        if (count < 2) { // A single lobby needs no coordinator, and would take its name
+            System.out.println("Usage: LobbyCoordinator [shards, at least 2]");
+            return;
+        }
+
+        try {
+            LobbyCoordinator coordinator = new LobbyCoordinator(count,
+                    Integer.getInteger(OVERFLOW_PROPERTY, DEFAULT_OVERFLOW));
+
+            System.out.println("Starting: Coordinator initialising...");
+
+            try {
+                LocateRegistry.createRegistry(Registry.REGISTRY_PORT);
+
+                System.out.println("1. RMI registry ready on port " + Registry.REGISTRY_PORT);
+                System.out.println("----------------------------------");
+            } catch (RemoteException e) {
+                System.out.println("Exception starting RMI registry:");
+                System.out.println(e.getCause());
+            }
+
+            Naming.rebind(Constants.SERVERNAME, coordinator);
+            NioLobbyServer.start(coordinator); // NIO clients join through the coordinator as well
+            coordinator.ready();
+        } catch (RemoteException | MalformedURLException e) {
+            System.err.println("Problem Initialising Coordinator: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * PlayerTransfer carries a waiting player from one lobby shard to another
+ */
+package shard;
+
+import client.NimClientInterface;
+import java.io.Serializable;
+
+/**
+ * Immutable snapshot of a player waiting for a human opponent on a shard.
+ * Shards report their lone players to the coordinator without the client, which is only
+ * included when the player is actually released to move to another shard. The time already
+ * waited travels with the player, so they keep the rating window they have earned.
+ * @author Chris
+ */
+public class PlayerTransfer implements Serializable {
+    private static final long serialVersionUID = 1L;
+    
+    private final int playerCode;
+    private final String name;
+    private final int difficulty;           // EASY or HARD
+    private final int opponentType;         // HUMAN_PLAYER or COMPUTER_PLAYER
+    private final double rating;            // Rating when the player was queued
+    private final long waitedMillis;        // Time waited so far
+    private final long sessionKey;          // Player's session key, 0 in a report
+    private final NimClientInterface client; // The player, null in a report
+    
+    /**
+     * Constructor
+     * @param playerCode Player's unique code, kept on the new shard
+     * @param name Player's name
+     * @param difficulty EASY or HARD
+     * @param opponentType HUMAN_PLAYER or COMPUTER_PLAYER
+     * @param rating Rating when the player was queued
+     * @param waitedMillis Time waited so far
+     * @param sessionKey Player's session key, kept on the new shard, 0 when only reporting them
+     * @param client The player, null when only reporting them
+     */
+    public PlayerTransfer(int playerCode, String name, int difficulty, int opponentType, double rating, 
+            long waitedMillis, long sessionKey, NimClientInterface client) {
+        this.playerCode = playerCode;
+        this.name = name;
+        this.difficulty = difficulty;
+        this.opponentType = opponentType;
+        this.rating = rating;
+        this.waitedMillis = waitedMillis;
+        this.sessionKey = sessionKey;
+        this.client = client;
+    }
+    
+    public int getPlayerCode() {
+        return playerCode;
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    public int getDifficulty() {
+        return difficulty;
+    }
+    
+    public int getOpponentType() {
+        return opponentType;
+    }
+    
+    public double getRating() {
+        return rating;
+    }
+    
+    public long getWaitedMillis() {
+        return waitedMillis;
+    }
+    
+    public long getSessionKey() {
+        return sessionKey;
+    }
+    
+    public NimClientInterface getClient() {
+        return client;
+    }
+}
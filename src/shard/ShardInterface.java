@@ -0,0 +1,40 @@
+/**
+ * ShardInterface is the lobby as seen by the shard coordinator
+ */
+package shard;
+
+import java.rmi.RemoteException;
+import server.NimServerInterface;
+
+/**
+ * A lobby shard - the usual lobby operations, called by the coordinator on the client's behalf,
+ * and the calls the coordinator uses to move lone players between shards
+ * @author Chris
+ */
+public interface ShardInterface extends NimServerInterface {
+    
+    /**
+     * Reports the players who have waited at least the given time for a human opponent
+     * @param waitedMillis Minimum time waited
+     * @param limit Most players reported for each difficulty, longest waiting first
+     * @return The players, without their clients
+     * @throws RemoteException
+     */
+    public PlayerTransfer[] lonePlayers(long waitedMillis, int limit) throws RemoteException;
+    
+    /**
+     * Takes a waiting player out of this shard so they can join another. Messages already queued
+     * for the player are still delivered.
+     * @param playerCode The player's unique code
+     * @return The player, with their client, null if they are no longer waiting
+     * @throws RemoteException
+     */
+    public PlayerTransfer releasePlayer(int playerCode) throws RemoteException;
+    
+    /**
+     * Adds a player released by another shard and queues them, keeping their code and time waited
+     * @param player The player
+     * @throws RemoteException
+     */
+    public void acceptPlayer(PlayerTransfer player) throws RemoteException;
+}
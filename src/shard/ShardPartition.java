@@ -0,0 +1,99 @@
+/**
+ * ShardPartition divides player codes and game ids between the lobby shards
+ */
+package shard;
+
+import constants.Constants;
+
+/**
+ * One lobby shard's share of the player codes and game ids.
+ * Shard i of n issues the ids i + 1, i + 1 + n, i + 1 + 2n ... so ids never clash between shards
+ * and the coordinator can tell which shard owns a player or a game from the id alone.
+ * A lobby that is not sharded is shard 0 of 1 and issues every id, as it always has.
+ * @author Chris
+ */
+public final class ShardPartition {
+    // System properties used to configure a lobby shard
+    public static final String INDEX_PROPERTY = "nim.shard.index"; // This shard, from 0
+    public static final String COUNT_PROPERTY = "nim.shard.count"; // Number of shards, 1 = not sharded
+
+    private final int index;
+    private final int count;
+
+    /**
+     * Constructor
+     * @param index This shard, from 0
+     * @param count Number of shards
+     */
+    public ShardPartition(int index, int count) {
+        if (count < 1 || index < 0 || index >= count) {
+            throw new IllegalArgumentException("Shard " + index + " of " + count);
+        }
+
+        this.index = index;
+        this.count = count;
+    }
+
+    /**
+     * Reads the partition from the nim.shard.index and nim.shard.count system properties
+     * @return The partition, shard 0 of 1 if the properties are not set
+     */
+    public static ShardPartition fromSystemProperties() {
+        return new ShardPartition(Integer.getInteger(INDEX_PROPERTY, 0), Integer.getInteger(COUNT_PROPERTY, 1));
+    }
+
+    /**
+     * Returns the next id owned by this shard
+     * @param last The last id issued, by this shard or restored from storage
+     * @return The smallest id above last that belongs to this shard
+     */
+    public long next(long last) {
+        long id = last + 1;
+
+        return id + Math.floorMod(index - (id - 1), count);
+    }
+
+    /**
+     * Returns the shard owning an id
+     * @param id A player code or game id
+     * @param count Number of shards
+     * @return The shard, from 0
+     */
+    public static int owner(long id, int count) {
+        return (int) Math.floorMod(id - 1, (long) count);
+    }
+
+    /**
+     * Returns the RMI name a shard is bound to
+     * @param index The shard, from 0
+     * @return Name in the registry
+     */
+    public static String name(int index) {
+        return Constants.SERVERNAME + "-shard-" + index;
+    }
+
+    /**
+     * Returns the RMI name this lobby is bound to - the shard's name, or the usual server name if not sharded
+     * @return Name in the registry
+     */
+    public String getName() {
+        return isSharded() ? name(index) : Constants.SERVERNAME;
+    }
+
+    public boolean isSharded() {
+        return count > 1;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return "shard " + index + " of " + count;
+    }
+}
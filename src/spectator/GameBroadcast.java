@@ -0,0 +1,269 @@
+/**
+ * GameBroadcast fans the events of one game out to everyone watching it
+ */
+package spectator;
+
+import client.NimClientInterface;
+import game.GameOfNim;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import metrics.NimMetrics;
+
+/**
+ * Live feed of one game.
+ * The game publishes each event once into a ring buffer shared by every spectator - publishing
+ * is a couple of writes and a wake up of the fan-out thread, whatever the number of spectators.
+ * Each spectator has its own read position and is delivered to on the spectator delivery threads,
+ * taking everything published since its last delivery in a single serverMessages call.
+ * A spectator whose last call was slow is delivered to on separate threads, so they cannot hold up
+ * everyone else. A spectator who falls a whole ring behind skips ahead to the oldest event still
+ * held, and is dropped if that keeps happening or a call to them fails.
+ * @author Chris
+ */
+public class GameBroadcast implements GameOfNim.EventListener {
+    /**
+     * An event in the ring, with its sequence number so a reader can tell it has been overwritten
+     */
+    private static final class Event {
+        final long sequence;
+        final String text;
+
+        Event(long sequence, String text) {
+            this.sequence = sequence;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Someone watching the game
+     */
+    final class Spectator {
+        final NimClientInterface client;
+        private final AtomicBoolean deliveryScheduled = new AtomicBoolean(); // A delivery task is queued or running
+        private volatile boolean closed;
+        private volatile boolean slow;  // Last call took longer than slowNanos, delivered on the slow threads
+        private long next;      // Sequence of the next event to send, delivery task only
+        private String intro;   // Where the game stood when they started watching, sent first
+        private int skips;      // Times they have fallen a whole ring behind
+
+        Spectator(NimClientInterface client, long next, String intro) {
+            this.client = client;
+            this.next = next;
+            this.intro = intro;
+        }
+
+        /**
+         * Makes sure a delivery is queued, called for every spectator when events are published
+         */
+        void schedule() {
+            if (!closed && deliveryScheduled.compareAndSet(false, true)) {
+                (slow ? slowExecutor : executor).execute(this::deliver);
+            }
+        }
+
+        /**
+         * Sends everything published since the last delivery, repeating until they have caught up
+         */
+        private void deliver() {
+            do {
+                while (!closed && (intro != null || next < published)) {
+                    sendBatch();
+                }
+
+                if (!closed && finished && next >= published) { // Game over and everything sent
+                    close();
+                }
+
+                deliveryScheduled.set(false);
+
+                // An event may have been published after the check, carry on if so and nobody else has
+            } while (!closed && next < published && deliveryScheduled.compareAndSet(false, true));
+        }
+
+        /**
+         * Sends the events from the spectator's read position to the latest one published
+         */
+        private void sendBatch() {
+            List<String> batch = new ArrayList<>();
+            long end = published;
+
+            if (intro != null) {
+                batch.add(intro);
+                intro = null;
+            }
+
+            for (long sequence = next; sequence < end; sequence++) {
+                Event event = ring[(int) (sequence & mask)];
+
+                if (event == null || event.sequence != sequence) { // Overwritten - skip ahead to the oldest event held
+                    long oldest = Math.max(end - ring.length, sequence + 1);
+
+                    metrics.spectatorSkipped(oldest - sequence);
+                    batch.add("... " + (oldest - sequence) + " moves skipped");
+                    sequence = oldest - 1;
+
+                    if (++skips > maxSkips) {
+                        drop("too slow");
+                        return;
+                    }
+                    continue;
+                }
+                batch.add(event.text);
+            }
+
+            next = end;
+
+            try {
+                long callStart = System.nanoTime();
+                long callNanos;
+
+                client.serverMessages(batch.toArray(new String[batch.size()]));
+                callNanos = System.nanoTime() - callStart;
+                metrics.remoteCall(NimMetrics.RemoteCall.SERVER_MESSAGES, callNanos);
+                slow = callNanos > slowNanos; // Takes effect from their next delivery
+            } catch (RemoteException e) {
+                drop(e.getMessage());
+            }
+        }
+
+        /**
+         * Gives up on a spectator
+         * @param reason Why, for the server console
+         */
+        private void drop(String reason) {
+            System.out.println("Spectator dropped from game " + gameId + " - " + reason);
+            metrics.spectatorDropped();
+            close();
+        }
+
+        /**
+         * Stops watching
+         */
+        void close() {
+            closed = true;
+
+            if (spectators.remove(client, this)) {
+                metrics.spectatorLeft();
+            }
+        }
+    }
+
+    private final long gameId;
+    private final Event[] ring;          // Latest events, indexed by sequence & mask
+    private final int mask;
+    private volatile long published;     // Events published, written only by the game
+    private volatile boolean finished;   // Game is over, spectators leave once they have caught up
+    private final ConcurrentHashMap<NimClientInterface, Spectator> spectators = new ConcurrentHashMap<>();
+    private final Executor executor;     // Delivery threads
+    private final Executor slowExecutor; // Delivery threads for slow spectators
+    private final long slowNanos;        // Call time above which a spectator counts as slow
+    private final Executor fanOut;       // Fan-out thread, queues a delivery for every spectator
+    private final AtomicBoolean fanOutScheduled = new AtomicBoolean(); // Waiting for the fan-out thread
+    private final int maxSkips;          // Times a spectator may fall a whole ring behind before being dropped
+    private final NimMetrics metrics = NimMetrics.shared();
+
+    /**
+     * Constructor
+     * @param gameId The game's id
+     * @param ringSize Events held for slow spectators, rounded up to a power of two
+     * @param maxSkips Times a spectator may fall a whole ring behind before being dropped
+     * @param executor Runs the deliveries
+     * @param slowExecutor Runs the deliveries to slow spectators
+     * @param slowNanos Call time above which a spectator counts as slow
+     * @param fanOut Queues the deliveries when an event is published, must not block
+     */
+    GameBroadcast(long gameId, int ringSize, int maxSkips, Executor executor, Executor slowExecutor, long slowNanos,
+            Executor fanOut) {
+        int size = Integer.highestOneBit(Math.max(ringSize, 2) - 1) << 1;
+
+        this.gameId = gameId;
+        this.ring = new Event[size];
+        this.mask = size - 1;
+        this.maxSkips = maxSkips;
+        this.executor = executor;
+        this.slowExecutor = slowExecutor;
+        this.slowNanos = slowNanos;
+        this.fanOut = fanOut;
+    }
+
+    /**
+     * Publishes an event, called by the game holding its lock so events are published one at a time
+     * @param game The game
+     * @param event What happened
+     */
+    @Override
+    public void gameEvent(GameOfNim game, String event) {
+        long sequence = published;
+
+        ring[(int) (sequence & mask)] = new Event(sequence, event);
+        published = sequence + 1; // Volatile write makes the event visible to the delivery threads
+
+        if (!spectators.isEmpty() && fanOutScheduled.compareAndSet(false, true)) {
+            fanOut.execute(() -> {
+                fanOutScheduled.set(false); // Later events get another pass
+                schedule();
+            });
+        }
+    }
+
+    /**
+     * Adds a spectator, who is sent where the game stands then every event from now on
+     * @param client The spectator
+     * @param intro Where the game stands
+     */
+    void add(NimClientInterface client, String intro) {
+        Spectator spectator = new Spectator(client, published, intro);
+
+        if (spectators.putIfAbsent(client, spectator) == null) { // Not already watching
+            metrics.spectatorJoined();
+            spectator.schedule();
+        }
+    }
+
+    /**
+     * Removes a spectator
+     * @param client The spectator
+     * @return true = they were watching
+     */
+    boolean remove(NimClientInterface client) {
+        Spectator spectator = spectators.get(client);
+
+        if (spectator != null) {
+            spectator.close();
+        }
+        return spectator != null;
+    }
+
+    /**
+     * Queues a delivery for every spectator who does not already have one
+     */
+    void schedule() {
+        for (Spectator spectator : spectators.values()) {
+            spectator.schedule();
+        }
+    }
+
+    /**
+     * Marks the game over, spectators are sent the last events then stop watching
+     */
+    void finish() {
+        finished = true;
+        fanOut.execute(this::schedule);
+    }
+
+    /**
+     * Returns the number of spectators
+     * @return spectators
+     */
+    public int size() {
+        return spectators.size();
+    }
+
+    public long getGameId() {
+        return gameId;
+    }
+}
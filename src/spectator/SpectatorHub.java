@@ -0,0 +1,149 @@
+/**
+ * SpectatorHub keeps the live feeds of the games people are watching
+ */
+package spectator;
+
+import client.NimClientInterface;
+import game.GameOfNim;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spectators of every game.
+ * A game gets a GameBroadcast when its first spectator arrives, and loses it when the game ends.
+ * Publishing an event only wakes the single fan-out thread, which queues a delivery for each
+ * spectator on a fixed pool of delivery threads - so the game thread does the same work whether a
+ * game has one spectator or ten thousand. Spectators whose calls are slow are moved to a smaller
+ * pool of their own, where they only hold up each other.
+ * @author Chris
+ */
+public class SpectatorHub {
+    // System properties used to configure spectating
+    public static final String RING_PROPERTY = "nim.spectate.ring";         // Events held per game for slow spectators
+    public static final String THREADS_PROPERTY = "nim.spectate.threads";   // Threads delivering to spectators
+    public static final String MAX_SKIPS_PROPERTY = "nim.spectate.maxSkips"; // Times a spectator may fall a whole ring behind
+    public static final String SLOW_PROPERTY = "nim.spectate.slowMillis";   // Call time above which a spectator counts as slow
+
+    public static final int DEFAULT_RING = 256;
+    public static final int DEFAULT_THREADS = 16;
+    public static final int DEFAULT_MAX_SKIPS = 3;
+    public static final int DEFAULT_SLOW = 100;
+
+    private final ConcurrentHashMap<Long, GameBroadcast> broadcasts = new ConcurrentHashMap<>(); // Keyed by game id
+    private final int ringSize;
+    private final int maxSkips;
+    private final long slowNanos;
+    private final ExecutorService fanOut = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Nim spectator fan-out");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ExecutorService delivery;
+    private final ExecutorService slowDelivery; // A quarter of the delivery threads, atleast one
+
+    /**
+     * Constructor
+     * @param ringSize Events held per game for slow spectators
+     * @param threads Threads delivering to spectators
+     * @param maxSkips Times a spectator may fall a whole ring behind before being dropped
+     * @param slowMillis Call time above which a spectator is moved to the slow delivery threads
+     */
+    public SpectatorHub(int ringSize, int threads, int maxSkips, int slowMillis) {
+        this.ringSize = ringSize;
+        this.maxSkips = maxSkips;
+        this.slowNanos = TimeUnit.MILLISECONDS.toNanos(slowMillis);
+        this.delivery = deliveryThreads(Math.max(threads, 1), "Nim spectator delivery");
+        this.slowDelivery = deliveryThreads(Math.max(threads / 4, 1), "Nim slow spectator delivery");
+    }
+
+    /**
+     * Builds a pool of daemon delivery threads
+     * @param threads Threads in the pool
+     * @param name Thread name
+     * @return The pool
+     */
+    private static ExecutorService deliveryThreads(int threads, String name) {
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Builds a hub configured by the nim.spectate.* system properties
+     * @return The hub
+     */
+    public static SpectatorHub fromSystemProperties() {
+        return new SpectatorHub(Integer.getInteger(RING_PROPERTY, DEFAULT_RING),
+                Integer.getInteger(THREADS_PROPERTY, DEFAULT_THREADS),
+                Integer.getInteger(MAX_SKIPS_PROPERTY, DEFAULT_MAX_SKIPS),
+                Integer.getInteger(SLOW_PROPERTY, DEFAULT_SLOW));
+    }
+
+    /**
+     * Starts sending a game's events to a spectator, beginning with where the game stands now
+     * @param game The game
+     * @param spectator The spectator
+     * @return false = the game is already over
+     */
+    public boolean watch(GameOfNim game, NimClientInterface spectator) {
+        long gameId = game.getGameId();
+        GameBroadcast broadcast = broadcasts.computeIfAbsent(gameId, id -> {
+            GameBroadcast created = new GameBroadcast(id, ringSize, maxSkips, delivery, slowDelivery, slowNanos,
+                    fanOut);
+
+            game.setEventListener(created);
+            game.addGameListener(over -> {
+                broadcasts.remove(id, created);
+                created.finish();
+            });
+            return created;
+        });
+
+        synchronized (game) { // No events between describing the game and taking the spectator's read position
+            if (game.isOver()) {
+                broadcasts.remove(gameId, broadcast); // The game listener may have been added too late
+                broadcast.finish();
+                return false;
+            }
+
+            broadcast.add(spectator, game.describe());
+        }
+        return true;
+    }
+
+    /**
+     * Stops sending a game's events to a spectator
+     * @param gameId The game's id
+     * @param spectator The spectator
+     * @return false = they were not watching the game
+     */
+    public boolean stop(long gameId, NimClientInterface spectator) {
+        GameBroadcast broadcast = broadcasts.get(gameId);
+
+        return broadcast != null && broadcast.remove(spectator);
+    }
+
+    /**
+     * Returns the number of spectators watching a game
+     * @param gameId The game's id
+     * @return spectators
+     */
+    public int spectators(long gameId) {
+        GameBroadcast broadcast = broadcasts.get(gameId);
+
+        return broadcast == null ? 0 : broadcast.size();
+    }
+
+    /**
+     * Stops the fan-out and delivery threads, spectators are sent nothing more
+     */
+    public void shutdown() {
+        fanOut.shutdownNow();
+        delivery.shutdownNow();
+        slowDelivery.shutdownNow();
+    }
+}
@@ -0,0 +1,754 @@
+/**
+ * Tournament runs a single elimination, Swiss or round robin event between computer players
+ */
+package tournament;
+
+import constants.Constants;
+import game.GameOfNim;
+import game.GameScheduler;
+import game.NimVariant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import player.ComputerPlayer;
+import server.PlayerProfile;
+
+/**
+ * A tournament played as GameOfNim games on a GameScheduler.
+ * There is no barrier at the end of a round - each pairing is started as soon as both of its
+ * entrants are free. An elimination match starts once the two matches feeding it have finished,
+ * a round robin game once both entrants have finished their previous round, and a Swiss pairing as
+ * soon as two entrants on the same score, who have not met, have finished their previous round.
+ * Swiss entrants still unpaired once everyone has reached the round are paired across scores - a
+ * rematch is only allowed when the few entrants left over have all met.
+ * Pairings wait in a queue for a game slot, so the scheduler's cap on concurrent games still holds.
+ * Every result, byes included, is appended to the tournament log, which is all that is needed to
+ * resume the tournament - games in progress when it stopped are played again.
+ * Entrants are computer players, given in seed order - strongest first. Humans play through the lobby.
+ * @author Chris
+ */
+public class Tournament {
+    /**
+     * How entrants are paired
+     */
+    public enum Format {
+        SINGLE_ELIMINATION, // Losers are out, byes go to the top seeds
+        SWISS,              // A fixed number of rounds, entrants meet others on the same score
+        ROUND_ROBIN         // Everyone plays everyone, n x (n - 1) / 2 games
+    }
+
+    static final int BYE = -1; // Opponent of an entrant given a bye
+
+    /**
+     * A pairing waiting for, or playing, its game
+     */
+    private static final class Match {
+        final int round;
+        final int a; // Higher seed, player 0 of the game
+        final int b;
+
+        Match(int round, int a, int b) {
+            this.round = round;
+            this.a = a;
+            this.b = b;
+        }
+    }
+
+    private final Format format;
+    private final PlayerProfile[] entrants;
+    private final int rounds;
+    private final NimVariant variant;
+    private final GameScheduler scheduler;
+    private final long plannedGames;
+    private TournamentLog log; // Results are appended here, null if the tournament is not checkpointed
+
+    // Per entrant, all guarded by the tournament's lock
+    private final int[] played;      // Games played
+    private final int[] wins;        // Games won
+    private final int[] byes;        // Rounds passed without a game
+    private final boolean[] inGame;  // Paired and not yet finished
+    private final int[][] opponents; // Swiss only - opponent in each round, BYE for a bye
+
+    // Single elimination bracket, a binary tree stored as an array - node n's children are 2n and 2n + 1
+    private final int bracketSize;   // Leaves, the entrants rounded up to a power of two
+    private final int[] leaf;        // Leaf node of each entrant
+    private final int[] occupant;    // Entrant who last reached each node, -1 = nobody
+
+    // Swiss
+    private final int[] arrived;     // Entrants who have reached each round
+    private final Map<Integer, TreeMap<Integer, List<Integer>>> pools = new HashMap<>(); // Waiting entrants by round then score
+
+    private long finishedGames;
+    private boolean started;
+    private final ConcurrentLinkedQueue<Match> ready = new ConcurrentLinkedQueue<>(); // Pairings waiting for a game slot
+    private final List<GameOfNim.GameListener> gameListeners = new CopyOnWriteArrayList<>();
+    private final CountDownLatch finished = new CountDownLatch(1);
+
+    /**
+     * Constructor. Takes over the scheduler's game finished listener, to start waiting pairings.
+     * @param format How entrants are paired
+     * @param entrants Computer players, strongest first
+     * @param swissRounds Rounds of a Swiss tournament, 0 for the default of log2 of the entrants.
+     *        Single elimination and round robin tournaments have as many rounds as they need.
+     * @param variant Rules of the games
+     * @param scheduler Runs the games
+     */
+    public Tournament(Format format, List<PlayerProfile> entrants, int swissRounds, NimVariant variant,
+            GameScheduler scheduler) {
+        int n = entrants.size();
+
+        if (n < 2) {
+            throw new IllegalArgumentException("A tournament needs atleast 2 entrants: " + n);
+        }
+
+        for (PlayerProfile entrant : entrants) {
+            if (entrant.isHuman()) {
+                throw new IllegalArgumentException("Tournament entrants must be computer players: " + entrant.getName());
+            }
+        }
+
+        this.format = format;
+        this.entrants = entrants.toArray(new PlayerProfile[n]);
+        this.variant = variant;
+        this.scheduler = scheduler;
+        played = new int[n];
+        wins = new int[n];
+        byes = new int[n];
+        inGame = new boolean[n];
+
+        switch (format) {
+            case SINGLE_ELIMINATION:
+                bracketSize = Integer.highestOneBit(n - 1) << 1;
+                rounds = Integer.numberOfTrailingZeros(bracketSize);
+                plannedGames = n - 1;
+                break;
+            case ROUND_ROBIN:
+                bracketSize = 0;
+                rounds = n % 2 == 0 ? n - 1 : n; // An odd field has a bye each round
+                plannedGames = (long) n * (n - 1) / 2;
+                break;
+            default:
+                bracketSize = 0;
+                rounds = Math.min(swissRounds > 0 ? swissRounds : defaultSwissRounds(n), n - 1); // More would force rematches
+                plannedGames = (long) rounds * (n / 2);
+                break;
+        }
+
+        leaf = format == Format.SINGLE_ELIMINATION ? new int[n] : null;
+        occupant = format == Format.SINGLE_ELIMINATION ? new int[bracketSize * 2] : null;
+        opponents = format == Format.SWISS ? new int[n][rounds] : null;
+        arrived = format == Format.SWISS ? new int[rounds + 1] : null;
+
+        if (occupant != null) { // Seed the bracket so the top seeds can only meet late on
+            int[] seeds = bracketSeeds(bracketSize);
+
+            Arrays.fill(occupant, -1);
+            for (int position = 0; position < bracketSize; position++) {
+                if (seeds[position] < n) {
+                    leaf[seeds[position]] = bracketSize + position;
+                    occupant[bracketSize + position] = seeds[position];
+                }
+            }
+        }
+
+        scheduler.setGameFinishedListener(this::startWaiting);
+    }
+
+    /**
+     * Returns the usual number of Swiss rounds - enough to find a single unbeaten winner
+     * @param entrants Number of entrants
+     * @return rounds
+     */
+    public static int defaultSwissRounds(int entrants) {
+        return Math.max(1, 32 - Integer.numberOfLeadingZeros(entrants - 1));
+    }
+
+    /**
+     * Works out which seed goes on each leaf of a bracket - 1 v n, 2 v n - 1 and so on, with
+     * the top two seeds in different halves, the top four in different quarters...
+     * @param size Leaves, a power of two
+     * @return seed at each leaf, seeds of size - 1 and below
+     */
+    static int[] bracketSeeds(int size) {
+        int[] seeds = {0};
+
+        while (seeds.length < size) {
+            int[] next = new int[seeds.length * 2];
+
+            for (int s = 0; s < seeds.length; s++) {
+                next[2 * s] = seeds[s];
+                next[2 * s + 1] = next.length - 1 - seeds[s];
+            }
+            seeds = next;
+        }
+        return seeds;
+    }
+
+    /**
+     * Builds a computer entrant
+     * @param name Entrant's name
+     * @param difficulty EASY or HARD
+     * @return The entrant's profile
+     */
+    public static PlayerProfile computerEntrant(String name, int difficulty) {
+        ComputerPlayer computer = new ComputerPlayer(name, difficulty);
+
+        return new PlayerProfile(computer.getPlayerCode(), computer.getName(), computer.getDifficulty(),
+                computer.getOpponentType(), false, computer);
+    }
+
+    /**
+     * Adds a listener given to every game the tournament starts, e.g. the game journal
+     * @param listener The listener
+     */
+    public void addGameListener(GameOfNim.GameListener listener) {
+        gameListeners.add(listener);
+    }
+
+    /**
+     * Starts the tournament - or carries on from the results restored into it
+     * @param log Log the results are appended to, null not to checkpoint the tournament
+     */
+    public void start(TournamentLog log) {
+        synchronized (this) {
+            if (started) {
+                throw new IllegalStateException("Tournament already started");
+            }
+
+            started = true;
+            this.log = log;
+
+            for (int i = 0; arrived != null && i < entrants.length; i++) { // Rounds restored entrants have already passed
+                for (int r = 0; r < done(i); r++) {
+                    arrived[r]++;
+                }
+            }
+
+            for (int i = 0; i < entrants.length; i++) {
+                next(i);
+            }
+            checkFinished();
+        }
+
+        startWaiting();
+    }
+
+    /**
+     * Applies a result read back from the log, before the tournament is started
+     * @param a Entrant
+     * @param b Their opponent, BYE for a bye
+     * @param winner 0 = a won, 1 = b won
+     */
+    synchronized void restoreResult(int a, int b, int winner) {
+        if (started) {
+            throw new IllegalStateException("Tournament already started");
+        }
+
+        if (b == BYE) {
+            bye(a);
+        }
+        else {
+            result(a, b, winner == 0 ? a : b);
+        }
+    }
+
+    /**
+     * Rounds an entrant has finished, by playing or by a bye
+     * @param i The entrant
+     * @return rounds
+     */
+    private int done(int i) {
+        return played[i] + byes[i];
+    }
+
+    /**
+     * Records a game's result
+     * @param a Entrant
+     * @param b Their opponent
+     * @param winner a or b
+     */
+    private void result(int a, int b, int winner) {
+        if (opponents != null) {
+            opponents[a][done(a)] = b;
+            opponents[b][done(b)] = a;
+        }
+
+        played[a]++;
+        played[b]++;
+        wins[winner]++;
+        finishedGames++;
+    }
+
+    /**
+     * Records a bye
+     * @param i The entrant
+     */
+    private void bye(int i) {
+        if (opponents != null) {
+            opponents[i][done(i)] = BYE;
+        }
+        byes[i]++;
+    }
+
+    /**
+     * Gives an entrant a bye during play, logging it like a result
+     * @param i The entrant
+     * @param round The round they pass
+     */
+    private void giveBye(int i, int round) {
+        if (log != null) {
+            log.append(round, i, BYE, 0);
+        }
+        bye(i);
+    }
+
+    /**
+     * Pairs an entrant for their next round if their opponent is free, called whenever an entrant
+     * finishes a round and for everyone when the tournament starts
+     * @param i The entrant
+     */
+    private void next(int i) {
+        switch (format) {
+            case SINGLE_ELIMINATION:
+                nextMatch(i);
+                break;
+            case ROUND_ROBIN:
+                nextRoundRobinGame(i);
+                break;
+            default:
+                arrive(i);
+                break;
+        }
+    }
+
+    /**
+     * Single elimination - moves a winner to their next node and pairs them once the match
+     * feeding the other side of it has been decided
+     * @param i The entrant
+     */
+    private void nextMatch(int i) {
+        while (!inGame[i] && played[i] == wins[i] && done(i) < rounds) { // Still in and not yet champion
+            int level = done(i);
+            int node = leaf[i] >> level;
+            int other = occupant[node ^ 1];
+
+            occupant[node] = i;
+
+            if (level == 0 && other < 0) { // Empty leaf beside them
+                giveBye(i, 0);
+                continue;
+            }
+
+            if (other >= 0 && !inGame[other] && played[other] == wins[other] && done(other) == level) {
+                pair(level, i, other);
+            }
+            return;
+        }
+    }
+
+    /**
+     * Round robin - pairs an entrant with their opponent for the round if they have reached it too.
+     * Opponents come from the circle method: entrants 0 to m - 1 sit round a circle and play across it,
+     * the last entrant (a bye when the field is odd) plays whoever is left over.
+     * @param i The entrant
+     */
+    private void nextRoundRobinGame(int i) {
+        while (!inGame[i] && done(i) < rounds) {
+            int round = done(i);
+            int other = roundRobinOpponent(i, round);
+
+            if (other >= entrants.length) { // Sits out this round
+                giveBye(i, round);
+                continue;
+            }
+
+            if (!inGame[other] && done(other) == round) {
+                pair(round, i, other);
+            }
+            return;
+        }
+    }
+
+    /**
+     * Works out an entrant's round robin opponent
+     * @param i The entrant
+     * @param round Round, from 0
+     * @return The opponent, entrants.length for a bye
+     */
+    private int roundRobinOpponent(int i, int round) {
+        int circle = rounds; // Entrants round the circle, the field rounded up to even less one
+        int other;
+
+        if (i == circle) {
+            return (int) ((long) round * ((circle + 1) / 2) % circle); // Whoever the circle leaves over, 2k = round
+        }
+
+        other = ((round - i) % circle + circle) % circle;
+        return other == i ? circle : other;
+    }
+
+    /**
+     * Swiss - adds an entrant to the pool for their next round, pairing them with someone on the
+     * same score they have not met. Once everyone has reached the round the rest of the pool is paired.
+     * @param i The entrant
+     */
+    private void arrive(int i) {
+        int round = done(i);
+
+        arrived[round]++;
+
+        if (round == rounds) { // Finished
+            return;
+        }
+
+        TreeMap<Integer, List<Integer>> pool = pools.computeIfAbsent(round, r -> new TreeMap<>());
+        List<Integer> waiting = pool.computeIfAbsent(score(i), s -> new ArrayList<>());
+        boolean paired = false;
+
+        for (Iterator<Integer> others = waiting.iterator(); others.hasNext(); ) {
+            int other = others.next();
+
+            if (!met(i, other)) {
+                others.remove();
+                pair(round, i, other);
+                paired = true;
+                break;
+            }
+        }
+
+        if (!paired) {
+            waiting.add(i);
+        }
+
+        if (waiting.isEmpty()) {
+            pool.remove(score(i));
+        }
+
+        if (arrived[round] == entrants.length) {
+            pairRemaining(round);
+        }
+    }
+
+    /**
+     * Swiss - pairs everyone left in a round's pool, highest score first, avoiding rematches where
+     * possible. With an odd number left the lowest scorer who has not had a bye gets one.
+     * @param round The round
+     */
+    private void pairRemaining(int round) {
+        TreeMap<Integer, List<Integer>> pool = pools.remove(round);
+        List<Integer> left = new ArrayList<>();
+        List<int[]> pairs = new ArrayList<>();
+        boolean[] taken;
+        int byeTo = -1;
+
+        if (pool == null) {
+            return;
+        }
+
+        for (List<Integer> waiting : pool.descendingMap().values()) {
+            left.addAll(waiting);
+        }
+
+        if (left.size() % 2 == 1) {
+            int pick = left.size() - 1;
+
+            for (int k = left.size() - 1; k >= 0; k--) {
+                if (byes[left.get(k)] == 0) {
+                    pick = k;
+                    break;
+                }
+            }
+            byeTo = left.remove(pick);
+        }
+
+        taken = new boolean[left.size()];
+        for (int k = 0; k < left.size(); k++) {
+            int other = -1;
+
+            if (taken[k]) {
+                continue;
+            }
+
+            for (int o = k + 1; o < left.size(); o++) { // Nearest score not yet met, else the nearest score
+                if (!taken[o] && (other < 0 || !met(left.get(k), left.get(o)))) {
+                    other = o;
+
+                    if (!met(left.get(k), left.get(o))) {
+                        break;
+                    }
+                }
+            }
+
+            taken[k] = true;
+            taken[other] = true;
+            pairs.add(new int[] {left.get(k), left.get(other)});
+        }
+
+        for (int p = 0; p < pairs.size(); p++) { // Swap partners with an earlier pair to undo a rematch
+            int[] rematch = pairs.get(p);
+
+            for (int q = p - 1; q >= 0 && met(rematch[0], rematch[1]); q--) {
+                int[] earlier = pairs.get(q);
+
+                if (!met(earlier[0], rematch[0]) && !met(earlier[1], rematch[1])) {
+                    int swapped = earlier[1];
+
+                    earlier[1] = rematch[0];
+                    rematch[0] = swapped;
+                }
+            }
+        }
+
+        for (int[] pairing : pairs) {
+            pair(round, pairing[0], pairing[1]);
+        }
+
+        if (byeTo >= 0) {
+            giveBye(byeTo, round);
+            next(byeTo);
+        }
+    }
+
+    /**
+     * Returns an entrant's Swiss score - a point for each win or bye
+     * @param i The entrant
+     * @return score
+     */
+    private int score(int i) {
+        return wins[i] + byes[i];
+    }
+
+    /**
+     * Checks whether two Swiss entrants have already played each other
+     * @param i An entrant
+     * @param other Another entrant
+     * @return true = they have met
+     */
+    private boolean met(int i, int other) {
+        for (int r = 0; r < done(i); r++) {
+            if (opponents[i][r] == other) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Queues a game between two entrants, the higher seed is player 0 and sets the game's difficulty
+     * @param round The round
+     * @param i An entrant
+     * @param other Their opponent
+     */
+    private void pair(int round, int i, int other) {
+        inGame[i] = true;
+        inGame[other] = true;
+        ready.add(new Match(round, Math.min(i, other), Math.max(i, other)));
+    }
+
+    /**
+     * Starts waiting pairings while the scheduler has game slots free. Called when pairings are
+     * queued and whenever the scheduler frees a slot.
+     */
+    private void startWaiting() {
+        while (!ready.isEmpty() && scheduler.tryReserve()) {
+            Match match = ready.poll();
+
+            if (match == null) { // Taken by another thread
+                scheduler.release();
+                return;
+            }
+
+            startGame(match);
+        }
+    }
+
+    /**
+     * Starts a pairing's game on a reserved slot
+     * @param match The pairing
+     */
+    private void startGame(Match match) {
+        GameOfNim game = new GameOfNim(entrants[match.a], entrants[match.b], entrants[match.a].getDifficulty(),
+                variant, null);
+
+        for (GameOfNim.GameListener listener : gameListeners) {
+            game.addGameListener(listener);
+        }
+        game.addGameListener(over -> gameFinished(match, over));
+
+        try {
+            scheduler.submit(game);
+        } catch (RejectedExecutionException e) { // Scheduler shut down, the game is played again if the tournament is resumed
+            System.out.println("Tournament stopped - game scheduler has shut down");
+        }
+    }
+
+    /**
+     * Records a finished game and pairs its entrants for their next round, on the game's thread
+     * @param match The pairing
+     * @param game The finished game
+     */
+    private void gameFinished(Match match, GameOfNim game) {
+        int winner = game.getWinner() == 1 ? match.b : match.a;
+
+        synchronized (this) {
+            if (log != null) { // Logged before anything it leads to
+                log.append(match.round, match.a, match.b, winner == match.a ? 0 : 1);
+            }
+
+            result(match.a, match.b, winner);
+            inGame[match.a] = false;
+            inGame[match.b] = false;
+            next(match.a);
+            next(match.b);
+            checkFinished();
+        }
+
+        startWaiting();
+    }
+
+    /**
+     * Releases anyone waiting for the tournament once every game has been played
+     */
+    private void checkFinished() {
+        if (finishedGames == plannedGames) {
+            finished.countDown();
+        }
+    }
+
+    /**
+     * Waits for the tournament to finish
+     * @param timeout Maximum time to wait
+     * @param unit Unit of the timeout
+     * @return true = finished
+     * @throws InterruptedException
+     */
+    public boolean awaitFinished(long timeout, TimeUnit unit) throws InterruptedException {
+        return finished.await(timeout, unit);
+    }
+
+    /**
+     * Returns whether every game has been played
+     * @return true = finished
+     */
+    public boolean isFinished() {
+        return finished.getCount() == 0;
+    }
+
+    /**
+     * Lists the leading entrants - single elimination by the round reached, round robin by wins,
+     * Swiss by score then the total score of the entrant's opponents (Buchholz). Ties go to the higher seed.
+     * @param count Most entrants to list
+     * @return e.g. "1. AI 12 (Hard) - 10 points, Buchholz 61"
+     */
+    public synchronized String[] getStandings(int count) {
+        Integer[] order = new Integer[entrants.length];
+        int[] buchholz = new int[entrants.length];
+        Comparator<Integer> ranking;
+        String[] lines = new String[Math.min(count, entrants.length)];
+
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+
+            for (int r = 0; opponents != null && r < done(i); r++) {
+                buchholz[i] += opponents[i][r] == BYE ? 0 : score(opponents[i][r]);
+            }
+        }
+
+        switch (format) {
+            case SINGLE_ELIMINATION:
+                ranking = Comparator.comparingInt(i -> -(wins[i] + byes[i])); // Rounds won
+                break;
+            case ROUND_ROBIN:
+                ranking = Comparator.comparingInt(i -> -wins[i]);
+                break;
+            default:
+                ranking = Comparator.<Integer>comparingInt(i -> -score(i)).thenComparingInt(i -> -buchholz[i]);
+                break;
+        }
+        Arrays.sort(order, ranking.thenComparingInt(i -> i));
+
+        for (int place = 0; place < lines.length; place++) {
+            int i = order[place];
+            String line = (place + 1) + ". " + entrants[i].getName()
+                    + (entrants[i].getDifficulty() == Constants.EASY ? " (Easy)" : " (Hard)") + " - ";
+
+            switch (format) {
+                case SINGLE_ELIMINATION:
+                    line += played[i] > wins[i] ? "out in round " + done(i)
+                            : done(i) == rounds ? "champion" : "through to round " + (done(i) + 1);
+                    break;
+                case ROUND_ROBIN:
+                    line += wins[i] + " wins from " + played[i] + " games";
+                    break;
+                default:
+                    line += score(i) + (score(i) == 1 ? " point" : " points") + ", Buchholz " + buchholz[i];
+                    break;
+            }
+            lines[place] = line;
+        }
+        return lines;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    public int getRounds() {
+        return rounds;
+    }
+
+    public NimVariant getVariant() {
+        return variant;
+    }
+
+    /**
+     * Returns the number of entrants
+     * @return entrants
+     */
+    public int getEntrantCount() {
+        return entrants.length;
+    }
+
+    /**
+     * Returns an entrant
+     * @param i The entrant's seed, from 0
+     * @return The entrant's profile
+     */
+    public PlayerProfile getEntrant(int i) {
+        return entrants[i];
+    }
+
+    /**
+     * Returns the number of games the tournament will have played once finished
+     * @return games
+     */
+    public long getPlannedGames() {
+        return plannedGames;
+    }
+
+    /**
+     * Returns the number of games played so far
+     * @return games
+     */
+    public synchronized long getFinishedGames() {
+        return finishedGames;
+    }
+
+    /**
+     * Returns the number of pairings waiting for a game slot
+     * @return pairings
+     */
+    public int getWaitingPairings() {
+        return ready.size();
+    }
+}
@@ -0,0 +1,357 @@
+/**
+ * TournamentLog checkpoints a tournament - its entrants and every result so far
+ */
+package tournament;
+
+import game.GameScheduler;
+import game.NimVariant;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import server.PlayerProfile;
+
+/**
+ * Append only log of a tournament.
+ * The file starts with a header: int magic, short format, byte tournament format, int rounds,
+ * the variant (NimVariant.writeTo), int entrants and each entrant's UTF name and byte difficulty,
+ * in seed order. Then one fixed size record per result: int round, int entrant, int opponent
+ * (-1 for a bye), byte winner (0 = entrant, 1 = opponent), int CRC32 of the other 13 bytes.
+ * The tournament's state is rebuilt by replaying the results, so nothing is ever rewritten.
+ * As with the game journal, results are only queued by the game threads and a single writer
+ * thread appends each batch and forces it to disk once. Results are never dropped.
+ * Reading stops at the first incomplete or corrupt record, which is cut off when the log is resumed.
+ * @author Chris
+ */
+public class TournamentLog {
+    // System properties used to configure tournament checkpoints
+    public static final String FILE_PROPERTY = "nim.tournament.file"; // Tournament log, "none" to turn checkpoints off
+
+    public static final String DEFAULT_FILE = "nim-tournament.dat";
+
+    static final int MAGIC = 0x4E494D54; // "NIMT", starts a tournament log
+    static final int FORMAT = 1;
+    static final int RECORD = 17;        // Bytes per result
+
+    /**
+     * A tournament read back from its log
+     */
+    public static final class Saved {
+        private final Tournament.Format format;
+        private final int rounds;
+        private final NimVariant variant;
+        private final String[] names;
+        private final int[] difficulties;
+        private final int[] results;    // Entrant, opponent and winner of each result
+        private final long length;      // Bytes of the file holding complete records
+
+        Saved(Tournament.Format format, int rounds, NimVariant variant, String[] names, int[] difficulties,
+                int[] results, long length) {
+            this.format = format;
+            this.rounds = rounds;
+            this.variant = variant;
+            this.names = names;
+            this.difficulties = difficulties;
+            this.results = results;
+            this.length = length;
+        }
+
+        /**
+         * Rebuilds the tournament with every saved result applied, ready to be started
+         * @param scheduler Runs the games
+         * @return The tournament
+         */
+        public Tournament toTournament(GameScheduler scheduler) {
+            List<PlayerProfile> entrants = new ArrayList<>(names.length);
+            Tournament tournament;
+
+            for (int i = 0; i < names.length; i++) {
+                entrants.add(Tournament.computerEntrant(names[i], difficulties[i]));
+            }
+
+            tournament = new Tournament(format, entrants, rounds, variant, scheduler);
+            for (int r = 0; r < results.length; r += 3) {
+                tournament.restoreResult(results[r], results[r + 1], results[r + 2]);
+            }
+            return tournament;
+        }
+
+        public Tournament.Format getFormat() {
+            return format;
+        }
+
+        public int getEntrantCount() {
+            return names.length;
+        }
+
+        /**
+         * Returns the number of results saved, byes included
+         * @return results
+         */
+        public int getResults() {
+            return results.length / 3;
+        }
+    }
+
+    private final Path file;
+    private final FileChannel channel;
+    private long position;       // End of the log, writer thread only
+    private final LinkedBlockingQueue<int[]> queue = new LinkedBlockingQueue<>(); // Results waiting for the writer thread
+    private final Thread writer;
+
+    private final AtomicLong written = new AtomicLong();  // Results written
+    private final AtomicLong commits = new AtomicLong();  // Batches forced to disk
+    private volatile boolean closed;
+
+    /**
+     * Opens a log for appending
+     * @param file The log
+     * @param length Bytes to keep, anything after is cut off
+     * @throws IOException If the file cannot be opened
+     */
+    private TournamentLog(Path file, long length) throws IOException {
+        this.file = file;
+        channel = FileChannel.open(file, StandardOpenOption.WRITE);
+        channel.truncate(length);
+        position = length;
+
+        writer = new Thread(this::writeResults, "Nim tournament writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Starts a new log for a tournament, replacing any old log in one step
+     * @param file The log
+     * @param tournament The tournament, not yet started
+     * @return The log
+     * @throws IOException If the file cannot be written
+     */
+    public static TournamentLog create(Path file, Tournament tournament) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+
+        out.writeInt(MAGIC);
+        out.writeShort(FORMAT);
+        out.writeByte(tournament.getFormat().ordinal());
+        out.writeInt(tournament.getRounds());
+        tournament.getVariant().writeTo(out);
+        out.writeInt(tournament.getEntrantCount());
+        for (int i = 0; i < tournament.getEntrantCount(); i++) {
+            out.writeUTF(tournament.getEntrant(i).getName());
+            out.writeByte(tournament.getEntrant(i).getDifficulty());
+        }
+
+        try (FileChannel header = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+
+            while (buffer.hasRemaining()) {
+                header.write(buffer);
+            }
+            header.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        return new TournamentLog(file, bytes.size());
+    }
+
+    /**
+     * Carries on appending to a log that has been read back
+     * @param file The log
+     * @param saved What was read from it
+     * @return The log
+     * @throws IOException If the file cannot be opened
+     */
+    public static TournamentLog resume(Path file, Saved saved) throws IOException {
+        return new TournamentLog(file, saved.length);
+    }
+
+    /**
+     * Reads a log
+     * @param file The log
+     * @return The saved tournament, null if there is no log
+     * @throws IOException If the file cannot be read or is not a tournament log
+     */
+    public static Saved read(Path file) throws IOException {
+        byte[] bytes;
+        DataInputStream in;
+        Tournament.Format format;
+        int rounds;
+        NimVariant variant;
+        String[] names;
+        int[] difficulties;
+        int start;
+        ByteBuffer records;
+        List<int[]> results = new ArrayList<>();
+        int[] flat;
+        CRC32 crc = new CRC32();
+
+        try {
+            bytes = Files.readAllBytes(file);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+
+        in = new DataInputStream(new ByteArrayInputStream(bytes));
+        try {
+            if (in.readInt() != MAGIC || in.readUnsignedShort() != FORMAT) {
+                throw new IOException("Not a tournament log: " + file);
+            }
+
+            format = Tournament.Format.values()[in.readUnsignedByte()];
+            rounds = in.readInt();
+            variant = NimVariant.readFrom(in);
+            names = new String[in.readInt()];
+            difficulties = new int[names.length];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = in.readUTF();
+                difficulties[i] = in.readUnsignedByte();
+            }
+        } catch (EOFException | ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Not a tournament log: " + file, e);
+        }
+
+        start = bytes.length - in.available();
+        records = ByteBuffer.wrap(bytes, start, bytes.length - start);
+
+        while (records.remaining() >= RECORD) {
+            int offset = records.position();
+            int round = records.getInt();
+            int a = records.getInt();
+            int b = records.getInt();
+            int winner = records.get();
+
+            crc.reset();
+            crc.update(bytes, offset, RECORD - 4);
+            if ((int) crc.getValue() != records.getInt() || a < 0 || a >= names.length || b < Tournament.BYE
+                    || b >= names.length || a == b || round < 0 || (winner & ~1) != 0) { // Torn or corrupt
+                records.position(offset);
+                break;
+            }
+            results.add(new int[] {a, b, winner});
+        }
+
+        flat = new int[results.size() * 3];
+        for (int r = 0; r < results.size(); r++) {
+            System.arraycopy(results.get(r), 0, flat, r * 3, 3);
+        }
+        return new Saved(format, rounds, variant, names, difficulties, flat, records.position());
+    }
+
+    /**
+     * Queues a result for the writer thread. Never blocks.
+     * @param round The round, from 0
+     * @param a Entrant
+     * @param b Their opponent, -1 for a bye
+     * @param winner 0 = a won, 1 = b won
+     */
+    public void append(int round, int a, int b, int winner) {
+        queue.add(new int[] {round, a, b, winner});
+    }
+
+    /**
+     * Writer thread - takes every queued result, appends them and forces the batch to disk
+     */
+    private void writeResults() {
+        List<int[]> batch = new ArrayList<>();
+        CRC32 crc = new CRC32();
+        int[] first;
+
+        try {
+            while (!closed || !queue.isEmpty()) {
+                first = queue.poll(100, TimeUnit.MILLISECONDS);
+
+                if (first == null) {
+                    continue;
+                }
+
+                batch.add(first);
+                queue.drainTo(batch);
+
+                ByteBuffer buffer = ByteBuffer.allocate(batch.size() * RECORD);
+
+                for (int[] result : batch) {
+                    int offset = buffer.position();
+
+                    buffer.putInt(result[0]).putInt(result[1]).putInt(result[2]).put((byte) result[3]);
+                    crc.reset();
+                    crc.update(buffer.array(), offset, RECORD - 4);
+                    buffer.putInt((int) crc.getValue());
+                }
+                buffer.flip();
+
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                channel.force(false); // Group commit
+                commits.incrementAndGet();
+                written.addAndGet(batch.size());
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            Logger.getLogger(TournamentLog.class.getName()).log(Level.SEVERE, null, e);
+            System.out.println("Error writing tournament log, checkpoints stopped: " + e.getMessage());
+            closed = true;
+        }
+    }
+
+    /**
+     * Returns the log file
+     * @return path
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the number of results written by this log
+     * @return results written
+     */
+    public long getWritten() {
+        return written.get();
+    }
+
+    /**
+     * Returns the number of batches forced to disk
+     * @return group commits
+     */
+    public long getCommits() {
+        return commits.get();
+    }
+
+    /**
+     * Writes everything queued, then closes the file
+     * @throws InterruptedException
+     */
+    public void close() throws InterruptedException {
+        closed = true;
+        writer.join();
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("Error closing tournament log: " + e.getMessage());
+        }
+    }
+}
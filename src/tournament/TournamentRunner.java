@@ -0,0 +1,153 @@
+/**
+ * TournamentRunner plays a whole tournament of computer players with no lobby, RMI or clients
+ */
+package tournament;
+
+import constants.Constants;
+import game.GameScheduler;
+import game.NimVariant;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import server.PlayerProfile;
+
+/**
+ * Headless tournament, used as a throughput test of the game scheduler.
+ * Entrants are computer players named AI 1 to AI n, the hard players seeded above the easy ones.
+ * Games run on a bounded pool of one thread per core - computer games never wait, so more threads
+ * would only add switching. Results are logged to the file named by nim.tournament.file and a
+ * tournament stopped part way through is resumed from its log the next time the runner starts.
+ * @author Chris
+ */
+public class TournamentRunner {
+    // System property holding the percentage of entrants playing EASY
+    public static final String EASY_PERCENT_PROPERTY = "nim.tournament.easyPercent";
+
+    public static final int DEFAULT_EASY_PERCENT = 50;
+    public static final int DEFAULT_ENTRANTS = 1024;
+
+    private static final int REPORT_SECONDS = 5;  // Time between progress lines
+    private static final int STANDINGS_LISTED = 10;
+
+    /**
+     * Reads a tournament format from the command line
+     * @param name elimination, swiss or roundrobin
+     * @return The format, null if not recognised
+     */
+    private static Tournament.Format parseFormat(String name) {
+        switch (name.toLowerCase().replace("-", "")) {
+            case "elimination":
+                return Tournament.Format.SINGLE_ELIMINATION;
+            case "swiss":
+                return Tournament.Format.SWISS;
+            case "roundrobin":
+                return Tournament.Format.ROUND_ROBIN;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Builds a new tournament of computer entrants
+     * @param format How entrants are paired
+     * @param count Number of entrants
+     * @param swissRounds Rounds of a Swiss tournament, 0 for the default
+     * @param scheduler Runs the games
+     * @return The tournament
+     */
+    private static Tournament newTournament(Tournament.Format format, int count, int swissRounds, GameScheduler scheduler) {
+        int hard = count - count * Integer.getInteger(EASY_PERCENT_PROPERTY, DEFAULT_EASY_PERCENT) / 100;
+        List<PlayerProfile> entrants = new ArrayList<>(count);
+
+        for (int i = 0; i < count; i++) { // Seed order, hard players first
+            entrants.add(Tournament.computerEntrant("AI " + (i + 1), i < hard ? Constants.HARD : Constants.EASY));
+        }
+        return new Tournament(format, entrants, swissRounds, NimVariant.fromSystemProperties(), scheduler);
+    }
+
+    /**
+     * Runs a tournament from the command line
+     * @param args Optional format - elimination (default), swiss or roundrobin - then the number of
+     *        entrants (default 1,024) and for Swiss the number of rounds
+     * @throws Exception If the tournament log cannot be written
+     */
+    public static void main(String[] args) throws Exception {
+        Tournament.Format format = parseFormat(args.length > 0 ? args[0] : "elimination");
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ENTRANTS;
+        int swissRounds = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+        String name = System.getProperty(TournamentLog.FILE_PROPERTY, TournamentLog.DEFAULT_FILE);
+        Path file = "none".equalsIgnoreCase(name) ? null : Paths.get(name);
+        GameScheduler scheduler = GameScheduler.boundedPool(
+                Integer.getInteger(GameScheduler.POOL_THREADS_PROPERTY, Runtime.getRuntime().availableProcessors()),
+                Integer.getInteger(GameScheduler.MAX_GAMES_PROPERTY, GameScheduler.DEFAULT_MAX_GAMES));
+        Tournament tournament = null;
+        TournamentLog log = null;
+        long playedBefore;
+        long start;
+        double seconds;
+
+        if (format == null) {
+            System.out.println("Usage: TournamentRunner [elimination|swiss|roundrobin] [entrants] [swiss rounds]");
+            return;
+        }
+
+        if (file != null) { // Carry on from an unfinished tournament
+            try {
+                TournamentLog.Saved saved = TournamentLog.read(file);
+
+                if (saved != null) {
+                    Tournament restored = saved.toTournament(scheduler);
+
+                    if (restored.getFinishedGames() < restored.getPlannedGames()) {
+                        tournament = restored;
+                        log = TournamentLog.resume(file, saved);
+                        System.out.println("Resuming tournament from " + file + " - " + saved.getResults()
+                                + " results saved");
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Error reading tournament log " + file + ", starting a new tournament: " + e.getMessage());
+            }
+        }
+
+        if (tournament == null) {
+            tournament = newTournament(format, count, swissRounds, scheduler);
+
+            if (file != null) {
+                log = TournamentLog.create(file, tournament);
+            }
+        }
+
+        System.out.println("Tournament: " + tournament.getEntrantCount() + " entrants, " + tournament.getFormat()
+                + ", " + tournament.getRounds() + " rounds, " + tournament.getPlannedGames() + " games of "
+                + tournament.getVariant());
+
+        playedBefore = tournament.getFinishedGames();
+        start = System.nanoTime();
+        tournament.start(log);
+
+        while (!tournament.awaitFinished(REPORT_SECONDS, TimeUnit.SECONDS)) {
+            long played = tournament.getFinishedGames();
+
+            System.out.println(String.format("Played %d of %d games, %.0f games/s, %d pairings waiting for a slot",
+                    played, tournament.getPlannedGames(), (played - playedBefore) / ((System.nanoTime() - start) / 1e9),
+                    tournament.getWaitingPairings()));
+        }
+        seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.println(String.format("\n%d games in %.2f seconds (%.0f games/s)",
+                tournament.getFinishedGames() - playedBefore, seconds, (tournament.getFinishedGames() - playedBefore) / seconds));
+        for (String line : tournament.getStandings(STANDINGS_LISTED)) {
+            System.out.println(line);
+        }
+
+        if (log != null) {
+            log.close();
+            System.out.println(log.getWritten() + " results logged in " + log.getCommits() + " commits");
+        }
+        scheduler.shutdown(10, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,243 @@
+/**
+ * NimProtocol describes the binary protocol used by the NIO transport
+ */
+package transport;
+
+import game.NimVariant;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Frame layout and opcodes shared by the NIO server and client.
+ * Every frame is: int length, byte opcode, payload - length counts the opcode and payload.
+ * Ints are 4 bytes big endian, strings are an unsigned short byte count followed by UTF-8.
+ * The client opens the only connection, the server's calls back to the client travel on it too.
+ * @author Chris
+ */
+public final class NimProtocol {
+    // System properties used to configure the NIO transport
+    public static final String PORT_PROPERTY = "nim.nio.port";           // Port the NIO server listens on
+    public static final String SELECTORS_PROPERTY = "nim.nio.selectors"; // Selector threads, default one per core
+    public static final String WORKERS_PROPERTY = "nim.nio.workers";     // Threads answering leaderboard, game list and replay requests
+    public static final String TRANSPORT_PROPERTY = "nim.transport";     // Client transport - "rmi" (default) or "nio"
+    public static final String WRITE_QUEUE_PROPERTY = "nim.nio.writeQueueBytes"; // Unwritten bytes allowed per connection
+    
+    public static final int DEFAULT_PORT = 1100;
+    public static final int DEFAULT_WRITE_QUEUE = 1 << 20;
+    public static final int DEFAULT_WORKERS = 4;
+    public static final int MAX_FRAME = 1 << 16; // Largest frame accepted, anything bigger is a broken or hostile peer
+    
+    // Client to server - the connection identifies the player, so no player code is sent
+    public static final byte JOIN = 1;          // String name, int difficulty, int opponentType
+    public static final byte QUEUE = 2;         // Queue for another game
+    public static final byte LEAVE = 3;         // Leave the lobby
+    public static final byte MOVE = 4;          // int marbles
+    public static final byte LEADERBOARD = 5;   // int count
+    public static final byte HEAP_MOVE = 6;     // int heap, int marbles
+    public static final byte HEARTBEAT = 7;     // Answer to REQUEST_HEARTBEAT
+    public static final byte REJOIN = 8;        // int playerCode, long sessionKey, String name, int difficulty, int opponentType
+    public static final byte SPECTATE = 9;      // long gameId
+    public static final byte LIST_GAMES = 10;   // int count
+    public static final byte STOP_SPECTATING = 11; // long gameId
+    public static final byte REPLAY = 12;       // long gameId
+    public static final byte GAME_STATE_REQUEST = 13; // Send the whole game again, answered with GAME_STATE
+    
+    // Server to client
+    public static final byte PLAYER_CODE = 16;  // int playerCode
+    public static final byte MESSAGE = 17;      // String message
+    public static final byte MESSAGES = 18;     // int count, count x String message
+    public static final byte JOINED = 19;       // Joined the server
+    public static final byte IN_GAME = 20;      // byte inGame (1 = in game)
+    public static final byte GAME_STATE = 21;   // String opponent, variant, int timeoutSeconds, int count, count x int heap
+    public static final byte WON = 22;          // Player won
+    public static final byte LOST = 23;         // Player lost
+    public static final byte PLAY_AGAIN = 24;   // Ask player to play again
+    public static final byte LEADERBOARD_ENTRIES = 25; // int count, count x (String name, double rating, 
+                                                       // int wins, int losses, int streak, int bestStreak)
+    public static final byte OPPONENT_MOVED = 26; // int heap, int marbles, int timeoutSeconds
+    public static final byte REQUEST_HEARTBEAT = 27; // Liveness check, answered with HEARTBEAT
+    public static final byte GAME_LIST = 28;    // int count, count x String game
+    public static final byte REPLAY_LINES = 29; // int count, count x String line
+    public static final byte SESSION_KEY = 30;  // long sessionKey
+    
+    private static final int HEADER = 5; // Frame length and opcode
+    
+    private NimProtocol() {
+        // Static helpers only
+    }
+    
+    /**
+     * Allocates a frame and writes its header, the caller adds the payload then flips the buffer
+     * @param opcode Frame opcode
+     * @param payload Payload size in bytes
+     * @return Buffer positioned at the start of the payload
+     */
+    public static ByteBuffer frame(byte opcode, int payload) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER + payload);
+        
+        frame.putInt(1 + payload);
+        frame.put(opcode);
+        return frame;
+    }
+    
+    /**
+     * Builds a frame with no payload
+     * @param opcode Frame opcode
+     * @return Frame ready to write
+     */
+    public static ByteBuffer frame(byte opcode) {
+        return (ByteBuffer) frame(opcode, 0).flip();
+    }
+    
+    /**
+     * Builds a frame holding a single int
+     * @param opcode Frame opcode
+     * @param value Payload
+     * @return Frame ready to write
+     */
+    public static ByteBuffer intFrame(byte opcode, int value) {
+        return (ByteBuffer) frame(opcode, 4).putInt(value).flip();
+    }
+    
+    /**
+     * Encodes a string for the wire
+     * @param value The string
+     * @return UTF-8 bytes
+     * @throws IllegalArgumentException If the string is too long for a frame
+     */
+    public static byte[] encode(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        
+        if(bytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("String too long to send: " + bytes.length + " bytes");
+        }
+        return bytes;
+    }
+    
+    /**
+     * Returns the space an encoded string takes in a frame
+     * @param bytes Encoded string
+     * @return Size in bytes, including its length
+     */
+    public static int size(byte[] bytes) {
+        return 2 + bytes.length;
+    }
+    
+    /**
+     * Writes an encoded string
+     * @param frame Frame being built
+     * @param bytes Encoded string
+     */
+    public static void putString(ByteBuffer frame, byte[] bytes) {
+        frame.putShort((short) bytes.length);
+        frame.put(bytes);
+    }
+    
+    /**
+     * Checks a frame holds the bytes about to be read, a peer must not be able to end a frame early
+     * @param frame Frame being read
+     * @param bytes Bytes needed
+     * @throws IOException If the frame is too short
+     */
+    public static void require(ByteBuffer frame, int bytes) throws IOException {
+        if(frame.remaining() < bytes) {
+            throw new IOException("Short frame: " + bytes + " bytes needed, " + frame.remaining() + " left");
+        }
+    }
+    
+    /**
+     * Reads a string
+     * @param frame Frame positioned at the string
+     * @return The string
+     * @throws IOException If the frame ends inside the string
+     */
+    public static String getString(ByteBuffer frame) throws IOException {
+        return new String(getBytes(frame), StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Reads the bytes of a string or variant
+     * @param frame Frame positioned at the byte count
+     * @return The bytes
+     * @throws IOException If the frame ends inside them
+     */
+    private static byte[] getBytes(ByteBuffer frame) throws IOException {
+        require(frame, 2);
+        
+        byte[] bytes = new byte[frame.getShort() & 0xFFFF];
+        
+        require(frame, bytes.length);
+        frame.get(bytes);
+        return bytes;
+    }
+    
+    /**
+     * Encodes a variant's rules, written to a frame like a string
+     * @param variant The variant
+     * @return Encoded rules
+     */
+    public static byte[] encode(NimVariant variant) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        
+        try {
+            variant.writeTo(new DataOutputStream(bytes));
+        } catch(IOException e) { // Not thrown writing to memory
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+    
+    /**
+     * Reads a variant's rules
+     * @param frame Frame positioned at the variant
+     * @return The variant
+     * @throws IOException If the rules are not valid or the frame ends inside them
+     */
+    public static NimVariant getVariant(ByteBuffer frame) throws IOException {
+        return NimVariant.readFrom(new DataInputStream(new ByteArrayInputStream(getBytes(frame))));
+    }
+    
+    /**
+     * Takes the next complete frame from a read buffer
+     * @param in Buffer in read mode (flipped)
+     * @return Opcode and payload of the frame, null if the frame has not fully arrived
+     * @throws IOException If the frame is empty or larger than MAX_FRAME
+     */
+    public static ByteBuffer nextFrame(ByteBuffer in) throws IOException {
+        int length;
+        ByteBuffer frame;
+        
+        if(in.remaining() < 4) {
+            return null;
+        }
+        
+        length = in.getInt(in.position());
+        
+        if(length < 1 || length > MAX_FRAME) {
+            throw new IOException("Bad frame length: " + length);
+        }
+        
+        if(in.remaining() < 4 + length) {
+            return null;
+        }
+        
+        frame = in.duplicate();
+        frame.position(in.position() + 4);
+        frame.limit(in.position() + 4 + length);
+        in.position(in.position() + 4 + length);
+        return frame;
+    }
+    
+    /**
+     * Size of the read buffer a connection needs to hold any frame
+     * @return Buffer size in bytes
+     */
+    public static int readBufferSize() {
+        return 4 + MAX_FRAME;
+    }
+}
@@ -0,0 +1,515 @@
+/**
+ * NioClientConnection is the server side of one NIO client connection
+ */
+package transport;
+
+import client.NimClientInterface;
+import game.NimVariant;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import leaderboard.LeaderboardEntry;
+import server.NimServerInterface;
+
+/**
+ * Stands in for a remote client in the lobby.
+ * Frames from the client are decoded on the selector thread and passed to the lobby. The lobby's
+ * calls to the client are encoded and queued without blocking, the selector thread writes them out.
+ * The player's details arrive with the join frame, so reading them never touches the network.
+ * @author Chris
+ */
+class NioClientConnection implements NimClientInterface {
+    /**
+     * A request answered on a worker thread
+     */
+    private interface Query {
+        void run() throws RemoteException;
+    }
+    
+    // Unwritten bytes allowed before the client is given up on, always room for one frame
+    private static final int WRITE_QUEUE_BYTES = Math.max(NimProtocol.readBufferSize(),
+            Integer.getInteger(NimProtocol.WRITE_QUEUE_PROPERTY, NimProtocol.DEFAULT_WRITE_QUEUE));
+    
+    private final NioLobbyServer server;     // Server the connection belongs to
+    private final NimServerInterface lobby;  // Lobby the player joins
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final NioLobbyServer.SelectorLoop loop; // Selector thread serving this connection
+    
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(NimProtocol.readBufferSize());
+    private final ConcurrentLinkedQueue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>(); // Frames waiting to be written
+    private final AtomicInteger queuedBytes = new AtomicInteger(); // Size of the frames in writeQueue
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(); // A flush is queued on the selector thread
+    private final AtomicBoolean closed = new AtomicBoolean();
+    
+    // Player details, sent by the client when it joins
+    private volatile String name;
+    private volatile int difficulty;
+    private volatile int opponentType;
+    private volatile int playerCode = -1;
+    private volatile long sessionKey; // Given by the lobby, the connection signs the player's calls with it
+    private volatile boolean inGame;
+    private volatile boolean joined;  // Join frame received
+    private volatile boolean left;    // Player has left the lobby
+    
+    NioClientConnection(NioLobbyServer server, NimServerInterface lobby, SocketChannel channel, SelectionKey key, 
+            NioLobbyServer.SelectorLoop loop) {
+        this.server = server;
+        this.lobby = lobby;
+        this.channel = channel;
+        this.key = key;
+        this.loop = loop;
+    }
+    
+    /**
+     * Reads what has arrived and handles every complete frame. Selector thread only.
+     */
+    void read() {
+        ByteBuffer frame;
+        
+        try {
+            if(channel.read(readBuffer) < 0) { // Client has gone
+                close();
+                return;
+            }
+            
+            readBuffer.flip();
+            
+            while((frame = NimProtocol.nextFrame(readBuffer)) != null) {
+                handle(frame);
+            }
+            
+            readBuffer.compact();
+        } catch (IOException e) {
+            close();
+        } catch (RuntimeException e) { // The lobby failed on this player's frame, the other connections carry on
+            System.out.println("Error handling frame from " + name + ": " + e);
+            close();
+        }
+    }
+    
+    /**
+     * Passes a frame from the client on to the lobby
+     * @param frame Opcode and payload
+     * @throws IOException If the frame is not understood or is too short for its opcode
+     */
+    private void handle(ByteBuffer frame) throws IOException {
+        byte opcode = frame.get();
+        
+        if(!joined && opcode != NimProtocol.JOIN && opcode != NimProtocol.REJOIN && opcode != NimProtocol.SPECTATE
+                && opcode != NimProtocol.LIST_GAMES && opcode != NimProtocol.STOP_SPECTATING
+                && opcode != NimProtocol.REPLAY) { // Spectators need not join
+            throw new IOException("Player has not joined");
+        }
+        
+        switch(opcode) {
+            case NimProtocol.JOIN:
+                if(joined) {
+                    throw new IOException("Player has already joined");
+                }
+                
+                name = NimProtocol.getString(frame);
+                NimProtocol.require(frame, 8);
+                difficulty = frame.getInt();
+                opponentType = frame.getInt();
+                joined = true;
+                lobby.addPlayer(this);
+                break;
+            case NimProtocol.REJOIN:
+                if(joined) {
+                    throw new IOException("Player has already joined");
+                }
+                
+                NimProtocol.require(frame, 12);
+                
+                int code = frame.getInt();
+                long oldKey = frame.getLong();
+                
+                name = NimProtocol.getString(frame);
+                NimProtocol.require(frame, 8);
+                difficulty = frame.getInt();
+                opponentType = frame.getInt();
+                joined = true;
+                lobby.rejoin(this, code, oldKey); // Sets the player code and key, the old ones or new ones
+                break;
+            case NimProtocol.QUEUE:
+                lobby.queuePlayer(playerCode, sessionKey);
+                break;
+            case NimProtocol.LEAVE:
+                left = true;
+                lobby.leaveLobby(playerCode, sessionKey);
+                break;
+            case NimProtocol.MOVE:
+                NimProtocol.require(frame, 4);
+                lobby.submitMove(playerCode, sessionKey, frame.getInt());
+                break;
+            case NimProtocol.HEAP_MOVE:
+                NimProtocol.require(frame, 8);
+                lobby.submitHeapMove(playerCode, sessionKey, frame.getInt(), frame.getInt());
+                break;
+            case NimProtocol.HEARTBEAT:
+                lobby.heartbeat(playerCode, sessionKey);
+                break;
+            case NimProtocol.GAME_STATE_REQUEST:
+                lobby.requestGameState(playerCode, sessionKey);
+                break;
+            case NimProtocol.LEADERBOARD:
+                NimProtocol.require(frame, 4);
+                
+                final int entryCount = frame.getInt();
+                
+                query(() -> sendLeaderboard(lobby.getLeaderboard(entryCount)));
+                break;
+            case NimProtocol.LIST_GAMES:
+                NimProtocol.require(frame, 4);
+                
+                final int gameCount = frame.getInt();
+                
+                query(() -> sendLines(NimProtocol.GAME_LIST, lobby.listGames(gameCount)));
+                break;
+            case NimProtocol.REPLAY:
+                NimProtocol.require(frame, 8);
+                
+                final long gameId = frame.getLong();
+                
+                query(() -> sendLines(NimProtocol.REPLAY_LINES, lobby.getReplay(gameId))); // Read from disk
+                break;
+            case NimProtocol.SPECTATE:
+                NimProtocol.require(frame, 8);
+                lobby.spectate(this, frame.getLong());
+                break;
+            case NimProtocol.STOP_SPECTATING:
+                NimProtocol.require(frame, 8);
+                lobby.stopSpectating(this, frame.getLong());
+                break;
+            default:
+                throw new IOException("Unknown opcode: " + opcode);
+        }
+    }
+    
+    /**
+     * Answers a request on the server's worker threads - a replay is read from disk and a coordinator
+     * asks every shard, which would hold up every connection on this selector thread. The reply is
+     * queued like any other frame, a failure closes the connection as it would on the selector thread.
+     * @param query Makes the lobby call and sends the reply
+     */
+    private void query(Query query) {
+        server.execute(() -> {
+            try {
+                query.run();
+            } catch (RemoteException e) {
+                loop.execute(this::close);
+            } catch (RuntimeException e) {
+                System.out.println("Error answering request from " + name + ": " + e);
+                loop.execute(this::close);
+            }
+        });
+    }
+    
+    /**
+     * Queues a frame for the client and makes sure the selector thread will write it.
+     * A client that stops reading is closed once WRITE_QUEUE_BYTES are waiting, rather than
+     * letting its frames pile up in the server's memory.
+     * @param frame Frame ready to write
+     * @throws RemoteException If the connection has closed or the client is too far behind
+     */
+    private void send(ByteBuffer frame) throws RemoteException {
+        if(closed.get()) {
+            throw new RemoteException("Connection to " + name + " closed");
+        }
+        
+        if(queuedBytes.addAndGet(frame.limit()) > WRITE_QUEUE_BYTES) {
+            queuedBytes.addAndGet(-frame.limit());
+            loop.execute(this::close); // Not on the caller's thread, it may be holding the lobby's or a game's locks
+            throw new RemoteException("Connection to " + name + " is too far behind, closing it");
+        }
+        
+        writeQueue.add(frame);
+        
+        if(flushScheduled.compareAndSet(false, true)) {
+            loop.execute(this::flush);
+        }
+    }
+    
+    /**
+     * Writes queued frames until the queue is empty or the socket is full. Selector thread only.
+     */
+    void flush() {
+        ByteBuffer frame;
+        
+        flushScheduled.set(false);
+        
+        if(closed.get()) {
+            return;
+        }
+        
+        try {
+            while((frame = writeQueue.peek()) != null) {
+                channel.write(frame);
+                
+                if(frame.hasRemaining()) { // Socket full - carry on when it is writable again
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                writeQueue.poll();
+                queuedBytes.addAndGet(-frame.limit());
+            }
+            
+            key.interestOps(SelectionKey.OP_READ);
+        } catch (IOException e) {
+            close();
+        }
+    }
+    
+    /**
+     * Closes the connection, a player who has not left is removed from the lobby
+     */
+    void close() {
+        if(!closed.compareAndSet(false, true)) {
+            return;
+        }
+        
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        
+        writeQueue.clear();
+        server.connectionClosed();
+        
+        if(joined && !left && playerCode != -1) {
+            try {
+                lobby.leaveLobby(playerCode, sessionKey);
+            } catch (RemoteException e) {
+                System.out.println("Error removing player " + playerCode + ": " + e.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Sends leaderboard entries to the client, as many as fit in a frame
+     * @param entries Entries, highest rating first
+     * @throws RemoteException If the connection has closed
+     */
+    private void sendLeaderboard(LeaderboardEntry[] entries) throws RemoteException {
+        List<byte[]> names = new ArrayList<>();
+        int size = 4;
+        ByteBuffer frame;
+        
+        for(LeaderboardEntry entry : entries) {
+            byte[] name = NimProtocol.encode(entry.getName());
+            
+            if(size + NimProtocol.size(name) + 24 > NimProtocol.MAX_FRAME - 1) { // Frame full
+                break;
+            }
+            
+            names.add(name);
+            size += NimProtocol.size(name) + 24;
+        }
+        
+        frame = NimProtocol.frame(NimProtocol.LEADERBOARD_ENTRIES, size);
+        frame.putInt(names.size());
+        
+        for(int e = 0; e < names.size(); e++) {
+            NimProtocol.putString(frame, names.get(e));
+            frame.putDouble(entries[e].getRating());
+            frame.putInt(entries[e].getWins());
+            frame.putInt(entries[e].getLosses());
+            frame.putInt(entries[e].getStreak());
+            frame.putInt(entries[e].getBestStreak());
+        }
+        send((ByteBuffer) frame.flip());
+    }
+    
+    /**
+     * Sends lines of text to the client, as many as fit in a frame
+     * @param opcode GAME_LIST or REPLAY_LINES
+     * @param lines The lines
+     * @throws RemoteException If the connection has closed
+     */
+    private void sendLines(byte opcode, String[] lines) throws RemoteException {
+        List<byte[]> encoded = new ArrayList<>();
+        int size = 4;
+        ByteBuffer frame;
+        
+        for(String line : lines) {
+            byte[] bytes = NimProtocol.encode(line);
+            
+            if(size + NimProtocol.size(bytes) > NimProtocol.MAX_FRAME - 1) { // Frame full
+                break;
+            }
+            
+            encoded.add(bytes);
+            size += NimProtocol.size(bytes);
+        }
+        
+        frame = NimProtocol.frame(opcode, size);
+        frame.putInt(encoded.size());
+        
+        for(byte[] bytes : encoded) {
+            NimProtocol.putString(frame, bytes);
+        }
+        send((ByteBuffer) frame.flip());
+    }
+    
+    @Override
+    public void serverMessage(String message) throws RemoteException {
+        byte[] bytes = NimProtocol.encode(message);
+        ByteBuffer frame = NimProtocol.frame(NimProtocol.MESSAGE, NimProtocol.size(bytes));
+        
+        NimProtocol.putString(frame, bytes);
+        send((ByteBuffer) frame.flip());
+    }
+    
+    @Override
+    public void serverMessages(String[] messages) throws RemoteException {
+        List<byte[]> encoded = new ArrayList<>();
+        int size = 4; // A large batch is split over as many MESSAGES frames as it takes
+        
+        for(String message : messages) {
+            byte[] bytes = NimProtocol.encode(message);
+            
+            if(!encoded.isEmpty() && size + NimProtocol.size(bytes) > NimProtocol.MAX_FRAME - 1) { // Frame full
+                sendMessages(encoded, size);
+                encoded.clear();
+                size = 4;
+            }
+            
+            encoded.add(bytes);
+            size += NimProtocol.size(bytes);
+        }
+        
+        if(!encoded.isEmpty()) {
+            sendMessages(encoded, size);
+        }
+    }
+    
+    /**
+     * Sends one MESSAGES frame
+     * @param encoded Encoded messages
+     * @param size Payload size
+     * @throws RemoteException If the connection has closed
+     */
+    private void sendMessages(List<byte[]> encoded, int size) throws RemoteException {
+        ByteBuffer frame = NimProtocol.frame(NimProtocol.MESSAGES, size);
+        
+        frame.putInt(encoded.size());
+        
+        for(byte[] bytes : encoded) {
+            NimProtocol.putString(frame, bytes);
+        }
+        send((ByteBuffer) frame.flip());
+    }
+    
+    @Override
+    public void gameState(String opponent, NimVariant variant, int[] heaps, int timeoutSeconds) throws RemoteException {
+        byte[] name = NimProtocol.encode(opponent);
+        byte[] rules = NimProtocol.encode(variant);
+        ByteBuffer frame = NimProtocol.frame(NimProtocol.GAME_STATE, 
+                NimProtocol.size(name) + NimProtocol.size(rules) + 8 + 4 * heaps.length);
+        
+        NimProtocol.putString(frame, name);
+        NimProtocol.putString(frame, rules);
+        frame.putInt(timeoutSeconds).putInt(heaps.length);
+        for(int heap : heaps) {
+            frame.putInt(heap);
+        }
+        send((ByteBuffer) frame.flip());
+    }
+    
+    @Override
+    public void opponentMoved(int heap, int taken, int timeoutSeconds) throws RemoteException {
+        send((ByteBuffer) NimProtocol.frame(NimProtocol.OPPONENT_MOVED, 12).putInt(heap).putInt(taken).putInt(timeoutSeconds).flip());
+    }
+    
+    @Override
+    public void requestPlayAgain() throws RemoteException {
+        send(NimProtocol.frame(NimProtocol.PLAY_AGAIN));
+    }
+    
+    @Override
+    public void joinedServer() throws RemoteException {
+        send(NimProtocol.frame(NimProtocol.JOINED));
+    }
+    
+    @Override
+    public void heartbeat() throws RemoteException {
+        send(NimProtocol.frame(NimProtocol.REQUEST_HEARTBEAT)); // The client's answer renews its lease
+    }
+    
+    @Override
+    public String getName() {
+        return name;
+    }
+    
+    @Override
+    public boolean getIsHuman() {
+        return true;
+    }
+    
+    @Override
+    public int getDifficulty() {
+        return difficulty;
+    }
+    
+    @Override
+    public int getOpponentType() {
+        return opponentType;
+    }
+    
+    @Override
+    public void setInGameStatus(boolean inGameFlag) throws RemoteException {
+        inGame = inGameFlag;
+        send((ByteBuffer) NimProtocol.frame(NimProtocol.IN_GAME, 1).put((byte) (inGameFlag ? 1 : 0)).flip());
+    }
+    
+    @Override
+    public boolean getInGameStatus() {
+        return inGame;
+    }
+    
+    @Override
+    public void setPlayerCode(int playerCode) throws RemoteException {
+        this.playerCode = playerCode;
+        send(NimProtocol.intFrame(NimProtocol.PLAYER_CODE, playerCode));
+    }
+    
+    @Override
+    public int getPlayerCode() {
+        return playerCode;
+    }
+    
+    @Override
+    public void setSessionKey(long sessionKey) throws RemoteException {
+        this.sessionKey = sessionKey;
+        send((ByteBuffer) NimProtocol.frame(NimProtocol.SESSION_KEY, 8).putLong(sessionKey).flip());
+    }
+    
+    @Override
+    public int getMarbles(int bagSize) throws RemoteException {
+        throw new RemoteException("Moves are sent by the client over the NIO transport"); // Games use gameState and opponentMoved
+    }
+    
+    @Override
+    public void won() throws RemoteException {
+        send(NimProtocol.frame(NimProtocol.WON));
+    }
+    
+    @Override
+    public void lost() throws RemoteException {
+        send(NimProtocol.frame(NimProtocol.LOST));
+    }
+    
+    @Override
+    public boolean playAgain() throws RemoteException {
+        throw new RemoteException("Play again is answered by the client over the NIO transport"); // Games use requestPlayAgain
+    }
+}
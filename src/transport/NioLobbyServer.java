@@ -0,0 +1,271 @@
+/**
+ * NioLobbyServer serves the lobby over the binary NIO protocol, alongside RMI
+ */
+package transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import server.NimServerInterface;
+
+/**
+ * Accepts client connections and spreads them over a fixed set of selector threads, one per core by default.
+ * Each connection stands in for the client in the lobby - the lobby and its games only see a
+ * NimClientInterface and do not know which transport the player is using.
+ * @author Chris
+ */
+public class NioLobbyServer {
+    /**
+     * Selector thread serving a share of the connections
+     */
+    class SelectorLoop implements Runnable {
+        final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>(); // Work handed over by other threads
+        
+        SelectorLoop() throws IOException {
+            selector = Selector.open();
+        }
+        
+        /**
+         * Runs a task on the selector thread
+         * @param task The task
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+        
+        @Override
+        public void run() {
+            Runnable task;
+            
+            while(selector.isOpen()) {
+                try {
+                    selector.select();
+                    
+                    while((task = tasks.poll()) != null) {
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) { // One connection's task must not stop the thread
+                            System.out.println("Error in NIO selector task: " + e);
+                        }
+                    }
+                    
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    
+                    while(keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        NioClientConnection connection = (NioClientConnection) key.attachment();
+                        
+                        keys.remove();
+                        
+                        try {
+                            if(key.isValid() && key.isReadable()) {
+                                connection.read();
+                            }
+                            if(key.isValid() && key.isWritable()) {
+                                connection.flush();
+                            }
+                        } catch (RuntimeException e) { // Drop only the connection that failed
+                            System.out.println("Error serving " + connection.getName() + ", closing connection: " + e);
+                            closeQuietly(connection);
+                        }
+                    }
+                } catch (IOException e) {
+                    Logger.getLogger(NioLobbyServer.class.getName()).log(Level.SEVERE, null, e);
+                } catch (ClosedSelectorException e) { // Server closed
+                    return;
+                }
+            }
+        }
+        
+        /**
+         * Closes a connection that failed, the lobby may fail again removing its player
+         * @param connection The connection
+         */
+        private void closeQuietly(NioClientConnection connection) {
+            try {
+                connection.close();
+            } catch (RuntimeException e) {
+                System.out.println("Error closing connection to " + connection.getName() + ": " + e);
+            }
+        }
+    }
+    
+    private final NimServerInterface lobby;          // Lobby the connections join
+    private final ServerSocketChannel serverChannel; // Listening socket
+    private final SelectorLoop[] loops;              // Selector threads
+    private final ExecutorService workers;           // Answer requests that may block - disk reads, calls to shards
+    private final AtomicInteger connections = new AtomicInteger(); // Open connections
+    private volatile boolean running = true;
+    
+    /**
+     * Opens the server socket and starts the selector threads
+     * @param lobby Lobby the connections join
+     * @param port Port to listen on, 0 for any free port
+     * @param selectorThreads Number of selector threads
+     * @throws IOException If the port cannot be opened
+     */
+    public NioLobbyServer(NimServerInterface lobby, int port, int selectorThreads) throws IOException {
+        this.lobby = lobby;
+        loops = new SelectorLoop[Math.max(selectorThreads, 1)];
+        workers = Executors.newFixedThreadPool(Math.max(Integer.getInteger(NimProtocol.WORKERS_PROPERTY, 
+                NimProtocol.DEFAULT_WORKERS), 1), runnable -> {
+            Thread thread = new Thread(runnable, "Nim NIO worker");
+            
+            thread.setDaemon(true);
+            return thread;
+        });
+        
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        
+        for(int l = 0; l < loops.length; l++) {
+            loops[l] = new SelectorLoop();
+            startThread(loops[l], "Nim NIO selector " + l);
+        }
+        
+        startThread(this::acceptConnections, "Nim NIO acceptor");
+    }
+    
+    /**
+     * Starts an NIO server for the lobby, configured by the nim.nio.port and nim.nio.selectors system properties
+     * @param lobby Lobby the connections join
+     * @return The server, null if it could not be started
+     */
+    public static NioLobbyServer start(NimServerInterface lobby) {
+        int port = Integer.getInteger(NimProtocol.PORT_PROPERTY, NimProtocol.DEFAULT_PORT);
+        
+        try {
+            NioLobbyServer server = new NioLobbyServer(lobby, port,
+                    Integer.getInteger(NimProtocol.SELECTORS_PROPERTY, Runtime.getRuntime().availableProcessors()));
+            
+            System.out.println("2. NIO transport ready on port " + server.getPort());
+            System.out.println("----------------------------------");
+            return server;
+        } catch (IOException e) {
+            System.out.println("Exception starting NIO transport on port " + port + ": " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Starts a daemon thread, the server never keeps the process alive by itself
+     */
+    private static void startThread(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Accepts connections and hands them out to the selector threads in turn
+     */
+    private void acceptConnections() {
+        int next = 0;
+        
+        while(running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                SelectorLoop loop = loops[next++ % loops.length];
+                
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true); // Frames are small, send them straight away
+                connections.incrementAndGet();
+                
+                loop.execute(() -> {
+                    try {
+                        SelectionKey key = channel.register(loop.selector, SelectionKey.OP_READ);
+                        
+                        key.attach(new NioClientConnection(this, lobby, channel, key, loop));
+                    } catch (ClosedChannelException e) {
+                        connectionClosed();
+                    }
+                });
+            } catch (IOException e) {
+                if(running) {
+                    System.out.println("Error accepting NIO connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+    
+    /**
+     * Runs a request that may block on a worker thread, so the selector threads never wait on it
+     * @param task The request, it queues its own reply
+     */
+    void execute(Runnable task) {
+        workers.execute(task);
+    }
+    
+    /**
+     * Called by a connection once it has closed
+     */
+    void connectionClosed() {
+        connections.decrementAndGet();
+    }
+    
+    /**
+     * Returns the port the server is listening on
+     * @return port
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+    
+    /**
+     * Returns the number of open client connections
+     * @return connections
+     */
+    public int getConnectionCount() {
+        return connections.get();
+    }
+    
+    /**
+     * Returns the number of selector threads
+     * @return selector threads
+     */
+    public int getSelectorThreads() {
+        return loops.length;
+    }
+    
+    /**
+     * Stops accepting connections and closes the selectors, dropping any open connections
+     */
+    public void close() {
+        running = false;
+        workers.shutdownNow();
+        
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            System.out.println("Error closing NIO transport: " + e.getMessage());
+        }
+        
+        for(SelectorLoop loop : loops) { // Each selector closes its own connections
+            loop.execute(() -> {
+                try {
+                    for(SelectionKey key : loop.selector.keys()) {
+                        ((NioClientConnection) key.attachment()).close();
+                    }
+                    loop.selector.close();
+                } catch (IOException e) {
+                    System.out.println("Error closing NIO selector: " + e.getMessage());
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,457 @@
+/**
+ * NioServerConnection is the client side of the NIO transport
+ */
+package transport;
+
+import client.NimClientInterface;
+import game.NimVariant;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import leaderboard.LeaderboardEntry;
+import server.NimServerInterface;
+
+/**
+ * Stands in for the server lobby on the client.
+ * The client's calls are sent as frames on a single connection it opens itself, a reader thread
+ * decodes the server's frames and makes the matching calls on the client. The connection carries
+ * a single player, so the player codes passed in are not sent.
+ * @author Chris
+ */
+public class NioServerConnection implements NimServerInterface {
+    private final SocketChannel channel;
+    private volatile NimClientInterface player; // Player or spectator the server's calls are passed to
+    private volatile boolean joined;            // Player has joined the lobby on this connection
+    private volatile CompletableFuture<LeaderboardEntry[]> leaderboardReply; // Answer to the outstanding leaderboard query
+    private volatile CompletableFuture<String[]> gamesReply; // Answer to the outstanding list of games
+    private volatile CompletableFuture<String[]> replayReply; // Answer to the outstanding replay request
+    private Thread reader;                      // Started by the first call expecting an answer
+    
+    /**
+     * Constructor
+     * @param channel Connected, blocking channel
+     */
+    private NioServerConnection(SocketChannel channel) {
+        this.channel = channel;
+    }
+    
+    /**
+     * Connects to an NIO lobby server
+     * @param host Server host
+     * @param port Server port
+     * @return The connection
+     * @throws IOException If the server cannot be reached
+     */
+    public static NioServerConnection connect(String host, int port) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+        
+        channel.socket().setTcpNoDelay(true); // Frames are small, send them straight away
+        return new NioServerConnection(channel);
+    }
+    
+    /**
+     * Joins the lobby, sending the player's details, and starts passing the server's calls on to the player
+     * @param player The player
+     * @throws RemoteException If the join could not be sent
+     */
+    @Override
+    public void addPlayer(NimClientInterface player) throws RemoteException {
+        join(player, NimProtocol.frame(NimProtocol.JOIN, NimProtocol.size(NimProtocol.encode(player.getName())) + 8));
+    }
+    
+    /**
+     * Rejoins the lobby after the server restarted, sending the player's old code and details
+     * @param player The player
+     * @param playerCode The player's code from before the restart
+     * @param sessionKey The player's session key
+     * @throws RemoteException If the rejoin could not be sent
+     */
+    @Override
+    public void rejoin(NimClientInterface player, int playerCode, long sessionKey) throws RemoteException {
+        ByteBuffer frame = NimProtocol.frame(NimProtocol.REJOIN, NimProtocol.size(NimProtocol.encode(player.getName())) + 20);
+        
+        frame.putInt(playerCode).putLong(sessionKey);
+        join(player, frame);
+    }
+    
+    /**
+     * Completes a join or rejoin frame with the player's details, sends it and starts passing the
+     * server's calls on to the player
+     * @param player The player
+     * @param frame Frame with room for the details
+     * @throws RemoteException If the frame could not be sent
+     */
+    private void join(NimClientInterface player, ByteBuffer frame) throws RemoteException {
+        byte[] name = NimProtocol.encode(player.getName());
+        
+        synchronized(this) {
+            if(joined) {
+                throw new RemoteException("Player has already joined on this connection");
+            }
+            
+            joined = true;
+            this.player = player;
+        }
+        
+        NimProtocol.putString(frame, name);
+        frame.putInt(player.getDifficulty());
+        frame.putInt(player.getOpponentType());
+        
+        startReader();
+        send((ByteBuffer) frame.flip());
+    }
+    
+    /**
+     * Starts the thread reading the server's frames, if it is not already running
+     */
+    private synchronized void startReader() {
+        if(reader != null) {
+            return;
+        }
+        
+        reader = new Thread(this::readFrames, "Nim NIO reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+    
+    // The connection identifies the player, the server side signs their calls with their session key
+    
+    @Override
+    public void queuePlayer(int playerKey, long sessionKey) throws RemoteException {
+        send(NimProtocol.frame(NimProtocol.QUEUE));
+    }
+    
+    @Override
+    public void leaveLobby(int playerCode, long sessionKey) throws RemoteException {
+        send(NimProtocol.frame(NimProtocol.LEAVE));
+    }
+    
+    @Override
+    public void submitMove(int playerCode, long sessionKey, int marbles) throws RemoteException {
+        send(NimProtocol.intFrame(NimProtocol.MOVE, marbles));
+    }
+    
+    @Override
+    public void heartbeat(int playerCode, long sessionKey) throws RemoteException {
+        send(NimProtocol.frame(NimProtocol.HEARTBEAT));
+    }
+    
+    @Override
+    public void submitHeapMove(int playerCode, long sessionKey, int heap, int marbles) throws RemoteException {
+        send((ByteBuffer) NimProtocol.frame(NimProtocol.HEAP_MOVE, 8).putInt(heap).putInt(marbles).flip());
+    }
+    
+    @Override
+    public void requestGameState(int playerCode, long sessionKey) throws RemoteException {
+        send(NimProtocol.frame(NimProtocol.GAME_STATE_REQUEST));
+    }
+    
+    /**
+     * Asks the server for the leaderboard and waits for the answer
+     * @param count Number of players wanted
+     * @return Leaderboard entries, highest rating first
+     * @throws RemoteException If the server does not answer
+     */
+    @Override
+    public synchronized LeaderboardEntry[] getLeaderboard(int count) throws RemoteException {
+        CompletableFuture<LeaderboardEntry[]> reply = new CompletableFuture<>();
+        
+        leaderboardReply = reply; // One query at a time, the method is synchronized
+        send(NimProtocol.intFrame(NimProtocol.LEADERBOARD, count));
+        
+        try {
+            return reply.get(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted waiting for the leaderboard", e);
+        } catch (ExecutionException | TimeoutException e) {
+            throw new RemoteException("No leaderboard from server", e);
+        }
+    }
+    
+    /**
+     * Asks the server for the games in progress and waits for the answer
+     * @param count Number of games wanted
+     * @return One line per game
+     * @throws RemoteException If the server does not answer
+     */
+    @Override
+    public synchronized String[] listGames(int count) throws RemoteException {
+        CompletableFuture<String[]> reply = new CompletableFuture<>();
+        
+        gamesReply = reply; // One query at a time, the method is synchronized
+        return await(reply, NimProtocol.intFrame(NimProtocol.LIST_GAMES, count), "list of games");
+    }
+    
+    /**
+     * Asks the server to play back a finished game and waits for the answer
+     * @param gameId Id of the game
+     * @return The start of the game, each move and the result
+     * @throws RemoteException If the server does not answer
+     */
+    @Override
+    public synchronized String[] getReplay(long gameId) throws RemoteException {
+        CompletableFuture<String[]> reply = new CompletableFuture<>();
+        
+        replayReply = reply; // One query at a time, the method is synchronized
+        return await(reply, (ByteBuffer) NimProtocol.frame(NimProtocol.REPLAY, 8).putLong(gameId).flip(), "replay");
+    }
+    
+    /**
+     * Sends a request and waits for the reader thread to complete its answer
+     * @param reply Completed by the reader thread
+     * @param request Frame ready to write
+     * @param what What is being asked for, for the error message
+     * @return The answer
+     * @throws RemoteException If the server does not answer
+     */
+    private String[] await(CompletableFuture<String[]> reply, ByteBuffer request, String what) throws RemoteException {
+        startReader();
+        send(request);
+        
+        try {
+            return reply.get(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted waiting for the " + what, e);
+        } catch (ExecutionException | TimeoutException e) {
+            throw new RemoteException("No " + what + " from server", e);
+        }
+    }
+    
+    /**
+     * Starts watching a game, its moves are passed to the spectator. A player who has joined on
+     * this connection keeps receiving the server's calls, and the game's moves with them.
+     * @param spectator The client watching
+     * @param gameId Id of the game
+     * @throws RemoteException If the request could not be sent
+     */
+    @Override
+    public void spectate(NimClientInterface spectator, long gameId) throws RemoteException {
+        synchronized(this) {
+            if(!joined) {
+                player = spectator;
+            }
+        }
+        
+        startReader();
+        send((ByteBuffer) NimProtocol.frame(NimProtocol.SPECTATE, 8).putLong(gameId).flip());
+    }
+    
+    @Override
+    public void stopSpectating(NimClientInterface spectator, long gameId) throws RemoteException {
+        send((ByteBuffer) NimProtocol.frame(NimProtocol.STOP_SPECTATING, 8).putLong(gameId).flip());
+    }
+    
+    @Override
+    public void ready() {
+        // Nothing to do, the server is ready once connected
+    }
+    
+    /**
+     * Closes the connection
+     */
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+    }
+    
+    /**
+     * Writes a frame
+     * @param frame Frame ready to write
+     * @throws RemoteException If the connection has failed
+     */
+    private void send(ByteBuffer frame) throws RemoteException {
+        try {
+            synchronized(channel) { // Frames from different threads must not interleave
+                while(frame.hasRemaining()) {
+                    channel.write(frame);
+                }
+            }
+        } catch (IOException e) {
+            throw new RemoteException("Error sending to server", e);
+        }
+    }
+    
+    /**
+     * Reads the server's frames until the connection closes
+     */
+    private void readFrames() {
+        ByteBuffer readBuffer = ByteBuffer.allocate(NimProtocol.readBufferSize());
+        ByteBuffer frame;
+        
+        try {
+            while(true) {
+                if(channel.read(readBuffer) < 0) {
+                    throw new EOFException("Server closed the connection");
+                }
+                
+                readBuffer.flip();
+                
+                while((frame = NimProtocol.nextFrame(readBuffer)) != null) {
+                    handle(frame);
+                }
+                
+                readBuffer.compact();
+            }
+        } catch (IOException e) {
+            if(channel.isOpen()) {
+                Logger.getLogger(NioServerConnection.class.getName()).log(Level.SEVERE, null, e);
+                System.out.println("Lost connection to server: " + e.getMessage());
+                close();
+            }
+        }
+    }
+    
+    /**
+     * Reads the lines of a GAME_LIST or REPLAY_LINES frame
+     * @param frame Frame positioned at the line count
+     * @return The lines
+     * @throws IOException If the count is corrupt
+     */
+    private static String[] getLines(ByteBuffer frame) throws IOException {
+        NimProtocol.require(frame, 4);
+        
+        int count = frame.getInt();
+        
+        if(count < 0 || count > frame.remaining() / 2) { // Each line needs atleast its length
+            throw new IOException("Bad line count: " + count);
+        }
+        
+        String[] lines = new String[count];
+        
+        for(int l = 0; l < lines.length; l++) {
+            lines[l] = NimProtocol.getString(frame);
+        }
+        return lines;
+    }
+    
+    /**
+     * Passes a frame from the server on to the player
+     * @param frame Opcode and payload
+     * @throws IOException If the frame is not understood or is too short for its opcode
+     */
+    private void handle(ByteBuffer frame) throws IOException {
+        byte opcode = frame.get();
+        
+        switch(opcode) {
+            case NimProtocol.PLAYER_CODE:
+                NimProtocol.require(frame, 4);
+                player.setPlayerCode(frame.getInt());
+                break;
+            case NimProtocol.SESSION_KEY:
+                NimProtocol.require(frame, 8);
+                player.setSessionKey(frame.getLong());
+                break;
+            case NimProtocol.MESSAGE:
+                player.serverMessage(NimProtocol.getString(frame));
+                break;
+            case NimProtocol.MESSAGES:
+                NimProtocol.require(frame, 4);
+                
+                int count = frame.getInt();
+                
+                if(count < 0 || count > frame.remaining() / 2) { // Each message needs atleast its length
+                    throw new IOException("Bad message count: " + count);
+                }
+                
+                String[] messages = new String[count];
+                
+                for(int m = 0; m < messages.length; m++) {
+                    messages[m] = NimProtocol.getString(frame);
+                }
+                player.serverMessages(messages);
+                break;
+            case NimProtocol.JOINED:
+                player.joinedServer();
+                break;
+            case NimProtocol.REQUEST_HEARTBEAT:
+                player.heartbeat();
+                break;
+            case NimProtocol.IN_GAME:
+                NimProtocol.require(frame, 1);
+                player.setInGameStatus(frame.get() == 1);
+                break;
+            case NimProtocol.GAME_STATE:
+                String opponent = NimProtocol.getString(frame);
+                NimVariant variant = NimProtocol.getVariant(frame);
+                
+                NimProtocol.require(frame, 8);
+                
+                int timeoutSeconds = frame.getInt();
+                int heapCount = frame.getInt();
+                
+                if(heapCount < 1 || heapCount > frame.remaining() / 4) {
+                    throw new IOException("Bad heap count: " + heapCount);
+                }
+                
+                int[] heaps = new int[heapCount];
+                
+                for(int h = 0; h < heaps.length; h++) {
+                    heaps[h] = frame.getInt();
+                }
+                player.gameState(opponent, variant, heaps, timeoutSeconds);
+                break;
+            case NimProtocol.OPPONENT_MOVED:
+                NimProtocol.require(frame, 12);
+                player.opponentMoved(frame.getInt(), frame.getInt(), frame.getInt());
+                break;
+            case NimProtocol.WON:
+                player.won();
+                break;
+            case NimProtocol.LOST:
+                player.lost();
+                break;
+            case NimProtocol.PLAY_AGAIN:
+                player.requestPlayAgain();
+                break;
+            case NimProtocol.LEADERBOARD_ENTRIES:
+                NimProtocol.require(frame, 4);
+                
+                int entryCount = frame.getInt();
+                
+                if(entryCount < 0 || entryCount > frame.remaining() / 26) { // Each entry needs atleast 26 bytes
+                    throw new IOException("Bad leaderboard entry count: " + entryCount);
+                }
+                
+                LeaderboardEntry[] entries = new LeaderboardEntry[entryCount];
+                
+                for(int e = 0; e < entries.length; e++) {
+                    String name = NimProtocol.getString(frame);
+                    
+                    NimProtocol.require(frame, 24);
+                    entries[e] = new LeaderboardEntry(name, frame.getDouble(), frame.getInt(), 
+                            frame.getInt(), frame.getInt(), frame.getInt());
+                }
+                
+                if(leaderboardReply != null) {
+                    leaderboardReply.complete(entries);
+                }
+                break;
+            case NimProtocol.GAME_LIST:
+                if(gamesReply != null) {
+                    gamesReply.complete(getLines(frame));
+                }
+                break;
+            case NimProtocol.REPLAY_LINES:
+                if(replayReply != null) {
+                    replayReply.complete(getLines(frame));
+                }
+                break;
+            default:
+                throw new IOException("Unknown opcode: " + opcode);
+        }
+    }
+}